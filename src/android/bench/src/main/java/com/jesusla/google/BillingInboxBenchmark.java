@@ -0,0 +1,83 @@
+package com.jesusla.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long BillingReceiver waits on the inbox per broadcast: an append
+ * returns once its record has been synced. The sampled percentiles are
+ * what the receiver takes out of the main thread's budget. With four
+ * threads appending, records share syncs.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BillingInboxBenchmark {
+  private File directory;
+  private BillingInbox inbox;
+  private String signedData;
+  private String signature;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = File.createTempFile("inbox", "");
+    if (!directory.delete() || !directory.mkdirs())
+      throw new IOException("cannot create " + directory);
+    inbox = new BillingInbox(directory, BillingInbox.SEGMENT_SIZE);
+    signedData = Payloads.signedData(1, 1);
+    // As long as the Base64 of a 2048-bit RSA signature
+    StringBuilder s = new StringBuilder();
+    while (s.length() < 344)
+      s.append('A');
+    signature = s.toString();
+  }
+
+  @TearDown
+  public void tearDown() {
+    inbox.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  /** A notify, acknowledged as the service does once it is handled. */
+  @Benchmark
+  public long appendNotify() {
+    long id = inbox.appendNotify("notify");
+    inbox.ack(id);
+    return id;
+  }
+
+  @Benchmark
+  public long appendPurchaseStateChanged() {
+    long id = inbox.appendPurchaseStateChanged(signedData, signature);
+    inbox.ack(id);
+    return id;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long appendNotifyFourThreads() {
+    long id = inbox.appendNotify("notify");
+    inbox.ack(id);
+    return id;
+  }
+}
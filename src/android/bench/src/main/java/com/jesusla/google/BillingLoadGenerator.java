@@ -0,0 +1,401 @@
+package com.jesusla.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jesusla.google.Consts.ResponseCode;
+
+/**
+ * Drives the whole Google billing path, from {@link BillingService} to
+ * {@link FakeMarketBillingService} and back through
+ * {@link BillingReceiver}, with tens of thousands of purchases,
+ * notifications and restored orders, and reports the throughput and memory
+ * of each phase. Unlike the JMH benchmarks this measures the system as a
+ * whole: batching, the inbox and outbox, verification and the main thread.
+ *
+ * Run with:
+ * java -cp target/benchmarks.jar com.jesusla.google.BillingLoadGenerator [options]
+ *
+ * Options, with their defaults:
+ *   --purchases 20000         purchases to make
+ *   --concurrency 500         purchases in flight at once
+ *   --restore 10000           owned orders returned by one restore
+ *   --call-latency 0          ms each binder call takes
+ *   --broadcast-latency 1     ms before Market's broadcasts are sent
+ *   --failure-rate 0          fraction of calls failed, per kind of failure
+ *   --seed 1                  seed of the injected failures
+ *   --timeout 300             s to wait for each phase
+ */
+public final class BillingLoadGenerator {
+  /** How long without a purchase response before giving up on the rest. */
+  private static final long STALL_MILLIS = 10 * 1000L;
+
+  private int purchases = 20000;
+  private int concurrency = 500;
+  private int restore = 10000;
+  private long callLatency = 0;
+  private long broadcastLatency = 1;
+  private double failureRate = 0;
+  private long seed = 1;
+  private long timeoutMillis = 300 * 1000L;
+
+  private FakeContext context;
+  private FakeMarketBillingService market;
+  private BillingService billing;
+
+  private final AtomicLong verified = new AtomicLong();
+  private final AtomicLong responses = new AtomicLong();
+  private final AtomicLong[] responseCodes = new AtomicLong[ResponseCode.values().length];
+  private final AtomicLong restoreResponses = new AtomicLong();
+  private volatile ResponseCode restoreResponse;
+
+  private BillingLoadGenerator() {
+    for (int i = 0; i < responseCodes.length; i++)
+      responseCodes[i] = new AtomicLong();
+  }
+
+  public static void main(String[] args) throws Exception {
+    BillingLoadGenerator generator = new BillingLoadGenerator();
+    generator.parse(args);
+    generator.run();
+    System.exit(0);
+  }
+
+  private void parse(String[] args) {
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String name = args[i];
+      String value = args[i + 1];
+      if ("--purchases".equals(name))
+        purchases = Integer.parseInt(value);
+      else if ("--concurrency".equals(name))
+        concurrency = Integer.parseInt(value);
+      else if ("--restore".equals(name))
+        restore = Integer.parseInt(value);
+      else if ("--call-latency".equals(name))
+        callLatency = Long.parseLong(value);
+      else if ("--broadcast-latency".equals(name))
+        broadcastLatency = Long.parseLong(value);
+      else if ("--failure-rate".equals(name))
+        failureRate = Double.parseDouble(value);
+      else if ("--seed".equals(name))
+        seed = Long.parseLong(value);
+      else if ("--timeout".equals(name))
+        timeoutMillis = Long.parseLong(value) * 1000L;
+      else
+        throw new IllegalArgumentException("unknown option " + name);
+    }
+  }
+
+  private void run() throws IOException {
+    File files = File.createTempFile("billing-load", "");
+    if (!files.delete() || !files.mkdirs())
+      throw new IOException("cannot create " + files);
+    System.out.printf("purchases=%d concurrency=%d restore=%d call-latency=%dms "
+        + "broadcast-latency=%dms failure-rate=%s seed=%d%n", purchases, concurrency, restore,
+        callLatency, broadcastLatency, failureRate, seed);
+    System.out.println("files: " + files);
+
+    context = new FakeContext("com.example.app", files);
+    market = new FakeMarketBillingService(context, seed);
+    market.setLatency(callLatency, broadcastLatency, 1);
+    market.setRemoteExceptionRate(failureRate / 10);
+    market.setUnavailableRate(failureRate);
+    market.setErrorResponseRate(failureRate);
+    market.setDroppedResponseRate(failureRate);
+    market.setUserCancelRate(failureRate);
+    context.setMarket(market);
+    Security.setIdentity(market.getIdentity());
+    Security.openNonceJournal(new File(files, "nonces"));
+    BillingService.openConfirmationOutbox(new File(files, "outbox"));
+    if (failureRate > 0) {
+      // Dropped response codes are otherwise waited on for minutes
+      for (String method : new String[] { "REQUEST_PURCHASE", "RESTORE_TRANSACTIONS",
+          "GET_PURCHASE_INFORMATION", "CONFIRM_NOTIFICATIONS" }) {
+        BillingService.setRequestTimeout(method, 5000);
+      }
+    }
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing = new BillingService();
+        billing.setActivity(context.newActivity());
+        billing.setListener(new BillingListener() {
+          @Override
+          public void verifyPayload(int startId, String signedData, String signature,
+              List<VerifiedPurchase> purchases) {
+          }
+
+          @Override
+          public void verifyTransaction(int startId, String signedData, String signature,
+              VerifiedPurchase purchase) {
+            verified.incrementAndGet();
+            billing.confirmNotifications(startId, new String[] { purchase.notificationId });
+          }
+        });
+      }
+    });
+
+    Phase phase = new Phase("purchases");
+    purchasePhase();
+    phase.end(purchases, verified.get());
+
+    phase = new Phase("renotify");
+    long before = verified.get();
+    long renotified = renotifyPhase();
+    phase.end(renotified, verified.get() - before);
+
+    phase = new Phase("restore");
+    before = verified.get();
+    restorePhase();
+    phase.end(market.getOwnedCount(), verified.get() - before);
+
+    report();
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing.unbind();
+      }
+    });
+    market.shutdown();
+  }
+
+  /** Makes every purchase, keeping at most the concurrency in flight. */
+  private void purchasePhase() {
+    final RequestPurchaseCallback callback = new RequestPurchaseCallback() {
+      @Override
+      public void requestPurchaseResponse(ResponseCode responseCode, String productId,
+          String productType, String developerPayload) {
+        responseCodes[responseCode.ordinal()].incrementAndGet();
+        responses.incrementAndGet();
+      }
+    };
+    int issued = 0;
+    while (issued < purchases) {
+      final long inFlight = issued - responses.get();
+      final int batch = (int) Math.min(purchases - issued, concurrency - inFlight);
+      if (batch <= 0) {
+        sleep(1);
+        continue;
+      }
+      final int first = issued;
+      context.runOnMain(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = first; i < first + batch; i++) {
+            if (!billing.requestPurchase("sku" + (i % 16), Consts.ITEM_TYPE_INAPP, "load-" + i,
+                callback)) {
+              // Failed fast; counts as answered
+              responseCodes[ResponseCode.RESULT_SERVICE_UNAVAILABLE.ordinal()].incrementAndGet();
+              responses.incrementAndGet();
+            }
+          }
+        }
+      });
+      issued += batch;
+    }
+    // Purchases Market rejects without a request ID never get a response
+    // code, so stop waiting once the responses stop coming
+    long last = -1;
+    long stalledSince = System.nanoTime();
+    long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+    while (responses.get() < purchases && System.nanoTime() - deadline < 0) {
+      long answered = responses.get();
+      if (answered != last) {
+        last = answered;
+        stalledSince = System.nanoTime();
+      } else if (System.nanoTime() - stalledSince > STALL_MILLIS * 1000000L) {
+        break;
+      }
+      sleep(10);
+    }
+    await("purchases confirmed", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        return market.getUnconfirmedCount() == 0;
+      }
+    }, Math.min(timeoutMillis, 30 * 1000L));
+  }
+
+  /**
+   * Has Market notify the purchases that are still unconfirmed again, as it
+   * does from time to time, until they all are.
+   * @return the number of notifications sent
+   */
+  private long renotifyPhase() {
+    long sent = 0;
+    for (int round = 0; round < 10 && market.getUnconfirmedCount() > 0; round++) {
+      sent += market.renotifyUnconfirmed();
+      await("renotified purchases confirmed", new FakeContext.Condition() {
+        @Override
+        public boolean isMet() {
+          return market.getUnconfirmedCount() == 0;
+        }
+      }, Math.min(timeoutMillis, 15 * 1000L));
+    }
+    return sent;
+  }
+
+  /** Restores the owned orders, trying again if the restore fails. */
+  private void restorePhase() {
+    market.addOwnedOrders(restore, "sku.restored.", 64);
+    // Every owned order is restored, including the purchases made earlier
+    final long target = verified.get() + market.getOwnedCount();
+    for (int attempt = 0; attempt < 5 && verified.get() < target; attempt++) {
+      final long answered = restoreResponses.get();
+      context.runOnMain(new Runnable() {
+        @Override
+        public void run() {
+          billing.restoreTransactions(new RestoreTransactionsCallback() {
+            @Override
+            public void restoreTransactionsResponse(ResponseCode responseCode) {
+              restoreResponse = responseCode;
+              restoreResponses.incrementAndGet();
+            }
+          });
+        }
+      });
+      await("restore response", new FakeContext.Condition() {
+        @Override
+        public boolean isMet() {
+          return restoreResponses.get() > answered;
+        }
+      });
+      if (restoreResponse != ResponseCode.RESULT_OK)
+        continue;
+      await("restored purchases", new FakeContext.Condition() {
+        @Override
+        public boolean isMet() {
+          return verified.get() >= target && BillingService.getUnconfirmedCount() == 0;
+        }
+      }, Math.min(timeoutMillis, 60 * 1000L));
+    }
+  }
+
+  private void report() {
+    System.out.println();
+    System.out.println("purchase response codes:");
+    for (ResponseCode code : ResponseCode.values()) {
+      if (responseCodes[code.ordinal()].get() > 0)
+        System.out.printf("  %-28s %d%n", code, responseCodes[code.ordinal()].get());
+    }
+    System.out.printf("  %-28s %d%n", "unanswered", purchases - responses.get());
+    System.out.println("market:");
+    for (String method : BillingMetrics.METHODS) {
+      System.out.printf("  %-28s %d requests%n", method, market.getRequestCount(method));
+    }
+    System.out.printf("  %-28s %d%n", "broadcasts", market.getBroadcastCount());
+    System.out.printf("  %-28s %d%n", "confirmed", market.getConfirmedCount());
+    System.out.printf("  %-28s %d%n", "unconfirmed", market.getUnconfirmedCount());
+    System.out.printf("  %-28s %d%n", "injected failures", market.getInjectedFailureCount());
+    System.out.println("service:");
+    System.out.printf("  %-28s %d%n", "binds", context.getBindCount());
+    System.out.printf("  %-28s %d%n", "crashes", BillingService.getServiceCrashCount());
+    System.out.printf("  %-28s %d%n", "timed out requests", BillingService.getTimedOutRequestCount());
+    System.out.printf("  %-28s %d%n", "service starts", context.getServiceStartCount());
+    System.out.printf("  %-28s %d%n", "max verification queue", BillingService.getMaxVerificationQueueDepth());
+    System.out.printf("  %-28s %d ms%n", "max verification latency", BillingService.getMaxVerificationLatencyMillis());
+    System.out.printf("  %-28s %s%n", "confirmation batch sizes",
+        summary(billing.getConfirmationBatchSizes()));
+    System.out.printf("  %-28s %s%n", "confirmation latency ms",
+        summary(billing.getConfirmationLatencyMillis()));
+    System.out.printf("  %-28s %s%n", "information batch sizes",
+        summary(billing.getPurchaseInformationBatchSizes()));
+    System.out.println("metrics: " + BillingMetrics.snapshot());
+  }
+
+  private static String summary(Log2Histogram histogram) {
+    Map<String, Object> summary = BillingMetrics.summarize(histogram);
+    return summary.toString();
+  }
+
+  private void await(String what, FakeContext.Condition condition) {
+    await(what, condition, timeoutMillis);
+  }
+
+  private void await(String what, FakeContext.Condition condition, long timeoutMillis) {
+    if (!context.await(condition, timeoutMillis))
+      System.out.println("  timed out waiting for " + what);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Measures the time, heap and collections of one phase. */
+  private static final class Phase {
+    private final String name;
+    private final long start = System.nanoTime();
+    private final long heapBefore;
+    private final long gcBefore;
+    private final long gcMillisBefore;
+
+    Phase(String name) {
+      this.name = name;
+      resetPeaks();
+      heapBefore = usedHeapAfterGc();
+      gcBefore = gcCount();
+      gcMillisBefore = gcMillis();
+    }
+
+    void end(long operations, long delivered) {
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long peak = peakHeap();
+      long heapAfter = usedHeapAfterGc();
+      System.out.printf("%-10s %8d ops %8d delivered %8.2f s %10.0f ops/s | heap %6.1f -> %6.1f MB"
+          + ", peak %6.1f MB | %d GCs, %d ms%n", name, operations, delivered, seconds,
+          operations / seconds, mb(heapBefore), mb(heapAfter), mb(peak), gcCount() - gcBefore,
+          gcMillis() - gcMillisBefore);
+    }
+
+    private static double mb(long bytes) {
+      return bytes / (1024.0 * 1024.0);
+    }
+
+    private static long usedHeapAfterGc() {
+      System.gc();
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetPeaks() {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        pool.resetPeakUsage();
+      }
+    }
+
+    private static long peakHeap() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP)
+          peak += pool.getPeakUsage().getUsed();
+      }
+      return peak;
+    }
+
+    private static long gcCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        count += Math.max(0, gc.getCollectionCount());
+      }
+      return count;
+    }
+
+    private static long gcMillis() {
+      long millis = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        millis += Math.max(0, gc.getCollectionTime());
+      }
+      return millis;
+    }
+  }
+}
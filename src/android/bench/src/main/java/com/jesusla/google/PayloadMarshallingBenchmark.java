@@ -0,0 +1,123 @@
+package com.jesusla.google;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Marshalling the transactions of one PURCHASE_STATE_CHANGED payload of N
+ * orders to ActionScript: the old way, with the signed data and signature
+ * in every transaction, and the new way, with the payload sent once and
+ * each transaction carrying its id and order index. The maps are the ones
+ * GoogleProvider sends, built as Transaction.toMap() builds them. The bridge
+ * is stood in for by what it does to every string, converting it to UTF-8,
+ * and the bytes each way marshals are printed at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadMarshallingBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Param({"1", "10", "100", "1000", "5000"})
+  int orders;
+
+  private String signedData;
+  private String signature;
+  private List<VerifiedPurchase> purchases;
+
+  @Setup
+  public void setUp() throws Exception {
+    signedData = Payloads.signedData(1, orders);
+    // As long as the Base64 of a 2048-bit RSA signature
+    StringBuilder s = new StringBuilder();
+    while (s.length() < 344)
+      s.append('A');
+    signature = s.toString();
+    purchases = SignedDataParser.parse(signedData).purchases;
+    System.out.printf("%n%d orders: per transaction %d bytes, shared payload %d bytes%n", orders,
+        perTransaction(), sharedPayload());
+  }
+
+  /** The old way: every transaction carries the whole payload. */
+  @Benchmark
+  public long perTransaction() {
+    long bytes = 0;
+    for (VerifiedPurchase purchase : purchases) {
+      Map<String, Object> transaction = transaction(purchase);
+      transaction.put("_signedData", signedData);
+      transaction.put("_signature", signature);
+      bytes += marshal(transaction);
+    }
+    return bytes;
+  }
+
+  /** The new way: onSignedPayload once, then a handle per transaction. */
+  @Benchmark
+  public long sharedPayload() {
+    List<Object> args = new ArrayList<Object>();
+    args.add(1);
+    args.add(signedData);
+    args.add(signature);
+    args.add(purchases.size());
+    long bytes = marshal(args);
+    for (VerifiedPurchase purchase : purchases) {
+      Map<String, Object> transaction = transaction(purchase);
+      transaction.put("_payloadId", 1);
+      transaction.put("_orderIndex", purchase.orderIndex);
+      bytes += marshal(transaction);
+    }
+    return bytes;
+  }
+
+  private static Map<String, Object> transaction(VerifiedPurchase purchase) {
+    Map<String, Object> map = new HashMap<String, Object>(16);
+    map.put("vendor", "GOOGLE");
+    map.put("transactionState", "VERIFY");
+    map.put("productIdentifier", purchase.productId);
+    map.put("_transactionIdentifier", purchase.orderId);
+    map.put("_transactionDate", new Date(purchase.purchaseTime));
+    map.put("_updateId", -1);
+    map.put("_notificationId", purchase.notificationId);
+    return map;
+  }
+
+  /** Converts every string as the bridge does. @return the bytes converted */
+  private static long marshal(Object value) {
+    if (value instanceof String)
+      return ((String) value).getBytes(UTF_8).length;
+    long bytes = 0;
+    if (value instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        bytes += marshal(entry.getKey()) + marshal(entry.getValue());
+      }
+    } else if (value instanceof List) {
+      for (Object element : (List<?>) value) {
+        bytes += marshal(element);
+      }
+    } else {
+      // Numbers, booleans and dates are converted in place
+      bytes += 8;
+    }
+    return bytes;
+  }
+}
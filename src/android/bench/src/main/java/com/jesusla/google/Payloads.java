@@ -0,0 +1,68 @@
+package com.jesusla.google;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+import com.jesusla.util.Base64;
+
+/**
+ * Generates RSA key pairs and synthetic PURCHASE_STATE_CHANGED payloads
+ * signed the way Android Market signs them.
+ */
+public final class Payloads {
+  private final KeyPair keyPair;
+
+  /** Generates a new 1024-bit key pair, the size Market keys have. */
+  public Payloads() {
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(1024);
+      keyPair = generator.generateKeyPair();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Returns the public key, Base64-encoded as in the SKIdentity meta-data. */
+  public String identity() {
+    return Base64.encode(keyPair.getPublic().getEncoded());
+  }
+
+  /** Returns a signed data payload with the given nonce and number of orders. */
+  public static String signedData(long nonce, int orders) {
+    StringBuilder json = new StringBuilder(64 + orders * 256);
+    json.append("{\"nonce\":").append(nonce).append(",\"orders\":[");
+    for (int i = 0; i < orders; i++) {
+      if (i > 0)
+        json.append(',');
+      json.append("{\"notificationId\":\"").append(notificationId(nonce, i))
+          .append("\",\"orderId\":\"12999763169054705758.").append(1371079406387615L + i)
+          .append("\",\"packageName\":\"com.example.app\",\"productId\":\"sku").append(i % 8)
+          .append("\",\"purchaseTime\":").append(1300000000000L + i)
+          .append(",\"purchaseState\":0,\"developerPayload\":\"bench\"}");
+    }
+    return json.append("]}").toString();
+  }
+
+  /** Returns the notification ID of the given order of a payload. */
+  public static String notificationId(long nonce, int order) {
+    return "-" + Long.toHexString(nonce) + "." + order;
+  }
+
+  /** Signs the data with SHA1withRSA and returns the Base64 signature. */
+  public String sign(String signedData) {
+    try {
+      PrivateKey key = keyPair.getPrivate();
+      Signature signature = Signature.getInstance("SHA1withRSA");
+      signature.initSign(key);
+      signature.update(signedData.getBytes(StandardCharsets.UTF_8));
+      return Base64.encode(signature.sign());
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.jesusla.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Intent;
+
+/**
+ * The latency from a PURCHASE_STATE_CHANGED broadcast reaching
+ * {@link BillingReceiver} to the listener's verifyTransaction, on the
+ * {@link FakeContext} harness the load generator uses. "handoff" has a live
+ * {@link BillingService}, as when GoogleProvider has created one, so the
+ * receiver posts the payload straight to it; "startService" has none, so
+ * every broadcast starts, creates and then stops a service instance. Both
+ * log the broadcast to the inbox first and verify a one-order payload.
+ *
+ * The harness starts a service with a post to the main thread, so it shows
+ * what the two paths cost in this process, not the ActivityManager round
+ * trip and the copy of the signed data that startService costs on a device.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReceiverHandoffBenchmark {
+  @Param({"handoff", "startService"})
+  String path;
+
+  private final Payloads payloads = new Payloads();
+  private final Semaphore delivered = new Semaphore(0);
+  private FakeContext context;
+  private Intent broadcast;
+
+  @Setup
+  public void setUp() throws IOException {
+    File files = File.createTempFile("receiver-handoff", "");
+    if (!files.delete() || !files.mkdirs())
+      throw new IOException("cannot create " + files);
+    context = new FakeContext("com.example.app", files);
+    Security.setIdentity(payloads.identity());
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        BillingService billing = new BillingService();
+        if ("handoff".equals(path)) {
+          billing.setActivity(context.newActivity());
+        } else {
+          // Only the listener, which every instance shares; no live instance
+          billing.attach(context);
+        }
+        billing.setListener(new BillingListener() {
+          @Override
+          public void verifyPayload(int startId, String signedData, String signature,
+              List<VerifiedPurchase> purchases) {
+          }
+
+          @Override
+          public void verifyTransaction(int startId, String signedData, String signature,
+              VerifiedPurchase purchase) {
+            delivered.release();
+          }
+        });
+      }
+    });
+  }
+
+  /** Signs a payload with a fresh nonce, outside the measurement. */
+  @Setup(Level.Invocation)
+  public void nextBroadcast() {
+    String signedData = Payloads.signedData(Security.generateNonce(), 1);
+    broadcast = new Intent(Consts.ACTION_PURCHASE_STATE_CHANGED);
+    broadcast.putExtra(Consts.INAPP_SIGNED_DATA, signedData);
+    broadcast.putExtra(Consts.INAPP_SIGNATURE, payloads.sign(signedData));
+  }
+
+  @Benchmark
+  public void receiveToVerifyTransaction() throws InterruptedException {
+    context.sendBroadcast(broadcast);
+    if (!delivered.tryAcquire(10, TimeUnit.SECONDS))
+      throw new IllegalStateException("payload was not delivered");
+  }
+
+  /** Checks each path took the route it is named for. */
+  @TearDown
+  public void tearDown() {
+    long starts = context.getServiceStartCount();
+    if ("handoff".equals(path) ? starts != 0 : starts == 0)
+      throw new IllegalStateException(path + ": " + starts + " service starts");
+    System.out.printf("%n%s: %d service starts, %d instances created%n", path, starts,
+        context.getServiceCreateCount());
+  }
+}
@@ -0,0 +1,83 @@
+package com.jesusla.google;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending a request and claiming its response with thousands of requests
+ * in flight, from four threads at once, with the request registry and
+ * with the synchronized HashMap it replaced.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RequestRegistryBenchmark {
+  @Param({"1000", "10000"})
+  int inFlight;
+
+  private final AtomicLong threads = new AtomicLong();
+  private RequestRegistry<Object> registry;
+  private Map<Long, Object> hashMap;
+
+  /** Each thread sends its own ids, keeping its share of requests in flight. */
+  @State(Scope.Thread)
+  public static class Ids {
+    long next;
+    long stride;
+    long lag;
+
+    @Setup
+    public void setUp(RequestRegistryBenchmark benchmark) {
+      next = benchmark.threads.getAndIncrement();
+      stride = 64;
+      lag = benchmark.inFlight / 4 * stride;
+      for (long i = 0; i < benchmark.inFlight / 4; i++) {
+        benchmark.registry.addSent(next, this);
+        benchmark.hashMap.put(next, this);
+        next += stride;
+      }
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    registry = new RequestRegistry<Object>();
+    hashMap = Collections.synchronizedMap(new HashMap<Long, Object>());
+  }
+
+  @Benchmark
+  public Object registry(Ids ids) {
+    long id = ids.next;
+    ids.next += ids.stride;
+    registry.addSent(id, ids);
+    return registry.claimSent(id - ids.lag);
+  }
+
+  @Benchmark
+  public Object synchronizedHashMap(Ids ids) {
+    long id = ids.next;
+    ids.next += ids.stride;
+    hashMap.put(id, ids);
+    return hashMap.remove(id - ids.lag);
+  }
+}
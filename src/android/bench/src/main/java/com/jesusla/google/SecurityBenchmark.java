@@ -0,0 +1,106 @@
+package com.jesusla.google;
+
+import java.lang.reflect.Field;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jesusla.util.Base64;
+
+/**
+ * The Google Play verification pipeline: public key parsing, signature
+ * verification and full purchase verification, for payloads of 1 to 100
+ * orders. verifyBaseline is verification as it was before the key and the
+ * Signature were cached: the key is decoded and a Signature looked up on
+ * every call; verifyCached is the same work through SignatureVerifier.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecurityBenchmark {
+  @Param({"1", "10", "100"})
+  int orders;
+
+  private String identity;
+  private PublicKey publicKey;
+  private NonceTable knownNonces;
+  private long nonce;
+  private String signedData;
+  private String signature;
+  private String staleData;
+  private String staleSignature;
+  private SignatureVerifier verifier;
+
+  @Setup(Level.Trial)
+  public void setUp() throws ReflectiveOperationException {
+    Payloads payloads = new Payloads();
+    identity = payloads.identity();
+    Security.setIdentity(identity);
+    publicKey = Security.generatePublicKey(identity);
+
+    nonce = Security.generateNonce();
+    signedData = Payloads.signedData(nonce, orders);
+    signature = payloads.sign(signedData);
+    // A redelivery of a payload whose nonce was already used
+    staleData = Payloads.signedData(nonce + 1, orders);
+    staleSignature = payloads.sign(staleData);
+
+    // verifyPurchase uses the nonce up; put it back before every call
+    Field field = Security.class.getDeclaredField("sKnownNonces");
+    field.setAccessible(true);
+    knownNonces = (NonceTable) field.get(null);
+    verifier = new SignatureVerifier();
+  }
+
+  @Benchmark
+  public ArrayList<VerifiedPurchase> verifyPurchase() {
+    knownNonces.add(nonce);
+    return Security.verifyPurchase(signedData, signature);
+  }
+
+  @Benchmark
+  public ArrayList<VerifiedPurchase> verifyPurchaseStaleNonce() {
+    return Security.verifyPurchase(staleData, staleSignature);
+  }
+
+  @Benchmark
+  public boolean verify() {
+    return Security.verify(publicKey, signedData, signature);
+  }
+
+  @Benchmark
+  public boolean verifyBaseline() throws Exception {
+    PublicKey key = Security.generatePublicKey(identity);
+    Signature sig = Signature.getInstance("SHA1withRSA");
+    sig.initVerify(key);
+    sig.update(signedData.getBytes());
+    return sig.verify(Base64.decode(signature));
+  }
+
+  @Benchmark
+  public boolean verifyCached() {
+    return verifier.verify(identity, signedData, signature);
+  }
+
+  @Benchmark
+  public PublicKey generatePublicKey() {
+    return Security.generatePublicKey(identity);
+  }
+}
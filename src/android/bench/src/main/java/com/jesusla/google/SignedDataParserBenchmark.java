@@ -0,0 +1,48 @@
+package com.jesusla.google;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a PURCHASE_STATE_CHANGED payload of N orders: the streaming parser
+ * against the JSONObject tree it replaced. Run with -prof gc to compare the
+ * allocation as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignedDataParserBenchmark {
+  @Param({"1", "100", "10000"})
+  int orders;
+
+  private String signedData;
+
+  @Setup
+  public void setUp() throws Exception {
+    signedData = Payloads.signedData(1, orders);
+  }
+
+  @Benchmark
+  public SignedDataParser.Result streaming() throws Exception {
+    return SignedDataParser.parse(signedData);
+  }
+
+  @Benchmark
+  public SignedDataParser.Result jsonObject() throws Exception {
+    return SignedDataParser.parseWithJsonObject(signedData);
+  }
+}
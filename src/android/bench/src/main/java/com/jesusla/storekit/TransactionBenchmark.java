@@ -0,0 +1,92 @@
+package com.jesusla.storekit;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jesusla.google.Consts.PurchaseState;
+import com.jesusla.google.VerifiedPurchase;
+
+/**
+ * Turning the purchases of a restore into the updates sent to ActionScript:
+ * the old way, a HashMap with boxed values and a Date filled in as each
+ * purchase is verified, against a {@link Transaction} that is queued and
+ * only turned into its map when the batch is sent. Either way every update
+ * ends up as a map in the array onTransactionUpdates sends. Run with
+ * -prof gc to compare the allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionBenchmark {
+  @Param({"10000"})
+  int transactions;
+
+  private List<VerifiedPurchase> purchases;
+
+  @Setup
+  public void setUp() {
+    purchases = new ArrayList<VerifiedPurchase>(transactions);
+    for (int i = 0; i < transactions; i++) {
+      // Fresh strings, as the parser produces them
+      VerifiedPurchase purchase = new VerifiedPurchase(PurchaseState.PURCHASED,
+          "-1a2b3c4d." + i, "sku" + (i % 8), "12999763169054705758." + (1371079406387615L + i),
+          1300000000000L + i, "bench");
+      purchase.orderIndex = i;
+      purchases.add(purchase);
+    }
+  }
+
+  /** The old way: a map per update, built as the purchase is verified. */
+  @Benchmark
+  public Object[] mapPerUpdate() {
+    List<Map<String, Object>> queued = new ArrayList<Map<String, Object>>();
+    for (VerifiedPurchase purchase : purchases) {
+      Map<String, Object> transaction = new HashMap<String, Object>();
+      transaction.put("vendor", GoogleProvider.VENDOR);
+      transaction.put("productIdentifier", purchase.productId);
+      transaction.put("_transactionIdentifier", purchase.orderId);
+      transaction.put("_transactionDate", new Date(purchase.purchaseTime));
+      transaction.put("_updateId", -1);
+      transaction.put("_notificationId", purchase.notificationId);
+      transaction.put("_payloadId", 1);
+      transaction.put("_orderIndex", purchase.orderIndex);
+      transaction.put("transactionState", Transaction.STATE_VERIFY);
+      queued.add(transaction);
+    }
+    return queued.toArray();
+  }
+
+  /** The new way: a Transaction per update, turned into its map when sent. */
+  @Benchmark
+  public Object[] transactionPerUpdate() {
+    List<Transaction> queued = new ArrayList<Transaction>();
+    for (VerifiedPurchase purchase : purchases) {
+      queued.add(Transaction.google(Transaction.STATE_VERIFY, purchase.productId,
+          purchase.orderId, purchase.purchaseTime, -1, purchase.notificationId, 1,
+          purchase.orderIndex));
+    }
+    Object[] sent = new Object[queued.size()];
+    for (int i = 0; i < sent.length; i++)
+      sent[i] = queued.get(i).toMap();
+    return sent;
+  }
+}
@@ -0,0 +1,65 @@
+package com.jesusla.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base64 decoding of a 128-byte signature, a 256-byte signature and a
+ * 64 KB payload, into a new array and into a reused buffer, and with the
+ * original decoder for comparison.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base64Benchmark {
+  @Param({"128", "256", "65536"})
+  int size;
+
+  private String encoded;
+  private byte[] encodedBytes;
+  private byte[] decoded;
+
+  @Setup
+  public void setUp() {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    encoded = Base64.encode(data);
+    encodedBytes = encoded.getBytes();
+    decoded = new byte[size];
+  }
+
+  @Benchmark
+  public byte[] decodeString() throws Base64DecoderException {
+    return Base64.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] decodeBytes() throws Base64DecoderException {
+    return Base64.decode(encodedBytes);
+  }
+
+  @Benchmark
+  public byte[] decodeBytesReference() throws Base64DecoderException {
+    return ReferenceBase64.decode(encodedBytes);
+  }
+
+  @Benchmark
+  public int decodeIntoBuffer() throws Base64DecoderException {
+    return Base64.decode(encoded, decoded, 0);
+  }
+}
@@ -0,0 +1,658 @@
+package com.jesusla.google;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A durable inbox for the broadcasts Android Market sends us. Each event is
+ * appended to a log before it is handed to the {@link BillingService}, and
+ * acknowledged once the service is done with it; events that were never
+ * acknowledged, because the process died first, are replayed on the next
+ * start instead of waiting for Market to retry.
+ *
+ * The log is split into segment files of records, each checksummed so a
+ * torn write at the end of a segment is detected and ignored. An append
+ * queues the record and waits until it has been synced; a writer thread
+ * writes whatever queued up while the previous sync ran and syncs it once
+ * (group commit). Acknowledgements do not wait, since losing one only
+ * replays an event that was already handled. Segments are deleted, oldest
+ * first, once every record in them has been acknowledged.
+ *
+ * Recovery, encoding and writing all run on the writer thread; the receiver
+ * only waits for its own record to be synced.
+ */
+class BillingInbox {
+    private static final String TAG = "BillingInbox";
+
+    private static final String DIRECTORY = "storekit-inbox";
+    private static final String SEGMENT_PREFIX = "inbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** Size at which a new segment is started. */
+    static final long SEGMENT_SIZE = 256 * 1024;
+
+    /**
+     * How long an append waits for the inbox to be recovered and its record
+     * synced before the event is handled anyway. Appends run in
+     * {@link BillingReceiver#onReceive} on the main thread, which has 10 s
+     * before the receiver is considered hung, and which the UI shares; a
+     * sync normally takes a few tens of ms, so this only cuts off a stalled
+     * disk. An event handled unsynced is still redelivered by Market if it
+     * is lost, and the writer keeps trying to sync it.
+     */
+    private static final long COMMIT_TIMEOUT_MILLIS = 300;
+
+    /** How long the writer waits to retry a failed write; doubled per failure. */
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    /** Records longer than this are treated as corrupt. */
+    private static final int MAX_RECORD_LENGTH = 4 * 1024 * 1024;
+
+    static final byte TYPE_NOTIFY = 1;
+    static final byte TYPE_PURCHASE_STATE_CHANGED = 2;
+    static final byte TYPE_RESPONSE_CODE = 3;
+    private static final byte TYPE_ACK = 4;
+
+    /**
+     * An event in the inbox.
+     */
+    static final class Record {
+        final byte mType;
+        long mId;
+        String mNotifyId;
+        String mSignedData;
+        String mSignature;
+        long mRequestId;
+        int mResponseCode;
+        /** For acknowledgements, the id of the record acknowledged. */
+        long mTarget;
+
+        Record(byte type) {
+            mType = type;
+        }
+    }
+
+    /**
+     * Receives the records that were never acknowledged.
+     */
+    interface Replayer {
+        void replay(List<Record> records);
+    }
+
+    private static BillingInbox sInstance;
+    private static boolean sOpenFailed;
+
+    private final File mDirectory;
+    private final long mSegmentSize;
+    private final Thread mWriter;
+
+    // Guarded by mQueue
+    private final ArrayList<Record> mQueue = new ArrayList<Record>();
+    private boolean mRecovered;
+    private boolean mClosed;
+    private long mNextId = 1;
+    /** The id of the last record synced to disk. */
+    private long mCommittedId;
+    private List<Record> mUnacknowledged;
+    private Handler mReplayHandler;
+    private Replayer mReplayer;
+
+    // Only used by the writer thread
+    private FileOutputStream mOut;
+    private long mSegment;
+    private long mSegmentLength;
+    private final HashMap<Long, Long> mRecordSegments = new HashMap<Long, Long>();
+    private final TreeMap<Long, Integer> mLiveRecords = new TreeMap<Long, Integer>();
+
+    /**
+     * Returns the inbox in the application's files directory, opening it and
+     * recovering its contents the first time. Returns null if persistence is
+     * disabled or the inbox cannot be opened.
+     */
+    static synchronized BillingInbox getInstance(Context context) {
+        if (sInstance == null && !sOpenFailed && Consts.PERSIST_INBOX) {
+            try {
+                sInstance = new BillingInbox(new File(context.getFilesDir(), DIRECTORY),
+                        SEGMENT_SIZE);
+            } catch (IOException e) {
+                Log.w(TAG, "unable to open inbox", e);
+                sOpenFailed = true;
+            }
+        }
+        return sInstance;
+    }
+
+    /** Returns the inbox if it has been opened, or null. */
+    static synchronized BillingInbox peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Opens the inbox in the directory. Its contents are recovered on the
+     * writer thread; appends wait for that.
+     * @param segmentSize the size at which a new segment is started
+     */
+    BillingInbox(File directory, long segmentSize) throws IOException {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recoverAndWrite();
+            }
+        }, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /** Appends an IN_APP_NOTIFY. @return the record id */
+    long appendNotify(String notifyId) {
+        Record record = new Record(TYPE_NOTIFY);
+        record.mNotifyId = notifyId;
+        return append(record, true);
+    }
+
+    /** Appends a PURCHASE_STATE_CHANGED. @return the record id */
+    long appendPurchaseStateChanged(String signedData, String signature) {
+        Record record = new Record(TYPE_PURCHASE_STATE_CHANGED);
+        record.mSignedData = signedData;
+        record.mSignature = signature;
+        return append(record, true);
+    }
+
+    /** Appends a RESPONSE_CODE. @return the record id */
+    long appendResponseCode(long requestId, int responseCode) {
+        Record record = new Record(TYPE_RESPONSE_CODE);
+        record.mRequestId = requestId;
+        record.mResponseCode = responseCode;
+        return append(record, true);
+    }
+
+    /** Marks a record as processed, so it is not replayed. */
+    void ack(long id) {
+        if (id <= 0) {
+            return;
+        }
+        Record record = new Record(TYPE_ACK);
+        record.mTarget = id;
+        append(record, false);
+    }
+
+    /**
+     * Waits for recovery, then returns the records that were never
+     * acknowledged before the inbox was opened, in the order they were
+     * received. Returns them only once.
+     */
+    List<Record> takeUnacknowledged() {
+        synchronized (mQueue) {
+            while (!mRecovered) {
+                try {
+                    mQueue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new ArrayList<Record>();
+                }
+            }
+            List<Record> records = mUnacknowledged;
+            mUnacknowledged = null;
+            return records != null ? records : new ArrayList<Record>();
+        }
+    }
+
+    /**
+     * Hands the records that were never acknowledged to the replayer on the
+     * handler's thread once recovery is done, without waiting for it. Does
+     * nothing if there are none, or they were already taken.
+     */
+    void replayUnacknowledged(Handler handler, Replayer replayer) {
+        synchronized (mQueue) {
+            if (!mRecovered) {
+                mReplayHandler = handler;
+                mReplayer = replayer;
+                return;
+            }
+        }
+        postReplay(handler, replayer);
+    }
+
+    private void postReplay(Handler handler, final Replayer replayer) {
+        final List<Record> records = takeUnacknowledged();
+        if (records.isEmpty()) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                replayer.replay(records);
+            }
+        });
+    }
+
+    /**
+     * Writes the records still queued, then stops the writer thread and
+     * closes the current segment. Nothing can be appended afterwards.
+     */
+    void close() {
+        synchronized (mQueue) {
+            mClosed = true;
+            mQueue.notifyAll();
+        }
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a record for the writer.
+     * @param durable whether to wait until the record has been synced
+     * @return the record id, or 0 if the record could not be queued in time
+     */
+    private long append(Record record, boolean durable) {
+        synchronized (mQueue) {
+            long deadline = SystemClock.uptimeMillis() + COMMIT_TIMEOUT_MILLIS;
+            while (!mRecovered) {
+                if (!await(deadline)) {
+                    Log.w(TAG, "inbox not recovered in time; event not logged");
+                    return 0;
+                }
+            }
+            if (mClosed) {
+                return 0;
+            }
+            record.mId = mNextId++;
+            mQueue.add(record);
+            mQueue.notifyAll();
+            while (durable && mCommittedId < record.mId) {
+                if (!await(deadline)) {
+                    // Stays queued; the writer keeps trying
+                    Log.w(TAG, "inbox record " + record.mId + " not synced in time");
+                    break;
+                }
+            }
+            return record.mId;
+        }
+    }
+
+    /**
+     * Waits on the queue until notified or the deadline passes. Must hold
+     * the queue lock.
+     * @return false if the deadline has passed
+     */
+    private boolean await(long deadline) {
+        long remaining = deadline - SystemClock.uptimeMillis();
+        if (remaining <= 0 || mClosed) {
+            return false;
+        }
+        try {
+            mQueue.wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void recoverAndWrite() {
+        try {
+            recover();
+        } finally {
+            Handler handler;
+            Replayer replayer;
+            synchronized (mQueue) {
+                mRecovered = true;
+                mQueue.notifyAll();
+                handler = mReplayHandler;
+                replayer = mReplayer;
+                mReplayHandler = null;
+                mReplayer = null;
+            }
+            if (replayer != null) {
+                postReplay(handler, replayer);
+            }
+        }
+        writeLoop();
+    }
+
+    private void writeLoop() {
+        ArrayList<Record> batch = new ArrayList<Record>();
+        long retryDelay = RETRY_DELAY_MILLIS;
+        while (true) {
+            try {
+                synchronized (mQueue) {
+                    while (batch.isEmpty() && mQueue.isEmpty() && !mClosed) {
+                        mQueue.wait();
+                    }
+                    // Everything that queued up during the last sync shares the next one
+                    batch.addAll(mQueue);
+                    mQueue.clear();
+                }
+                if (batch.isEmpty()) {
+                    // Closed, with nothing left to write
+                    closeSegment();
+                    return;
+                }
+                write(batch);
+                synchronized (mQueue) {
+                    mCommittedId = batch.get(batch.size() - 1).mId;
+                    mQueue.notifyAll();
+                }
+                batch.clear();
+                retryDelay = RETRY_DELAY_MILLIS;
+            } catch (InterruptedException e) {
+                closeSegment();
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "unable to write inbox, retrying in " + retryDelay + " ms", e);
+                // Never append after a failed write; write the batch again in a new segment
+                closeSegment();
+                mSegment++;
+                synchronized (mQueue) {
+                    if (mClosed) {
+                        return;
+                    }
+                    try {
+                        mQueue.wait(retryDelay);
+                    } catch (InterruptedException e2) {
+                        return;
+                    }
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs a batch. The records are only counted in their
+     * segments once synced, so a batch written again after a failure is not
+     * counted twice.
+     */
+    private void write(List<Record> batch) throws IOException {
+        long[] segments = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            byte[] bytes = encode(record);
+            if (bytes.length - 8 > MAX_RECORD_LENGTH) {
+                // Could never be read back, and would hide the records after it
+                Log.w(TAG, "inbox record " + record.mId + " too long to log");
+                segments[i] = -1;
+                continue;
+            }
+            if (mOut == null || mSegmentLength >= mSegmentSize) {
+                startSegment();
+            }
+            mOut.write(bytes);
+            mSegmentLength += bytes.length;
+            segments[i] = mSegment;
+        }
+        if (mOut != null) {
+            mOut.getFD().sync();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            if (segments[i] < 0) {
+                continue;
+            }
+            if (record.mType == TYPE_ACK) {
+                Long segment = mRecordSegments.remove(record.mTarget);
+                if (segment != null) {
+                    Integer live = mLiveRecords.get(segment);
+                    if (live != null) {
+                        mLiveRecords.put(segment, live - 1);
+                    }
+                }
+            } else {
+                mRecordSegments.put(record.mId, segments[i]);
+                Integer live = mLiveRecords.get(segments[i]);
+                mLiveRecords.put(segments[i], live == null ? 1 : live + 1);
+            }
+        }
+        deleteDeadSegments();
+    }
+
+    private void startSegment() throws IOException {
+        if (mOut != null) {
+            mOut.getFD().sync();
+            closeSegment();
+            mSegment++;
+        }
+        mOut = new FileOutputStream(segmentFile(mSegment));
+        mSegmentLength = 0;
+        if (!mLiveRecords.containsKey(mSegment)) {
+            mLiveRecords.put(mSegment, 0);
+        }
+    }
+
+    private void closeSegment() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+            mOut = null;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments whose records have all been acknowledged.
+     * Only a prefix is deleted, because a segment may hold the
+     * acknowledgements of records in older segments.
+     */
+    private void deleteDeadSegments() {
+        while (!mLiveRecords.isEmpty()) {
+            // firstEntry() is API 9
+            long oldest = mLiveRecords.firstKey();
+            if (oldest == mSegment || mLiveRecords.get(oldest) > 0) {
+                break;
+            }
+            mLiveRecords.remove(oldest);
+            if (!segmentFile(oldest).delete()) {
+                Log.w(TAG, "unable to delete inbox segment " + oldest);
+            }
+        }
+    }
+
+    /**
+     * Reads every segment, collecting the records that were never
+     * acknowledged. Reading a segment stops at the first record that is
+     * truncated or fails its checksum. New records always go to a new
+     * segment, so a torn tail is never appended to. Runs on the writer
+     * thread before anything is appended.
+     */
+    private void recover() {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+
+        LinkedHashMap<Long, Record> records = new LinkedHashMap<Long, Record>();
+        long maxId = 0;
+        for (Map.Entry<Long, File> segment : segments.entrySet()) {
+            mLiveRecords.put(segment.getKey(), 0);
+            mSegment = segment.getKey();
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(segment.getValue())));
+                try {
+                    Record record;
+                    while ((record = readRecord(in)) != null) {
+                        maxId = Math.max(maxId, record.mId);
+                        if (record.mType == TYPE_ACK) {
+                            records.remove(record.mTarget);
+                            mRecordSegments.remove(record.mTarget);
+                        } else {
+                            records.put(record.mId, record);
+                            mRecordSegments.put(record.mId, segment.getKey());
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "unable to read inbox segment " + segment.getValue(), e);
+            }
+        }
+        for (Long segment : mRecordSegments.values()) {
+            mLiveRecords.put(segment, mLiveRecords.get(segment) + 1);
+        }
+        // Start writing after the last segment, and drop the dead ones
+        mSegment++;
+        deleteDeadSegments();
+        mNextId = maxId + 1;
+        mUnacknowledged = new ArrayList<Record>(records.values());
+        if (!mUnacknowledged.isEmpty()) {
+            Log.i(TAG, "recovered " + mUnacknowledged.size() + " unacknowledged event(s)");
+        }
+    }
+
+    /**
+     * Reads a record.
+     * @return the record, or null at the end of the segment or at the first
+     * torn or corrupt record
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            int checksum = in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return decode(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(Record record) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(record.mType);
+            out.writeLong(record.mId);
+            switch (record.mType) {
+            case TYPE_NOTIFY:
+                writeString(out, record.mNotifyId);
+                break;
+            case TYPE_PURCHASE_STATE_CHANGED:
+                writeString(out, record.mSignedData);
+                writeString(out, record.mSignature);
+                break;
+            case TYPE_RESPONSE_CODE:
+                out.writeLong(record.mRequestId);
+                out.writeInt(record.mResponseCode);
+                break;
+            default:
+                out.writeLong(record.mTarget);
+                break;
+            }
+            out.flush();
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            bytes = new ByteArrayOutputStream(payload.length + 8);
+            out = new DataOutputStream(bytes);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen with an in-memory stream
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Record record = new Record(in.readByte());
+        record.mId = in.readLong();
+        switch (record.mType) {
+        case TYPE_NOTIFY:
+            record.mNotifyId = readString(in);
+            break;
+        case TYPE_PURCHASE_STATE_CHANGED:
+            record.mSignedData = readString(in);
+            record.mSignature = readString(in);
+            break;
+        case TYPE_RESPONSE_CODE:
+            record.mRequestId = in.readLong();
+            record.mResponseCode = in.readInt();
+            break;
+        case TYPE_ACK:
+            record.mTarget = in.readLong();
+            break;
+        default:
+            throw new IOException("unknown record type " + record.mType);
+        }
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private File segmentFile(long segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+}
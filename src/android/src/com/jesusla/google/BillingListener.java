@@ -1,6 +1,13 @@
 package com.jesusla.google;
 
+import java.util.List;
 
 public interface BillingListener {
+  /**
+   * Called once for each PURCHASE_STATE_CHANGED payload, before
+   * {@link #verifyTransaction} is called for each of its purchases.
+   */
+  void verifyPayload(int startId, String signedData, String signature, List<VerifiedPurchase> purchases);
+
   void verifyTransaction(int startId, String signedData, String signature, VerifiedPurchase purchase);
 }
@@ -0,0 +1,132 @@
+package com.jesusla.google;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and counters for the billing requests made to Android
+ * Market. Histograms are created up front, one per request method, so that
+ * recording is a lookup and a few atomic increments and never allocates.
+ */
+public class BillingMetrics {
+    /** The request methods that have latency histograms. */
+    static final String[] METHODS = {
+        "CHECK_BILLING_SUPPORTED",
+        "REQUEST_PURCHASE",
+        "GET_PURCHASE_INFORMATION",
+        "CONFIRM_NOTIFICATIONS",
+        "RESTORE_TRANSACTIONS",
+    };
+
+    private static final Log2Histogram[] sLatencyMicros = new Log2Histogram[METHODS.length];
+    private static final AtomicLong[] sFailures = new AtomicLong[METHODS.length];
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            sLatencyMicros[i] = new Log2Histogram();
+            sFailures[i] = new AtomicLong();
+        }
+    }
+
+    private static final AtomicLong sRemoteExceptions = new AtomicLong();
+    private static final AtomicLong sDisconnects = new AtomicLong();
+    private static final AtomicLong sRetries = new AtomicLong();
+
+    private BillingMetrics() {
+    }
+
+    /**
+     * Records how long a request took from being made to its response.
+     * @param method the request method
+     * @param startNanos when the request was made, from System.nanoTime()
+     * @param ok false if the request failed or timed out
+     */
+    static void recordRequest(String method, long startNanos, boolean ok) {
+        int index = indexOf(method);
+        if (index < 0) {
+            return;
+        }
+        sLatencyMicros[index].record((System.nanoTime() - startNanos) / 1000L);
+        if (!ok) {
+            sFailures[index].incrementAndGet();
+        }
+    }
+
+    static void recordRemoteException() {
+        sRemoteExceptions.incrementAndGet();
+    }
+
+    static void recordDisconnect() {
+        sDisconnects.incrementAndGet();
+    }
+
+    static void recordRetry() {
+        sRetries.incrementAndGet();
+    }
+
+    private static int indexOf(String method) {
+        if (method == null) {
+            return -1;
+        }
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Summarizes a histogram as a map with its count, sum, max and 50th,
+     * 90th and 99th percentiles.
+     */
+    public static Map<String, Object> summarize(Log2Histogram histogram) {
+        Map<String, Object> summary = new HashMap<String, Object>();
+        summary.put("count", histogram.getCount());
+        summary.put("sum", histogram.getSum());
+        summary.put("max", histogram.getMax());
+        summary.put("p50", histogram.getPercentile(50));
+        summary.put("p90", histogram.getPercentile(90));
+        summary.put("p99", histogram.getPercentile(99));
+        return summary;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of the Google Play billing service:
+     * per-method latency summaries in microseconds and failure counts,
+     * connection and retry counters, and queue depths.
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> requests = new HashMap<String, Object>();
+        for (int i = 0; i < METHODS.length; i++) {
+            Map<String, Object> request = summarize(sLatencyMicros[i]);
+            request.put("failures", sFailures[i].get());
+            requests.put(METHODS[i], request);
+        }
+
+        Map<String, Object> metrics = new HashMap<String, Object>();
+        metrics.put("latencyMicros", requests);
+        metrics.put("connectionState", BillingService.getConnectionState());
+        metrics.put("binds", BillingService.getBindAttemptCount());
+        metrics.put("bindFailures", BillingService.getBindFailureCount());
+        metrics.put("idleUnbinds", BillingService.getIdleUnbindCount());
+        metrics.put("idleMillis", BillingService.getIdleMillis());
+        metrics.put("disconnects", sDisconnects.get());
+        metrics.put("remoteExceptions", sRemoteExceptions.get());
+        metrics.put("circuitOpens", BillingService.getCircuitOpenCount());
+        metrics.put("rejectedRequests", BillingService.getRejectedRequestCount());
+        metrics.put("timedOutRequests", BillingService.getTimedOutRequestCount());
+        metrics.put("retries", sRetries.get());
+        metrics.put("pendingRequests", BillingService.getPendingRequestCount());
+        metrics.put("sentRequests", BillingService.getSentRequestCount());
+        metrics.put("unconfirmedNotifications", BillingService.getUnconfirmedCount());
+        metrics.put("verificationQueueDepth", BillingService.getVerificationQueueDepth());
+        metrics.put("maxVerificationQueueDepth", BillingService.getMaxVerificationQueueDepth());
+        metrics.put("verificationQueueRejected",
+                BillingService.getVerificationQueueRejectedCount());
+        metrics.put("signatureVerifications", Security.getSignatureVerificationCount());
+        metrics.put("unknownNonces", Security.getUnknownNonceCount());
+        return metrics;
+    }
+}
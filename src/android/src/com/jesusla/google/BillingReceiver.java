@@ -29,10 +29,17 @@ import com.jesusla.google.Consts.ResponseCode;
  * This class implements the broadcast receiver for in-app billing. All asynchronous messages from
  * Android Market come to this app through this receiver. This class forwards all
  * messages to the {@link BillingService}, which can start background threads,
- * if necessary, to process the messages. This class runs on the UI thread and must not do any
- * network I/O, database updates, or any tasks that might take a long time to complete.
- * It also must not start a background thread because that may be killed as soon as
- * {@link #onReceive(Context, Intent)} returns.
+ * if necessary, to process the messages. If an instance of the service is already live in this
+ * process the message is handed to it directly; otherwise the service is started with an intent.
+ *
+ * Each message is first logged to the {@link BillingInbox}, and only handed on once it is on
+ * disk, so that it is replayed if the process dies before the service is done with it. That
+ * wait is the one exception to the rule below: it is capped at a few hundred ms, a small part
+ * of the 10 s a receiver has, after which the message is handed on anyway.
+ *
+ * This class runs on the UI thread and must not do any network I/O, database updates, or any
+ * other tasks that might take a long time to complete. It also must not start a background
+ * thread because that may be killed as soon as {@link #onReceive(Context, Intent)} returns.
  *
  * You should modify and obfuscate this code before using it.
  */
@@ -79,10 +86,16 @@ public class BillingReceiver extends BroadcastReceiver {
      * @param signature the signature for the signedData
      */
     private void purchaseStateChanged(Context context, String signedData, String signature) {
+        BillingInbox inbox = BillingInbox.getInstance(context);
+        long recordId = inbox != null ? inbox.appendPurchaseStateChanged(signedData, signature) : 0;
+        if (BillingService.dispatchPurchaseStateChanged(signedData, signature, recordId)) {
+            return;
+        }
         Intent intent = new Intent(Consts.ACTION_PURCHASE_STATE_CHANGED);
         intent.setClass(context, BillingService.class);
         intent.putExtra(Consts.INAPP_SIGNED_DATA, signedData);
         intent.putExtra(Consts.INAPP_SIGNATURE, signature);
+        intent.putExtra(Consts.INBOX_RECORD_ID, recordId);
         context.startService(intent);
     }
 
@@ -98,9 +111,15 @@ public class BillingReceiver extends BroadcastReceiver {
      * @param notifyId the notification ID
      */
     private void notify(Context context, String notifyId) {
+        BillingInbox inbox = BillingInbox.getInstance(context);
+        long recordId = inbox != null ? inbox.appendNotify(notifyId) : 0;
+        if (BillingService.dispatchNotify(notifyId, recordId)) {
+            return;
+        }
         Intent intent = new Intent(Consts.ACTION_GET_PURCHASE_INFORMATION);
         intent.setClass(context, BillingService.class);
         intent.putExtra(Consts.NOTIFICATION_ID, notifyId);
+        intent.putExtra(Consts.INBOX_RECORD_ID, recordId);
         context.startService(intent);
     }
 
@@ -113,10 +132,16 @@ public class BillingReceiver extends BroadcastReceiver {
      * @param responseCodeIndex the ResponseCode ordinal value for the request
      */
     private void checkResponseCode(Context context, long requestId, int responseCodeIndex) {
+        BillingInbox inbox = BillingInbox.getInstance(context);
+        long recordId = inbox != null ? inbox.appendResponseCode(requestId, responseCodeIndex) : 0;
+        if (BillingService.dispatchResponseCode(requestId, responseCodeIndex, recordId)) {
+            return;
+        }
         Intent intent = new Intent(Consts.ACTION_RESPONSE_CODE);
         intent.setClass(context, BillingService.class);
         intent.putExtra(Consts.INAPP_REQUEST_ID, requestId);
         intent.putExtra(Consts.INAPP_RESPONSE_CODE, responseCodeIndex);
+        intent.putExtra(Consts.INBOX_RECORD_ID, recordId);
         context.startService(intent);
     }
 }
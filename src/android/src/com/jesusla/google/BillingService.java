@@ -16,11 +16,15 @@
 
 package com.jesusla.google;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-
-import org.apache.http.client.ResponseHandler;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Activity;
 import android.app.PendingIntent;
@@ -30,12 +34,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.vending.billing.IMarketBillingService;
-import com.jesusla.google.Consts.PurchaseState;
 import com.jesusla.google.Consts.ResponseCode;
 
 
@@ -53,28 +59,237 @@ public class BillingService extends Service implements ServiceConnection {
     private static final String TAG = "BillingService";
 
     /** The service connection to the remote MarketBillingService. */
-    private static IMarketBillingService mService;
+    private static volatile IMarketBillingService mService;
 
     /**
-     * The list of requests that are pending while we are waiting for the
-     * connection to the MarketBillingService to be established.
+     * The requests that are pending while we are waiting for the
+     * connection to the MarketBillingService to be established, and the
+     * requests that we have sent to Android Market but for which we have
+     * not yet received a response code, indexed by the request Id that each
+     * request receives when it executes.
      */
-    private static LinkedList<BillingRequest> mPendingRequests = new LinkedList<BillingRequest>();
+    private static final RequestRegistry<BillingRequest> mRequests =
+        new RequestRegistry<BillingRequest>();
+
+    /** The service listener */
+    private static BillingListener mListener;
 
     /**
-     * The list of requests that we have sent to Android Market but for which we have
-     * not yet received a response code. The HashMap is indexed by the
-     * request Id that each request receives when it executes.
+     * A live instance in this process that {@link BillingReceiver} can hand
+     * commands to directly, instead of starting the service with an intent.
      */
-    private static HashMap<Long, BillingRequest> mSentRequests =
-        new HashMap<Long, BillingRequest>();
+    private static volatile BillingService mLiveInstance;
 
-    /** The service listener */
-    private static BillingListener mListener;
+    /** The inbox records of notification IDs whose purchase information is outstanding. */
+    private static final ConcurrentHashMap<String, Long> mInboxNotifyRecords =
+            new ConcurrentHashMap<String, Long>();
+    private static final AtomicBoolean mInboxReplayed = new AtomicBoolean();
+
+    /** Optional on-disk record of unconfirmed notification IDs; null unless opened. */
+    private static volatile ConfirmationOutbox mConfirmationOutbox;
+
+    /**
+     * Number of PURCHASE_STATE_CHANGED payloads that may wait for verification;
+     * further payloads are rejected and left for Android Market to redeliver.
+     */
+    private static final int VERIFICATION_QUEUE_CAPACITY = 64;
+
+    /**
+     * Verifies and parses purchase state changes on a worker thread so that
+     * large restores do not stall the main thread.
+     */
+    private static final VerificationQueue mVerificationQueue =
+        new VerificationQueue(VERIFICATION_QUEUE_CAPACITY);
+
+    /**
+     * Backs off binding after failures and crashes, and fails requests fast
+     * while the MarketBillingService keeps failing.
+     */
+    private static final ConnectionManager mConnection = new ConnectionManager(
+            500, 60 * 1000L, 5, 30 * 1000L);
+
+    /** How long the connection may sit idle before it is unbound, by default. */
+    private static final long IDLE_UNBIND_MILLIS = 60 * 1000L;
+
+    /** How long the connection may sit idle before it is unbound; 0 never unbinds. */
+    private static volatile long mIdleUnbindMillis = IDLE_UNBIND_MILLIS;
+
+    /** When a request was last made or answered, in uptime ms. */
+    private static volatile long mLastActivity;
+
+    /**
+     * The instances currently bound to the MarketBillingService. Also guards
+     * the idle bookkeeping below.
+     */
+    private static final ArrayList<BillingService> mBoundInstances =
+        new ArrayList<BillingService>();
+    private static boolean mIdleCheckScheduled;
+    private static long mIdleUnbinds;
+    /** When the connection was last unbound for being idle, in uptime ms, or 0. */
+    private static long mUnboundSince;
+    /** Total time spent unbound after being idle, in ms. */
+    private static long mIdleMillis;
+
+    private static final Handler mIdleHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Unbinds from the MarketBillingService once no request has been made or
+     * answered for the idle period and no work is outstanding, see
+     * {@link #hasOutstandingWork()}. The next request binds again.
+     */
+    private static final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mBoundInstances) {
+                mIdleCheckScheduled = false;
+            }
+            long idleMillis = mIdleUnbindMillis;
+            if (idleMillis <= 0) {
+                return;
+            }
+            long remaining = mLastActivity + idleMillis - SystemClock.uptimeMillis();
+            if (remaining > 0 || hasOutstandingWork()) {
+                scheduleIdleCheck(Math.max(remaining, idleMillis));
+                return;
+            }
+            unbindIdle();
+        }
+    };
+
+    /** Resolution of the deadlines of requests waiting for a response code. */
+    private static final long DEADLINE_TICK_MILLIS = 1000;
+
+    /** Number of slots in the deadline timing wheel. */
+    private static final int DEADLINE_WHEEL_SLOTS = 512;
+
+    /**
+     * How long to wait for the response code of a request, by request
+     * method, in ms. Methods that are not listed have no deadline.
+     */
+    private static final ConcurrentHashMap<String, Long> mRequestTimeouts =
+        new ConcurrentHashMap<String, Long>();
+
+    static {
+        // Purchases wait on the user, so allow them plenty of time
+        mRequestTimeouts.put("REQUEST_PURCHASE", 15 * 60 * 1000L);
+        mRequestTimeouts.put("RESTORE_TRANSACTIONS", 2 * 60 * 1000L);
+        mRequestTimeouts.put("GET_PURCHASE_INFORMATION", 60 * 1000L);
+        mRequestTimeouts.put("CONFIRM_NOTIFICATIONS", 60 * 1000L);
+    }
+
+    /** Number of requests that were given up on for want of a response code. */
+    private static final AtomicLong mTimedOutRequests = new AtomicLong();
+
+    /**
+     * Expires requests whose response code has not arrived by their
+     * deadline, failing them with RESULT_ERROR.
+     */
+    private static final TimingWheel mDeadlines = new TimingWheel(
+            DEADLINE_TICK_MILLIS, DEADLINE_WHEEL_SLOTS, new TimingWheel.Listener() {
+                @Override
+                public void expired(long requestId) {
+                    BillingRequest request = mRequests.claimSent(requestId);
+                    if (request != null) {
+                        Log.w(TAG, request.getClass().getSimpleName() + " timed out, request id: "
+                                + requestId);
+                        mTimedOutRequests.incrementAndGet();
+                        BillingMetrics.recordRequest(request.mMethod, request.mCreatedAt, false);
+                        request.onTimeout();
+                    }
+                }
+            });
+
+    /** How long to collect notification IDs before confirming them. */
+    private static final long CONFIRM_BATCH_WINDOW_MILLIS = 50;
+
+    /** Maximum number of notification IDs confirmed in one request. */
+    private static final int CONFIRM_BATCH_MAX_SIZE = 64;
+
+    /** How long to collect notification IDs before asking for their purchase information. */
+    private static final long PURCHASE_INFORMATION_BATCH_WINDOW_MILLIS = 20;
+
+    /** Maximum number of notification IDs in one GET_PURCHASE_INFORMATION request. */
+    private static final int PURCHASE_INFORMATION_BATCH_MAX_SIZE = 64;
 
     /** The calling activity */
     private Activity mActivity;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Notification IDs handed to this instance without a startId, by
+     * {@link BillingReceiver} or the inbox replay, whose
+     * GET_PURCHASE_INFORMATION has not yet been accepted by Market or given
+     * up on. Touched on the main thread only.
+     */
+    private final HashSet<String> mHandedOffNotifyIds = new HashSet<String>();
+
+    /**
+     * Number of payloads handed to this instance without a startId that have
+     * not yet been verified and delivered. Touched on the main thread only.
+     */
+    private int mHandedOffPayloads;
+
+    /** The latest startId whose stop waits for handed-off work, or -1. */
+    private int mDeferredStopId = -1;
+
+    /** Binds again once the backoff after a failure has passed. */
+    private final Runnable mRebind = new Runnable() {
+        @Override
+        public void run() {
+            if (mService == null && mRequests.peekPending() != null && !connect()) {
+                failPendingRequests();
+            }
+        }
+    };
+
+    /**
+     * Collects notification IDs so that confirming a burst of transactions,
+     * such as a restore, costs one CONFIRM_NOTIFICATIONS request.
+     */
+    private final NotificationBatcher mConfirmationBatcher = new NotificationBatcher(
+            "confirmNotifications", CONFIRM_BATCH_WINDOW_MILLIS, CONFIRM_BATCH_MAX_SIZE,
+            new NotificationBatcher.Sender() {
+                @Override
+                public boolean send(NotificationBatcher.Batch batch) {
+                    return new ConfirmNotifications(batch).runRequest();
+                }
+
+                @Override
+                public void dropped(NotificationBatcher.Batch batch) {
+                    // Left in the outbox, to be sent on the next connection
+                    ConfirmationOutbox outbox = mConfirmationOutbox;
+                    if (outbox != null) {
+                        outbox.release(batch.mNotifyIds);
+                    }
+                    if (batch.mStartId >= 0) {
+                        stopSelfWhenDone(batch.mStartId);
+                    }
+                }
+            });
+
+    /**
+     * Collects the notification IDs of IN_APP_NOTIFY broadcasts so that a
+     * burst of notifications costs one GET_PURCHASE_INFORMATION request and
+     * one nonce.
+     */
+    private final NotificationBatcher mPurchaseInformationBatcher = new NotificationBatcher(
+            "getPurchaseInformation", PURCHASE_INFORMATION_BATCH_WINDOW_MILLIS,
+            PURCHASE_INFORMATION_BATCH_MAX_SIZE, new NotificationBatcher.Sender() {
+                @Override
+                public boolean send(NotificationBatcher.Batch batch) {
+                    return new GetPurchaseInformation(batch).runRequest();
+                }
+
+                @Override
+                public void dropped(NotificationBatcher.Batch batch) {
+                    handedOffNotifyIdsDone(batch.mNotifyIds);
+                    if (batch.mStartId >= 0) {
+                        stopSelfWhenDone(batch.mStartId);
+                    }
+                }
+            });
+
     /**
      * The base class for all requests that use the MarketBillingService.
      * Each derived class overrides the run() method to call the appropriate
@@ -86,6 +301,9 @@ public class BillingService extends Service implements ServiceConnection {
     abstract class BillingRequest {
         private final int mStartId;
         protected long mRequestId;
+        private String mMethod;
+        /** When the request was made, from System.nanoTime(). */
+        protected final long mCreatedAt = System.nanoTime();
 
         public BillingRequest(int startId) {
             mStartId = startId;
@@ -98,18 +316,22 @@ public class BillingService extends Service implements ServiceConnection {
         /**
          * Run the request, starting the connection if necessary.
          * @return true if the request was executed or queued; false if there
-         * was an error starting the connection
+         * was an error starting the connection, or the connection has
+         * failed too often recently to try again yet
          */
         public boolean runRequest() {
+            touch();
             if (runIfConnected()) {
                 return true;
             }
 
-            if (bindToMarketBillingService()) {
-                // Add a pending request to run when the service is connected.
-                mPendingRequests.add(this);
+            // Queue the request first so that a rebind scheduled by connect()
+            // finds it
+            mRequests.addPending(this);
+            if (connect()) {
                 return true;
             }
+            mRequests.removePending(this);
             return false;
         }
 
@@ -129,7 +351,14 @@ public class BillingService extends Service implements ServiceConnection {
                         Log.d(TAG, "request id: " + mRequestId);
                     }
                     if (mRequestId >= 0) {
-                        mSentRequests.put(mRequestId, this);
+                        mRequests.addSent(mRequestId, this);
+                        Long timeout = mMethod != null ? mRequestTimeouts.get(mMethod) : null;
+                        if (timeout != null) {
+                            mDeadlines.schedule(mRequestId, timeout);
+                        }
+                    } else if (expectsResponseCode()) {
+                        // Rejected without a request id; no response code will follow
+                        BillingMetrics.recordRequest(mMethod, mCreatedAt, false);
                     }
                     return true;
                 } catch (RemoteException e) {
@@ -147,7 +376,9 @@ public class BillingService extends Service implements ServiceConnection {
          */
         protected void onRemoteException(RemoteException e) {
             Log.w(TAG, "remote billing service crashed");
+            BillingMetrics.recordRemoteException();
             mService = null;
+            mConnection.crashed();
         }
 
         /**
@@ -156,6 +387,14 @@ public class BillingService extends Service implements ServiceConnection {
          */
         abstract protected long run() throws RemoteException;
 
+        /**
+         * Returns whether Android Market sends a response code for this
+         * request once it has run.
+         */
+        protected boolean expectsResponseCode() {
+            return true;
+        }
+
         /**
          * This is called when Android Market sends a response code for this
          * request.
@@ -164,7 +403,25 @@ public class BillingService extends Service implements ServiceConnection {
         protected void responseCodeReceived(ResponseCode responseCode) {
         }
 
+        /**
+         * This is called when no response code arrived for this request by
+         * its deadline. By default it is reported as a RESULT_ERROR.
+         */
+        protected void onTimeout() {
+            responseCodeReceived(ResponseCode.RESULT_ERROR);
+        }
+
+        /**
+         * This is called when the request is failed without being sent,
+         * because the MarketBillingService is unavailable. By default it is
+         * reported as a RESULT_SERVICE_UNAVAILABLE.
+         */
+        protected void onFailed() {
+            responseCodeReceived(ResponseCode.RESULT_SERVICE_UNAVAILABLE);
+        }
+
         protected Bundle makeRequestBundle(String method) {
+            mMethod = method;
             Bundle request = new Bundle();
             request.putString(Consts.BILLING_REQUEST_METHOD, method);
             request.putInt(Consts.BILLING_REQUEST_API_VERSION, 2);
@@ -224,9 +481,20 @@ public class BillingService extends Service implements ServiceConnection {
                         ResponseCode.valueOf(responseCode));
             }
             boolean billingSupported = (responseCode == ResponseCode.RESULT_OK.ordinal());
+            BillingMetrics.recordRequest("CHECK_BILLING_SUPPORTED", mCreatedAt, true);
             mCallback.onBillingSupported(billingSupported, mProductType);
             return Consts.BILLING_RESPONSE_INVALID_REQUEST_ID;
         }
+
+        @Override
+        protected boolean expectsResponseCode() {
+            return false;
+        }
+
+        @Override
+        protected void onFailed() {
+            mCallback.onBillingSupported(false, mProductType);
+        }
     }
 
     /**
@@ -296,10 +564,12 @@ public class BillingService extends Service implements ServiceConnection {
      */
     class ConfirmNotifications extends BillingRequest {
         final String[] mNotifyIds;
+        private final NotificationBatcher.Batch mBatch;
 
-        public ConfirmNotifications(int startId, String[] notifyIds) {
-            super(startId);
-            mNotifyIds = notifyIds;
+        public ConfirmNotifications(NotificationBatcher.Batch batch) {
+            super(batch.mStartId);
+            mNotifyIds = batch.mNotifyIds;
+            mBatch = batch;
         }
 
         @Override
@@ -308,21 +578,42 @@ public class BillingService extends Service implements ServiceConnection {
             request.putStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS, mNotifyIds);
             Bundle response = mService.sendBillingRequest(request);
             logResponseCode("confirmNotifications", response);
+            if (response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE)
+                    != ResponseCode.RESULT_OK.ordinal()) {
+                // Rejected outright; no response code will follow
+                mConfirmationBatcher.retry(mBatch);
+                return Consts.BILLING_RESPONSE_INVALID_REQUEST_ID;
+            }
             return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
                     Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
         }
+
+        @Override
+        protected void responseCodeReceived(ResponseCode responseCode) {
+            if (responseCode != ResponseCode.RESULT_OK) {
+                mConfirmationBatcher.retry(mBatch);
+                return;
+            }
+            ConfirmationOutbox outbox = mConfirmationOutbox;
+            if (outbox != null) {
+                outbox.confirmed(mNotifyIds);
+            }
+        }
     }
 
     /**
      * Wrapper class that sends a GET_PURCHASE_INFORMATION message to the server.
+     * One request, with one nonce, covers every notification in the batch.
      */
     class GetPurchaseInformation extends BillingRequest {
         long mNonce;
         final String[] mNotifyIds;
+        private final NotificationBatcher.Batch mBatch;
 
-        public GetPurchaseInformation(int startId, String[] notifyIds) {
-            super(startId);
-            mNotifyIds = notifyIds;
+        public GetPurchaseInformation(NotificationBatcher.Batch batch) {
+            super(batch.mStartId);
+            mNotifyIds = batch.mNotifyIds;
+            mBatch = batch;
         }
 
         @Override
@@ -334,6 +625,13 @@ public class BillingService extends Service implements ServiceConnection {
             request.putStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS, mNotifyIds);
             Bundle response = mService.sendBillingRequest(request);
             logResponseCode("getPurchaseInformation", response);
+            if (response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE)
+                    != ResponseCode.RESULT_OK.ordinal()) {
+                // Rejected outright; no purchase state change will follow
+                Security.removeNonce(mNonce);
+                mPurchaseInformationBatcher.retry(mBatch);
+                return Consts.BILLING_RESPONSE_INVALID_REQUEST_ID;
+            }
             return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
                     Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
         }
@@ -343,6 +641,26 @@ public class BillingService extends Service implements ServiceConnection {
             super.onRemoteException(e);
             Security.removeNonce(mNonce);
         }
+
+        @Override
+        protected void responseCodeReceived(ResponseCode responseCode) {
+            if (responseCode != ResponseCode.RESULT_OK) {
+                if (mNonce != 0) {
+                    Security.removeNonce(mNonce);
+                }
+                mPurchaseInformationBatcher.retry(mBatch);
+                return;
+            }
+            // Market has the request; the purchase state change it sends
+            // back is logged to the inbox on its own.
+            for (String notifyId : mNotifyIds) {
+                Long recordId = mInboxNotifyRecords.remove(notifyId);
+                if (recordId != null) {
+                    ackInbox(recordId);
+                }
+            }
+            handedOffNotifyIdsDone(mNotifyIds);
+        }
     }
 
     /**
@@ -378,6 +696,12 @@ public class BillingService extends Service implements ServiceConnection {
             Security.removeNonce(mNonce);
         }
 
+        @Override
+        protected void onTimeout() {
+            Security.removeNonce(mNonce);
+            super.onTimeout();
+        }
+
         @Override
         protected void responseCodeReceived(ResponseCode responseCode) {
             mCallback.restoreTransactionsResponse(responseCode);
@@ -391,10 +715,14 @@ public class BillingService extends Service implements ServiceConnection {
     public void setActivity(Activity activity) {
         mActivity = activity;
         attachBaseContext(activity);
+        mLiveInstance = this;
     }
 
     public void setListener(BillingListener listener) {
         mListener = listener;
+        if (listener != null && Consts.PERSIST_INBOX) {
+            replayInbox();
+        }
     }
 
     /**
@@ -405,6 +733,22 @@ public class BillingService extends Service implements ServiceConnection {
         return null;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (mLiveInstance == null) {
+            mLiveInstance = this;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mLiveInstance == this) {
+            mLiveInstance = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onStart(Intent intent, int startId) {
         if (intent != null)
@@ -427,17 +771,83 @@ public class BillingService extends Service implements ServiceConnection {
             confirmNotifications(startId, notifyIds);
         } else if (Consts.ACTION_GET_PURCHASE_INFORMATION.equals(action)) {
             String notifyId = intent.getStringExtra(Consts.NOTIFICATION_ID);
-            getPurchaseInformation(startId, new String[] { notifyId });
+            getPurchaseInformation(startId, new String[] { notifyId },
+                    intent.getLongExtra(Consts.INBOX_RECORD_ID, 0));
         } else if (Consts.ACTION_PURCHASE_STATE_CHANGED.equals(action)) {
             String signedData = intent.getStringExtra(Consts.INAPP_SIGNED_DATA);
             String signature = intent.getStringExtra(Consts.INAPP_SIGNATURE);
-            purchaseStateChanged(startId, signedData, signature);
+            purchaseStateChanged(startId, signedData, signature,
+                    intent.getLongExtra(Consts.INBOX_RECORD_ID, 0));
         } else if (Consts.ACTION_RESPONSE_CODE.equals(action)) {
             long requestId = intent.getLongExtra(Consts.INAPP_REQUEST_ID, -1);
             int responseCodeIndex = intent.getIntExtra(Consts.INAPP_RESPONSE_CODE,
                     ResponseCode.RESULT_ERROR.ordinal());
             ResponseCode responseCode = ResponseCode.valueOf(responseCodeIndex);
-            checkResponseCode(requestId, responseCode);
+            checkResponseCode(requestId, responseCode,
+                    intent.getLongExtra(Consts.INBOX_RECORD_ID, 0));
+        }
+    }
+
+    /**
+     * Starts connecting to the MarketBillingService, unless a bind is already
+     * in progress or the connection manager says to wait. If the bind fails,
+     * a rebind is scheduled after a backoff.
+     * @return true if pending requests will run once the service connects;
+     * false if the circuit is open and they should be failed
+     */
+    private boolean connect() {
+        switch (mConnection.requestBind()) {
+        case REJECT:
+            return false;
+        case WAIT:
+            if (mConnection.getState() == ConnectionManager.State.BACKING_OFF) {
+                // Make sure this instance rebinds once the backoff has passed
+                return scheduleRebind();
+            }
+            return true;
+        default:
+            break;
+        }
+        if (bindToMarketBillingService()) {
+            return true;
+        }
+        mConnection.bindFailed();
+        return scheduleRebind();
+    }
+
+    /**
+     * Schedules a bind for when the backoff after a failure has passed.
+     * @return false if the circuit is open instead
+     */
+    private boolean scheduleRebind() {
+        if (mConnection.isOpen()) {
+            Log.w(TAG, "Billing service keeps failing; failing requests for now");
+            return false;
+        }
+        long delay = mConnection.getRetryDelay();
+        if (Consts.DEBUG) {
+            Log.i(TAG, "rebinding in " + delay + " ms");
+        }
+        mHandler.removeCallbacks(mRebind);
+        mHandler.postDelayed(mRebind, delay);
+        return true;
+    }
+
+    /**
+     * Fails every pending request with RESULT_SERVICE_UNAVAILABLE, and stops
+     * the service for any that started it.
+     */
+    private void failPendingRequests() {
+        int maxStartId = -1;
+        BillingRequest request;
+        while ((request = mRequests.pollPending()) != null) {
+            request.onFailed();
+            if (maxStartId < request.getStartId()) {
+                maxStartId = request.getStartId();
+            }
+        }
+        if (maxStartId >= 0) {
+            stopSelfWhenDone(maxStartId);
         }
     }
 
@@ -457,6 +867,16 @@ public class BillingService extends Service implements ServiceConnection {
                     Context.BIND_AUTO_CREATE);
 
             if (bindResult) {
+                synchronized (mBoundInstances) {
+                    if (!mBoundInstances.contains(this)) {
+                        mBoundInstances.add(this);
+                    }
+                    if (mUnboundSince != 0) {
+                        mIdleMillis += SystemClock.uptimeMillis() - mUnboundSince;
+                        mUnboundSince = 0;
+                    }
+                }
+                touch();
                 return true;
             } else {
                 Log.e(TAG, "Could not bind to service.");
@@ -516,15 +936,89 @@ public class BillingService extends Service implements ServiceConnection {
      * Confirms receipt of a purchase state change. Each {@code notifyId} is
      * an opaque identifier that came from the server. This method sends those
      * identifiers back to the MarketBillingService, which ACKs them to the
-     * server. Returns false if there was an error trying to connect to the
-     * MarketBillingService.
+     * server. Identifiers are batched with any others confirmed within the
+     * confirmation window and sent in one request; identifiers in a batch
+     * that fails are sent again after a backoff. If the confirmation outbox
+     * is open, identifiers are kept there until Market confirms them, and
+     * ones that could not be sent go out on the next connection.
      * @param startId an identifier for the invocation instance of this service
      * @param notifyIds a list of opaque identifiers associated with purchase
      * state changes.
-     * @return false if there was an error connecting to Market
+     * @return true; errors connecting to Market are retried
      */
     public boolean confirmNotifications(int startId, String[] notifyIds) {
-        return new ConfirmNotifications(startId, notifyIds).runRequest();
+        ConfirmationOutbox outbox = mConfirmationOutbox;
+        if (outbox != null) {
+            // Leaves out IDs that are already queued or in flight
+            notifyIds = outbox.add(notifyIds);
+            if (notifyIds.length == 0) {
+                if (startId >= 0) {
+                    stopSelfWhenDone(startId);
+                }
+                return true;
+            }
+        }
+        mConfirmationBatcher.add(startId, notifyIds);
+        return true;
+    }
+
+    /**
+     * Keeps unconfirmed notification IDs in the given file, and restores any
+     * that were still unconfirmed when the process last died. They are sent
+     * the next time the service connects.
+     * @param file the outbox file
+     * @return true if the outbox was opened
+     */
+    public static synchronized boolean openConfirmationOutbox(File file) {
+        if (mConfirmationOutbox != null) {
+            return true;
+        }
+        try {
+            mConfirmationOutbox = new ConfirmationOutbox(file);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open confirmation outbox", e);
+            return false;
+        }
+    }
+
+    /** Returns the number of notification IDs waiting to be confirmed in the outbox. */
+    public static int getUnconfirmedCount() {
+        ConfirmationOutbox outbox = mConfirmationOutbox;
+        return outbox != null ? outbox.size() : 0;
+    }
+
+    /** Queues the outbox IDs that are not already queued or in flight. */
+    private void drainConfirmationOutbox() {
+        ConfirmationOutbox outbox = mConfirmationOutbox;
+        if (outbox == null) {
+            return;
+        }
+        String[] notifyIds = outbox.takeUnsent();
+        if (notifyIds.length > 0) {
+            if (Consts.DEBUG) {
+                Log.i(TAG, "draining " + notifyIds.length + " unconfirmed notification(s)");
+            }
+            mConfirmationBatcher.add(-1, notifyIds);
+        }
+    }
+
+    /**
+     * Sets how long notification IDs are collected before being confirmed,
+     * and the most that are confirmed in one request.
+     */
+    public void setConfirmationBatching(long windowMillis, int maxBatchSize) {
+        mConfirmationBatcher.setWindow(windowMillis, maxBatchSize);
+    }
+
+    /** Returns the distribution of the number of IDs per CONFIRM_NOTIFICATIONS request. */
+    public Log2Histogram getConfirmationBatchSizes() {
+        return mConfirmationBatcher.getBatchSizes();
+    }
+
+    /** Returns the distribution of the time IDs waited to be confirmed, in ms. */
+    public Log2Histogram getConfirmationLatencyMillis() {
+        return mConfirmationBatcher.getLatencyMillis();
     }
 
     /**
@@ -533,59 +1027,345 @@ public class BillingService extends Service implements ServiceConnection {
      * our request. The server responds with the purchase information,
      * encoded as a JSON string, and sends that to the {@link BillingReceiver}
      * in an intent with the action {@link Consts#ACTION_PURCHASE_STATE_CHANGED}.
-     * Returns false if there was an error trying to connect to the MarketBillingService.
+     * Notification IDs that arrive within the batching window are sent
+     * together in one request.
      *
      * @param startId an identifier for the invocation instance of this service
      * @param notifyIds a list of opaque identifiers associated with purchase
      * state changes
-     * @return false if there was an error connecting to Android Market
      */
-    private boolean getPurchaseInformation(int startId, String[] notifyIds) {
-        return new GetPurchaseInformation(startId, notifyIds).runRequest();
+    private void getPurchaseInformation(int startId, String[] notifyIds, long recordId) {
+        if (recordId > 0) {
+            for (String notifyId : notifyIds) {
+                mInboxNotifyRecords.put(notifyId, recordId);
+            }
+        }
+        if (startId < 0) {
+            Collections.addAll(mHandedOffNotifyIds, notifyIds);
+        }
+        mPurchaseInformationBatcher.add(startId, notifyIds);
+    }
+
+    /**
+     * Sets how long notification IDs are collected before their purchase
+     * information is requested, and the most that are sent in one request.
+     */
+    public void setPurchaseInformationBatching(long windowMillis, int maxBatchSize) {
+        mPurchaseInformationBatcher.setWindow(windowMillis, maxBatchSize);
+    }
+
+    /** Returns the distribution of the number of IDs per GET_PURCHASE_INFORMATION request. */
+    public Log2Histogram getPurchaseInformationBatchSizes() {
+        return mPurchaseInformationBatcher.getBatchSizes();
     }
 
     /**
      * Verifies that the data was signed with the given signature, and calls
-     * {@link ResponseHandler#onTransactionUpdate(Context, PurchaseState, String, String, long)}
-     * for each verified purchase.
+     * {@link BillingListener#verifyTransaction(int, String, String, VerifiedPurchase)}
+     * for each verified purchase. Verification and parsing happen on the
+     * verification queue's worker thread; the listener is called back on the
+     * main thread, in the order the payloads arrived. The service is stopped
+     * for this startId only once the payload has been fully processed. A
+     * payload rejected by a full queue is dropped without stopping the
+     * service: its notifications stay unconfirmed, so Android Market sends
+     * them again, and its inbox record stays for the next replay. A payload
+     * without a startId keeps the service from stopping until it has been
+     * processed.
      * @param startId an identifier for the invocation instance of this service
      * @param signedData the signed JSON string (signed, not encrypted)
      * @param signature the signature for the data, signed with the private key
+     * @param recordId the inbox record of the payload, acknowledged once it
+     * has been handed to the listener, or 0 if it has none
      */
-    private void purchaseStateChanged(final int startId, String signedData, String signature) {
-        if (mListener == null)
+    private void purchaseStateChanged(final int startId, String signedData, String signature,
+            final long recordId) {
+        VerificationQueue.Callback callback = mVerificationCallback;
+        if (recordId > 0) {
+            callback = new VerificationQueue.Callback() {
+                @Override
+                public void onVerified(int startId, String signedData, String signature,
+                        ArrayList<VerifiedPurchase> purchases) {
+                    // A payload that fails verification will not verify later either,
+                    // so it is acknowledged too; one that arrives before there is a
+                    // listener is left for the replay.
+                    boolean delivered = mListener != null;
+                    mVerificationCallback.onVerified(startId, signedData, signature, purchases);
+                    if (delivered) {
+                        ackInbox(recordId);
+                    }
+                }
+            };
+        }
+        if (startId < 0) {
+            final VerificationQueue.Callback delivery = callback;
+            callback = new VerificationQueue.Callback() {
+                @Override
+                public void onVerified(int startId, String signedData, String signature,
+                        ArrayList<VerifiedPurchase> purchases) {
+                    try {
+                        delivery.onVerified(startId, signedData, signature, purchases);
+                    } finally {
+                        mHandedOffPayloads--;
+                        stopDeferred();
+                    }
+                }
+            };
+            mHandedOffPayloads++;
+        }
+        if (!mVerificationQueue.submit(startId, signedData, signature, callback)) {
+            Log.w(TAG, "verification queue full, leaving payload for redelivery, startId: "
+                    + startId);
+            if (startId < 0) {
+                mHandedOffPayloads--;
+                stopDeferred();
+            }
+        }
+    }
+
+    /**
+     * Stops the service for the given startId, as stopSelf does, unless work
+     * handed to this instance without a startId is still outstanding; the
+     * stop then waits until that work is done, so a started instance is not
+     * destroyed while it is verifying or requesting for the receiver.
+     */
+    private void stopSelfWhenDone(int startId) {
+        if (mHandedOffPayloads > 0 || !mHandedOffNotifyIds.isEmpty()) {
+            if (Consts.DEBUG) {
+                Log.i(TAG, "deferring stop for handed-off work, startId: " + startId);
+            }
+            mDeferredStopId = Math.max(mDeferredStopId, startId);
+            return;
+        }
+        stopSelf(startId);
+    }
+
+    /** Removes notification IDs whose handed-off work is done. */
+    private void handedOffNotifyIdsDone(String[] notifyIds) {
+        if (mHandedOffNotifyIds.isEmpty()) {
             return;
+        }
+        for (String notifyId : notifyIds) {
+            mHandedOffNotifyIds.remove(notifyId);
+        }
+        stopDeferred();
+    }
+
+    /** Makes a deferred stop once no handed-off work is left. */
+    private void stopDeferred() {
+        if (mDeferredStopId < 0 || mHandedOffPayloads > 0 || !mHandedOffNotifyIds.isEmpty()) {
+            return;
+        }
+        int startId = mDeferredStopId;
+        mDeferredStopId = -1;
+        stopSelf(startId);
+    }
+
+    private final VerificationQueue.Callback mVerificationCallback = new VerificationQueue.Callback() {
+        @Override
+        public void onVerified(int startId, String signedData, String signature,
+                ArrayList<VerifiedPurchase> purchases) {
+            if (mListener != null && purchases != null) {
+                mListener.verifyPayload(startId, signedData, signature, purchases);
+                for (VerifiedPurchase purchase : purchases) {
+                    mListener.verifyTransaction(startId, signedData, signature, purchase);
+                }
+            }
+            if (startId >= 0) {
+                if (Consts.DEBUG) {
+                    Log.i(TAG, "verification done, stopping service, startId: " + startId);
+                }
+                stopSelfWhenDone(startId);
+            }
+        }
+    };
+
+    /** Returns the number of requests waiting for the service connection. */
+    public static int getPendingRequestCount() {
+        return mRequests.pendingCount();
+    }
+
+    /** Returns the number of requests waiting for a response code. */
+    public static int getSentRequestCount() {
+        return mRequests.sentCount();
+    }
+
+    /**
+     * Parses the public key and prepares the signature verifier on the
+     * verification thread, so that the first purchase state change does not
+     * pay for either. The callback is invoked on the verification thread.
+     * @return false if the warm-up could not be queued
+     */
+    public static boolean warmUpVerification(final WarmUpCallback callback) {
+        return mVerificationQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPublicKeyReady(Security.preparePublicKey());
+                callback.onVerifierReady(Security.prepareVerifier());
+            }
+        });
+    }
 
-        final ArrayList<VerifiedPurchase> purchases;
-        purchases = Security.verifyPurchase(signedData, signature);
-        if (purchases == null)
-          return;
-        for (final VerifiedPurchase purchase : purchases) {
-          mListener.verifyTransaction(startId, signedData, signature, purchase);
+    /** Returns when the MarketBillingService last connected, in uptime ms, or 0. */
+    public static long getLastConnectedUptimeMillis() {
+        return mConnection.getConnectedAt();
+    }
+
+    /**
+     * Returns the state of the connection to the MarketBillingService: one
+     * of DISCONNECTED, BINDING, CONNECTED, BACKING_OFF, OPEN or HALF_OPEN.
+     */
+    public static String getConnectionState() {
+        return mConnection.getState().name();
+    }
+
+    /** Returns the number of times binding to the MarketBillingService was attempted. */
+    public static long getBindAttemptCount() {
+        return mConnection.getBindAttempts();
+    }
+
+    /** Returns the number of binds to the MarketBillingService that failed outright. */
+    public static long getBindFailureCount() {
+        return mConnection.getBindFailures();
+    }
+
+    /** Returns the number of times the MarketBillingService crashed or disconnected. */
+    public static long getServiceCrashCount() {
+        return mConnection.getCrashes();
+    }
+
+    /** Returns the number of requests failed fast because the circuit was open. */
+    public static long getRejectedRequestCount() {
+        return mConnection.getRejected();
+    }
+
+    /** Returns the number of times the circuit opened. */
+    public static long getCircuitOpenCount() {
+        return mConnection.getCircuitOpens();
+    }
+
+    /** Returns the number of requests that timed out waiting for a response code. */
+    public static long getTimedOutRequestCount() {
+        return mTimedOutRequests.get();
+    }
+
+    /**
+     * Sets how long to wait for the response code of requests with the given
+     * method, e.g. "REQUEST_PURCHASE". A timeout of 0 or less removes the
+     * deadline. Requests that time out receive RESULT_ERROR.
+     */
+    public static void setRequestTimeout(String method, long timeoutMillis) {
+        if (timeoutMillis > 0) {
+            mRequestTimeouts.put(method, timeoutMillis);
+        } else {
+            mRequestTimeouts.remove(method);
         }
     }
 
+    /** Returns the number of purchase state changes waiting to be verified or delivered. */
+    public static int getVerificationQueueDepth() {
+        return mVerificationQueue.getQueueDepth();
+    }
+
+    /** Returns the highest verification queue depth observed. */
+    public static int getMaxVerificationQueueDepth() {
+        return mVerificationQueue.getMaxQueueDepth();
+    }
+
+    /** Returns the number of payloads rejected because the verification queue was full. */
+    public static long getVerificationQueueRejectedCount() {
+        return mVerificationQueue.getRejectedCount();
+    }
+
+    /** Returns the average time from receipt to delivery of a purchase state change, in ms. */
+    public static long getAverageVerificationLatencyMillis() {
+        return mVerificationQueue.getAverageLatencyNanos() / 1000000L;
+    }
+
+    /** Returns the highest time from receipt to delivery of a purchase state change, in ms. */
+    public static long getMaxVerificationLatencyMillis() {
+        return mVerificationQueue.getMaxLatencyNanos() / 1000000L;
+    }
+
     /**
      * This is called when we receive a response code from Android Market for a request
      * that we made. This is used for reporting various errors and for
      * acknowledging that an order was sent to the server. This is NOT used
      * for any purchase state changes.  All purchase state changes are received
      * in the {@link BillingReceiver} and passed to this service, where they are
-     * handled in {@link #purchaseStateChanged(int, String, String)}.
+     * handled in {@link #purchaseStateChanged(int, String, String, long)}.
      * @param requestId a number that identifies a request, assigned at the
      * time the request was made to Android Market
      * @param responseCode a response code from Android Market to indicate the state
      * of the request
      */
-    private void checkResponseCode(long requestId, ResponseCode responseCode) {
-        BillingRequest request = mSentRequests.get(requestId);
+    private void checkResponseCode(long requestId, ResponseCode responseCode, long recordId) {
+        touch();
+        BillingRequest request = mRequests.claimSent(requestId);
         if (request != null) {
+            // Lets the wheel go idle once nothing is outstanding
+            mDeadlines.cancel(requestId);
+            BillingMetrics.recordRequest(request.mMethod, request.mCreatedAt,
+                    responseCode == ResponseCode.RESULT_OK);
             if (Consts.DEBUG) {
                 Log.d(TAG, request.getClass().getSimpleName() + ": " + responseCode);
             }
             request.responseCodeReceived(responseCode);
         }
-        mSentRequests.remove(requestId);
+        ackInbox(recordId);
+    }
+
+    /** Acknowledges an inbox record once its event has been handled. */
+    private static void ackInbox(long recordId) {
+        BillingInbox inbox = BillingInbox.peekInstance();
+        if (inbox != null) {
+            inbox.ack(recordId);
+        }
+    }
+
+    /**
+     * Replays the events that were logged to the inbox by an earlier process
+     * but never handled, once per process. The inbox is recovered on its
+     * own thread and the records replayed on the main thread once it is.
+     */
+    private void replayInbox() {
+        if (!mInboxReplayed.compareAndSet(false, true)) {
+            return;
+        }
+        final BillingInbox inbox = BillingInbox.getInstance(this);
+        if (inbox == null) {
+            return;
+        }
+        inbox.replayUnacknowledged(new Handler(Looper.getMainLooper()),
+                new BillingInbox.Replayer() {
+            @Override
+            public void replay(List<BillingInbox.Record> records) {
+                replayRecords(inbox, records);
+            }
+        });
+    }
+
+    /**
+     * Replays inbox records. Response codes are acknowledged without being
+     * replayed, since the requests they belong to died with the process
+     * that logged them.
+     */
+    private void replayRecords(BillingInbox inbox, List<BillingInbox.Record> records) {
+        if (Consts.DEBUG) {
+            Log.i(TAG, "replaying " + records.size() + " inbox records");
+        }
+        for (BillingInbox.Record record : records) {
+            switch (record.mType) {
+            case BillingInbox.TYPE_NOTIFY:
+                getPurchaseInformation(-1, new String[] { record.mNotifyId }, record.mId);
+                break;
+            case BillingInbox.TYPE_PURCHASE_STATE_CHANGED:
+                purchaseStateChanged(-1, record.mSignedData, record.mSignature, record.mId);
+                break;
+            default:
+                inbox.ack(record.mId);
+                break;
+            }
+        }
     }
 
     /**
@@ -595,10 +1375,10 @@ public class BillingService extends Service implements ServiceConnection {
     private void runPendingRequests() {
         int maxStartId = -1;
         BillingRequest request;
-        while ((request = mPendingRequests.peek()) != null) {
+        while ((request = mRequests.peekPending()) != null) {
             if (request.runIfConnected()) {
                 // Remove the request
-                mPendingRequests.remove();
+                mRequests.pollPending();
 
                 // Remember the largest startId, which is the most recent
                 // request to start this service.
@@ -606,9 +1386,12 @@ public class BillingService extends Service implements ServiceConnection {
                     maxStartId = request.getStartId();
                 }
             } else {
-                // The service crashed, so restart it. Note that this leaves
-                // the current request on the queue.
-                bindToMarketBillingService();
+                // The service crashed, so restart it once the backoff has
+                // passed. Note that this leaves the current request on the
+                // queue.
+                if (!scheduleRebind()) {
+                    failPendingRequests();
+                }
                 return;
             }
         }
@@ -620,7 +1403,7 @@ public class BillingService extends Service implements ServiceConnection {
             if (Consts.DEBUG) {
                 Log.i(TAG, "stopping service, startId: " + maxStartId);
             }
-            stopSelf(maxStartId);
+            stopSelfWhenDone(maxStartId);
         }
     }
 
@@ -634,7 +1417,9 @@ public class BillingService extends Service implements ServiceConnection {
             Log.d(TAG, "Billing service connected");
         }
         mService = IMarketBillingService.Stub.asInterface(service);
+        mConnection.connected();
         runPendingRequests();
+        drainConfirmationOutbox();
     }
 
     /**
@@ -643,7 +1428,9 @@ public class BillingService extends Service implements ServiceConnection {
     @Override
     public void onServiceDisconnected(ComponentName name) {
         Log.w(TAG, "Billing service disconnected");
+        BillingMetrics.recordDisconnect();
         mService = null;
+        mConnection.crashed();
     }
 
     /**
@@ -651,10 +1438,198 @@ public class BillingService extends Service implements ServiceConnection {
      * terminates to avoid leaking a ServiceConnection.
      */
     public void unbind() {
+        if (mLiveInstance == this) {
+            mLiveInstance = null;
+        }
+        boolean last;
+        synchronized (mBoundInstances) {
+            mBoundInstances.remove(this);
+            last = mBoundInstances.isEmpty();
+        }
+        if (last) {
+            mService = null;
+            mConnection.disconnected();
+        }
         try {
             unbindService(this);
         } catch (IllegalArgumentException e) {
             // This might happen if the service was disconnected
         }
     }
+
+    /**
+     * Hands a purchase state change from {@link BillingReceiver} straight to
+     * a live instance, without going through startService. The instance is
+     * not stopped until the payload has been delivered.
+     * @return false if no instance is live and the service must be started
+     */
+    static boolean dispatchPurchaseStateChanged(final String signedData,
+            final String signature, final long recordId) {
+        final BillingService instance = mLiveInstance;
+        if (instance == null) {
+            return false;
+        }
+        return instance.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                instance.purchaseStateChanged(-1, signedData, signature, recordId);
+            }
+        });
+    }
+
+    /**
+     * Hands an IN_APP_NOTIFY from {@link BillingReceiver} straight to a live
+     * instance, without going through startService. The instance is not
+     * stopped until Market has accepted the purchase information request.
+     * @return false if no instance is live and the service must be started
+     */
+    static boolean dispatchNotify(final String notifyId, final long recordId) {
+        final BillingService instance = mLiveInstance;
+        if (instance == null) {
+            return false;
+        }
+        return instance.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                instance.getPurchaseInformation(-1, new String[] { notifyId }, recordId);
+            }
+        });
+    }
+
+    /**
+     * Hands a response code from {@link BillingReceiver} straight to a live
+     * instance, without going through startService.
+     * @return false if no instance is live and the service must be started
+     */
+    static boolean dispatchResponseCode(final long requestId, final int responseCodeIndex,
+            final long recordId) {
+        final BillingService instance = mLiveInstance;
+        if (instance == null) {
+            return false;
+        }
+        return instance.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                instance.checkResponseCode(requestId, ResponseCode.valueOf(responseCodeIndex),
+                        recordId);
+            }
+        });
+    }
+
+    /**
+     * Binds to the MarketBillingService ahead of a request, e.g. when the
+     * store UI is about to open, so the first request does not wait for the
+     * connection. Does nothing if already connected.
+     */
+    public void prebind() {
+        touch();
+        if (mService == null && !connect()) {
+            Log.w(TAG, "Unable to pre-bind to the billing service");
+        }
+    }
+
+    /**
+     * Sets how long the connection may sit idle, with no request outstanding,
+     * before it is unbound. The next request binds again. 0 keeps the
+     * connection until {@link #unbind()}.
+     */
+    public static void setIdleUnbindMillis(long idleMillis) {
+        mIdleUnbindMillis = idleMillis;
+        // A check already scheduled would only run after the old period
+        synchronized (mBoundInstances) {
+            mIdleHandler.removeCallbacks(mIdleCheck);
+            mIdleCheckScheduled = false;
+        }
+        touch();
+    }
+
+    /** Returns the number of times the connection was unbound for being idle. */
+    public static long getIdleUnbindCount() {
+        synchronized (mBoundInstances) {
+            return mIdleUnbinds;
+        }
+    }
+
+    /** Returns the total time spent unbound after being idle, in ms. */
+    public static long getIdleMillis() {
+        synchronized (mBoundInstances) {
+            long idleMillis = mIdleMillis;
+            if (mUnboundSince != 0) {
+                idleMillis += SystemClock.uptimeMillis() - mUnboundSince;
+            }
+            return idleMillis;
+        }
+    }
+
+    /** Notes request activity, and makes sure an idle check is scheduled. */
+    private static void touch() {
+        mLastActivity = SystemClock.uptimeMillis();
+        long idleMillis = mIdleUnbindMillis;
+        if (idleMillis > 0) {
+            scheduleIdleCheck(idleMillis);
+        }
+    }
+
+    private static void scheduleIdleCheck(long delayMillis) {
+        synchronized (mBoundInstances) {
+            if (mIdleCheckScheduled || mBoundInstances.isEmpty()) {
+                return;
+            }
+            mIdleCheckScheduled = true;
+        }
+        mIdleHandler.postDelayed(mIdleCheck, delayMillis);
+    }
+
+    /**
+     * Returns true while anything still has to go through the connection:
+     * requests sent or waiting to be sent, notification IDs waiting in a
+     * bound instance's batchers, payloads waiting to be verified, whose
+     * confirmations follow, and IDs in the confirmation outbox waiting to
+     * drain.
+     */
+    private static boolean hasOutstandingWork() {
+        if (mRequests.sentCount() > 0 || mRequests.peekPending() != null
+                || mVerificationQueue.getQueueDepth() > 0) {
+            return true;
+        }
+        ConfirmationOutbox outbox = mConfirmationOutbox;
+        if (outbox != null && outbox.size() > 0) {
+            return true;
+        }
+        synchronized (mBoundInstances) {
+            for (BillingService instance : mBoundInstances) {
+                if (instance.mConfirmationBatcher.getQueuedCount() > 0
+                        || instance.mPurchaseInformationBatcher.getQueuedCount() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Unbinds every instance bound to the MarketBillingService. */
+    private static void unbindIdle() {
+        BillingService[] bound;
+        synchronized (mBoundInstances) {
+            if (mBoundInstances.isEmpty()) {
+                return;
+            }
+            bound = mBoundInstances.toArray(new BillingService[mBoundInstances.size()]);
+            mBoundInstances.clear();
+            mIdleUnbinds++;
+            mUnboundSince = SystemClock.uptimeMillis();
+        }
+        if (Consts.DEBUG) {
+            Log.i(TAG, "unbinding idle billing service connection");
+        }
+        mService = null;
+        mConnection.disconnected();
+        for (BillingService instance : bound) {
+            try {
+                instance.unbindService(instance);
+            } catch (IllegalArgumentException e) {
+                // This might happen if the service was disconnected
+            }
+        }
+    }
 }
@@ -0,0 +1,244 @@
+package com.jesusla.google;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Keeps the notification IDs that still have to be confirmed to Android
+ * Market in a log file, so that a confirmation that cannot be sent, because
+ * the service is unavailable or the process dies, is sent once a connection
+ * is available again instead of being lost. An unconfirmed notification is
+ * otherwise sent again by Market, and costs another round of purchase
+ * information and verification.
+ *
+ * Each ID is pending until it is confirmed. An ID that is already pending is
+ * not added twice. Pending IDs are also marked as sending while they are
+ * queued or in flight, so that draining the outbox does not send them twice.
+ *
+ * The file is a log of checksummed add and remove records; recovery stops at
+ * the first torn or corrupt record. Writes go to the shared page cache,
+ * which outlives the process; the file is only synced when it is compacted.
+ */
+class ConfirmationOutbox {
+    private static final String TAG = "ConfirmationOutbox";
+
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    /** Records longer than this are treated as corrupt. */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    /** The log is compacted once it holds this many more records than pending IDs. */
+    private static final int COMPACT_THRESHOLD = 256;
+
+    private final File mFile;
+    private RandomAccessFile mOut;
+    private int mRecords;
+
+    private final LinkedHashSet<String> mPending = new LinkedHashSet<String>();
+    private final HashSet<String> mSending = new HashSet<String>();
+
+    /**
+     * Opens the outbox, recovering the IDs that were pending when the
+     * process last died.
+     * @throws IOException if the file cannot be opened
+     */
+    ConfirmationOutbox(File file) throws IOException {
+        mFile = file;
+        long end = recover();
+        mOut = new RandomAccessFile(file, "rw");
+        // Drop a torn tail so new records follow the last valid one
+        mOut.setLength(end);
+        mOut.seek(end);
+        if (!mPending.isEmpty()) {
+            Log.i(TAG, "recovered " + mPending.size() + " unconfirmed notification(s)");
+        }
+    }
+
+    /**
+     * Adds IDs to be confirmed and marks them as sending.
+     * @return the IDs that were not already sending, which the caller must send
+     */
+    synchronized String[] add(String[] notifyIds) {
+        List<String> added = new ArrayList<String>(notifyIds.length);
+        for (String notifyId : notifyIds) {
+            if (notifyId == null || !mSending.add(notifyId)) {
+                continue;
+            }
+            if (mPending.add(notifyId)) {
+                append(TYPE_ADD, notifyId);
+            }
+            added.add(notifyId);
+        }
+        return added.toArray(new String[added.size()]);
+    }
+
+    /**
+     * Marks every pending ID that is not already sending as sending.
+     * @return those IDs, oldest first
+     */
+    synchronized String[] takeUnsent() {
+        List<String> unsent = new ArrayList<String>();
+        for (String notifyId : mPending) {
+            if (mSending.add(notifyId)) {
+                unsent.add(notifyId);
+            }
+        }
+        return unsent.toArray(new String[unsent.size()]);
+    }
+
+    /** Removes IDs that Market has confirmed. */
+    synchronized void confirmed(String[] notifyIds) {
+        for (String notifyId : notifyIds) {
+            mSending.remove(notifyId);
+            if (mPending.remove(notifyId)) {
+                append(TYPE_REMOVE, notifyId);
+            }
+        }
+        if (mRecords - mPending.size() >= COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /** Keeps IDs that could not be sent pending, to be taken again later. */
+    synchronized void release(String[] notifyIds) {
+        for (String notifyId : notifyIds) {
+            mSending.remove(notifyId);
+        }
+    }
+
+    /** Returns the number of IDs waiting to be confirmed. */
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    private void append(byte type, String notifyId) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.write(encode(type, notifyId));
+            mRecords++;
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write outbox", e);
+            // Rewrite from memory rather than append after a failed write
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the pending IDs, into a new file that then
+     * replaces the old one.
+     */
+    private void compact() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                for (String notifyId : mPending) {
+                    out.write(encode(TYPE_ADD, notifyId));
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            close();
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("cannot rename " + temp);
+            }
+            mOut = new RandomAccessFile(mFile, "rw");
+            mOut.seek(mOut.length());
+            mRecords = mPending.size();
+        } catch (IOException e) {
+            Log.w(TAG, "unable to compact outbox", e);
+            close();
+        }
+    }
+
+    private void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+            mOut = null;
+        }
+    }
+
+    /**
+     * Replays the log into the pending set.
+     * @return the length of the valid part of the file
+     */
+    private long recover() throws IOException {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        long end = 0;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                int checksum = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                String notifyId = new String(payload, 1, length - 1, "UTF-8");
+                if (payload[0] == TYPE_ADD) {
+                    mPending.add(notifyId);
+                } else if (payload[0] == TYPE_REMOVE) {
+                    mPending.remove(notifyId);
+                } else {
+                    break;
+                }
+                mRecords++;
+                end += 8 + length;
+            }
+        } catch (EOFException e) {
+            // A torn or missing tail; stop at the last whole record
+        } finally {
+            in.close();
+        }
+        return end;
+    }
+
+    private static byte[] encode(byte type, String notifyId) throws IOException {
+        byte[] id = notifyId.getBytes("UTF-8");
+        byte[] payload = new byte[id.length + 1];
+        payload[0] = type;
+        System.arraycopy(id, 0, payload, 1, id.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
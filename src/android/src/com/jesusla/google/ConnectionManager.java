@@ -0,0 +1,201 @@
+package com.jesusla.google;
+
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Decides when to bind to the MarketBillingService. After a failed bind or
+ * a crash of the remote service, binding is retried with exponential
+ * backoff and jitter rather than immediately, so a crashing Play Store
+ * cannot cause a tight rebind loop. After repeated failures the circuit
+ * opens and requests fail fast without binding at all; once the cool-down
+ * has passed a single probe bind is allowed through, and the circuit
+ * closes again if it connects.
+ */
+class ConnectionManager {
+    /** The state of the service connection. */
+    enum State {
+        DISCONNECTED,
+        BINDING,
+        CONNECTED,
+        /** Waiting out the backoff before binding again. */
+        BACKING_OFF,
+        /** Failing requests without binding. */
+        OPEN,
+        /** Probing the service after the circuit was open. */
+        HALF_OPEN
+    }
+
+    /** What a caller should do when it needs the service. */
+    enum Decision {
+        /** Bind now. */
+        BIND,
+        /** Queue the request; a bind is in progress or scheduled. */
+        WAIT,
+        /** Fail the request; the circuit is open. */
+        REJECT
+    }
+
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final Random mRandom = new Random();
+
+    private State mState = State.DISCONNECTED;
+    private int mConsecutiveFailures;
+    /** When the backoff or open period ends, in uptime ms. */
+    private long mWaitUntil;
+    /** When the service last connected, in uptime ms, or 0. */
+    private long mConnectedAt;
+
+    private long mBindAttempts;
+    private long mBindFailures;
+    private long mCrashes;
+    private long mRejected;
+    private long mCircuitOpens;
+
+    /**
+     * @param baseDelayMillis the backoff after the first failure
+     * @param maxDelayMillis the largest backoff
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openMillis how long the circuit stays open before probing
+     */
+    ConnectionManager(long baseDelayMillis, long maxDelayMillis, int failureThreshold,
+            long openMillis) {
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Called when a request needs the service and it is not connected.
+     */
+    synchronized Decision requestBind() {
+        long now = SystemClock.uptimeMillis();
+        switch (mState) {
+        case BINDING:
+        case HALF_OPEN:
+            return Decision.WAIT;
+        case BACKING_OFF:
+            if (now < mWaitUntil) {
+                return Decision.WAIT;
+            }
+            break;
+        case OPEN:
+            if (now < mWaitUntil) {
+                mRejected++;
+                return Decision.REJECT;
+            }
+            mState = State.HALF_OPEN;
+            mBindAttempts++;
+            return Decision.BIND;
+        default:
+            break;
+        }
+        mState = State.BINDING;
+        mBindAttempts++;
+        return Decision.BIND;
+    }
+
+    /** Called when the service is connected. */
+    synchronized void connected() {
+        mState = State.CONNECTED;
+        mConsecutiveFailures = 0;
+        mConnectedAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Called when we unbound from the service ourselves. A backoff or open
+     * circuit is left as it is.
+     */
+    synchronized void disconnected() {
+        if (mState == State.CONNECTED || mState == State.BINDING) {
+            mState = State.DISCONNECTED;
+        }
+    }
+
+    /** Called when binding to the service failed outright. */
+    synchronized void bindFailed() {
+        mBindFailures++;
+        failed();
+    }
+
+    /** Called when the remote service crashed or disconnected. */
+    synchronized void crashed() {
+        if (mState == State.OPEN || mState == State.BACKING_OFF) {
+            return;
+        }
+        mCrashes++;
+        failed();
+    }
+
+    private void failed() {
+        long now = SystemClock.uptimeMillis();
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN || mConsecutiveFailures >= mFailureThreshold) {
+            mState = State.OPEN;
+            mWaitUntil = now + mOpenMillis;
+            mCircuitOpens++;
+        } else {
+            mState = State.BACKING_OFF;
+            mWaitUntil = now + backoff(mConsecutiveFailures);
+        }
+    }
+
+    /**
+     * Returns the delay for the given number of consecutive failures: half
+     * of the exponential delay plus a random amount up to the other half, so
+     * that retries spread out but never come sooner than half the delay.
+     */
+    private long backoff(int failures) {
+        long delay = mBaseDelayMillis << Math.min(failures - 1, 20);
+        delay = Math.min(delay, mMaxDelayMillis);
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    /** Returns how long until a bind may be attempted again, in ms. */
+    synchronized long getRetryDelay() {
+        if (mState != State.BACKING_OFF && mState != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, mWaitUntil - SystemClock.uptimeMillis());
+    }
+
+    /** Returns when the service last connected, in uptime ms, or 0 if it never has. */
+    synchronized long getConnectedAt() {
+        return mConnectedAt;
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    synchronized boolean isOpen() {
+        return mState == State.OPEN;
+    }
+
+    synchronized long getBindAttempts() {
+        return mBindAttempts;
+    }
+
+    synchronized long getBindFailures() {
+        return mBindFailures;
+    }
+
+    synchronized long getCrashes() {
+        return mCrashes;
+    }
+
+    /** Returns the number of requests failed fast because the circuit was open. */
+    synchronized long getRejected() {
+        return mRejected;
+    }
+
+    synchronized long getCircuitOpens() {
+        return mCircuitOpens;
+    }
+}
@@ -87,6 +87,10 @@ public class Consts {
     public static final String INAPP_REQUEST_ID = "request_id";
     public static final String INAPP_RESPONSE_CODE = "response_code";
 
+    // The extra that carries the inbox record id of a command passed from
+    // the BillingReceiver to the BillingService.
+    public static final String INBOX_RECORD_ID = "inbox_record_id";
+
     // These are the names of the fields in the request bundle.
     public static final String BILLING_REQUEST_METHOD = "BILLING_REQUEST";
     public static final String BILLING_REQUEST_API_VERSION = "API_VERSION";
@@ -106,5 +110,17 @@ public class Consts {
     public static final String ITEM_TYPE_INAPP = "inapp";
     public static final String ITEM_TYPE_SUBSCRIPTION = "subs";
 
+    // Keep outstanding nonces in a journal file so that they survive the
+    // process being killed in the middle of a purchase.
+    public static final boolean PERSIST_NONCES = true;
+
+    // Log incoming broadcasts to a durable inbox so that events interrupted
+    // by the process being killed are replayed on the next start.
+    public static final boolean PERSIST_INBOX = true;
+
+    // Keep notification IDs in an outbox file until Market confirms them, so
+    // that confirmations that could not be sent are not lost.
+    public static final boolean PERSIST_CONFIRMATIONS = true;
+
     public static final boolean DEBUG = true;
 }
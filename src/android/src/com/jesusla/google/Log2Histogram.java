@@ -0,0 +1,79 @@
+package com.jesusla.google;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with power-of-two buckets: bucket 0 counts zeros and bucket
+ * <i>n</i> counts values in [2^(n-1), 2^n). Recording a value is a couple of
+ * atomic increments and never allocates, so it is safe to use on hot paths
+ * from any thread.
+ */
+public class Log2Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /** Records a value. Negative values are recorded as zero. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** Returns the sum of the values recorded. */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /** Returns the largest value recorded. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns an upper bound for the given percentile (0-100): the top of
+     * the bucket the percentile falls in.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /** Returns a copy of the bucket counts. */
+    public long[] getBuckets() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mCounts.get(i);
+        }
+        return buckets;
+    }
+}
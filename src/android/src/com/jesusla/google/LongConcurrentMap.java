@@ -0,0 +1,139 @@
+package com.jesusla.google;
+
+/**
+ * A concurrent map from primitive long keys to values, so that lookups by
+ * request id do not box. The key space is split across independently
+ * locked segments, each an open-addressing table with linear probing that
+ * grows as needed. Null values are not allowed.
+ */
+class LongConcurrentMap<V> {
+    private static final int SEGMENTS = 16;
+
+    private static final class Segment {
+        long[] keys = new long[8];
+        Object[] values = new Object[8];
+        int size;
+    }
+
+    private final Segment[] mSegments = new Segment[SEGMENTS];
+
+    LongConcurrentMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Associates the value with the key.
+     * @return the value previously associated with the key, or null
+     */
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int hash = hash(key);
+        Segment segment = mSegments[hash & (SEGMENTS - 1)];
+        synchronized (segment) {
+            if ((segment.size + 1) * 4 > segment.keys.length * 3) {
+                grow(segment);
+            }
+            int slot = find(segment, key, hash);
+            @SuppressWarnings("unchecked")
+            V previous = (V) segment.values[slot];
+            if (previous == null) {
+                segment.keys[slot] = key;
+                segment.size++;
+            }
+            segment.values[slot] = value;
+            return previous;
+        }
+    }
+
+    /** Returns the value associated with the key, or null. */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int hash = hash(key);
+        Segment segment = mSegments[hash & (SEGMENTS - 1)];
+        synchronized (segment) {
+            return (V) segment.values[find(segment, key, hash)];
+        }
+    }
+
+    /**
+     * Removes the key. Of several threads removing the same key, exactly one
+     * gets the value back.
+     * @return the value that was associated with the key, or null
+     */
+    V remove(long key) {
+        int hash = hash(key);
+        Segment segment = mSegments[hash & (SEGMENTS - 1)];
+        synchronized (segment) {
+            long[] keys = segment.keys;
+            Object[] values = segment.values;
+            int mask = keys.length - 1;
+            int slot = find(segment, key, hash);
+            @SuppressWarnings("unchecked")
+            V previous = (V) values[slot];
+            if (previous == null) {
+                return null;
+            }
+            // Backward-shift deletion keeps probe sequences intact without tombstones
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (values[next] != null) {
+                int home = (hash(keys[next]) >>> 4) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[hole] = null;
+            segment.size--;
+            return previous;
+        }
+    }
+
+    /** Returns the number of entries. */
+    int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /** Returns the slot holding the key, or the empty slot where it belongs. */
+    private static int find(Segment segment, long key, int hash) {
+        long[] keys = segment.keys;
+        Object[] values = segment.values;
+        int mask = keys.length - 1;
+        int slot = (hash >>> 4) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static void grow(Segment segment) {
+        long[] oldKeys = segment.keys;
+        Object[] oldValues = segment.values;
+        segment.keys = new long[oldKeys.length * 2];
+        segment.values = new Object[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = find(segment, oldKeys[i], hash(oldKeys[i]));
+                segment.keys[slot] = oldKeys[i];
+                segment.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
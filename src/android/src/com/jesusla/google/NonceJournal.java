@@ -0,0 +1,232 @@
+package com.jesusla.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Persists outstanding nonces in a fixed-size memory-mapped file so that
+ * they survive the process being killed while a purchase is in flight.
+ *
+ * The file holds a header and two equally sized record regions, only one of
+ * which is active at a time. Adding or removing a nonce appends a record to
+ * the active region. When the active region fills up, the live nonces are
+ * compacted into the other region and the header is switched over to it.
+ *
+ * Each record carries a checksum over its contents and the region's
+ * generation, so recovery stops at the first torn, truncated or stale
+ * record. Writes go to the shared page cache, which outlives the process;
+ * the file is only forced to disk when regions are switched.
+ */
+class NonceJournal {
+    private static final String TAG = "NonceJournal";
+
+    private static final int MAGIC = 0x4e4f4e31; // "NON1"
+
+    private static final int HEADER_SIZE = 16;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_STATE = 8;
+
+    // type (4) + nonce (8) + expiry (8) + checksum (4)
+    private static final int RECORD_SIZE = 24;
+
+    private static final int TYPE_ADD = 1;
+    private static final int TYPE_REMOVE = 2;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mRecordsPerRegion;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[24];
+
+    private int mGeneration;
+    private int mActiveRegion;
+    private int mPosition;
+
+    /**
+     * Opens the journal, creating or reinitializing it if the file is
+     * missing, the wrong size or not a journal.
+     * @param file where to keep the journal
+     * @param recordsPerRegion the number of records each region can hold
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    NonceJournal(File file, int recordsPerRegion) throws IOException {
+        mRecordsPerRegion = recordsPerRegion;
+        int size = HEADER_SIZE + 2 * recordsPerRegion * RECORD_SIZE;
+        mFile = new RandomAccessFile(file, "rw");
+        boolean fresh = mFile.length() != size;
+        if (fresh) {
+            mFile.setLength(0);
+            mFile.setLength(size);
+        }
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (fresh || mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            Log.i(TAG, "initializing nonce journal");
+            // Records left from before would validate under generation 0 again
+            clearRecord(0, 0);
+            mBuffer.putLong(OFFSET_STATE, 0L);
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+        long state = mBuffer.getLong(OFFSET_STATE);
+        mGeneration = (int) (state >>> 1);
+        mActiveRegion = (int) (state & 1);
+        // Position appends after whatever survived from the last run
+        replay();
+    }
+
+    /**
+     * Replays the active region and returns the nonces that were added and
+     * not removed, with their expiry times (wall clock, ms). Expired nonces
+     * are left out. Subsequent appends continue after the last valid record.
+     */
+    synchronized Map<Long, Long> recover() {
+        Map<Long, Long> live = replay();
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = live.values().iterator(); it.hasNext(); ) {
+            if (it.next() <= now) {
+                it.remove();
+            }
+        }
+        return live;
+    }
+
+    /** Records that a nonce was generated and expires at the given wall clock time. */
+    synchronized void add(long nonce, long expiresAt) {
+        append(TYPE_ADD, nonce, expiresAt);
+    }
+
+    /** Records that a nonce is no longer outstanding. */
+    synchronized void remove(long nonce) {
+        append(TYPE_REMOVE, nonce, 0L);
+    }
+
+    /** Releases the file handle. The mapping stays valid until it is collected. */
+    synchronized void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "error closing nonce journal", e);
+        }
+    }
+
+    private void append(int type, long nonce, long expiry) {
+        if (mPosition == mRecordsPerRegion) {
+            compact();
+            if (mPosition == mRecordsPerRegion) {
+                Log.w(TAG, "nonce journal full, dropping record");
+                return;
+            }
+        }
+        writeRecord(mActiveRegion, mPosition, mGeneration, type, nonce, expiry);
+        mPosition++;
+    }
+
+    /**
+     * Rewrites the live, unexpired nonces into the inactive region under the
+     * next generation, then switches the header over to it.
+     */
+    private void compact() {
+        Map<Long, Long> live = recover();
+        int region = 1 - mActiveRegion;
+        int generation = mGeneration + 1;
+        // Leave room to append; if there are too many, keep the newest
+        int skip = Math.max(0, live.size() - mRecordsPerRegion / 2);
+        int position = 0;
+        for (Map.Entry<Long, Long> entry : live.entrySet()) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            writeRecord(region, position++, generation, TYPE_ADD,
+                    entry.getKey(), entry.getValue());
+        }
+        if (position < mRecordsPerRegion) {
+            // Make sure recovery stops here even if a stale record happens to validate
+            clearRecord(region, position);
+        }
+        mBuffer.force();
+        mBuffer.putLong(OFFSET_STATE, ((long) generation << 1) | region);
+        mBuffer.force();
+        mGeneration = generation;
+        mActiveRegion = region;
+        mPosition = position;
+    }
+
+    private Map<Long, Long> replay() {
+        Map<Long, Long> live = new LinkedHashMap<Long, Long>();
+        int position = 0;
+        while (position < mRecordsPerRegion) {
+            int offset = recordOffset(mActiveRegion, position);
+            int type = mBuffer.getInt(offset);
+            long nonce = mBuffer.getLong(offset + 4);
+            long expiry = mBuffer.getLong(offset + 12);
+            int checksum = mBuffer.getInt(offset + 20);
+            if ((type != TYPE_ADD && type != TYPE_REMOVE)
+                    || checksum != checksum(mGeneration, type, nonce, expiry)) {
+                break;
+            }
+            if (type == TYPE_ADD) {
+                live.put(nonce, expiry);
+            } else {
+                live.remove(nonce);
+            }
+            position++;
+        }
+        mPosition = position;
+        return live;
+    }
+
+    private void writeRecord(int region, int position, int generation, int type,
+            long nonce, long expiry) {
+        int offset = recordOffset(region, position);
+        // Invalidate first so that a torn write never leaves an older valid record
+        mBuffer.putInt(offset + 20, 0);
+        mBuffer.putInt(offset, type);
+        mBuffer.putLong(offset + 4, nonce);
+        mBuffer.putLong(offset + 12, expiry);
+        mBuffer.putInt(offset + 20, checksum(generation, type, nonce, expiry));
+    }
+
+    private void clearRecord(int region, int position) {
+        int offset = recordOffset(region, position);
+        for (int i = 0; i < RECORD_SIZE; i += 4) {
+            mBuffer.putInt(offset + i, 0);
+        }
+    }
+
+    private int recordOffset(int region, int position) {
+        return HEADER_SIZE + (region * mRecordsPerRegion + position) * RECORD_SIZE;
+    }
+
+    private int checksum(int generation, int type, long nonce, long expiry) {
+        byte[] b = mScratch;
+        putInt(b, 0, generation);
+        putInt(b, 4, type);
+        putLong(b, 8, nonce);
+        putLong(b, 16, expiry);
+        mCrc.reset();
+        mCrc.update(b, 0, b.length);
+        // Never produce 0, which marks a record as unwritten
+        return (int) mCrc.getValue() | 1;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+}
@@ -0,0 +1,83 @@
+package com.jesusla.google;
+
+import java.security.SecureRandom;
+
+/**
+ * A small pool of pre-generated random nonces. A background thread keeps
+ * the pool topped up so that {@link #next()} does not have to wait on the
+ * entropy source while a billing request is being sent. If the pool runs
+ * dry, {@link #next()} falls back to generating a nonce directly.
+ */
+class NoncePool {
+    private static final String TAG = "NoncePool";
+
+    private final SecureRandom mRandom;
+    private final long[] mNonces;
+    private int mCount;
+    private Thread mRefiller;
+
+    /**
+     * @param random the source of nonces
+     * @param size the number of nonces to keep ready
+     */
+    NoncePool(SecureRandom random, int size) {
+        mRandom = random;
+        mNonces = new long[size];
+    }
+
+    /** Returns a random nonce that is storable in a {@link NonceTable}. */
+    long next() {
+        synchronized (this) {
+            ensureRefiller();
+            if (mCount > 0) {
+                long nonce = mNonces[--mCount];
+                if (mCount <= mNonces.length / 2) {
+                    notify();
+                }
+                return nonce;
+            }
+        }
+        return generate();
+    }
+
+    private long generate() {
+        long nonce;
+        do {
+            nonce = mRandom.nextLong();
+        } while (!NonceTable.isStorable(nonce));
+        return nonce;
+    }
+
+    private void ensureRefiller() {
+        if (mRefiller != null) {
+            return;
+        }
+        mRefiller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                refill();
+            }
+        }, TAG);
+        mRefiller.setDaemon(true);
+        mRefiller.setPriority(Thread.MIN_PRIORITY);
+        mRefiller.start();
+    }
+
+    private void refill() {
+        while (true) {
+            // Generate outside the lock; this is the part that may block
+            long nonce = generate();
+            synchronized (this) {
+                while (mCount == mNonces.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mRefiller = null;
+                        return;
+                    }
+                }
+                mNonces[mCount++] = nonce;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.jesusla.google;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.SystemClock;
+
+/**
+ * Fixed-capacity, lock-free set of outstanding nonces. Nonces are stored as
+ * primitive longs in an open-addressing table with linear probing, and each
+ * entry carries an expiry time after which it is treated as absent and its
+ * slot may be reused. When every slot is taken by a live entry, the entry
+ * closest to expiring is evicted, so the table never grows past the
+ * capacity it was created with.
+ *
+ * The values {@link #EMPTY}, {@link #TOMBSTONE} and {@link #RESERVED} are
+ * used internally and can never be stored; {@link #isStorable(long)} tells
+ * callers which nonces are acceptable.
+ */
+class NonceTable {
+    /** A slot that has never been used. Terminates probe sequences. */
+    private static final long EMPTY = 0L;
+    /** A slot whose nonce was removed. */
+    private static final long TOMBSTONE = 1L;
+    /** A slot being written; its expiry is not yet valid. */
+    private static final long RESERVED = 2L;
+
+    private final AtomicLongArray mKeys;
+    private final AtomicLongArray mExpiries;
+    /** Bumped each time a slot is reserved, so readers can tell it was reused. */
+    private final AtomicIntegerArray mStamps;
+    private final int mMask;
+    private final long mTimeToLive;
+
+    /**
+     * @param capacity the maximum number of nonces held at once; rounded up
+     * to a power of two
+     * @param timeToLiveMillis how long a nonce stays known after it is added
+     */
+    NonceTable(int capacity, long timeToLiveMillis) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mKeys = new AtomicLongArray(size);
+        mExpiries = new AtomicLongArray(size);
+        mStamps = new AtomicIntegerArray(size);
+        mMask = size - 1;
+        mTimeToLive = timeToLiveMillis;
+    }
+
+    /** Returns true if the nonce can be stored in the table. */
+    static boolean isStorable(long nonce) {
+        return nonce != EMPTY && nonce != TOMBSTONE && nonce != RESERVED;
+    }
+
+    /**
+     * Adds a nonce. Expired or removed slots are reused; if the table is full
+     * of live entries, the one that would expire first is evicted.
+     * @throws IllegalArgumentException if the nonce is not storable
+     */
+    void add(long nonce) {
+        add(nonce, mTimeToLive);
+    }
+
+    /**
+     * Adds a nonce that stays known for the given time rather than the
+     * table's default. A nonce that is already known is left as it is, so
+     * that a single {@link #remove(long)} always forgets it.
+     * @throws IllegalArgumentException if the nonce is not storable
+     */
+    void add(long nonce, long timeToLiveMillis) {
+        if (!isStorable(nonce)) {
+            throw new IllegalArgumentException("Reserved nonce value " + nonce);
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (find(nonce, now) >= 0) {
+            return;
+        }
+        while (true) {
+            int start = index(nonce);
+            for (int i = 0; i <= mMask; i++) {
+                int slot = (start + i) & mMask;
+                long key = mKeys.get(slot);
+                if (key == EMPTY || key == TOMBSTONE
+                        || (key != RESERVED && mExpiries.get(slot) <= now)) {
+                    if (reserve(slot, key)) {
+                        publish(slot, nonce, now + timeToLiveMillis);
+                        return;
+                    }
+                }
+            }
+            if (evictOldest(nonce, now + timeToLiveMillis)) {
+                return;
+            }
+        }
+    }
+
+    /** Returns true if the nonce was added and has neither expired nor been removed. */
+    boolean contains(long nonce) {
+        if (!isStorable(nonce)) {
+            return false;
+        }
+        return find(nonce, SystemClock.elapsedRealtime()) >= 0;
+    }
+
+    /** Removes the nonce if present. */
+    void remove(long nonce) {
+        if (!isStorable(nonce)) {
+            return;
+        }
+        int start = index(nonce);
+        for (int i = 0; i <= mMask; i++) {
+            int slot = (start + i) & mMask;
+            long key = mKeys.get(slot);
+            if (key == EMPTY) {
+                return;
+            }
+            if (key == nonce) {
+                mKeys.compareAndSet(slot, nonce, TOMBSTONE);
+                return;
+            }
+        }
+    }
+
+    /** Returns the number of live (unexpired) nonces. This scans the whole table. */
+    int size() {
+        long now = SystemClock.elapsedRealtime();
+        int count = 0;
+        for (int slot = 0; slot <= mMask; slot++) {
+            long key = mKeys.get(slot);
+            if (isStorable(key) && mExpiries.get(slot) > now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Returns the number of slots in the table. */
+    int capacity() {
+        return mMask + 1;
+    }
+
+    private int find(long nonce, long now) {
+        int start = index(nonce);
+        for (int i = 0; i <= mMask; i++) {
+            int slot = (start + i) & mMask;
+            while (true) {
+                int stamp = mStamps.get(slot);
+                long key = mKeys.get(slot);
+                if (key == EMPTY) {
+                    return -1;
+                }
+                if (key != nonce) {
+                    break;
+                }
+                long expiry = mExpiries.get(slot);
+                // The expiry belongs to this nonce only if the slot was not
+                // reserved again while it was read; rechecking the key is not
+                // enough, since the same nonce may have been put back since
+                if (mStamps.get(slot) == stamp) {
+                    return expiry > now ? slot : -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean evictOldest(long nonce, long expiry) {
+        int oldest = -1;
+        long oldestExpiry = Long.MAX_VALUE;
+        for (int slot = 0; slot <= mMask; slot++) {
+            long key = mKeys.get(slot);
+            if (key != RESERVED) {
+                long slotExpiry = mExpiries.get(slot);
+                if (slotExpiry < oldestExpiry) {
+                    oldest = slot;
+                    oldestExpiry = slotExpiry;
+                }
+            }
+        }
+        if (oldest < 0) {
+            return false;
+        }
+        long key = mKeys.get(oldest);
+        if (key != RESERVED && reserve(oldest, key)) {
+            publish(oldest, nonce, expiry);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean reserve(int slot, long key) {
+        if (!mKeys.compareAndSet(slot, key, RESERVED)) {
+            return false;
+        }
+        // Before the new expiry is written, so that a reader that sees it
+        // also sees the slot was reused
+        mStamps.incrementAndGet(slot);
+        return true;
+    }
+
+    private void publish(int slot, long nonce, long expiry) {
+        // The expiry must be visible before the key, since readers check the
+        // key first
+        mExpiries.set(slot, expiry);
+        mKeys.set(slot, nonce);
+    }
+
+    private int index(long nonce) {
+        // Nonces are random, but mix anyway so sequential values spread out
+        long h = nonce * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+}
@@ -0,0 +1,339 @@
+package com.jesusla.google;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Coalesces notification IDs into batches so that a burst of notifications
+ * costs one billing request rather than one per ID. IDs are collected until
+ * either the batch is full or the window since the first ID has elapsed,
+ * then handed to the {@link Sender} on the main thread.
+ *
+ * Every ID keeps its own startId, attempt count and enqueue time, so that
+ * IDs retried after a failure do not change how fresh IDs sent with them
+ * are treated. A failed ID waits {@link #RETRY_DELAY_MILLIS}, doubled for
+ * each further attempt, before it is sent again.
+ *
+ * A batch releases a startId once every ID queued under it, and under any
+ * earlier startId, has been handed to the sender, so the service is never
+ * stopped while IDs of an earlier command are still waiting.
+ */
+class NotificationBatcher {
+    private static final String TAG = "NotificationBatcher";
+
+    /** How many times an ID is sent before it is dropped. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** How long a failed ID waits before it is sent again; doubled per attempt. */
+    static final long RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * Sends a batch. Called on the main thread.
+     */
+    interface Sender {
+        /**
+         * @return true if the batch was sent or queued; false if it could
+         * not be, in which case its IDs are retried
+         */
+        boolean send(Batch batch);
+
+        /**
+         * Called with the IDs that are given up on, and with any startId
+         * that can be released without a batch being sent. Either may be
+         * empty.
+         */
+        void dropped(Batch batch);
+    }
+
+    /**
+     * A notification ID waiting to be sent.
+     */
+    static final class Entry {
+        final String mNotifyId;
+        /** The startId of the command that queued this ID, or -1. */
+        final int mStartId;
+        /** When the ID was first queued, from SystemClock.uptimeMillis(). */
+        final long mQueuedAt;
+        /** How many times the ID has already failed to be sent. */
+        final int mAttempt;
+        /** The ID is not sent before this time, from SystemClock.uptimeMillis(). */
+        final long mNotBefore;
+
+        Entry(String notifyId, int startId, long queuedAt, int attempt, long notBefore) {
+            mNotifyId = notifyId;
+            mStartId = startId;
+            mQueuedAt = queuedAt;
+            mAttempt = attempt;
+            mNotBefore = notBefore;
+        }
+    }
+
+    /**
+     * A set of notification IDs sent together.
+     */
+    static final class Batch {
+        final String[] mNotifyIds;
+        final Entry[] mEntries;
+        /** The startId this batch releases, or -1. */
+        final int mStartId;
+
+        Batch(List<Entry> entries, int startId) {
+            mEntries = entries.toArray(new Entry[entries.size()]);
+            mNotifyIds = new String[mEntries.length];
+            for (int i = 0; i < mEntries.length; i++) {
+                mNotifyIds[i] = mEntries[i].mNotifyId;
+            }
+            mStartId = startId;
+        }
+    }
+
+    private final String mName;
+    private final Sender mSender;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile long mWindowMillis;
+    private volatile int mMaxBatchSize;
+
+    private final LinkedHashMap<String, Entry> mQueued = new LinkedHashMap<String, Entry>();
+    /** For each startId, how many of its IDs are queued and not yet in a batch. */
+    private final TreeMap<Integer, Integer> mUnsent = new TreeMap<Integer, Integer>();
+    private boolean mFlushScheduled;
+    /** When the scheduled flush runs, from SystemClock.uptimeMillis(). */
+    private long mFlushAt;
+
+    private final Log2Histogram mBatchSizes = new Log2Histogram();
+    private final Log2Histogram mLatencyMillis = new Log2Histogram();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param name a name for log messages
+     * @param windowMillis how long to wait for more IDs after the first
+     * @param maxBatchSize the most IDs sent in one batch
+     * @param sender sends each batch
+     */
+    NotificationBatcher(String name, long windowMillis, int maxBatchSize, Sender sender) {
+        mName = name;
+        mSender = sender;
+        setWindow(windowMillis, maxBatchSize);
+    }
+
+    /**
+     * Changes the batching window. A window of 0 sends IDs on the next pass
+     * of the main loop, which still coalesces IDs queued together.
+     */
+    void setWindow(long windowMillis, int maxBatchSize) {
+        if (windowMillis < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        mWindowMillis = windowMillis;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queues notification IDs. IDs that are already queued are not queued
+     * twice; they are released with the later of the two startIds.
+     * @param startId the startId of the command the IDs came from, or -1
+     */
+    synchronized void add(int startId, String[] notifyIds) {
+        long now = SystemClock.uptimeMillis();
+        for (String notifyId : notifyIds) {
+            if (notifyId == null) {
+                continue;
+            }
+            Entry entry = mQueued.get(notifyId);
+            if (entry == null) {
+                queue(new Entry(notifyId, startId, now, 0, now));
+            } else if (startId > entry.mStartId) {
+                countDown(entry.mStartId);
+                queue(new Entry(notifyId, startId, entry.mQueuedAt, entry.mAttempt,
+                        entry.mNotBefore));
+            }
+        }
+        if (startId >= 0 && !mUnsent.containsKey(startId)) {
+            // Nothing new to send; released with the next batch
+            mUnsent.put(startId, 0);
+        }
+        schedule(mQueued.size() >= mMaxBatchSize ? now : now + mWindowMillis);
+    }
+
+    /**
+     * Queues the IDs of a batch that was sent but failed or was rejected, so
+     * they go out again after a backoff. The batch's startId was released
+     * when it was sent. IDs are dropped after {@link #MAX_ATTEMPTS}.
+     */
+    void retry(Batch batch) {
+        requeue(batch, false);
+    }
+
+    private void requeue(Batch batch, boolean keepStartIds) {
+        List<Entry> dropped = new ArrayList<Entry>();
+        int release;
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            for (Entry entry : batch.mEntries) {
+                int startId = keepStartIds ? entry.mStartId : -1;
+                int attempt = entry.mAttempt + 1;
+                if (attempt >= MAX_ATTEMPTS) {
+                    dropped.add(entry);
+                    if (startId >= 0 && !mUnsent.containsKey(startId)) {
+                        mUnsent.put(startId, 0);
+                    }
+                } else if (!mQueued.containsKey(entry.mNotifyId)) {
+                    // A fresh copy of the ID that was queued meanwhile wins
+                    queue(new Entry(entry.mNotifyId, startId, entry.mQueuedAt, attempt,
+                            now + (RETRY_DELAY_MILLIS << (attempt - 1))));
+                }
+            }
+            if (keepStartIds && batch.mStartId >= 0 && !mUnsent.containsKey(batch.mStartId)) {
+                mUnsent.put(batch.mStartId, 0);
+            }
+            if (!dropped.isEmpty()) {
+                Log.w(TAG, mName + ": giving up on " + dropped.size() + " notification(s)");
+            }
+            if (!mQueued.isEmpty()) {
+                scheduleNextReady(now);
+            }
+            release = releasable();
+        }
+        if (!dropped.isEmpty() || release >= 0) {
+            mSender.dropped(new Batch(dropped, release));
+        }
+        if (batch.mEntries.length > dropped.size()) {
+            BillingMetrics.recordRetry();
+        }
+    }
+
+    /**
+     * Sends every queued ID whose backoff has passed, in batches of at most
+     * the maximum batch size. Runs on the main thread.
+     */
+    void flush() {
+        ArrayList<Batch> batches = new ArrayList<Batch>();
+        int release;
+        long now;
+        synchronized (this) {
+            mFlushScheduled = false;
+            now = SystemClock.uptimeMillis();
+            ArrayList<Entry> ready = new ArrayList<Entry>();
+            for (Iterator<Entry> it = mQueued.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.mNotBefore <= now) {
+                    ready.add(entry);
+                    it.remove();
+                }
+            }
+            int maxBatchSize = mMaxBatchSize;
+            for (int i = 0; i < ready.size(); i += maxBatchSize) {
+                List<Entry> entries = ready.subList(i, Math.min(ready.size(), i + maxBatchSize));
+                for (Entry entry : entries) {
+                    countDown(entry.mStartId);
+                }
+                batches.add(new Batch(entries, releasable()));
+            }
+            // A startId left with nothing to send, e.g. only duplicates
+            release = releasable();
+            if (!mQueued.isEmpty()) {
+                scheduleNextReady(now);
+            }
+        }
+        for (Batch batch : batches) {
+            mBatchSizes.record(batch.mNotifyIds.length);
+            for (Entry entry : batch.mEntries) {
+                mLatencyMillis.record(now - entry.mQueuedAt);
+            }
+            if (Consts.DEBUG) {
+                Log.d(TAG, mName + ": sending " + batch.mNotifyIds.length + " notification(s)");
+            }
+            if (!mSender.send(batch)) {
+                requeue(batch, true);
+            }
+        }
+        if (release >= 0) {
+            mSender.dropped(new Batch(new ArrayList<Entry>(), release));
+        }
+    }
+
+    /** Returns the number of IDs waiting to be sent. */
+    synchronized int getQueuedCount() {
+        return mQueued.size();
+    }
+
+    /** Returns the distribution of batch sizes sent. */
+    Log2Histogram getBatchSizes() {
+        return mBatchSizes;
+    }
+
+    /** Returns the distribution of the time IDs waited to be sent, in ms. */
+    Log2Histogram getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    private void queue(Entry entry) {
+        mQueued.put(entry.mNotifyId, entry);
+        if (entry.mStartId >= 0) {
+            Integer count = mUnsent.get(entry.mStartId);
+            mUnsent.put(entry.mStartId, count != null ? count + 1 : 1);
+        }
+    }
+
+    private void countDown(int startId) {
+        if (startId >= 0) {
+            Integer count = mUnsent.get(startId);
+            if (count != null && count > 0) {
+                mUnsent.put(startId, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Removes the startIds that have nothing left to send and no earlier
+     * startId still waiting.
+     * @return the largest of them, or -1
+     */
+    private int releasable() {
+        int release = -1;
+        while (!mUnsent.isEmpty()) {
+            Integer first = mUnsent.firstKey();
+            if (mUnsent.get(first) != 0) {
+                break;
+            }
+            release = first;
+            mUnsent.remove(first);
+        }
+        return release;
+    }
+
+    /** Schedules a flush for when the earliest queued ID becomes ready. */
+    private void scheduleNextReady(long now) {
+        long next = Long.MAX_VALUE;
+        for (Entry entry : mQueued.values()) {
+            next = Math.min(next, entry.mNotBefore);
+        }
+        schedule(Math.max(now, next));
+    }
+
+    /** Makes sure a flush runs no later than the given time. */
+    private void schedule(long at) {
+        if (mFlushScheduled && mFlushAt <= at) {
+            return;
+        }
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, Math.max(0, at - SystemClock.uptimeMillis()));
+        mFlushScheduled = true;
+        mFlushAt = at;
+    }
+}
@@ -0,0 +1,65 @@
+package com.jesusla.google;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Tracks billing requests on their way to and from Android Market. Requests
+ * waiting for the service connection sit in a lock-free queue that any
+ * thread may add to; requests that have been sent are kept by request id
+ * until their response code arrives. Requests may be added from the main
+ * thread, binder threads or worker threads.
+ *
+ * @param <R> the request type
+ */
+class RequestRegistry<R> {
+    private final ConcurrentLinkedQueue<R> mPending = new ConcurrentLinkedQueue<R>();
+    private final LongConcurrentMap<R> mSent = new LongConcurrentMap<R>();
+
+    /** Queues a request to run once the service is connected. */
+    void addPending(R request) {
+        mPending.add(request);
+    }
+
+    /** Returns the oldest pending request without removing it, or null. */
+    R peekPending() {
+        return mPending.peek();
+    }
+
+    /**
+     * Removes the oldest pending request. Only the thread draining the queue
+     * should call this.
+     */
+    R pollPending() {
+        return mPending.poll();
+    }
+
+    /** Removes a specific pending request, e.g. one that has been failed. */
+    boolean removePending(R request) {
+        return mPending.remove(request);
+    }
+
+    /** Returns the number of pending requests. This is O(n). */
+    int pendingCount() {
+        return mPending.size();
+    }
+
+    /** Records a request that has been sent and is waiting for a response code. */
+    void addSent(long requestId, R request) {
+        mSent.put(requestId, request);
+    }
+
+    /**
+     * Claims the sent request with the given id. The request is returned to
+     * exactly one caller, so its response is delivered once even if the
+     * response code arrives more than once.
+     * @return the request, or null if it is unknown or already claimed
+     */
+    R claimSent(long requestId) {
+        return mSent.remove(requestId);
+    }
+
+    /** Returns the number of requests waiting for a response code. */
+    int sentCount() {
+        return mSent.size();
+    }
+}
@@ -2,21 +2,19 @@
 
 package com.jesusla.google;
 
-import java.security.InvalidKeyException;
+import java.io.File;
+import java.io.IOException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,9 +36,17 @@ public class Security {
     private static final String TAG = "Security";
 
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
-    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
     private static final SecureRandom RANDOM = new SecureRandom();
 
+    /** Maximum number of outstanding nonces. */
+    private static final int NONCE_CAPACITY = 128;
+
+    /** How long a nonce waits for its purchase state change before it is forgotten. */
+    private static final long NONCE_TIME_TO_LIVE = 60 * 60 * 1000L;
+
+    /** Number of nonces generated ahead of time. */
+    private static final int NONCE_POOL_SIZE = 16;
+
     /**
      * This keeps track of the nonces that we generated and sent to the
      * server.  We need to keep track of these until we get back the purchase
@@ -48,21 +54,74 @@ public class Security {
      * killed and lose this list of nonces, it is not fatal. Android Market will
      * send us a new "notify" message and we will re-generate a new nonce.
      * This has to be "static" so that the {@link BillingReceiver} can
-     * check if a nonce exists.
+     * check if a nonce exists. Nonces whose response never arrives expire
+     * after {@link #NONCE_TIME_TO_LIVE}.
      */
-    private static HashSet<Long> sKnownNonces = new HashSet<Long>();
+    private static final NonceTable sKnownNonces =
+        new NonceTable(NONCE_CAPACITY, NONCE_TIME_TO_LIVE);
+
+    private static final NoncePool sNoncePool = new NoncePool(RANDOM, NONCE_POOL_SIZE);
+
+    /** Number of records in each half of the nonce journal. */
+    private static final int NONCE_JOURNAL_RECORDS = 256;
+
+    /** Optional on-disk copy of sKnownNonces; null unless opened. */
+    private static volatile NonceJournal sNonceJournal;
 
     private static String sIdentity;
 
+    /** Caches the parsed public key and per-thread Signature instances. */
+    private static final SignatureVerifier sVerifier = new SignatureVerifier();
+
+    private static final AtomicLong sSignatureVerifications = new AtomicLong();
+    private static final AtomicLong sUnknownNonces = new AtomicLong();
+
     /** Generates a nonce (a random number used once). */
     public static long generateNonce() {
-        long nonce = RANDOM.nextLong();
+        long nonce = sNoncePool.next();
         sKnownNonces.add(nonce);
+        NonceJournal journal = sNonceJournal;
+        if (journal != null) {
+            journal.add(nonce, System.currentTimeMillis() + NONCE_TIME_TO_LIVE);
+        }
         return nonce;
     }
 
     public static void removeNonce(long nonce) {
         sKnownNonces.remove(nonce);
+        NonceJournal journal = sNonceJournal;
+        if (journal != null) {
+            journal.remove(nonce);
+        }
+    }
+
+    /**
+     * Persists outstanding nonces in the given file, and restores any that
+     * were still outstanding when the process last died. This lets purchase
+     * state changes that arrive after a restart verify on the first try
+     * instead of waiting for Market to send another notify.
+     * @param file the journal file
+     * @return true if the journal was opened
+     */
+    public static synchronized boolean openNonceJournal(File file) {
+        if (sNonceJournal != null) {
+            return true;
+        }
+        try {
+            NonceJournal journal = new NonceJournal(file, NONCE_JOURNAL_RECORDS);
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Long, Long> entry : journal.recover().entrySet()) {
+                long nonce = entry.getKey();
+                if (NonceTable.isStorable(nonce)) {
+                    sKnownNonces.add(nonce, entry.getValue() - now);
+                }
+            }
+            sNonceJournal = journal;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open nonce journal", e);
+            return false;
+        }
     }
 
     public static boolean isNonceKnown(long nonce) {
@@ -89,6 +148,25 @@ public class Security {
         if (Consts.DEBUG) {
             Log.i(TAG, "signedData: " + signedData);
         }
+        SignedDataParser.Result result;
+        try {
+            result = SignedDataParser.parse(signedData);
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON exception: ", e);
+            return null;
+        }
+
+        // The nonce might be 0 if the user backed out of the buy page.
+        // Checked before the signature: a redelivered payload whose nonce
+        // was already used can never be accepted, so it should not cost a
+        // public key operation.
+        long nonce = result.nonce;
+        if (!Security.isNonceKnown(nonce)) {
+            Log.w(TAG, "Nonce not found: " + nonce);
+            sUnknownNonces.incrementAndGet();
+            return null;
+        }
+
         boolean verified = false;
         if (!TextUtils.isEmpty(signature)) {
             /**
@@ -105,7 +183,8 @@ public class Security {
              * long enough to perform the operation they need to perform.
              */
             String base64EncodedPublicKey = sIdentity;
-            PublicKey key = Security.generatePublicKey(base64EncodedPublicKey);
+            PublicKey key = sVerifier.getPublicKey(base64EncodedPublicKey);
+            sSignatureVerifications.incrementAndGet();
             verified = Security.verify(key, signedData, signature);
             if (!verified) {
                 Log.w(TAG, "signature does not match data.");
@@ -113,55 +192,15 @@ public class Security {
             }
         }
 
-        JSONObject jObject;
-        JSONArray jTransactionsArray = null;
-        int numTransactions = 0;
-        long nonce = 0L;
-        try {
-            jObject = new JSONObject(signedData);
-
-            // The nonce might be null if the user backed out of the buy page.
-            nonce = jObject.optLong("nonce");
-            jTransactionsArray = jObject.optJSONArray("orders");
-            if (jTransactionsArray != null) {
-                numTransactions = jTransactionsArray.length();
-            }
-        } catch (JSONException e) {
-            return null;
-        }
-
-        if (!Security.isNonceKnown(nonce)) {
-            Log.w(TAG, "Nonce not found: " + nonce);
-            return null;
-        }
-
-        ArrayList<VerifiedPurchase> purchases = new ArrayList<VerifiedPurchase>();
-        try {
-            for (int i = 0; i < numTransactions; i++) {
-                JSONObject jElement = jTransactionsArray.getJSONObject(i);
-                int response = jElement.getInt("purchaseState");
-                PurchaseState purchaseState = PurchaseState.valueOf(response);
-                String productId = jElement.getString("productId");
-                // String packageName = jElement.getString("packageName");
-                long purchaseTime = jElement.getLong("purchaseTime");
-                String orderId = jElement.optString("orderId", "");
-                String notifyId = null;
-                if (jElement.has("notificationId")) {
-                    notifyId = jElement.getString("notificationId");
+        ArrayList<VerifiedPurchase> purchases = result.purchases;
+        if (!verified) {
+            // If the purchase state is PURCHASED, then we require a
+            // verified nonce.
+            for (int i = purchases.size() - 1; i >= 0; i--) {
+                if (purchases.get(i).purchaseState == PurchaseState.PURCHASED) {
+                    purchases.remove(i);
                 }
-                String developerPayload = jElement.optString("developerPayload", null);
-
-                // If the purchase state is PURCHASED, then we require a
-                // verified nonce.
-                if (purchaseState == PurchaseState.PURCHASED && !verified) {
-                    continue;
-                }
-                purchases.add(new VerifiedPurchase(purchaseState, notifyId, productId,
-                        orderId, purchaseTime, developerPayload));
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "JSON exception: ", e);
-            return null;
         }
         removeNonce(nonce);
         return purchases;
@@ -176,7 +215,8 @@ public class Security {
      */
     public static PublicKey generatePublicKey(String encodedPublicKey) {
         try {
-            byte[] decodedKey = Base64.decode(encodedPublicKey);
+            byte[] decodedKey = new byte[Base64.decodedLength(encodedPublicKey)];
+            Base64.decode(encodedPublicKey, decodedKey, 0);
             KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
             return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
         } catch (NoSuchAlgorithmException e) {
@@ -203,29 +243,54 @@ public class Security {
         if (Consts.DEBUG) {
             Log.i(TAG, "signature: " + signature);
         }
-        Signature sig;
+        return sVerifier.verify(publicKey, signedData, signature);
+    }
+
+    public static void setIdentity(String identity) {
+        sIdentity = identity;
+        sVerifier.reset();
+    }
+
+    /**
+     * Parses and caches the public key for the current identity, so that
+     * the first purchase verification does not have to.
+     * @return false if the identity is not a valid key
+     */
+    public static boolean preparePublicKey() {
+        if (sIdentity == null) {
+            return false;
+        }
         try {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-            sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
-            if (!sig.verify(Base64.decode(signature))) {
-                Log.e(TAG, "Signature verification failed.");
-                return false;
-            }
+            sVerifier.getPublicKey(sIdentity);
             return true;
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "NoSuchAlgorithmException.");
-        } catch (InvalidKeyException e) {
-            Log.e(TAG, "Invalid key specification.");
-        } catch (SignatureException e) {
-            Log.e(TAG, "Signature exception.");
-        } catch (Base64DecoderException e) {
-            Log.e(TAG, "Base64 decoding failed.");
+        } catch (IllegalArgumentException e) {
+            return false;
         }
-        return false;
     }
 
-    public static void setIdentity(String identity) {
-        sIdentity = identity;
+    /**
+     * Initializes the calling thread's signature verifier with the public
+     * key for the current identity.
+     * @return false if the key or the signature algorithm is unavailable
+     */
+    public static boolean prepareVerifier() {
+        if (sIdentity == null) {
+            return false;
+        }
+        try {
+            return sVerifier.warmUp(sVerifier.getPublicKey(sIdentity));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /** Returns the number of signatures checked against the public key. */
+    public static long getSignatureVerificationCount() {
+        return sSignatureVerifications.get();
+    }
+
+    /** Returns the number of payloads rejected because their nonce was unknown. */
+    public static long getUnknownNonceCount() {
+        return sUnknownNonces.get();
     }
 }
@@ -0,0 +1,208 @@
+package com.jesusla.google;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import android.util.Log;
+
+import com.jesusla.util.Base64;
+import com.jesusla.util.Base64DecoderException;
+
+/**
+ * Reusable signature verification engine. The public key is parsed once per
+ * identity (and again only when {@link Security#setIdentity(String)} changes
+ * it). Each thread keeps its own initialized {@link Signature} instance and a
+ * scratch buffers into which the signed data is UTF-8 encoded and the
+ * signature is Base64 decoded, so that verifying a payload does not
+ * allocate once the buffers have grown to the size of the largest payload
+ * seen.
+ */
+class SignatureVerifier {
+    private static final String TAG = "SignatureVerifier";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    /** The identity the cached key was parsed from, along with the key itself. */
+    private static final class KeyHolder {
+        final String identity;
+        final PublicKey publicKey;
+
+        KeyHolder(String identity, PublicKey publicKey) {
+            this.identity = identity;
+            this.publicKey = publicKey;
+        }
+    }
+
+    /** Per-thread verification state. */
+    private static final class Engine {
+        Signature sig;
+        PublicKey publicKey;
+        byte[] buffer = new byte[1024];
+        byte[] signature = new byte[256];
+    }
+
+    private volatile KeyHolder mKey;
+
+    private final ThreadLocal<Engine> mEngines = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
+
+    /**
+     * Returns the public key for the given identity, parsing it only if the
+     * identity differs from the one last seen.
+     * @throws IllegalArgumentException if the identity is not a valid key
+     */
+    PublicKey getPublicKey(String identity) {
+        KeyHolder key = mKey;
+        if (key == null || !key.identity.equals(identity)) {
+            key = new KeyHolder(identity, Security.generatePublicKey(identity));
+            mKey = key;
+        }
+        return key.publicKey;
+    }
+
+    /** Drops the cached key. The next verification parses the identity again. */
+    void reset() {
+        mKey = null;
+    }
+
+    /**
+     * Verifies that the signature matches the signed data using the key
+     * parsed from the given identity.
+     * @param identity Base64-encoded public key
+     * @param signedData signed data from server
+     * @param signature server signature
+     * @return true if the data and signature match
+     */
+    boolean verify(String identity, String signedData, String signature) {
+        return verify(getPublicKey(identity), signedData, signature);
+    }
+
+    /**
+     * Verifies that the signature matches the signed data.
+     * @param publicKey public key associated with the developer account
+     * @param signedData signed data from server
+     * @param signature server signature
+     * @return true if the data and signature match
+     */
+    boolean verify(PublicKey publicKey, String signedData, String signature) {
+        Engine engine = mEngines.get();
+        try {
+            Signature sig = prepare(engine, publicKey);
+            int length = encode(engine, signedData);
+            sig.update(engine.buffer, 0, length);
+            int sigLength = Base64.decodedLength(signature);
+            if (engine.signature.length < sigLength) {
+                engine.signature = new byte[sigLength];
+            }
+            sigLength = Base64.decode(signature, engine.signature, 0);
+            // verify() resets the Signature so it can be reused with the same key
+            if (!sig.verify(engine.signature, 0, sigLength)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+            engine.publicKey = null;
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+            // The engine may be left mid-operation; start over next time
+            engine.sig = null;
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+            engine.sig = null;
+        }
+        return false;
+    }
+
+    /**
+     * Initializes the calling thread's Signature with the key, so that the
+     * first verification on this thread does not pay for provider lookup
+     * and key setup.
+     * @return true if the Signature is ready
+     */
+    boolean warmUp(PublicKey publicKey) {
+        try {
+            prepare(mEngines.get(), publicKey);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+        }
+        return false;
+    }
+
+    /** Returns the engine's Signature, initialized for verifying with the key. */
+    private static Signature prepare(Engine engine, PublicKey publicKey)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature sig = engine.sig;
+        if (sig == null) {
+            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            engine.sig = sig;
+            engine.publicKey = null;
+        }
+        if (engine.publicKey != publicKey) {
+            engine.publicKey = null;
+            sig.initVerify(publicKey);
+            engine.publicKey = publicKey;
+        }
+        return sig;
+    }
+
+    /**
+     * UTF-8 encodes the string into the engine's scratch buffer, growing it
+     * if needed.
+     * @return the number of bytes written
+     */
+    private static int encode(Engine engine, String s) {
+        int maxLength = s.length() * 3;
+        if (engine.buffer.length < maxLength) {
+            engine.buffer = new byte[Math.max(maxLength, engine.buffer.length * 2)];
+        }
+        return encodeUtf8(s, engine.buffer);
+    }
+
+    /**
+     * UTF-8 encodes a string into a buffer, which must hold at least three
+     * bytes per char.
+     * @return the number of bytes written
+     */
+    static int encodeUtf8(String s, byte[] buf) {
+        int length = s.length();
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogate; same replacement String.getBytes uses
+                buf[pos++] = (byte) '?';
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+}
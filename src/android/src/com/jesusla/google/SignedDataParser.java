@@ -0,0 +1,438 @@
+package com.jesusla.google;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.jesusla.google.Consts.PurchaseState;
+
+/**
+ * Streaming parser for the signed data sent with PURCHASE_STATE_CHANGED.
+ * Reads the nonce and the orders array straight from the string and builds
+ * {@link VerifiedPurchase} instances without creating an intermediate
+ * JSONObject/JSONArray tree. Unknown fields are skipped.
+ *
+ * Field handling mirrors what {@link Security#verifyPurchase(String, String)}
+ * did with org.json: a missing or non-numeric nonce reads as 0, a missing or
+ * non-array "orders" yields no purchases, and each order must have a
+ * purchaseState, productId and purchaseTime.
+ *
+ * Only strict JSON is read this way, with the fields it uses holding plain
+ * strings and integers, as Android Market sends them. Anything else, from
+ * lenient syntax and repeated keys to fractional numbers or a missing field,
+ * is handed to {@link #parseWithJsonObject(String)}, so that whether such a
+ * payload is accepted, and what it reads as, is up to org.json itself.
+ */
+final class SignedDataParser {
+    /** The parsed contents of a signed data payload. */
+    static final class Result {
+        long nonce;
+        final ArrayList<VerifiedPurchase> purchases = new ArrayList<VerifiedPurchase>();
+    }
+
+    private final String mJson;
+    private final int mLength;
+    private int mPos;
+    /** The keys of the objects being read, innermost last, to find repeated keys. */
+    private final ArrayList<String> mKeys = new ArrayList<String>();
+
+    private SignedDataParser(String json) {
+        mJson = json;
+        mLength = json.length();
+    }
+
+    /**
+     * Parses the signed data.
+     * @param json the signed JSON string
+     * @return the nonce and every order in the payload
+     * @throws JSONException if the payload is malformed or an order is
+     * missing a required field
+     */
+    static Result parse(String json) throws JSONException {
+        try {
+            return parseStreaming(json);
+        } catch (JSONException e) {
+            // Not a payload the streaming parser can vouch for
+            return parseWithJsonObject(json);
+        }
+    }
+
+    /**
+     * Parses the signed data without building a tree.
+     * @throws JSONException if the payload is anything but strict JSON of
+     * the shape Android Market sends
+     */
+    static Result parseStreaming(String json) throws JSONException {
+        return new SignedDataParser(json).parseRoot();
+    }
+
+    /**
+     * Parses the signed data into a JSONObject tree, as
+     * {@link Security#verifyPurchase(String, String)} used to.
+     * @see #parse(String)
+     */
+    static Result parseWithJsonObject(String json) throws JSONException {
+        JSONObject root = new JSONObject(json);
+        Result result = new Result();
+        result.nonce = root.optLong("nonce");
+        JSONArray orders = root.optJSONArray("orders");
+        if (orders != null) {
+            for (int i = 0; i < orders.length(); i++) {
+                JSONObject order = orders.getJSONObject(i);
+                int state = order.getInt("purchaseState");
+                String productId = order.getString("productId");
+                long purchaseTime = order.getLong("purchaseTime");
+                String orderId = order.optString("orderId", "");
+                String notifyId = null;
+                if (order.has("notificationId")) {
+                    notifyId = order.getString("notificationId");
+                }
+                String developerPayload = order.optString("developerPayload", null);
+                VerifiedPurchase purchase = new VerifiedPurchase(PurchaseState.valueOf(state),
+                        notifyId, productId, orderId, purchaseTime, developerPayload);
+                purchase.orderIndex = i;
+                result.purchases.add(purchase);
+            }
+        }
+        return result;
+    }
+
+    private Result parseRoot() throws JSONException {
+        Result result = new Result();
+        expect('{');
+        int keys = mKeys.size();
+        if (!consume('}')) {
+            do {
+                String key = readKey(keys);
+                if ("nonce".equals(key)) {
+                    result.nonce = readOptLong();
+                } else if ("orders".equals(key) && peek() == '[') {
+                    readOrders(result.purchases);
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        // As with JSONObject(String), anything after the object is ignored
+        return result;
+    }
+
+    private void readOrders(ArrayList<VerifiedPurchase> purchases) throws JSONException {
+        expect('[');
+        if (consume(']')) {
+            return;
+        }
+        int index = 0;
+        do {
+            VerifiedPurchase purchase = readOrder();
+            purchase.orderIndex = index++;
+            purchases.add(purchase);
+        } while (consume(','));
+        expect(']');
+    }
+
+    private VerifiedPurchase readOrder() throws JSONException {
+        if (peek() != '{') {
+            throw new JSONException("Order is not a JSONObject");
+        }
+        expect('{');
+        int keys = mKeys.size();
+        boolean hasState = false, hasProductId = false, hasTime = false;
+        int state = 0;
+        long purchaseTime = 0;
+        String productId = null;
+        String orderId = "";
+        String notifyId = null;
+        String developerPayload = null;
+        if (!consume('}')) {
+            do {
+                String key = readKey(keys);
+                if ("purchaseState".equals(key)) {
+                    state = (int) readLong(key);
+                    hasState = true;
+                } else if ("productId".equals(key)) {
+                    productId = readStringValue();
+                    hasProductId = true;
+                } else if ("purchaseTime".equals(key)) {
+                    purchaseTime = readLong(key);
+                    hasTime = true;
+                } else if ("orderId".equals(key)) {
+                    orderId = readStringValue();
+                } else if ("notificationId".equals(key)) {
+                    notifyId = readStringValue();
+                } else if ("developerPayload".equals(key)) {
+                    developerPayload = readStringValue();
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        endObject(keys);
+        if (!hasState) {
+            throw new JSONException("No value for purchaseState");
+        }
+        if (!hasProductId) {
+            throw new JSONException("No value for productId");
+        }
+        if (!hasTime) {
+            throw new JSONException("No value for purchaseTime");
+        }
+        return new VerifiedPurchase(PurchaseState.valueOf(state), notifyId, productId,
+                orderId, purchaseTime, developerPayload);
+    }
+
+    /**
+     * Reads a key and its colon.
+     * @param keys where the keys of the enclosing object start in mKeys
+     */
+    private String readKey(int keys) throws JSONException {
+        String key = readString();
+        for (int i = keys; i < mKeys.size(); i++) {
+            if (key.equals(mKeys.get(i))) {
+                throw syntaxError("Duplicate key \"" + key + "\"");
+            }
+        }
+        mKeys.add(key);
+        expect(':');
+        return key;
+    }
+
+    /** Forgets the keys of the object just read. */
+    private void endObject(int keys) {
+        for (int i = mKeys.size() - 1; i >= keys; i--) {
+            mKeys.remove(i);
+        }
+    }
+
+    /** Reads a value as a long, as JSONObject.optLong does: 0 if it is not numeric. */
+    private long readOptLong() throws JSONException {
+        char c = peek();
+        if (c == '"' || c == '-' || (c >= '0' && c <= '9')) {
+            return readLong("nonce");
+        }
+        skipValue();
+        return 0L;
+    }
+
+    /**
+     * Reads a required numeric value, as JSONObject.getLong does. Only an
+     * integer that fits in a long, or a string holding one, is read.
+     */
+    private long readLong(String key) throws JSONException {
+        String number = peek() == '"' ? readString() : readNumber();
+        int start = number.startsWith("-") ? 1 : 0;
+        if (number.length() == start || number.length() - start > 19) {
+            throw new JSONException("Value for " + key + " is not an integer");
+        }
+        for (int i = start; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9' || (c == '0' && i == start && number.length() > start + 1)) {
+                throw new JSONException("Value for " + key + " is not an integer");
+            }
+        }
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Value for " + key + " is out of range");
+        }
+    }
+
+    /** Reads a value that must be a string, as JSONObject.getString does. */
+    private String readStringValue() throws JSONException {
+        if (peek() != '"') {
+            throw syntaxError("Expected a string");
+        }
+        return readString();
+    }
+
+    /** Reads a number as RFC 4627 defines it, and returns its text. */
+    private String readNumber() throws JSONException {
+        skipWhitespace();
+        int start = mPos;
+        consumeChar('-');
+        if (!consumeChar('0') && skipDigits() == 0) {
+            throw syntaxError("Expected number");
+        }
+        if (consumeChar('.') && skipDigits() == 0) {
+            throw syntaxError("Expected digits after '.'");
+        }
+        if (consumeChar('e') || consumeChar('E')) {
+            if (!consumeChar('+')) {
+                consumeChar('-');
+            }
+            if (skipDigits() == 0) {
+                throw syntaxError("Expected exponent digits");
+            }
+        }
+        return mJson.substring(start, mPos);
+    }
+
+    /** Consumes the character if it comes next, without skipping whitespace. */
+    private boolean consumeChar(char c) {
+        if (mPos < mLength && mJson.charAt(mPos) == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the number of digits skipped */
+    private int skipDigits() {
+        int start = mPos;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            mPos++;
+        }
+        return mPos - start;
+    }
+
+    private String readString() throws JSONException {
+        expect('"');
+        int start = mPos;
+        // Fast path: no escapes, return a substring of the input
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '"') {
+                return mJson.substring(start, mPos++);
+            }
+            if (c == '\\' || c < ' ') {
+                break;
+            }
+            mPos++;
+        }
+        StringBuilder sb = new StringBuilder(mPos - start + 16);
+        sb.append(mJson, start, mPos);
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c < ' ') {
+                throw syntaxError("Unescaped control character");
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (mPos >= mLength) {
+                break;
+            }
+            c = mJson.charAt(mPos++);
+            switch (c) {
+                case 'u':
+                    if (mPos + 4 > mLength) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    int unit = 0;
+                    for (int end = mPos + 4; mPos < end; mPos++) {
+                        int digit = hexDigit(mJson.charAt(mPos));
+                        if (digit < 0) {
+                            throw syntaxError("Invalid escape sequence");
+                        }
+                        unit = (unit << 4) | digit;
+                    }
+                    sb.append((char) unit);
+                    break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 'f': sb.append('\f'); break;
+                case '"': case '\\': case '/': sb.append(c); break;
+                default: throw syntaxError("Invalid escape sequence");
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    /** @return the value of an ASCII hex digit, or -1 */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private void skipValue() throws JSONException {
+        char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{') {
+            expect('{');
+            int keys = mKeys.size();
+            if (!consume('}')) {
+                do {
+                    readKey(keys);
+                    skipValue();
+                } while (consume(','));
+                expect('}');
+            }
+            endObject(keys);
+        } else if (c == '[') {
+            expect('[');
+            if (!consume(']')) {
+                do {
+                    skipValue();
+                } while (consume(','));
+                expect(']');
+            }
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            readNumber();
+        } else if (mJson.startsWith("true", mPos)) {
+            mPos += 4;
+        } else if (mJson.startsWith("false", mPos)) {
+            mPos += 5;
+        } else if (mJson.startsWith("null", mPos)) {
+            mPos += 4;
+        } else {
+            throw syntaxError("Unexpected value");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+    /** Returns the next non-whitespace character without consuming it, or 0 at the end. */
+    private char peek() {
+        skipWhitespace();
+        return mPos < mLength ? mJson.charAt(mPos) : 0;
+    }
+
+    private boolean consume(char c) {
+        if (peek() == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (!consume(c)) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos);
+    }
+}
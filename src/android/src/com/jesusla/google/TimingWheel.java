@@ -0,0 +1,204 @@
+package com.jesusla.google;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * A hashed timing wheel for deadlines keyed by a long, such as a request id.
+ * Deadlines are rounded up to whole ticks and hashed into one of a fixed
+ * number of slots; each tick only looks at the entries in one slot, so the
+ * cost of a tick does not depend on how many deadlines are outstanding. The
+ * wheel ticks on the main thread, and only while it holds deadlines.
+ *
+ * Each key has at most one deadline. A deadline that is no longer needed
+ * should be cancelled, so that the wheel stops ticking as soon as nothing
+ * is outstanding.
+ */
+class TimingWheel {
+    /**
+     * Called on the main thread for each key whose deadline has passed.
+     */
+    interface Listener {
+        void expired(long key);
+    }
+
+    private static final class Entry {
+        final long mKey;
+        final long mDeadlineTick;
+        Entry mNext;
+
+        Entry(long key, long deadlineTick, Entry next) {
+            mKey = key;
+            mDeadlineTick = deadlineTick;
+            mNext = next;
+        }
+    }
+
+    private final long mTickMillis;
+    private final Entry[] mSlots;
+    private final int mMask;
+    private final Listener mListener;
+    /** The entry of each key, for cancelling. */
+    private final LongConcurrentMap<Entry> mEntries = new LongConcurrentMap<Entry>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private long mTick;
+    private long mLastTickTime;
+    private int mSize;
+    private boolean mRunning;
+
+    private final Runnable mTicker = new Runnable() {
+        @Override
+        public void run() {
+            advance();
+        }
+    };
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param slots the number of slots, a power of two
+     * @param listener told about expired keys
+     */
+    TimingWheel(long tickMillis, int slots, Listener listener) {
+        if (tickMillis <= 0 || slots <= 0 || (slots & (slots - 1)) != 0) {
+            throw new IllegalArgumentException();
+        }
+        mTickMillis = tickMillis;
+        mSlots = new Entry[slots];
+        mMask = slots - 1;
+        mListener = listener;
+    }
+
+    /**
+     * Schedules a deadline for the key, <var>delayMillis</var> from now,
+     * replacing any deadline the key already has.
+     */
+    void schedule(long key, long delayMillis) {
+        boolean start;
+        synchronized (this) {
+            unlink(mEntries.remove(key));
+            start = !mRunning;
+            if (start) {
+                mRunning = true;
+                mLastTickTime = SystemClock.uptimeMillis();
+            }
+            long ticks = Math.max(1, (delayMillis + mTickMillis - 1) / mTickMillis);
+            long deadlineTick = mTick + ticks;
+            int slot = (int) (deadlineTick & mMask);
+            mSlots[slot] = new Entry(key, deadlineTick, mSlots[slot]);
+            mEntries.put(key, mSlots[slot]);
+            mSize++;
+        }
+        if (start) {
+            mHandler.postDelayed(mTicker, mTickMillis);
+        }
+    }
+
+    /**
+     * Cancels the deadline of the key, if it has one. The wheel stops
+     * ticking once no deadlines are left.
+     * @return true if a deadline was cancelled
+     */
+    boolean cancel(long key) {
+        boolean stop;
+        synchronized (this) {
+            Entry entry = mEntries.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            unlink(entry);
+            stop = mSize == 0 && mRunning;
+            if (stop) {
+                mRunning = false;
+            }
+        }
+        if (stop) {
+            mHandler.removeCallbacks(mTicker);
+        }
+        return true;
+    }
+
+    /** Removes an entry from its slot. */
+    private void unlink(Entry target) {
+        if (target == null) {
+            return;
+        }
+        int slot = (int) (target.mDeadlineTick & mMask);
+        Entry previous = null;
+        for (Entry entry = mSlots[slot]; entry != null; entry = entry.mNext) {
+            if (entry == target) {
+                if (previous == null) {
+                    mSlots[slot] = entry.mNext;
+                } else {
+                    previous.mNext = entry.mNext;
+                }
+                mSize--;
+                return;
+            }
+            previous = entry;
+        }
+    }
+
+    /** Returns the number of deadlines that have not yet passed. */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Advances the wheel by however many ticks have elapsed, expiring the
+     * deadlines in each slot passed over.
+     */
+    private void advance() {
+        long[] expired = null;
+        int expiredCount = 0;
+        boolean more;
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            long ticks = Math.max(1, (now - mLastTickTime) / mTickMillis);
+            mLastTickTime += ticks * mTickMillis;
+            // Passing more than a full turn visits every slot once
+            long visits = Math.min(ticks, mSlots.length);
+            mTick += ticks - visits;
+            for (long i = 0; i < visits; i++) {
+                mTick++;
+                int slot = (int) (mTick & mMask);
+                Entry previous = null;
+                Entry entry = mSlots[slot];
+                while (entry != null) {
+                    Entry next = entry.mNext;
+                    if (entry.mDeadlineTick <= mTick) {
+                        if (previous == null) {
+                            mSlots[slot] = next;
+                        } else {
+                            previous.mNext = next;
+                        }
+                        mSize--;
+                        if (mEntries.get(entry.mKey) == entry) {
+                            mEntries.remove(entry.mKey);
+                        }
+                        if (expired == null) {
+                            expired = new long[4];
+                        } else if (expiredCount == expired.length) {
+                            long[] grown = new long[expiredCount * 2];
+                            System.arraycopy(expired, 0, grown, 0, expiredCount);
+                            expired = grown;
+                        }
+                        expired[expiredCount++] = entry.mKey;
+                    } else {
+                        previous = entry;
+                    }
+                    entry = next;
+                }
+            }
+            more = mSize > 0;
+            mRunning = more;
+        }
+        if (more) {
+            mHandler.postDelayed(mTicker, mTickMillis);
+        }
+        for (int i = 0; i < expiredCount; i++) {
+            mListener.expired(expired[i]);
+        }
+    }
+}
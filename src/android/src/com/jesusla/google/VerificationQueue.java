@@ -0,0 +1,182 @@
+package com.jesusla.google;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Verifies and parses PURCHASE_STATE_CHANGED payloads off the main thread.
+ * Payloads are processed by a single worker thread, so results are
+ * delivered back to the main thread in the order they were submitted.
+ * Submitting never blocks the caller: the queue is bounded, and a payload
+ * submitted while it is full is rejected at once. The caller leaves such a
+ * payload unhandled, so that Android Market delivers it again, rather than
+ * stalling the main thread or growing the queue without limit.
+ */
+class VerificationQueue {
+    private static final String TAG = "VerificationQueue";
+
+    /**
+     * Receives the result of a verification on the main thread.
+     */
+    interface Callback {
+        /**
+         * @param startId the startId the payload was submitted with
+         * @param signedData the signed JSON string
+         * @param signature the signature for the signed data
+         * @param purchases the verified purchases, or null if verification failed
+         */
+        void onVerified(int startId, String signedData, String signature,
+                ArrayList<VerifiedPurchase> purchases);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param capacity the number of payloads that may wait for the worker;
+     * further payloads are rejected until it catches up
+     */
+    VerificationQueue(int capacity) {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queues a payload for verification. The callback is invoked on the main
+     * thread once the payload has been verified, or has failed to.
+     * @return false if the queue is full and the payload was rejected; the
+     * callback is then never invoked
+     */
+    boolean submit(final int startId, final String signedData, final String signature,
+            final Callback callback) {
+        final long submitted = System.nanoTime();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<VerifiedPurchase> result;
+                try {
+                    result = Security.verifyPurchase(signedData, signature);
+                } catch (Throwable e) {
+                    // Still delivered, so that the startId is released
+                    Log.e(TAG, "verification failed", e);
+                    result = null;
+                }
+                final ArrayList<VerifiedPurchase> purchases = result;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callback.onVerified(startId, signedData, signature, purchases);
+                        } finally {
+                            recordCompletion(submitted);
+                        }
+                    }
+                });
+            }
+        };
+        int depth = mQueueDepth.incrementAndGet();
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mQueueDepth.decrementAndGet();
+            if (mRejected.getAndIncrement() == 0) {
+                Log.w(TAG, "verification queue is full, rejecting payloads");
+            }
+            return false;
+        }
+        updateMax(mMaxQueueDepth, depth);
+        return true;
+    }
+
+    /**
+     * Runs a task on the worker thread, e.g. to prepare its verifier before
+     * the first payload arrives.
+     * @return true if the task was queued
+     */
+    boolean execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "unable to queue task", e);
+            return false;
+        }
+    }
+
+    private void recordCompletion(long submitted) {
+        long latency = System.nanoTime() - submitted;
+        mQueueDepth.decrementAndGet();
+        mCompleted.incrementAndGet();
+        mTotalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = mMaxLatencyNanos.get())) {
+            if (mMaxLatencyNanos.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /** Returns the number of payloads submitted but not yet delivered. */
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /** Returns the highest queue depth observed. */
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /** Returns the number of payloads delivered to their callback. */
+    long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /** Returns the number of payloads rejected because the queue was full. */
+    long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /** Returns the average submit-to-delivery latency in nanoseconds. */
+    long getAverageLatencyNanos() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : mTotalLatencyNanos.get() / completed;
+    }
+
+    /** Returns the highest submit-to-delivery latency observed in nanoseconds. */
+    long getMaxLatencyNanos() {
+        return mMaxLatencyNanos.get();
+    }
+}
@@ -12,6 +12,8 @@ public class VerifiedPurchase {
     public String orderId;
     public long purchaseTime;
     public String developerPayload;
+    /** The position of this order in the "orders" array of the signed data. */
+    public int orderIndex;
 
     public VerifiedPurchase(PurchaseState purchaseState, String notificationId,
             String productId, String orderId, long purchaseTime, String developerPayload) {
@@ -0,0 +1,8 @@
+package com.jesusla.google;
+
+public interface WarmUpCallback {
+
+  void onPublicKeyReady(boolean success);
+
+  void onVerifierReady(boolean success);
+}
@@ -1,6 +1,7 @@
 package com.jesusla.storekit;
 
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -24,11 +25,19 @@ import com.amazon.inapp.purchasing.PurchasingManager;
 import com.amazon.inapp.purchasing.Receipt;
 import com.jesusla.ane.Closure;
 import com.jesusla.ane.Extension;
+import com.jesusla.google.BillingMetrics;
+import com.jesusla.google.Log2Histogram;
 
 public class AmazonProvider implements Provider {
   public static final String TYPE = "AMAZON";
   private final StoreKit storeKit;
-  private final Map<String, Closure> callbacks = new HashMap<String, Closure>();
+  private final Map<String, PendingCallback> callbacks = new HashMap<String, PendingCallback>();
+  private final Log2Histogram itemDataLatency = new Log2Histogram();
+  private final Log2Histogram purchaseLatency = new Log2Histogram();
+  private final Log2Histogram purchaseUpdatesLatency = new Log2Histogram();
+  private final Log2Histogram userIdLatency = new Log2Histogram();
+  private long requests;
+  private long unknownResponses;
   private Map<String, Item> items;
   private String userId;
 
@@ -46,24 +55,58 @@ public class AmazonProvider implements Provider {
   public void init(String[] productIdentifiers, Closure closure) {
     Set<String> skus = new HashSet<String>(Arrays.asList(productIdentifiers));
     String id = PurchasingManager.initiateItemDataRequest(skus);
-    registerCallback(id, closure);
+    registerCallback(id, closure, itemDataLatency);
   }
 
   @Override
   public void requestPayment(String productIdentifier, Closure closure) {
     String id = PurchasingManager.initiatePurchaseRequest(productIdentifier);
-    registerCallback(id, closure);
+    registerCallback(id, closure, purchaseLatency);
   }
 
   @Override
-  public void finishTransaction(Map<String, Object> transaction) {
+  public void finishTransaction(Transaction transaction) {
     // Not with Amazon... (?)
   }
 
   @Override
   public void restoreCompletedTransactions(Closure closure) {
     String id = PurchasingManager.initiatePurchaseUpdatesRequest(Offset.BEGINNING);
-    registerCallback(id, closure);
+    registerCallback(id, closure, purchaseUpdatesLatency);
+  }
+
+  @Override
+  public void prepareStore() {
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> latency = new HashMap<String, Object>();
+    latency.put("itemData", BillingMetrics.summarize(itemDataLatency));
+    latency.put("purchase", BillingMetrics.summarize(purchaseLatency));
+    latency.put("purchaseUpdates", BillingMetrics.summarize(purchaseUpdatesLatency));
+    latency.put("userId", BillingMetrics.summarize(userIdLatency));
+    Map<String, Object> metrics = new HashMap<String, Object>();
+    metrics.put("vendor", TYPE);
+    metrics.put("latencyMicros", latency);
+    synchronized (callbacks) {
+      metrics.put("requests", requests);
+      metrics.put("unknownResponses", unknownResponses);
+      metrics.put("pendingRequests", callbacks.size());
+    }
+    return metrics;
+  }
+
+  /** A closure waiting for its response, and when its request was made. */
+  private static class PendingCallback {
+    final Closure closure;
+    final Log2Histogram latency;
+    final long startNanos = System.nanoTime();
+
+    PendingCallback(Closure closure, Log2Histogram latency) {
+      this.closure = closure;
+      this.latency = latency;
+    }
   }
 
   private class AmazonObserver extends BasePurchasingObserver {
@@ -98,7 +141,10 @@ public class AmazonProvider implements Provider {
       Extension.debug("Amazon: onPurchaseResponse(%s)", purchaseResponse);
       PurchaseRequestStatus status = purchaseResponse.getPurchaseRequestStatus();
       boolean success = status == PurchaseRequestStatus.SUCCESSFUL;
-      String transactionState = success ? "VERIFY" : "FAILED";
+      String transactionState = success ? Transaction.STATE_VERIFY : Transaction.STATE_FAILED;
+      // The outcome is reported as a transaction update; the callback is
+      // only released to record the request latency
+      releaseCallback(purchaseResponse.getRequestId());
       notifyUpdatedTransaction(transactionState, purchaseResponse.getReceipt(), purchaseResponse.getUserId());
     }
 
@@ -112,12 +158,14 @@ public class AmazonProvider implements Provider {
       else {
         String userId = purchaseUpdatesResponse.getUserId();
         for (Receipt receipt : purchaseUpdatesResponse.getReceipts())
-          notifyUpdatedTransaction("PURCHASED", receipt, userId);
+          notifyUpdatedTransaction(Transaction.STATE_PURCHASED, receipt, userId);
         for (String sku : purchaseUpdatesResponse.getRevokedSkus())
           notifyRevokedSKU(sku, userId);
+        // Send the page as one batch, ahead of the restore callback
+        storeKit.flushTransactionUpdates();
         if (purchaseUpdatesResponse.isMore()) {
           String id = PurchasingManager.initiatePurchaseUpdatesRequest(purchaseUpdatesResponse.getOffset());
-          registerCallback(id, callback);
+          registerCallback(id, callback, purchaseUpdatesLatency);
         }
         else
           callback.asyncInvoke(true);
@@ -126,39 +174,32 @@ public class AmazonProvider implements Provider {
   };
 
   public void notifyUpdatedTransaction(String transactionState, Receipt receipt, String userId) {
-    Map<String, Object> transaction = createTransaction(transactionState, userId);
+    Transaction transaction;
     if (receipt != null) {
       ItemType itemType = receipt.getItemType();
-      transaction.put("productIdentifier", receipt.getSku());
+      Date startDate = null, endDate = null;
       if (itemType == ItemType.SUBSCRIPTION) {
-        transaction.put("_subscriptionStartDate", receipt.getSubscriptionPeriod().getStartDate());
-        transaction.put("_subscriptionEndDate", receipt.getSubscriptionPeriod().getEndDate());
+        startDate = receipt.getSubscriptionPeriod().getStartDate();
+        endDate = receipt.getSubscriptionPeriod().getEndDate();
       }
-      transaction.put("_productType", toProductType(itemType));
-      transaction.put("_purchaseToken", receipt.getPurchaseToken());
+      transaction = Transaction.amazon(transactionState, receipt.getSku(), userId,
+          toProductType(itemType), receipt.getPurchaseToken(), startDate, endDate);
     }
-    storeKit.asyncFlashCall(null, null, "onTransactionUpdate", transaction);
+    else
+      transaction = Transaction.amazon(transactionState, null, userId, null, null, null, null);
+    storeKit.notifyTransactionUpdate(transaction);
   }
 
   private void notifyRevokedSKU(String sku, String userId) {
-    String transactionState = "REVOKED";
-    Map<String, Object> transaction = createTransaction(transactionState, userId);
-    transaction.put("productIdentifier", sku);
     Item item = items != null ? items.get(sku) : null;
+    String productType = null;
     if (item != null)
-      transaction.put("_productType", toProductType(item.getItemType()));
+      productType = toProductType(item.getItemType());
     else
       Extension.warn("Revoked SKU [%s] not found in product list. Omitting productType.", sku);
-    storeKit.asyncFlashCall(null, null, "onTransactionUpdate", transaction);
-  }
-
-  private Map<String, Object> createTransaction(String transactionState, String userId) {
-    Map<String, Object> transaction = new HashMap<String, Object>();
-    transaction.put("vendor", TYPE);
-    transaction.put("transactionState", transactionState);
-    if (userId != null)
-      transaction.put("_userId", userId);
-    return transaction;
+    Transaction transaction = Transaction.amazon(Transaction.STATE_REVOKED, sku, userId,
+        productType, null, null, null);
+    storeKit.notifyTransactionUpdate(transaction);
   }
 
   private String toProductType(ItemType itemType) {
@@ -169,17 +210,29 @@ public class AmazonProvider implements Provider {
 
   private void requestUserId(Closure closure) {
     String id = PurchasingManager.initiateGetUserIdRequest();
-    registerCallback(id, closure);
+    registerCallback(id, closure, userIdLatency);
   }
 
-  private void registerCallback(String id, Closure closure) {
+  private void registerCallback(String id, Closure closure, Log2Histogram latency) {
     Extension.debug("Amazon: registerCallback(%s, %s)", id, closure);
-    callbacks.put(id, closure);
+    synchronized (callbacks) {
+      callbacks.put(id, new PendingCallback(closure, latency));
+      requests++;
+    }
   }
 
   private Closure releaseCallback(String id) {
     Extension.debug("Amazon: releaseCallback(%s)", id);
-    return callbacks.remove(id);
+    PendingCallback pending;
+    synchronized (callbacks) {
+      pending = callbacks.remove(id);
+      if (pending == null) {
+        unknownResponses++;
+        return null;
+      }
+    }
+    pending.latency.record((System.nanoTime() - pending.startNanos) / 1000L);
+    return pending.closure;
   }
 
   private void callback(String id, Object... args) {
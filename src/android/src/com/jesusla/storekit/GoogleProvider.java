@@ -1,14 +1,15 @@
 package com.jesusla.storekit;
 
-import java.util.Date;
+import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.jesusla.ane.Closure;
 import com.jesusla.ane.Extension;
 import com.jesusla.google.BillingListener;
+import com.jesusla.google.BillingMetrics;
 import com.jesusla.google.BillingService;
-import com.jesusla.google.BillingSupportedCallback;
 import com.jesusla.google.Consts;
 import com.jesusla.google.Consts.PurchaseState;
 import com.jesusla.google.Consts.ResponseCode;
@@ -19,18 +20,38 @@ import com.jesusla.google.VerifiedPurchase;
 
 public class GoogleProvider implements Provider {
   public static final String VENDOR = "GOOGLE";
+  private static final String NONCE_JOURNAL_FILE = "storekit-nonces";
+  private static final String CONFIRMATION_OUTBOX_FILE = "storekit-confirmations";
   private final StoreKit storeKit;
   private BillingService billing;
+  private final StartupPipeline startup;
   private final Map<String, String> productIdentifierMap = new HashMap<String, String>();
+  // The signed payload sent to ActionScript for the purchases being verified
+  private int payloadId;
+  private int lastPayloadId;
+  private long signedPayloads;
+  private long signedPayloadChars;
 
   public GoogleProvider(StoreKit storeKit) {
     this.storeKit = storeKit;
     String identity = storeKit.getRequiredProperty("SKIdentity");
     Security.setIdentity(identity);
+    if (Consts.PERSIST_NONCES) {
+      File journal = new File(storeKit.getActivity().getFilesDir(), NONCE_JOURNAL_FILE);
+      if (!Security.openNonceJournal(journal))
+        Extension.warn("Unable to open nonce journal %s", journal);
+    }
+    if (Consts.PERSIST_CONFIRMATIONS) {
+      File outbox = new File(storeKit.getActivity().getFilesDir(), CONFIRMATION_OUTBOX_FILE);
+      if (!BillingService.openConfirmationOutbox(outbox))
+        Extension.warn("Unable to open confirmation outbox %s", outbox);
+    }
 
     billing = new BillingService();
     billing.setActivity(storeKit.getActivity());
     billing.setListener(billingListener);
+    startup = new StartupPipeline(billing);
+    startup.start();
   }
 
   @Override
@@ -44,18 +65,7 @@ public class GoogleProvider implements Provider {
   @Override
   public void init(String[] productIdentifiers, final Closure closure) {
     initializeProductIdentifiers(productIdentifiers);
-    boolean success = billing.checkBillingSupported(null, new BillingSupportedCallback() {
-      @Override
-      public void onBillingSupported(boolean billingSupported, String productType) {
-        if (closure != null)
-          closure.asyncInvoke(billingSupported);
-      }
-    });
-    if (!success) {
-      Extension.warn("Unable to invoke Billing.checkBillingSupported. Returning false");
-      if (closure != null)
-        closure.invoke(null, false);
-    }
+    startup.whenBillingSupported(closure);
   }
 
   private void initializeProductIdentifiers(String[] productIdentifiers) {
@@ -94,10 +104,31 @@ public class GoogleProvider implements Provider {
   }
 
   @Override
-  public void finishTransaction(Map<String, Object> transaction) {
-    int updateId = (Integer)transaction.get("_updateId");
-    String notificationId = (String)transaction.get("_notificationId");
-    billing.confirmNotifications(updateId, new String[] { notificationId });
+  public void finishTransaction(Transaction transaction) {
+    billing.confirmNotifications(transaction.getUpdateId(), new String[] { transaction.getNotificationId() });
+  }
+
+  @Override
+  public void prepareStore() {
+    if (billing != null)
+      billing.prebind();
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = BillingMetrics.snapshot();
+    metrics.put("vendor", VENDOR);
+    if (billing != null) {
+      metrics.put("confirmationBatchSizes", BillingMetrics.summarize(billing.getConfirmationBatchSizes()));
+      metrics.put("confirmationLatencyMillis", BillingMetrics.summarize(billing.getConfirmationLatencyMillis()));
+      metrics.put("purchaseInformationBatchSizes", BillingMetrics.summarize(billing.getPurchaseInformationBatchSizes()));
+    }
+    metrics.put("startupMillis", new HashMap<String, Object>(startup.getStageMillis()));
+    synchronized (this) {
+      metrics.put("signedPayloads", signedPayloads);
+      metrics.put("signedPayloadChars", signedPayloadChars);
+    }
+    return metrics;
   }
 
   @Override
@@ -118,45 +149,55 @@ public class GoogleProvider implements Provider {
 
   private final BillingListener billingListener = new BillingListener() {
     @Override
-    public void verifyTransaction(int updateId, String signedData, String signature, VerifiedPurchase purchase) {
-      Map<String, Object> transaction = buildTransaction(updateId, purchase);
-      if (purchase.purchaseState == PurchaseState.PURCHASED) {
-        transaction.put("_signedData", signedData);
-        transaction.put("_signature", signature);
-        notifyTransactionUpdate(transaction, "VERIFY");
+    public void verifyPayload(int updateId, String signedData, String signature, List<VerifiedPurchase> purchases) {
+      // The signed data covers every order in the payload, so it is sent
+      // across once and each purchased transaction refers to it by id
+      int count = 0;
+      for (VerifiedPurchase purchase : purchases) {
+        if (purchase.purchaseState == PurchaseState.PURCHASED)
+          count++;
       }
+      if (count == 0) {
+        payloadId = 0;
+        return;
+      }
+      payloadId = ++lastPayloadId;
+      synchronized (GoogleProvider.this) {
+        signedPayloads++;
+        signedPayloadChars += signedData.length() + (signature != null ? signature.length() : 0);
+      }
+      storeKit.asyncFlashCall(null, null, "onSignedPayload", payloadId, signedData, signature, count);
+    }
+
+    @Override
+    public void verifyTransaction(int updateId, String signedData, String signature, VerifiedPurchase purchase) {
+      if (purchase.purchaseState == PurchaseState.PURCHASED)
+        notifyTransactionUpdate(buildTransaction(Transaction.STATE_VERIFY, updateId, purchase, payloadId));
       else {
         String type = convertStateToType(purchase.purchaseState);
-        notifyTransactionUpdate(transaction, type);
+        notifyTransactionUpdate(buildTransaction(type, updateId, purchase, -1));
       }
     }
   };
 
-  private Map<String, Object> buildTransaction(int updateId, VerifiedPurchase purchase) {
+  private Transaction buildTransaction(String state, int updateId, VerifiedPurchase purchase, int payloadId) {
     String originalProductId = productIdentifierMap.get(purchase.productId);
-    Map<String, Object> transaction = new HashMap<String, Object>();
-    transaction.put("vendor", VENDOR);
-    transaction.put("productIdentifier", originalProductId);
-    transaction.put("_transactionIdentifier", purchase.orderId);
-    transaction.put("_transactionDate", new Date(purchase.purchaseTime));
-    transaction.put("_updateId", updateId);
-    transaction.put("_notificationId", purchase.notificationId);
-    return transaction;
+    return Transaction.google(state, originalProductId, purchase.orderId, purchase.purchaseTime,
+        updateId, purchase.notificationId, payloadId, payloadId != -1 ? purchase.orderIndex : -1);
   }
 
   protected String convertStateToType(PurchaseState purchaseState) {
     if (purchaseState == PurchaseState.CANCELED)
-      return "FAILED";
+      return Transaction.STATE_FAILED;
     else if (purchaseState == PurchaseState.REFUNDED)
-      return "REVOKED";
+      return Transaction.STATE_REVOKED;
     else if (purchaseState == PurchaseState.PURCHASED)
-      return "PURCHASED";
+      return Transaction.STATE_PURCHASED;
     Extension.warn("Unknown purchaseState %s", purchaseState);
     return null;
   }
 
-  private void notifyTransactionUpdate(Map<String, Object> transaction, String type) {
-    transaction.put("transactionState", type);
-    storeKit.asyncFlashCall(null, null, "onTransactionUpdate", transaction);
+  private void notifyTransactionUpdate(Transaction transaction) {
+    storeKit.notifyTransactionUpdate(transaction);
   }
 }
@@ -1,5 +1,6 @@
 package com.jesusla.storekit;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import com.jesusla.ane.Closure;
@@ -23,11 +24,20 @@ public class NullProvider implements Provider {
   }
 
   @Override
-  public void finishTransaction(Map<String, Object> transaction) {
+  public void finishTransaction(Transaction transaction) {
   }
 
   @Override
   public void restoreCompletedTransactions(Closure closure) {
     closure.invoke(null, false);
   }
+
+  @Override
+  public void prepareStore() {
+  }
+
+  @Override
+  public Map<String, Object> getMetrics() {
+    return new HashMap<String, Object>();
+  }
 }
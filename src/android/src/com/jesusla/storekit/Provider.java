@@ -8,6 +8,8 @@ public interface Provider {
   void dispose();
   void init(String[] productIdentifiers, Closure closure);
   void requestPayment(String productIdentifier, Closure closure);
-  void finishTransaction(Map<String, Object> transaction);
+  void finishTransaction(Transaction transaction);
   void restoreCompletedTransactions(Closure closure);
+  void prepareStore();
+  Map<String, Object> getMetrics();
 }
@@ -0,0 +1,168 @@
+package com.jesusla.storekit;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import com.jesusla.ane.Closure;
+import com.jesusla.ane.Extension;
+import com.jesusla.google.BillingService;
+import com.jesusla.google.BillingSupportedCallback;
+import com.jesusla.google.Consts;
+import com.jesusla.google.WarmUpCallback;
+
+/**
+ * Gets Google Play billing ready as soon as the context is created, rather
+ * than on first use. The service bind, the billing support checks for in-app
+ * and subscription items, and the public key and signature verifier warm-up
+ * all start at once; {@code init} is resolved as soon as in-app support is
+ * known. The time each stage took is kept so cold-start regressions show up.
+ */
+class StartupPipeline {
+  static final String STAGE_BIND = "bind";
+  static final String STAGE_INAPP_SUPPORTED = "inappSupported";
+  static final String STAGE_SUBS_SUPPORTED = "subsSupported";
+  static final String STAGE_PUBLIC_KEY = "publicKey";
+  static final String STAGE_VERIFIER = "verifier";
+  /** The stages that always finish; the bind does not if it fails. */
+  private static final String[] FINAL_STAGES = {
+    STAGE_INAPP_SUPPORTED, STAGE_SUBS_SUPPORTED, STAGE_PUBLIC_KEY, STAGE_VERIFIER
+  };
+
+  private final BillingService billing;
+  private long startedAt;
+  private final Map<String, Long> stageMillis = new LinkedHashMap<String, Long>();
+
+  private Boolean inappSupported;
+  private Boolean subsSupported;
+  private boolean checkingInapp;
+  private final List<Closure> initClosures = new ArrayList<Closure>();
+
+  StartupPipeline(BillingService billing) {
+    this.billing = billing;
+  }
+
+  /** Starts every stage. */
+  void start() {
+    synchronized (this) {
+      startedAt = SystemClock.uptimeMillis();
+    }
+    checkInapp();
+    boolean queued = billing.checkBillingSupported(Consts.ITEM_TYPE_SUBSCRIPTION,
+        new BillingSupportedCallback() {
+          @Override
+          public void onBillingSupported(boolean billingSupported, String productType) {
+            synchronized (StartupPipeline.this) {
+              subsSupported = billingSupported;
+            }
+            stageDone(STAGE_SUBS_SUPPORTED);
+          }
+        });
+    if (!queued) {
+      synchronized (this) {
+        subsSupported = false;
+      }
+      stageDone(STAGE_SUBS_SUPPORTED);
+    }
+    queued = BillingService.warmUpVerification(new WarmUpCallback() {
+      @Override
+      public void onPublicKeyReady(boolean success) {
+        if (!success)
+          Extension.warn("Unable to parse SKIdentity public key");
+        stageDone(STAGE_PUBLIC_KEY);
+      }
+
+      @Override
+      public void onVerifierReady(boolean success) {
+        stageDone(STAGE_VERIFIER);
+      }
+    });
+    if (!queued) {
+      stageDone(STAGE_PUBLIC_KEY);
+      stageDone(STAGE_VERIFIER);
+    }
+  }
+
+  /**
+   * Invokes the closure with whether in-app billing is supported, as soon
+   * as that is known. If the last check found it unsupported, it is checked
+   * again.
+   */
+  void whenBillingSupported(Closure closure) {
+    boolean check;
+    synchronized (this) {
+      if (Boolean.TRUE.equals(inappSupported)) {
+        if (closure != null)
+          closure.asyncInvoke(true);
+        return;
+      }
+      if (closure != null)
+        initClosures.add(closure);
+      check = !checkingInapp;
+    }
+    if (check)
+      checkInapp();
+  }
+
+  /** Returns whether subscriptions are supported, or null if not yet known. */
+  synchronized Boolean isSubscriptionSupported() {
+    return subsSupported;
+  }
+
+  /** Returns how long each finished stage took from the start, in ms. */
+  synchronized Map<String, Long> getStageMillis() {
+    return new LinkedHashMap<String, Long>(stageMillis);
+  }
+
+  private void checkInapp() {
+    synchronized (this) {
+      checkingInapp = true;
+    }
+    boolean queued = billing.checkBillingSupported(Consts.ITEM_TYPE_INAPP,
+        new BillingSupportedCallback() {
+          @Override
+          public void onBillingSupported(boolean billingSupported, String productType) {
+            inappChecked(billingSupported);
+          }
+        });
+    if (!queued) {
+      Extension.warn("Unable to invoke Billing.checkBillingSupported. Returning false");
+      inappChecked(false);
+    }
+  }
+
+  private void inappChecked(boolean supported) {
+    List<Closure> closures;
+    synchronized (this) {
+      inappSupported = supported;
+      checkingInapp = false;
+      closures = new ArrayList<Closure>(initClosures);
+      initClosures.clear();
+      long connectedAt = BillingService.getLastConnectedUptimeMillis();
+      if (connectedAt >= startedAt && !stageMillis.containsKey(STAGE_BIND))
+        stageMillis.put(STAGE_BIND, connectedAt - startedAt);
+    }
+    stageDone(STAGE_INAPP_SUPPORTED);
+    for (Closure closure : closures)
+      closure.asyncInvoke(supported);
+  }
+
+  private void stageDone(String stage) {
+    String report = null;
+    synchronized (this) {
+      if (stageMillis.containsKey(stage))
+        return;
+      stageMillis.put(stage, SystemClock.uptimeMillis() - startedAt);
+      report = stageMillis.toString();
+      for (String finalStage : FINAL_STAGES) {
+        if (!stageMillis.containsKey(finalStage))
+          report = null;
+      }
+    }
+    if (report != null)
+      Extension.debug("GooglePlay startup (ms): %s", report);
+  }
+}
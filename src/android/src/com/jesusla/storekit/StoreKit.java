@@ -5,15 +5,20 @@ import java.util.Map;
 import com.jesusla.ane.Closure;
 import com.jesusla.ane.Context;
 import com.jesusla.ane.Extension;
+import com.jesusla.google.BillingMetrics;
 
 public class StoreKit extends Context {
   private Provider provider;
+  private final TransactionBatcher transactionBatcher = new TransactionBatcher(this);
 
   public StoreKit() {
     registerFunction("init");
     registerFunction("requestPayment");
     registerFunction("finishTransaction");
     registerFunction("restoreCompletedTransactions");
+    registerFunction("prepareStore");
+    registerFunction("getMetrics");
+    registerFunction("setTransactionBatching");
   }
 
   @Override
@@ -43,10 +48,37 @@ public class StoreKit extends Context {
   }
 
   public void finishTransaction(Map<String, Object> transaction) {
-    provider.finishTransaction(transaction);
+    provider.finishTransaction(Transaction.from(transaction));
   }
 
   public void restoreCompletedTransactions(final Closure closure) {
     provider.restoreCompletedTransactions(closure);
   }
+
+  public void prepareStore() {
+    provider.prepareStore();
+  }
+
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = provider.getMetrics();
+    metrics.put("transactionBatchSizes", BillingMetrics.summarize(transactionBatcher.getBatchSizes()));
+    return metrics;
+  }
+
+  public void setTransactionBatching(int maxBatchSize, int flushMillis) {
+    transactionBatcher.setBatching(maxBatchSize, flushMillis);
+  }
+
+  /**
+   * Queues a transaction update to be sent to ActionScript with any others
+   * produced around the same time.
+   */
+  void notifyTransactionUpdate(Transaction transaction) {
+    transactionBatcher.add(transaction);
+  }
+
+  /** Sends the queued transaction updates now. */
+  void flushTransactionUpdates() {
+    transactionBatcher.flush();
+  }
 }
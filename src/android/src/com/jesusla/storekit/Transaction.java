@@ -0,0 +1,185 @@
+package com.jesusla.storekit;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A transaction update, as reported to ActionScript. Transactions are
+ * immutable and only turned into the map the bridge marshals, with
+ * {@link #toMap()}, at the moment they are sent, so a queued transaction
+ * costs one object rather than a map of boxed values. The vendor and state
+ * are shared constants, and Google product identifiers come from the
+ * provider's product map, so they are shared too. Fields that do not apply
+ * to a vendor are null, or -1 for numbers.
+ */
+public final class Transaction {
+  public static final String STATE_PURCHASED = "PURCHASED";
+  public static final String STATE_FAILED = "FAILED";
+  public static final String STATE_REVOKED = "REVOKED";
+  public static final String STATE_VERIFY = "VERIFY";
+
+  private final String vendor;
+  private final String state;
+  private final String productIdentifier;
+
+  // Google Play
+  private final String transactionIdentifier;
+  private final long transactionDate;
+  private final int updateId;
+  private final String notificationId;
+  private final int payloadId;
+  private final int orderIndex;
+
+  // Amazon
+  private final String userId;
+  private final String productType;
+  private final String purchaseToken;
+  private final Date subscriptionStartDate;
+  private final Date subscriptionEndDate;
+
+  private Transaction(String vendor, String state, String productIdentifier,
+      String transactionIdentifier, long transactionDate, int updateId, String notificationId,
+      int payloadId, int orderIndex, String userId, String productType, String purchaseToken,
+      Date subscriptionStartDate, Date subscriptionEndDate) {
+    this.vendor = vendor;
+    this.state = state;
+    this.productIdentifier = productIdentifier;
+    this.transactionIdentifier = transactionIdentifier;
+    this.transactionDate = transactionDate;
+    this.updateId = updateId;
+    this.notificationId = notificationId;
+    this.payloadId = payloadId;
+    this.orderIndex = orderIndex;
+    this.userId = userId;
+    this.productType = productType;
+    this.purchaseToken = purchaseToken;
+    this.subscriptionStartDate = subscriptionStartDate;
+    this.subscriptionEndDate = subscriptionEndDate;
+  }
+
+  /**
+   * Creates a Google Play transaction.
+   * @param payloadId the signed payload the transaction came in, or -1
+   * @param orderIndex its position in the payload's orders, or -1
+   */
+  static Transaction google(String state, String productIdentifier, String orderId,
+      long purchaseTime, int updateId, String notificationId, int payloadId, int orderIndex) {
+    return new Transaction(GoogleProvider.VENDOR, state, productIdentifier, orderId,
+        purchaseTime, updateId, notificationId, payloadId, orderIndex,
+        null, null, null, null, null);
+  }
+
+  /** Creates an Amazon transaction. */
+  static Transaction amazon(String state, String productIdentifier, String userId,
+      String productType, String purchaseToken, Date subscriptionStartDate,
+      Date subscriptionEndDate) {
+    return new Transaction(AmazonProvider.TYPE, state, productIdentifier, null, -1, -1, null,
+        -1, -1, userId, productType, purchaseToken, subscriptionStartDate, subscriptionEndDate);
+  }
+
+  /**
+   * Reads a transaction back from the object ActionScript passed to
+   * finishTransaction. Missing or mistyped fields read as null or -1.
+   */
+  static Transaction from(Map<String, Object> map) {
+    Object date = map.get("_transactionDate");
+    return new Transaction(
+        string(map, "vendor"),
+        string(map, "transactionState"),
+        string(map, "productIdentifier"),
+        string(map, "_transactionIdentifier"),
+        date instanceof Date ? ((Date) date).getTime() : -1,
+        integer(map, "_updateId"),
+        string(map, "_notificationId"),
+        integer(map, "_payloadId"),
+        integer(map, "_orderIndex"),
+        string(map, "_userId"),
+        string(map, "_productType"),
+        string(map, "_purchaseToken"),
+        date(map, "_subscriptionStartDate"),
+        date(map, "_subscriptionEndDate"));
+  }
+
+  public String getVendor() {
+    return vendor;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public String getProductIdentifier() {
+    return productIdentifier;
+  }
+
+  public String getTransactionIdentifier() {
+    return transactionIdentifier;
+  }
+
+  public int getUpdateId() {
+    return updateId;
+  }
+
+  public String getNotificationId() {
+    return notificationId;
+  }
+
+  public String getPurchaseToken() {
+    return purchaseToken;
+  }
+
+  /** Returns the map that is marshalled to ActionScript, with the fields that are set. */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new HashMap<String, Object>(16);
+    map.put("vendor", vendor);
+    map.put("transactionState", state);
+    if (productIdentifier != null)
+      map.put("productIdentifier", productIdentifier);
+    if (transactionIdentifier != null)
+      map.put("_transactionIdentifier", transactionIdentifier);
+    if (transactionDate >= 0)
+      map.put("_transactionDate", new Date(transactionDate));
+    if (GoogleProvider.VENDOR.equals(vendor)) {
+      // Needed back by finishTransaction, even when unset
+      map.put("_updateId", updateId);
+      map.put("_notificationId", notificationId);
+    }
+    if (payloadId != -1) {
+      map.put("_payloadId", payloadId);
+      map.put("_orderIndex", orderIndex);
+    }
+    if (userId != null)
+      map.put("_userId", userId);
+    if (productType != null)
+      map.put("_productType", productType);
+    if (purchaseToken != null)
+      map.put("_purchaseToken", purchaseToken);
+    if (subscriptionStartDate != null)
+      map.put("_subscriptionStartDate", subscriptionStartDate);
+    if (subscriptionEndDate != null)
+      map.put("_subscriptionEndDate", subscriptionEndDate);
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+
+  private static String string(Map<String, Object> map, String key) {
+    Object value = map.get(key);
+    return value instanceof String ? (String) value : null;
+  }
+
+  private static int integer(Map<String, Object> map, String key) {
+    // ActionScript numbers may come back as Integer or Double
+    Object value = map.get(key);
+    return value instanceof Number ? ((Number) value).intValue() : -1;
+  }
+
+  private static Date date(Map<String, Object> map, String key) {
+    Object value = map.get(key);
+    return value instanceof Date ? (Date) value : null;
+  }
+}
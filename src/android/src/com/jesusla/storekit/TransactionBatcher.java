@@ -0,0 +1,138 @@
+package com.jesusla.storekit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.jesusla.google.Log2Histogram;
+
+/**
+ * Collects transaction updates and sends them to ActionScript as one
+ * onTransactionUpdates array, instead of one native-to-Flash event per
+ * transaction, so that a large restore does not flood the bridge. Updates
+ * are sent, in the order they were added, once the batch is full, once the
+ * flush latency has passed since the first update, or when flushed
+ * explicitly. A latency of 0 sends on the next pass of the main loop, which
+ * still batches every update produced while handling one payload or page.
+ *
+ * Batches are built and sent outside the lock, by one thread at a time: a
+ * flush that finds another under way leaves its updates to that flusher,
+ * which keeps sending until the queue is empty, so batches go out in the
+ * order their updates were added.
+ */
+class TransactionBatcher {
+  static final int DEFAULT_MAX_BATCH_SIZE = 100;
+  static final long DEFAULT_FLUSH_MILLIS = 0;
+
+  private final StoreKit storeKit;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Log2Histogram batchSizes = new Log2Histogram();
+
+  private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private long flushMillis = DEFAULT_FLUSH_MILLIS;
+  private List<Transaction> queued = new ArrayList<Transaction>();
+  private boolean flushScheduled;
+  /** Whether a thread is sending batches. */
+  private boolean flushing;
+
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  TransactionBatcher(StoreKit storeKit) {
+    this.storeKit = storeKit;
+  }
+
+  /**
+   * Changes the most updates sent at once and how long an update may wait
+   * for others. A maximum of 1 sends every update on its own.
+   */
+  synchronized void setBatching(int maxBatchSize, long flushMillis) {
+    if (maxBatchSize < 1 || flushMillis < 0)
+      throw new IllegalArgumentException();
+    this.maxBatchSize = maxBatchSize;
+    this.flushMillis = flushMillis;
+  }
+
+  void add(Transaction transaction) {
+    boolean full;
+    synchronized (this) {
+      queued.add(transaction);
+      full = queued.size() >= maxBatchSize;
+      if (!full) {
+        if (!flushScheduled) {
+          flushScheduled = true;
+          handler.postDelayed(flush, flushMillis);
+        }
+        return;
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Sends every queued update now, in batches of at most the maximum batch
+   * size, or leaves them to the flush already under way.
+   */
+  void flush() {
+    synchronized (this) {
+      if (flushScheduled) {
+        handler.removeCallbacks(flush);
+        flushScheduled = false;
+      }
+      if (flushing || queued.isEmpty())
+        return;
+      flushing = true;
+    }
+    try {
+      List<Transaction> batch;
+      while ((batch = takeBatch()) != null)
+        send(batch);
+    } catch (RuntimeException e) {
+      // Lets the next flush send what is left
+      synchronized (this) {
+        flushing = false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Takes the oldest queued updates, up to the maximum batch size.
+   * @return the batch, or null once the queue is empty, which ends the flush
+   */
+  private synchronized List<Transaction> takeBatch() {
+    if (queued.isEmpty()) {
+      flushing = false;
+      return null;
+    }
+    List<Transaction> batch;
+    if (queued.size() <= maxBatchSize) {
+      batch = queued;
+      queued = new ArrayList<Transaction>();
+    } else {
+      List<Transaction> head = queued.subList(0, maxBatchSize);
+      batch = new ArrayList<Transaction>(head);
+      head.clear();
+    }
+    return batch;
+  }
+
+  private void send(List<Transaction> batch) {
+    batchSizes.record(batch.size());
+    Object[] transactions = new Object[batch.size()];
+    for (int i = 0; i < transactions.length; i++)
+      transactions[i] = batch.get(i).toMap();
+    storeKit.asyncFlashCall(null, null, "onTransactionUpdates", (Object) transactions);
+  }
+
+  /** Returns the distribution of the number of updates per batch sent. */
+  Log2Histogram getBatchSizes() {
+    return batchSizes;
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.jesusla.util;
 
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -46,15 +48,15 @@ public class Base64 {
   public final static boolean DECODE = false;
 
   /** The equals sign (=) as a byte. */
-  private final static byte EQUALS_SIGN = (byte) '=';
+  final static byte EQUALS_SIGN = (byte) '=';
 
   /** The new line character (\n) as a byte. */
-  private final static byte NEW_LINE = (byte) '\n';
+  final static byte NEW_LINE = (byte) '\n';
 
   /**
    * The 64 valid Base64 values.
    */
-  private final static byte[] ALPHABET =
+  final static byte[] ALPHABET =
       {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
           (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
           (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -72,7 +74,7 @@ public class Base64 {
   /**
    * The 64 valid web safe Base64 values.
    */
-  private final static byte[] WEBSAFE_ALPHABET =
+  final static byte[] WEBSAFE_ALPHABET =
       {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
           (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
           (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -91,7 +93,7 @@ public class Base64 {
    * Translates a Base64 value to either its 6-bit reconstruction value
    * or a negative number indicating some other meaning.
    **/
-  private final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
+  final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
       -5, -5, // Whitespace: Tab and Linefeed
       -9, -9, // Decimal 11 - 12
       -5, // Whitespace: Carriage Return
@@ -125,7 +127,7 @@ public class Base64 {
       };
 
   /** The web safe decodabet */
-  private final static byte[] WEBSAFE_DECODABET =
+  final static byte[] WEBSAFE_DECODABET =
       {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
           -5, -5, // Whitespace: Tab and Linefeed
           -9, -9, // Decimal 11 - 12
@@ -161,14 +163,44 @@ public class Base64 {
       };
 
   // Indicates white space in encoding
-  private final static byte WHITE_SPACE_ENC = -5;
+  final static byte WHITE_SPACE_ENC = -5;
   // Indicates equals sign in encoding
-  private final static byte EQUALS_SIGN_ENC = -1;
+  final static byte EQUALS_SIGN_ENC = -1;
+
+  // Marks a byte the fast decoding path cannot handle (whitespace, padding,
+  // invalid or non-ASCII); any lookup that hits it makes the block negative
+  private final static int SLOW_PATH = 0x80000000;
+
+  /**
+   * The decodabets expanded into four lookup tables each, holding every
+   * byte's 6-bit value pre-shifted into place for each position of a
+   * four-byte quantum, so a quantum decodes with four lookups and three ORs.
+   */
+  private final static int[][] DECODE_TABLES = buildDecodeTables(DECODABET);
+  private final static int[][] WEBSAFE_DECODE_TABLES =
+      buildDecodeTables(WEBSAFE_DECODABET);
 
   /** Defeats instantiation. */
   private Base64() {
   }
 
+  private static int[][] buildDecodeTables(byte[] decodabet) {
+    int[][] tables = new int[4][256];
+    for (int c = 0; c < 256; c++) {
+      byte value = c < decodabet.length ? decodabet[c] : -9;
+      for (int pos = 0; pos < 4; pos++) {
+        tables[pos][c] = value >= 0 ? value << (18 - 6 * pos) : SLOW_PATH;
+      }
+    }
+    return tables;
+  }
+
+  /** Returns the fast path tables for a decodabet, or null if it has none. */
+  private static int[][] decodeTablesFor(byte[] decodabet) {
+    return decodabet == DECODABET ? DECODE_TABLES
+        : decodabet == WEBSAFE_DECODABET ? WEBSAFE_DECODE_TABLES : null;
+  }
+
   /* ********  E N C O D I N G   M E T H O D S  ******** */
 
   /**
@@ -505,12 +537,39 @@ public class Base64 {
     byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
     int outBuffPosn = 0;
 
+    int[][] tables = decodeTablesFor(decodabet);
     byte[] b4 = new byte[4];
     int b4Posn = 0;
     int i = 0;
     byte sbiCrop = 0;
     byte sbiDecode = 0;
     for (i = 0; i < len; i++) {
+      if (b4Posn == 0 && tables != null) {
+        // Fast path: eight bytes (two quanta) at a time, one validity check
+        // per block; anything unusual drops through to the loop below
+        int[] t0 = tables[0], t1 = tables[1], t2 = tables[2], t3 = tables[3];
+        while (i + 8 <= len) {
+          int p = i + off;
+          int q1 = t0[source[p] & 0xff] | t1[source[p + 1] & 0xff]
+              | t2[source[p + 2] & 0xff] | t3[source[p + 3] & 0xff];
+          int q2 = t0[source[p + 4] & 0xff] | t1[source[p + 5] & 0xff]
+              | t2[source[p + 6] & 0xff] | t3[source[p + 7] & 0xff];
+          if ((q1 | q2) < 0) {
+            break;
+          }
+          outBuff[outBuffPosn] = (byte) (q1 >> 16);
+          outBuff[outBuffPosn + 1] = (byte) (q1 >> 8);
+          outBuff[outBuffPosn + 2] = (byte) q1;
+          outBuff[outBuffPosn + 3] = (byte) (q2 >> 16);
+          outBuff[outBuffPosn + 4] = (byte) (q2 >> 8);
+          outBuff[outBuffPosn + 5] = (byte) q2;
+          outBuffPosn += 6;
+          i += 8;
+        }
+        if (i >= len) {
+          break;
+        }
+      }
       sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
       sbiDecode = decodabet[sbiCrop];
 
@@ -567,4 +626,281 @@ public class Base64 {
     System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
     return out;
   }
+
+  /* ********  D E C O D I N G   I N T O   B U F F E R S  ******** */
+
+
+  /**
+   * Returns the exact number of bytes that decoding the given Base64
+   * content produces, so that callers can size the output of
+   * {@link #decode(CharSequence, int, int, byte[], int, byte[])} in advance.
+   * Whitespace is ignored and counting stops at the first padding byte.
+   * The content is not validated.
+   *
+   * @param source the Base64 encoded data
+   * @param off the offset of where to begin decoding
+   * @param len the length of characters to decode
+   * @return the number of decoded bytes
+   */
+  public static int decodedLength(CharSequence source, int off, int len) {
+    int sextets = 0;
+    for (int i = 0; i < len; i++) {
+      char c = source.charAt(i + off);
+      if (c == EQUALS_SIGN) {
+        break;
+      }
+      if (c > 0x7f || DECODABET[c] != WHITE_SPACE_ENC) {
+        sextets++;
+      }
+    }
+    return sextets * 3 / 4;
+  }
+
+  /**
+   * Returns the exact number of bytes that decoding the given Base64
+   * content produces.
+   *
+   * @param source the Base64 encoded data
+   * @return the number of decoded bytes
+   */
+  public static int decodedLength(CharSequence source) {
+    return decodedLength(source, 0, source.length());
+  }
+
+  /**
+   * Decodes Base64 content into a caller-supplied array.
+   *
+   * @param source the Base64 encoded data
+   * @param dest the array to hold the decoded data; must have room for
+   *        {@link #decodedLength(CharSequence)} bytes from <var>destOff</var>
+   * @param destOff the index where output will be put
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decode(CharSequence source, byte[] dest, int destOff)
+      throws Base64DecoderException {
+    return decode(source, 0, source.length(), dest, destOff, DECODABET);
+  }
+
+  /**
+   * Decodes web safe Base64 content into a caller-supplied array.
+   * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+   *
+   * @param source the Base64 encoded data
+   * @param dest the array to hold the decoded data
+   * @param destOff the index where output will be put
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decodeWebSafe(CharSequence source, byte[] dest, int destOff)
+      throws Base64DecoderException {
+    return decode(source, 0, source.length(), dest, destOff, WEBSAFE_DECODABET);
+  }
+
+  /**
+   * Decodes Base64 content using the supplied decodabet into a
+   * caller-supplied array, without any intermediate copies. Characters
+   * outside the ASCII range are rejected.
+   *
+   * @param source the Base64 encoded data
+   * @param off the offset of where to begin decoding
+   * @param len the length of characters to decode
+   * @param dest the array to hold the decoded data
+   * @param destOff the index where output will be put
+   * @param decodabet the decodabet for decoding Base64 content
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decode(CharSequence source, int off, int len, byte[] dest,
+      int destOff, byte[] decodabet) throws Base64DecoderException {
+    return decode(source, null, off, len, dest, null, destOff, decodabet);
+  }
+
+  /**
+   * Decodes the remaining Base64 content of <var>source</var> into
+   * <var>dest</var>, advancing the position of both buffers.
+   *
+   * @param source the Base64 encoded data
+   * @param dest the buffer to hold the decoded data
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decode(ByteBuffer source, ByteBuffer dest)
+      throws Base64DecoderException {
+    return decode(source, dest, DECODABET);
+  }
+
+  /**
+   * Decodes the remaining web safe Base64 content of <var>source</var> into
+   * <var>dest</var>, advancing the position of both buffers.
+   * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+   *
+   * @param source the Base64 encoded data
+   * @param dest the buffer to hold the decoded data
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decodeWebSafe(ByteBuffer source, ByteBuffer dest)
+      throws Base64DecoderException {
+    return decode(source, dest, WEBSAFE_DECODABET);
+  }
+
+  /**
+   * Decodes the remaining Base64 content of <var>source</var> into
+   * <var>dest</var>, advancing the position of both buffers.
+   *
+   * @param source the Base64 encoded data
+   * @param dest the buffer to hold the decoded data
+   * @param decodabet the decodabet for decoding Base64 content
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decode(ByteBuffer source, ByteBuffer dest, byte[] decodabet)
+      throws Base64DecoderException {
+    int written = decode(null, source, source.position(), source.remaining(),
+        null, dest, dest.position(), decodabet);
+    source.position(source.limit());
+    dest.position(dest.position() + written);
+    return written;
+  }
+
+  /**
+   * Decodes the remaining Base64 content of <var>source</var> into a
+   * caller-supplied array, advancing the position of the source buffer.
+   *
+   * @param source the Base64 encoded data
+   * @param dest the array to hold the decoded data
+   * @param destOff the index where output will be put
+   * @param decodabet the decodabet for decoding Base64 content
+   * @return the number of decoded bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decode(ByteBuffer source, byte[] dest, int destOff,
+      byte[] decodabet) throws Base64DecoderException {
+    int written = decode(null, source, source.position(), source.remaining(),
+        dest, null, destOff, decodabet);
+    source.position(source.limit());
+    return written;
+  }
+
+  /**
+   * Shared implementation of the buffer decoders. Exactly one of
+   * <var>chars</var>/<var>bytes</var> and one of <var>dest</var>/<var>destBuf</var>
+   * is non-null; buffers are accessed with absolute indexes. Follows the
+   * same rules as {@link #decode(byte[], int, int, byte[])}.
+   */
+  private static int decode(CharSequence chars, ByteBuffer bytes, int off,
+      int len, byte[] dest, ByteBuffer destBuf, int destOff, byte[] decodabet)
+      throws Base64DecoderException {
+    int[][] tables = decodeTablesFor(decodabet);
+    int outPosn = destOff;
+    int quantum = 0;
+    int sextets = 0;
+    for (int i = 0; i < len; i++) {
+      if (sextets == 0 && tables != null) {
+        int[] t0 = tables[0], t1 = tables[1], t2 = tables[2], t3 = tables[3];
+        while (i + 8 <= len) {
+          int p = i + off;
+          int c0, c1, c2, c3, c4, c5, c6, c7;
+          if (chars != null) {
+            c0 = chars.charAt(p); c1 = chars.charAt(p + 1);
+            c2 = chars.charAt(p + 2); c3 = chars.charAt(p + 3);
+            c4 = chars.charAt(p + 4); c5 = chars.charAt(p + 5);
+            c6 = chars.charAt(p + 6); c7 = chars.charAt(p + 7);
+            if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) > 0xff) {
+              break;
+            }
+          } else {
+            c0 = bytes.get(p) & 0xff; c1 = bytes.get(p + 1) & 0xff;
+            c2 = bytes.get(p + 2) & 0xff; c3 = bytes.get(p + 3) & 0xff;
+            c4 = bytes.get(p + 4) & 0xff; c5 = bytes.get(p + 5) & 0xff;
+            c6 = bytes.get(p + 6) & 0xff; c7 = bytes.get(p + 7) & 0xff;
+          }
+          int q1 = t0[c0] | t1[c1] | t2[c2] | t3[c3];
+          int q2 = t0[c4] | t1[c5] | t2[c6] | t3[c7];
+          if ((q1 | q2) < 0) {
+            break;
+          }
+          put(dest, destBuf, outPosn, (byte) (q1 >> 16));
+          put(dest, destBuf, outPosn + 1, (byte) (q1 >> 8));
+          put(dest, destBuf, outPosn + 2, (byte) q1);
+          put(dest, destBuf, outPosn + 3, (byte) (q2 >> 16));
+          put(dest, destBuf, outPosn + 4, (byte) (q2 >> 8));
+          put(dest, destBuf, outPosn + 5, (byte) q2);
+          outPosn += 6;
+          i += 8;
+        }
+        if (i >= len) {
+          break;
+        }
+      }
+      int raw = chars != null ? chars.charAt(i + off) : bytes.get(i + off);
+      if (raw > 0x7f && chars != null) {
+        throw new Base64DecoderException("Bad Base64 input character at " + i
+            + ": " + raw + "(decimal)");
+      }
+      byte sbiCrop = (byte) (raw & 0x7f); // Only the low seven bits
+      byte sbiDecode = decodabet[sbiCrop];
+
+      if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
+        if (sbiDecode >= EQUALS_SIGN_ENC) {
+          // An equals sign (for padding) must not occur at position 0 or 1
+          // and must be the last byte[s] in the encoded value
+          if (sbiCrop == EQUALS_SIGN) {
+            int bytesLeft = len - i;
+            int last = chars != null ? chars.charAt(len - 1 + off)
+                : bytes.get(len - 1 + off);
+            byte lastByte = (byte) (last & 0x7f);
+            if (sextets == 0 || sextets == 1) {
+              throw new Base64DecoderException(
+                  "invalid padding byte '=' at byte offset " + i);
+            } else if (sextets == 3 && bytesLeft > 2) {
+              throw new Base64DecoderException(
+                  "padding byte '=' falsely signals end of encoded value "
+                      + "at offset " + i);
+            } else if (lastByte != EQUALS_SIGN && lastByte != NEW_LINE) {
+              throw new Base64DecoderException(
+                  "encoded value has invalid trailing byte");
+            }
+            break;
+          }
+
+          quantum = (quantum << 6) | sbiDecode;
+          if (++sextets == 4) {
+            put(dest, destBuf, outPosn++, (byte) (quantum >> 16));
+            put(dest, destBuf, outPosn++, (byte) (quantum >> 8));
+            put(dest, destBuf, outPosn++, (byte) quantum);
+            quantum = 0;
+            sextets = 0;
+          }
+        }
+      } else {
+        throw new Base64DecoderException("Bad Base64 input character at " + i
+            + ": " + raw + "(decimal)");
+      }
+    }
+
+    // As in the array decoder, a partial final quantum is treated as if it
+    // were padded with equal signs
+    if (sextets != 0) {
+      if (sextets == 1) {
+        throw new Base64DecoderException("single trailing character at offset "
+            + (len - 1));
+      }
+      quantum <<= 6 * (4 - sextets);
+      put(dest, destBuf, outPosn++, (byte) (quantum >> 16));
+      if (sextets == 3) {
+        put(dest, destBuf, outPosn++, (byte) (quantum >> 8));
+      }
+    }
+    return outPosn - destOff;
+  }
+
+  private static void put(byte[] dest, ByteBuffer destBuf, int index, byte b) {
+    if (dest != null) {
+      dest[index] = b;
+    } else {
+      destBuf.put(index, b);
+    }
+  }
 }
@@ -0,0 +1,219 @@
+package com.jesusla.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes Base64 content read from the underlying stream. Memory use is
+ * constant regardless of the size of the input. Whitespace, padding and
+ * unpadded (web safe) input are handled by the same rules as
+ * {@link Base64#decode(byte[], int, int, byte[])}; invalid input makes
+ * {@link #read()} throw an IOException whose cause is a
+ * {@link Base64DecoderException} with the message the array decoder would
+ * have used.
+ */
+public class Base64InputStream extends FilterInputStream {
+  private final byte[] decodabet;
+
+  private final byte[] inBuff = new byte[1024];
+  private int inBuffPosn;
+  private int inBuffLength;
+  /** Offset in the encoded input of the next byte to be decoded. */
+  private long inputPosn;
+
+  /** Decoded bytes waiting to be read, right-aligned. */
+  private int outBuff;
+  private int outBuffCount;
+
+  private int quantum;
+  private int sextets;
+  private boolean finished;
+
+  /**
+   * Creates a stream that decodes standard Base64.
+   *
+   * @param in the stream to read encoded data from
+   */
+  public Base64InputStream(InputStream in) {
+    this(in, false);
+  }
+
+  /**
+   * @param in the stream to read encoded data from
+   * @param webSafe is {@code true} to decode the web safe alphabet
+   */
+  public Base64InputStream(InputStream in, boolean webSafe) {
+    super(in);
+    this.decodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+  }
+
+  /**
+   * Wraps a channel so that reading from the returned channel yields the
+   * decoded content of <var>channel</var>.
+   */
+  public static ReadableByteChannel newChannel(ReadableByteChannel channel,
+      boolean webSafe) {
+    return Channels.newChannel(
+        new Base64InputStream(Channels.newInputStream(channel), webSafe));
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (outBuffCount == 0) {
+      if (finished) {
+        return -1;
+      }
+      decodeMore();
+    }
+    outBuffCount--;
+    return (outBuff >>> (8 * outBuffCount)) & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    while (n < len) {
+      if (outBuffCount == 0) {
+        if (finished || (n > 0 && inBuffPosn == inBuffLength)) {
+          // Don't block for more input once something has been read
+          break;
+        }
+        decodeMore();
+        continue;
+      }
+      outBuffCount--;
+      b[off + n++] = (byte) (outBuff >>> (8 * outBuffCount));
+    }
+    return n == 0 && finished ? -1 : n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n && read() >= 0) {
+      skipped++;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return outBuffCount;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /** Consumes input until at least one decoded byte is ready or the input ends. */
+  private void decodeMore() throws IOException {
+    while (outBuffCount == 0 && !finished) {
+      if (inBuffPosn == inBuffLength && !fill()) {
+        finish();
+        return;
+      }
+      byte raw = inBuff[inBuffPosn++];
+      long i = inputPosn++;
+      byte sbiCrop = (byte) (raw & 0x7f); // Only the low seven bits
+      byte sbiDecode = decodabet[sbiCrop];
+      if (sbiDecode >= Base64.WHITE_SPACE_ENC) {
+        if (sbiDecode >= Base64.EQUALS_SIGN_ENC) {
+          if (sbiCrop == Base64.EQUALS_SIGN) {
+            endOfPadding(i);
+            return;
+          }
+          quantum = (quantum << 6) | sbiDecode;
+          if (++sextets == 4) {
+            outBuff = quantum;
+            outBuffCount = 3;
+            quantum = 0;
+            sextets = 0;
+          }
+        }
+      } else {
+        throw decoderException("Bad Base64 input character at " + i + ": "
+            + raw + "(decimal)");
+      }
+    }
+  }
+
+  /**
+   * Handles a padding byte at offset <var>i</var>. As with the array
+   * decoder, padding ends the encoded value: the rest of the input is only
+   * checked, never decoded.
+   */
+  private void endOfPadding(long i) throws IOException {
+    if (sextets == 0 || sextets == 1) {
+      throw decoderException("invalid padding byte '=' at byte offset " + i);
+    }
+    // Find how much input is left and what its last byte is
+    long bytesLeft = 1;
+    byte lastByte = Base64.EQUALS_SIGN;
+    while (true) {
+      if (inBuffPosn == inBuffLength && !fill()) {
+        break;
+      }
+      bytesLeft += inBuffLength - inBuffPosn;
+      lastByte = (byte) (inBuff[inBuffLength - 1] & 0x7f);
+      inBuffPosn = inBuffLength;
+    }
+    if (sextets == 3 && bytesLeft > 2) {
+      throw decoderException("padding byte '=' falsely signals end of encoded "
+          + "value at offset " + i);
+    } else if (lastByte != Base64.EQUALS_SIGN && lastByte != Base64.NEW_LINE) {
+      throw decoderException("encoded value has invalid trailing byte");
+    }
+    finish();
+  }
+
+  /** Emits a partial final quantum, as if it had been padded. */
+  private void finish() throws IOException {
+    if (sextets != 0) {
+      if (sextets == 1) {
+        throw decoderException("single trailing character at offset "
+            + (inputPosn - 1));
+      }
+      int bits = quantum << (6 * (4 - sextets));
+      outBuffCount = sextets - 1;
+      outBuff = bits >>> (8 * (3 - outBuffCount));
+      quantum = 0;
+      sextets = 0;
+    }
+    finished = true;
+  }
+
+  private boolean fill() throws IOException {
+    int n;
+    do {
+      n = in.read(inBuff, 0, inBuff.length);
+    } while (n == 0);
+    if (n < 0) {
+      return false;
+    }
+    inBuffPosn = 0;
+    inBuffLength = n;
+    return true;
+  }
+
+  private static IOException decoderException(String message) {
+    IOException e = new IOException(message);
+    e.initCause(new Base64DecoderException(message));
+    return e;
+  }
+}
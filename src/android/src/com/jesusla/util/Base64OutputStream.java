@@ -0,0 +1,165 @@
+package com.jesusla.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base64 encodes everything written to it and passes the encoded bytes on
+ * to the underlying stream. Memory use is constant regardless of how much
+ * is written. Line breaks are inserted the way
+ * {@link Base64#encode(byte[], int, int, byte[], int)} inserts them. The
+ * final quantum is written when the stream is closed.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+  private final byte[] alphabet;
+  private final int maxLineLength;
+  private final boolean doPadding;
+
+  /** Up to two bytes waiting for a complete three-byte group. */
+  private int pending;
+  private int pendingCount;
+
+  private final byte[] buffer = new byte[1024];
+  private int bufferPosn;
+  private int lineLength;
+  private boolean closed;
+
+  /**
+   * Creates a stream that writes standard Base64 without line breaks.
+   *
+   * @param out the stream to write encoded data to
+   */
+  public Base64OutputStream(OutputStream out) {
+    this(out, false, Integer.MAX_VALUE, true);
+  }
+
+  /**
+   * @param out the stream to write encoded data to
+   * @param webSafe is {@code true} to use the web safe alphabet
+   * @param maxLineLength maximum length of one line
+   * @param doPadding is {@code true} to pad the output with '=' chars
+   * if it does not fall on 3 byte boundaries
+   */
+  public Base64OutputStream(OutputStream out, boolean webSafe,
+      int maxLineLength, boolean doPadding) {
+    super(out);
+    this.alphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+    this.maxLineLength = maxLineLength;
+    this.doPadding = doPadding;
+  }
+
+  /**
+   * Wraps a channel so that everything written to the returned channel is
+   * Base64 encoded into <var>channel</var>.
+   */
+  public static WritableByteChannel newChannel(WritableByteChannel channel,
+      boolean webSafe, int maxLineLength, boolean doPadding) {
+    return Channels.newChannel(new Base64OutputStream(
+        Channels.newOutputStream(channel), webSafe, maxLineLength, doPadding));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    pending = (pending << 8) | (b & 0xff);
+    if (++pendingCount == 3) {
+      encodeGroup(pending);
+      pending = 0;
+      pendingCount = 0;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    int end = off + len;
+    // Complete a partial group first
+    while (pendingCount != 0 && off < end) {
+      write(b[off++]);
+    }
+    for (; off + 3 <= end; off += 3) {
+      encodeGroup(((b[off] & 0xff) << 16) | ((b[off + 1] & 0xff) << 8)
+          | (b[off + 2] & 0xff));
+    }
+    while (off < end) {
+      write(b[off++]);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  /**
+   * Writes the final, possibly padded, quantum and closes the underlying
+   * stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      if (pendingCount > 0) {
+        int inBuff = pending << (8 * (3 - pendingCount));
+        ensureRoom(5);
+        buffer[bufferPosn++] = alphabet[(inBuff >>> 18) & 0x3f];
+        buffer[bufferPosn++] = alphabet[(inBuff >>> 12) & 0x3f];
+        if (pendingCount == 2) {
+          buffer[bufferPosn++] = alphabet[(inBuff >>> 6) & 0x3f];
+        } else if (doPadding) {
+          buffer[bufferPosn++] = Base64.EQUALS_SIGN;
+        }
+        if (doPadding) {
+          buffer[bufferPosn++] = Base64.EQUALS_SIGN;
+        }
+        endQuantum();
+      }
+      flushBuffer();
+    } finally {
+      closed = true;
+      out.close();
+    }
+  }
+
+  private void encodeGroup(int inBuff) throws IOException {
+    ensureRoom(5);
+    buffer[bufferPosn++] = alphabet[(inBuff >>> 18) & 0x3f];
+    buffer[bufferPosn++] = alphabet[(inBuff >>> 12) & 0x3f];
+    buffer[bufferPosn++] = alphabet[(inBuff >>> 6) & 0x3f];
+    buffer[bufferPosn++] = alphabet[inBuff & 0x3f];
+    endQuantum();
+  }
+
+  private void endQuantum() {
+    lineLength += 4;
+    if (lineLength == maxLineLength) {
+      buffer[bufferPosn++] = Base64.NEW_LINE;
+      lineLength = 0;
+    }
+  }
+
+  private void ensureRoom(int bytes) throws IOException {
+    if (bufferPosn + bytes > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (bufferPosn > 0) {
+      out.write(buffer, 0, bufferPosn);
+      bufferPosn = 0;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package android.app;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Handler;
+import android.os.Looper;
+
+/** Plain JVM stand-in for an activity, with the calls the billing code makes. */
+public class Activity extends ContextWrapper {
+  public Activity() {
+    super(null);
+  }
+
+  public void startIntentSender(IntentSender intent, Intent fillInIntent, int flagsMask,
+      int flagsValues, int extraFlags) throws IntentSender.SendIntentException {
+    intent.sendIntent(this, 0, fillInIntent, null, null);
+  }
+
+  public final void runOnUiThread(Runnable action) {
+    Looper main = Looper.getMainLooper();
+    if (Thread.currentThread() == main.getThread())
+      action.run();
+    else
+      new Handler(main).post(action);
+  }
+}
@@ -0,0 +1,69 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Parcelable;
+
+/**
+ * Plain JVM stand-in for a pending intent. Only activity intents are
+ * supported; sending one starts the activity from the context that
+ * created it.
+ */
+public final class PendingIntent implements Parcelable {
+  public static final int FLAG_ONE_SHOT = 1 << 30;
+
+  private final Context mContext;
+  private final Intent mIntent;
+  private final int mFlags;
+  private boolean mCanceled;
+
+  public static class CanceledException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CanceledException() {
+    }
+  }
+
+  private PendingIntent(Context context, Intent intent, int flags) {
+    mContext = context;
+    mIntent = intent;
+    mFlags = flags;
+  }
+
+  public static PendingIntent getActivity(Context context, int requestCode, Intent intent,
+      int flags) {
+    return new PendingIntent(context, new Intent(intent), flags);
+  }
+
+  public IntentSender getIntentSender() {
+    return new IntentSender(this);
+  }
+
+  public void cancel() {
+    synchronized (this) {
+      mCanceled = true;
+    }
+  }
+
+  public void send() throws CanceledException {
+    send(null, 0, null);
+  }
+
+  /**
+   * Starts the activity, with the extras of <var>intent</var>, if any,
+   * added to those of the pending intent.
+   */
+  public void send(Context context, int code, Intent intent) throws CanceledException {
+    synchronized (this) {
+      if (mCanceled)
+        throw new CanceledException();
+      if ((mFlags & FLAG_ONE_SHOT) != 0)
+        mCanceled = true;
+    }
+    Intent fired = new Intent(mIntent);
+    if (intent != null && intent.getExtras() != null)
+      fired.putExtras(intent.getExtras());
+    mContext.startActivity(fired);
+  }
+}
@@ -0,0 +1,71 @@
+package android.app;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * Plain JVM stand-in for a service. As on a device, stopping a service
+ * only has an effect on instances the environment started; for those, the
+ * environment delivers every start through {@link #onStartCommand}, which
+ * keeps the latest startId for {@link #stopSelfResult(int)}.
+ */
+public abstract class Service extends ContextWrapper {
+  public static final int START_STICKY_COMPATIBILITY = 0;
+
+  private boolean mStarted;
+  private int mLastStartId = -1;
+
+  public Service() {
+    super(null);
+  }
+
+  /** Attaches the service to its context, as the system does before {@link #onCreate()}. */
+  public final void attach(Context context) {
+    attachBaseContext(context);
+  }
+
+  public void onCreate() {
+  }
+
+  @Deprecated
+  public void onStart(Intent intent, int startId) {
+  }
+
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    synchronized (this) {
+      mStarted = true;
+      mLastStartId = startId;
+    }
+    onStart(intent, startId);
+    return START_STICKY_COMPATIBILITY;
+  }
+
+  public void onDestroy() {
+  }
+
+  public abstract IBinder onBind(Intent intent);
+
+  public final void stopSelf() {
+    stopSelf(-1);
+  }
+
+  public final void stopSelf(int startId) {
+    stopSelfResult(startId);
+  }
+
+  /**
+   * Stops the service if <var>startId</var> is the latest start it was
+   * given, or -1.
+   * @return true if the service is being stopped
+   */
+  public final boolean stopSelfResult(int startId) {
+    synchronized (this) {
+      if (!mStarted || (startId >= 0 && startId != mLastStartId))
+        return false;
+      mStarted = false;
+    }
+    return stopService(new Intent(this, getClass()));
+  }
+}
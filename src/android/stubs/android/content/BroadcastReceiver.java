@@ -0,0 +1,6 @@
+package android.content;
+
+/** Plain JVM stand-in for a broadcast receiver. */
+public abstract class BroadcastReceiver {
+  public abstract void onReceive(Context context, Intent intent);
+}
@@ -0,0 +1,42 @@
+package android.content;
+
+/** Plain JVM stand-in for the name of an application component. */
+public final class ComponentName {
+  private final String mPackage;
+  private final String mClass;
+
+  public ComponentName(String pkg, String cls) {
+    mPackage = pkg;
+    mClass = cls;
+  }
+
+  public ComponentName(Context pkg, Class<?> cls) {
+    this(pkg.getPackageName(), cls.getName());
+  }
+
+  public String getPackageName() {
+    return mPackage;
+  }
+
+  public String getClassName() {
+    return mClass;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ComponentName))
+      return false;
+    ComponentName other = (ComponentName) obj;
+    return mPackage.equals(other.mPackage) && mClass.equals(other.mClass);
+  }
+
+  @Override
+  public int hashCode() {
+    return mPackage.hashCode() * 31 + mClass.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "ComponentName{" + mPackage + "/" + mClass + "}";
+  }
+}
@@ -0,0 +1,34 @@
+package android.content;
+
+import java.io.File;
+
+import android.os.Looper;
+
+/**
+ * Plain JVM stand-in for the Android context, with the calls the billing
+ * code makes. A test environment supplies the implementation.
+ */
+public abstract class Context {
+  public static final int MODE_PRIVATE = 0;
+  public static final int BIND_AUTO_CREATE = 1;
+
+  public abstract String getPackageName();
+
+  public abstract File getFilesDir();
+
+  public abstract Context getApplicationContext();
+
+  public abstract Looper getMainLooper();
+
+  public abstract ComponentName startService(Intent service);
+
+  public abstract boolean stopService(Intent service);
+
+  public abstract boolean bindService(Intent service, ServiceConnection conn, int flags);
+
+  public abstract void unbindService(ServiceConnection conn);
+
+  public abstract void startActivity(Intent intent);
+
+  public abstract void sendBroadcast(Intent intent);
+}
@@ -0,0 +1,74 @@
+package android.content;
+
+import java.io.File;
+
+import android.os.Looper;
+
+/** Plain JVM stand-in for a context that delegates to another. */
+public class ContextWrapper extends Context {
+  private Context mBase;
+
+  public ContextWrapper(Context base) {
+    mBase = base;
+  }
+
+  protected void attachBaseContext(Context base) {
+    if (mBase != null)
+      throw new IllegalStateException("Base context already set");
+    mBase = base;
+  }
+
+  public Context getBaseContext() {
+    return mBase;
+  }
+
+  @Override
+  public String getPackageName() {
+    return mBase.getPackageName();
+  }
+
+  @Override
+  public File getFilesDir() {
+    return mBase.getFilesDir();
+  }
+
+  @Override
+  public Context getApplicationContext() {
+    return mBase.getApplicationContext();
+  }
+
+  @Override
+  public Looper getMainLooper() {
+    return mBase.getMainLooper();
+  }
+
+  @Override
+  public ComponentName startService(Intent service) {
+    return mBase.startService(service);
+  }
+
+  @Override
+  public boolean stopService(Intent service) {
+    return mBase.stopService(service);
+  }
+
+  @Override
+  public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+    return mBase.bindService(service, conn, flags);
+  }
+
+  @Override
+  public void unbindService(ServiceConnection conn) {
+    mBase.unbindService(conn);
+  }
+
+  @Override
+  public void startActivity(Intent intent) {
+    mBase.startActivity(intent);
+  }
+
+  @Override
+  public void sendBroadcast(Intent intent) {
+    mBase.sendBroadcast(intent);
+  }
+}
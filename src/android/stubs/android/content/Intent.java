@@ -0,0 +1,121 @@
+package android.content;
+
+import android.os.Bundle;
+
+/** Plain JVM stand-in for an intent: an action, a target and extras. */
+public class Intent {
+  private String mAction;
+  private ComponentName mComponent;
+  private Bundle mExtras;
+
+  public Intent() {
+  }
+
+  public Intent(String action) {
+    mAction = action;
+  }
+
+  public Intent(Context packageContext, Class<?> cls) {
+    setClass(packageContext, cls);
+  }
+
+  public Intent(Intent o) {
+    mAction = o.mAction;
+    mComponent = o.mComponent;
+    if (o.mExtras != null)
+      mExtras = new Bundle(o.mExtras);
+  }
+
+  public String getAction() {
+    return mAction;
+  }
+
+  public Intent setAction(String action) {
+    mAction = action;
+    return this;
+  }
+
+  public ComponentName getComponent() {
+    return mComponent;
+  }
+
+  public Intent setComponent(ComponentName component) {
+    mComponent = component;
+    return this;
+  }
+
+  public Intent setClass(Context packageContext, Class<?> cls) {
+    mComponent = new ComponentName(packageContext, cls);
+    return this;
+  }
+
+  /** Returns a copy of the extras, or null if there are none. */
+  public Bundle getExtras() {
+    return mExtras != null ? new Bundle(mExtras) : null;
+  }
+
+  public boolean hasExtra(String name) {
+    return mExtras != null && mExtras.containsKey(name);
+  }
+
+  public Intent putExtras(Bundle extras) {
+    extras().putAll(extras);
+    return this;
+  }
+
+  public Intent putExtra(String name, boolean value) {
+    extras().putBoolean(name, value);
+    return this;
+  }
+
+  public Intent putExtra(String name, int value) {
+    extras().putInt(name, value);
+    return this;
+  }
+
+  public Intent putExtra(String name, long value) {
+    extras().putLong(name, value);
+    return this;
+  }
+
+  public Intent putExtra(String name, String value) {
+    extras().putString(name, value);
+    return this;
+  }
+
+  public Intent putExtra(String name, String[] value) {
+    extras().putStringArray(name, value);
+    return this;
+  }
+
+  public boolean getBooleanExtra(String name, boolean defaultValue) {
+    return mExtras != null ? mExtras.getBoolean(name, defaultValue) : defaultValue;
+  }
+
+  public int getIntExtra(String name, int defaultValue) {
+    return mExtras != null ? mExtras.getInt(name, defaultValue) : defaultValue;
+  }
+
+  public long getLongExtra(String name, long defaultValue) {
+    return mExtras != null ? mExtras.getLong(name, defaultValue) : defaultValue;
+  }
+
+  public String getStringExtra(String name) {
+    return mExtras != null ? mExtras.getString(name) : null;
+  }
+
+  public String[] getStringArrayExtra(String name) {
+    return mExtras != null ? mExtras.getStringArray(name) : null;
+  }
+
+  private Bundle extras() {
+    if (mExtras == null)
+      mExtras = new Bundle();
+    return mExtras;
+  }
+
+  @Override
+  public String toString() {
+    return "Intent { act=" + mAction + " cmp=" + mComponent + " extras=" + mExtras + " }";
+  }
+}
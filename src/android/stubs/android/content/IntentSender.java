@@ -0,0 +1,37 @@
+package android.content;
+
+import android.app.PendingIntent;
+import android.os.Handler;
+
+/** Plain JVM stand-in for the sender of a {@link PendingIntent}. */
+public final class IntentSender {
+  private final PendingIntent mTarget;
+
+  public static class SendIntentException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public SendIntentException() {
+    }
+
+    public SendIntentException(Exception cause) {
+      super(cause);
+    }
+  }
+
+  public interface OnFinished {
+    void onSendFinished(IntentSender sender, Intent intent, int resultCode, String resultData);
+  }
+
+  public IntentSender(PendingIntent target) {
+    mTarget = target;
+  }
+
+  public void sendIntent(Context context, int code, Intent intent, OnFinished onFinished,
+      Handler handler) throws SendIntentException {
+    try {
+      mTarget.send(context, code, intent);
+    } catch (PendingIntent.CanceledException e) {
+      throw new SendIntentException(e);
+    }
+  }
+}
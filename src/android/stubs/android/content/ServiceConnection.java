@@ -0,0 +1,10 @@
+package android.content;
+
+import android.os.IBinder;
+
+/** Plain JVM stand-in for the callbacks of a bound service. */
+public interface ServiceConnection {
+  void onServiceConnected(ComponentName name, IBinder service);
+
+  void onServiceDisconnected(ComponentName name);
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * Plain JVM stand-in for a local binder. As on a device, a binder that
+ * lives in the calling process is called directly, on the calling thread.
+ */
+public class Binder implements IBinder {
+  private IInterface mOwner;
+  private String mDescriptor;
+
+  public void attachInterface(IInterface owner, String descriptor) {
+    mOwner = owner;
+    mDescriptor = descriptor;
+  }
+
+  @Override
+  public IInterface queryLocalInterface(String descriptor) {
+    return descriptor.equals(mDescriptor) ? mOwner : null;
+  }
+}
@@ -0,0 +1,111 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Plain JVM stand-in for the Android bundle, backed by a map. Getters for
+ * missing or mistyped keys return the default, as on a device.
+ */
+public final class Bundle {
+  private final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+  public Bundle() {
+  }
+
+  public Bundle(Bundle bundle) {
+    mMap.putAll(bundle.mMap);
+  }
+
+  public boolean containsKey(String key) {
+    return mMap.containsKey(key);
+  }
+
+  public Set<String> keySet() {
+    return mMap.keySet();
+  }
+
+  public int size() {
+    return mMap.size();
+  }
+
+  public void putAll(Bundle bundle) {
+    mMap.putAll(bundle.mMap);
+  }
+
+  public void remove(String key) {
+    mMap.remove(key);
+  }
+
+  public void putBoolean(String key, boolean value) {
+    mMap.put(key, value);
+  }
+
+  public void putInt(String key, int value) {
+    mMap.put(key, value);
+  }
+
+  public void putLong(String key, long value) {
+    mMap.put(key, value);
+  }
+
+  public void putString(String key, String value) {
+    mMap.put(key, value);
+  }
+
+  public void putStringArray(String key, String[] value) {
+    mMap.put(key, value);
+  }
+
+  public void putParcelable(String key, Parcelable value) {
+    mMap.put(key, value);
+  }
+
+  public boolean getBoolean(String key) {
+    return getBoolean(key, false);
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    Object value = mMap.get(key);
+    return value instanceof Boolean ? (Boolean) value : defaultValue;
+  }
+
+  public int getInt(String key) {
+    return getInt(key, 0);
+  }
+
+  public int getInt(String key, int defaultValue) {
+    Object value = mMap.get(key);
+    return value instanceof Integer ? (Integer) value : defaultValue;
+  }
+
+  public long getLong(String key) {
+    return getLong(key, 0L);
+  }
+
+  public long getLong(String key, long defaultValue) {
+    Object value = mMap.get(key);
+    return value instanceof Long ? (Long) value : defaultValue;
+  }
+
+  public String getString(String key) {
+    Object value = mMap.get(key);
+    return value instanceof String ? (String) value : null;
+  }
+
+  public String[] getStringArray(String key) {
+    Object value = mMap.get(key);
+    return value instanceof String[] ? (String[]) value : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T extends Parcelable> T getParcelable(String key) {
+    Object value = mMap.get(key);
+    return value instanceof Parcelable ? (T) value : null;
+  }
+
+  @Override
+  public String toString() {
+    return "Bundle" + mMap;
+  }
+}
@@ -0,0 +1,39 @@
+package android.os;
+
+/**
+ * Plain JVM stand-in for the Android handler: posts callbacks to the
+ * queue of a {@link Looper}.
+ */
+public class Handler {
+  private final Looper mLooper;
+
+  public Handler() {
+    this(Looper.myLooper());
+  }
+
+  public Handler(Looper looper) {
+    if (looper == null)
+      throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+    mLooper = looper;
+  }
+
+  public final Looper getLooper() {
+    return mLooper;
+  }
+
+  public final boolean post(Runnable r) {
+    return postAtTime(r, SystemClock.uptimeMillis());
+  }
+
+  public final boolean postDelayed(Runnable r, long delayMillis) {
+    return postAtTime(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+  }
+
+  public final boolean postAtTime(Runnable r, long uptimeMillis) {
+    return mLooper.enqueue(this, r, uptimeMillis);
+  }
+
+  public final void removeCallbacks(Runnable r) {
+    mLooper.remove(this, r);
+  }
+}
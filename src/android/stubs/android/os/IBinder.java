@@ -0,0 +1,7 @@
+package android.os;
+
+/** Plain JVM stand-in for a binder; only in-process binders exist. */
+public interface IBinder {
+  /** Returns the local implementation of the interface, or null. */
+  IInterface queryLocalInterface(String descriptor);
+}
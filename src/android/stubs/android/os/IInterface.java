@@ -0,0 +1,6 @@
+package android.os;
+
+/** Plain JVM stand-in for the base of binder interfaces. */
+public interface IInterface {
+  IBinder asBinder();
+}
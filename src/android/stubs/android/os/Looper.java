@@ -0,0 +1,150 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Plain JVM stand-in for the Android message loop. The main looper runs on
+ * a daemon thread named "main" that is started the first time it is asked
+ * for, so that code posting to the main thread behaves as it does on a
+ * device: callbacks run one at a time, in time order, on a single thread.
+ */
+public final class Looper {
+  private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+  private static Looper sMainLooper;
+
+  private final Thread mThread;
+  private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>();
+  private long mSequence;
+  private boolean mQuitting;
+
+  /** A callback waiting to run. */
+  private static final class Message implements Comparable<Message> {
+    final Handler mTarget;
+    final Runnable mCallback;
+    final long mWhen;
+    final long mSequence;
+
+    Message(Handler target, Runnable callback, long when, long sequence) {
+      mTarget = target;
+      mCallback = callback;
+      mWhen = when;
+      mSequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Message other) {
+      if (mWhen != other.mWhen)
+        return mWhen < other.mWhen ? -1 : 1;
+      return mSequence < other.mSequence ? -1 : mSequence > other.mSequence ? 1 : 0;
+    }
+  }
+
+  private Looper() {
+    mThread = Thread.currentThread();
+  }
+
+  /** Makes a looper for the calling thread. */
+  public static void prepare() {
+    if (sThreadLocal.get() != null)
+      throw new RuntimeException("Only one Looper may be created per thread");
+    sThreadLocal.set(new Looper());
+  }
+
+  /** Returns the looper of the calling thread, or null. */
+  public static Looper myLooper() {
+    return sThreadLocal.get();
+  }
+
+  /** Returns the main looper, starting the main thread the first time. */
+  public static synchronized Looper getMainLooper() {
+    while (sMainLooper == null) {
+      Thread main = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          prepare();
+          synchronized (Looper.class) {
+            sMainLooper = myLooper();
+            Looper.class.notifyAll();
+          }
+          loop();
+        }
+      }, "main");
+      main.setDaemon(true);
+      main.start();
+      while (sMainLooper == null) {
+        try {
+          Looper.class.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+    return sMainLooper;
+  }
+
+  /** Runs the calling thread's message queue until the looper quits. */
+  public static void loop() {
+    Looper looper = myLooper();
+    if (looper == null)
+      throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+    Message message;
+    while ((message = looper.next()) != null) {
+      message.mCallback.run();
+    }
+  }
+
+  public Thread getThread() {
+    return mThread;
+  }
+
+  /** Stops the loop; callbacks that have not run yet are dropped. */
+  public void quit() {
+    synchronized (mQueue) {
+      mQuitting = true;
+      mQueue.clear();
+      mQueue.notifyAll();
+    }
+  }
+
+  boolean enqueue(Handler target, Runnable callback, long when) {
+    synchronized (mQueue) {
+      if (mQuitting)
+        return false;
+      mQueue.add(new Message(target, callback, when, mSequence++));
+      mQueue.notifyAll();
+      return true;
+    }
+  }
+
+  void remove(Handler target, Runnable callback) {
+    synchronized (mQueue) {
+      for (Iterator<Message> it = mQueue.iterator(); it.hasNext();) {
+        Message message = it.next();
+        if (message.mTarget == target && message.mCallback == callback)
+          it.remove();
+      }
+    }
+  }
+
+  private Message next() {
+    synchronized (mQueue) {
+      while (!mQuitting) {
+        Message head = mQueue.peek();
+        long now = SystemClock.uptimeMillis();
+        if (head != null && head.mWhen <= now)
+          return mQueue.poll();
+        try {
+          if (head == null)
+            mQueue.wait();
+          else
+            mQueue.wait(head.mWhen - now);
+        } catch (InterruptedException e) {
+          return null;
+        }
+      }
+      return null;
+    }
+  }
+}
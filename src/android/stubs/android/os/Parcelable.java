@@ -0,0 +1,5 @@
+package android.os;
+
+/** Plain JVM stand-in for the Android parcelable marker; nothing is parcelled. */
+public interface Parcelable {
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/** Plain JVM stand-in for the exception a failed binder call throws. */
+public class RemoteException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public RemoteException() {
+  }
+
+  public RemoteException(String message) {
+    super(message);
+  }
+}
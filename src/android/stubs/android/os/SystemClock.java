@@ -0,0 +1,25 @@
+package android.os;
+
+/** Plain JVM stand-in for the Android clock. */
+public final class SystemClock {
+  private static final long BASE = System.nanoTime();
+
+  private SystemClock() {
+  }
+
+  public static long elapsedRealtime() {
+    return (System.nanoTime() - BASE) / 1000000L;
+  }
+
+  public static long uptimeMillis() {
+    return elapsedRealtime();
+  }
+
+  public static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package android.text;
+
+/**
+ * Plain JVM stand-in for the Android text utilities used by the billing code.
+ */
+public final class TextUtils {
+  private TextUtils() {
+  }
+
+  public static boolean isEmpty(CharSequence str) {
+    return str == null || str.length() == 0;
+  }
+}
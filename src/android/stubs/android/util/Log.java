@@ -0,0 +1,52 @@
+package android.util;
+
+/**
+ * Plain JVM stand-in for the Android logger, for running the billing code
+ * in unit tests and benchmarks. Messages are printed to stderr only if the
+ * system property "android.log" is set.
+ */
+public final class Log {
+  private static final boolean ENABLED = System.getProperty("android.log") != null;
+
+  private Log() {
+  }
+
+  public static int v(String tag, String msg) {
+    return print("V", tag, msg, null);
+  }
+
+  public static int d(String tag, String msg) {
+    return print("D", tag, msg, null);
+  }
+
+  public static int i(String tag, String msg) {
+    return print("I", tag, msg, null);
+  }
+
+  public static int w(String tag, String msg) {
+    return print("W", tag, msg, null);
+  }
+
+  public static int w(String tag, String msg, Throwable tr) {
+    return print("W", tag, msg, tr);
+  }
+
+  public static int e(String tag, String msg) {
+    return print("E", tag, msg, null);
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return print("E", tag, msg, tr);
+  }
+
+  private static int print(String level, String tag, String msg, Throwable tr) {
+    if (!ENABLED) {
+      return 0;
+    }
+    System.err.println(level + "/" + tag + ": " + msg);
+    if (tr != null) {
+      tr.printStackTrace();
+    }
+    return 0;
+  }
+}
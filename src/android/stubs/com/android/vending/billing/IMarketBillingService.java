@@ -0,0 +1,36 @@
+package com.android.vending.billing;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * Plain JVM stand-in for the interface generated from
+ * IMarketBillingService.aidl. Only the local side of the stub is kept, so
+ * a Market stand-in extends {@link Stub} and is called directly.
+ */
+public interface IMarketBillingService extends IInterface {
+  /** Given the arguments in bundle form, returns a bundle for results. */
+  Bundle sendBillingRequest(Bundle bundle) throws RemoteException;
+
+  public static abstract class Stub extends Binder implements IMarketBillingService {
+    private static final String DESCRIPTOR = "com.android.vending.billing.IMarketBillingService";
+
+    public Stub() {
+      attachInterface(this, DESCRIPTOR);
+    }
+
+    public static IMarketBillingService asInterface(IBinder obj) {
+      if (obj == null)
+        return null;
+      return (IMarketBillingService) obj.queryLocalInterface(DESCRIPTOR);
+    }
+
+    @Override
+    public IBinder asBinder() {
+      return this;
+    }
+  }
+}
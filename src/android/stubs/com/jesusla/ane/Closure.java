@@ -0,0 +1,11 @@
+package com.jesusla.ane;
+
+/** Plain JVM stand-in for an ActionScript function passed to the extension. */
+public class Closure {
+  public void asyncInvoke(Object... args) {
+  }
+
+  public Object invoke(Object target, Object... args) {
+    return null;
+  }
+}
@@ -0,0 +1,45 @@
+package com.jesusla.ane;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Activity;
+
+/**
+ * Plain JVM stand-in for the native extension context, with the calls
+ * StoreKit makes. Properties are set with {@link #setProperty}, and calls
+ * to ActionScript go nowhere unless a subclass overrides
+ * {@link #asyncFlashCall}.
+ */
+public abstract class Context {
+  private final Map<String, String> properties = new HashMap<String, String>();
+  private Activity activity;
+
+  protected void registerFunction(String name) {
+  }
+
+  protected abstract void initContext();
+
+  public void dispose() {
+  }
+
+  public void setProperty(String key, String value) {
+    properties.put(key, value);
+  }
+
+  public String getRequiredProperty(String key) {
+    return properties.get(key);
+  }
+
+  public void setActivity(Activity activity) {
+    this.activity = activity;
+  }
+
+  public Activity getActivity() {
+    return activity;
+  }
+
+  /** Calls an ActionScript method without waiting for it. */
+  public void asyncFlashCall(Closure closure, Object target, String method, Object... args) {
+  }
+}
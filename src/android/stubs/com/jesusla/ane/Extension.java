@@ -0,0 +1,23 @@
+package com.jesusla.ane;
+
+import android.util.Log;
+
+/** Plain JVM stand-in for the extension's logger, printing through {@link Log}. */
+public final class Extension {
+  private static final String TAG = "Extension";
+
+  private Extension() {
+  }
+
+  public static void debug(String format, Object... args) {
+    Log.d(TAG, String.format(format, args));
+  }
+
+  public static void warn(String format, Object... args) {
+    Log.w(TAG, String.format(format, args));
+  }
+
+  public static void fail(String format, Object... args) {
+    Log.e(TAG, String.format(format, args));
+  }
+}
@@ -0,0 +1,5 @@
+package org.apache.http.client;
+
+/** Plain JVM stand-in for the Apache HTTP interface the billing code links to. */
+public interface ResponseHandler<T> {
+}
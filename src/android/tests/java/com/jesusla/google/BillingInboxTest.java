@@ -0,0 +1,258 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Recovery tests for {@link BillingInbox}. Segments are kept small so that
+ * records span many of them. The crash test copies the inbox as a killed
+ * process would leave it, with the record being written torn at a random
+ * offset, and checks that a fresh inbox recovers exactly the records that
+ * were synced and not acknowledged.
+ */
+public class BillingInboxTest {
+  private static final long SEGMENT_SIZE = 512;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String describe(BillingInbox.Record record) {
+    switch (record.mType) {
+    case BillingInbox.TYPE_NOTIFY:
+      return record.mId + " notify " + record.mNotifyId;
+    case BillingInbox.TYPE_PURCHASE_STATE_CHANGED:
+      return record.mId + " purchase " + record.mSignedData + " " + record.mSignature;
+    default:
+      return record.mId + " response " + record.mRequestId + " " + record.mResponseCode;
+    }
+  }
+
+  private static List<String> describe(List<BillingInbox.Record> records) {
+    List<String> descriptions = new ArrayList<String>();
+    for (BillingInbox.Record record : records) {
+      descriptions.add(describe(record));
+    }
+    return descriptions;
+  }
+
+  private static List<String> recover(File directory) throws IOException {
+    BillingInbox inbox = new BillingInbox(directory, SEGMENT_SIZE);
+    try {
+      return describe(inbox.takeUnacknowledged());
+    } finally {
+      inbox.close();
+    }
+  }
+
+  private static String randomString(Random random, int maxLength) {
+    int length = random.nextInt(maxLength);
+    StringBuilder s = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      s.append((char) ('a' + random.nextInt(26)));
+    }
+    return s.toString();
+  }
+
+  /** Appends a random event, recording what recovery should return for it. */
+  private static void appendRandom(BillingInbox inbox, Random random, Map<Long, String> expected) {
+    long id;
+    String description;
+    switch (random.nextInt(3)) {
+    case 0:
+      String notifyId = randomString(random, 40);
+      id = inbox.appendNotify(notifyId);
+      description = "notify " + notifyId;
+      break;
+    case 1:
+      String signedData = randomString(random, 400);
+      String signature = randomString(random, 40);
+      id = inbox.appendPurchaseStateChanged(signedData, signature);
+      description = "purchase " + signedData + " " + signature;
+      break;
+    default:
+      long requestId = random.nextLong();
+      int responseCode = random.nextInt(7);
+      id = inbox.appendResponseCode(requestId, responseCode);
+      description = "response " + requestId + " " + responseCode;
+      break;
+    }
+    assertTrue(id > 0);
+    expected.put(id, id + " " + description);
+  }
+
+  private static Map<String, Long> lengths(File directory) {
+    Map<String, Long> lengths = new HashMap<String, Long>();
+    for (File file : directory.listFiles()) {
+      lengths.put(file.getName(), file.length());
+    }
+    return lengths;
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    for (File file : from.listFiles()) {
+      Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+    }
+  }
+
+  /**
+   * Appends a random prefix of the bytes written to the live inbox since
+   * the lengths were taken to the same file in the copy, as if the process
+   * had died while writing them.
+   */
+  private static void tear(File live, Map<String, Long> lengths, File copy, Random random)
+      throws IOException {
+    int grown = 0;
+    for (File file : live.listFiles()) {
+      Long before = lengths.get(file.getName());
+      long start = before != null ? before : 0;
+      if (file.length() <= start) {
+        continue;
+      }
+      grown++;
+      byte[] written = new byte[(int) (file.length() - start)];
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        in.seek(start);
+        in.readFully(written);
+      } finally {
+        in.close();
+      }
+      FileOutputStream out = new FileOutputStream(new File(copy, file.getName()), true);
+      try {
+        out.write(written, 0, random.nextInt(written.length));
+      } finally {
+        out.close();
+      }
+    }
+    assertEquals(1, grown);
+  }
+
+  @Test
+  public void recoversUnacknowledgedRecordsInOrder() throws IOException {
+    File directory = folder.newFolder();
+    BillingInbox inbox = new BillingInbox(directory, SEGMENT_SIZE);
+    long notify = inbox.appendNotify("n1");
+    long purchase = inbox.appendPurchaseStateChanged("{\"orders\":[]}", "sig");
+    long response = inbox.appendResponseCode(7, 0);
+    inbox.ack(notify);
+    long second = inbox.appendNotify("n2");
+    inbox.close();
+
+    List<String> expected = new ArrayList<String>();
+    expected.add(purchase + " purchase {\"orders\":[]} sig");
+    expected.add(response + " response 7 0");
+    expected.add(second + " notify n2");
+    assertEquals(expected, recover(directory));
+
+    // Ids keep increasing across restarts
+    inbox = new BillingInbox(directory, SEGMENT_SIZE);
+    assertTrue(inbox.appendNotify("n3") > second);
+    inbox.close();
+  }
+
+  @Test
+  public void replaysOnTheHandlerOnceRecovered() throws Exception {
+    File directory = folder.newFolder();
+    BillingInbox inbox = new BillingInbox(directory, SEGMENT_SIZE);
+    long id = inbox.appendNotify("n1");
+    inbox.close();
+
+    final CountDownLatch replayed = new CountDownLatch(1);
+    final AtomicReference<List<BillingInbox.Record>> records =
+        new AtomicReference<List<BillingInbox.Record>>();
+    final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+    inbox = new BillingInbox(directory, SEGMENT_SIZE);
+    inbox.replayUnacknowledged(new Handler(Looper.getMainLooper()), new BillingInbox.Replayer() {
+      @Override
+      public void replay(List<BillingInbox.Record> replay) {
+        records.set(replay);
+        thread.set(Thread.currentThread());
+        replayed.countDown();
+      }
+    });
+    assertTrue(replayed.await(10, TimeUnit.SECONDS));
+    assertEquals(Looper.getMainLooper().getThread(), thread.get());
+    assertEquals(1, records.get().size());
+    assertEquals(id + " notify n1", describe(records.get().get(0)));
+    // Handed out only once
+    assertTrue(inbox.takeUnacknowledged().isEmpty());
+    inbox.close();
+  }
+
+  @Test
+  public void acknowledgedSegmentsAreDeleted() throws IOException {
+    File directory = folder.newFolder();
+    BillingInbox inbox = new BillingInbox(directory, SEGMENT_SIZE);
+    long kept = inbox.appendNotify("kept");
+    for (int i = 0; i < 200; i++) {
+      inbox.ack(inbox.appendNotify("notify-" + i));
+    }
+    inbox.ack(kept);
+    inbox.appendNotify("last");
+    assertTrue(directory.listFiles().length <= 2);
+    inbox.close();
+    assertEquals(1, recover(directory).size());
+  }
+
+  @Test
+  public void recoversAfterCrashAtRandomOffsets() throws IOException {
+    Random random = new Random(1);
+    File live = folder.newFolder("live");
+    BillingInbox inbox = new BillingInbox(live, SEGMENT_SIZE);
+    Map<Long, String> expected = new LinkedHashMap<Long, String>();
+    int crashes = 0;
+    for (int op = 0; op < 400; op++) {
+      appendRandom(inbox, random, expected);
+      if (random.nextInt(8) == 0) {
+        // Everything so far has been synced; the next record is torn
+        File crashed = folder.newFolder("crash-" + op);
+        copy(live, crashed);
+        Map<String, Long> lengths = lengths(live);
+        List<String> synced = new ArrayList<String>(expected.values());
+        appendRandom(inbox, random, expected);
+        tear(live, lengths, crashed, random);
+        assertEquals("crash after op " + op, synced, recover(crashed));
+
+        // A restarted inbox never appends to the torn segment
+        BillingInbox restarted = new BillingInbox(crashed, SEGMENT_SIZE);
+        restarted.takeUnacknowledged();
+        long id = restarted.appendNotify("after-crash");
+        restarted.close();
+        synced.add(id + " notify after-crash");
+        assertEquals("restart after op " + op, synced, recover(crashed));
+        crashes++;
+      }
+      if (random.nextBoolean() && !expected.isEmpty()) {
+        List<Long> ids = new ArrayList<Long>(expected.keySet());
+        long id = ids.get(random.nextInt(ids.size()));
+        inbox.ack(id);
+        expected.remove(id);
+      }
+    }
+    inbox.close();
+    assertTrue(crashes > 20);
+    assertEquals(new ArrayList<String>(expected.values()), recover(live));
+  }
+}
@@ -0,0 +1,462 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jesusla.google.Consts.ResponseCode;
+
+/**
+ * End-to-end tests of the Google billing path against
+ * {@link FakeMarketBillingService}: requests go through
+ * {@link BillingService}, Market's answers come back as broadcasts through
+ * {@link BillingReceiver}, and purchases reach the listener verified.
+ *
+ * The service keeps its connection and queues in static state, so every
+ * test shares one application and one Market, and puts Market's failure
+ * injection back when it is done.
+ */
+public class BillingServiceTest {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  private static FakeContext context;
+  private static FakeMarketBillingService market;
+  private static BillingService billing;
+
+  /** Every purchase handed to the listener, in order. */
+  private static final List<VerifiedPurchase> purchases =
+      Collections.synchronizedList(new ArrayList<VerifiedPurchase>());
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    File files = folder.newFolder("files");
+    context = new FakeContext("com.example.app", files);
+    market = new FakeMarketBillingService(context, 42);
+    market.setLatency(0, 1, 1);
+    context.setMarket(market);
+    Security.setIdentity(market.getIdentity());
+    BillingService.openConfirmationOutbox(new File(files, "outbox"));
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing = new BillingService();
+        billing.setActivity(context.newActivity());
+        billing.setListener(new BillingListener() {
+          @Override
+          public void verifyPayload(int startId, String signedData, String signature,
+              List<VerifiedPurchase> verified) {
+          }
+
+          @Override
+          public void verifyTransaction(int startId, String signedData, String signature,
+              VerifiedPurchase purchase) {
+            purchases.add(purchase);
+            // As the application does once it has granted the item
+            billing.confirmNotifications(startId, new String[] { purchase.notificationId });
+          }
+        });
+      }
+    });
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing.unbind();
+      }
+    });
+    market.shutdown();
+  }
+
+  @After
+  public void clearFailures() {
+    market.clearFailures();
+  }
+
+  private static void await(String what, FakeContext.Condition condition) {
+    assertTrue("timed out waiting for " + what, context.await(condition, TIMEOUT_MILLIS));
+  }
+
+  private static ResponseCode purchase(final String productId, final String developerPayload) {
+    final AtomicReference<ResponseCode> response = new AtomicReference<ResponseCode>();
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing.requestPurchase(productId, Consts.ITEM_TYPE_INAPP, developerPayload,
+            new RequestPurchaseCallback() {
+              @Override
+              public void requestPurchaseResponse(ResponseCode responseCode, String productId,
+                  String productType, String developerPayload) {
+                response.set(responseCode);
+              }
+            });
+      }
+    });
+    await("purchase response code", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        return response.get() != null;
+      }
+    });
+    return response.get();
+  }
+
+  private static VerifiedPurchase awaitPurchase(final String developerPayload) {
+    final AtomicReference<VerifiedPurchase> found = new AtomicReference<VerifiedPurchase>();
+    await("purchase " + developerPayload, new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        synchronized (purchases) {
+          for (VerifiedPurchase purchase : purchases) {
+            if (developerPayload.equals(purchase.developerPayload)) {
+              found.set(purchase);
+              return true;
+            }
+          }
+        }
+        return false;
+      }
+    });
+    return found.get();
+  }
+
+  private static void awaitConfirmed(final List<VerifiedPurchase> confirmed) {
+    await("confirmations", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        for (VerifiedPurchase purchase : confirmed) {
+          if (!market.isConfirmed(purchase.notificationId))
+            return false;
+        }
+        return true;
+      }
+    });
+  }
+
+  @Test
+  public void checksBillingSupport() {
+    final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+    market.setSubscriptionsSupported(false);
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        BillingSupportedCallback callback = new BillingSupportedCallback() {
+          @Override
+          public void onBillingSupported(boolean billingSupported, String productType) {
+            results.add(productType + "=" + billingSupported);
+          }
+        };
+        billing.checkBillingSupported(Consts.ITEM_TYPE_INAPP, callback);
+        billing.checkBillingSupported(Consts.ITEM_TYPE_SUBSCRIPTION, callback);
+      }
+    });
+    market.setSubscriptionsSupported(true);
+    await("billing support", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        return results.size() == 2;
+      }
+    });
+    assertEquals("[inapp=true, subs=false]", results.toString());
+  }
+
+  @Test
+  public void purchaseIsVerifiedAndConfirmed() {
+    long confirmed = market.getConfirmedCount();
+    assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "purchase-1"));
+    VerifiedPurchase purchase = awaitPurchase("purchase-1");
+    assertEquals("sku.gold", purchase.productId);
+    assertEquals(Consts.PurchaseState.PURCHASED, purchase.purchaseState);
+    awaitConfirmed(Collections.singletonList(purchase));
+    assertEquals(confirmed + 1, market.getConfirmedCount());
+  }
+
+  @Test
+  public void userCancelIsReported() {
+    market.setUserCancelRate(1);
+    assertEquals(ResponseCode.RESULT_USER_CANCELED, purchase("sku.gold", "canceled"));
+  }
+
+  @Test
+  public void restoreDeliversEveryOwnedOrder() {
+    final int owned = 300;
+    market.addOwnedOrders(owned, "sku.restored.", 4);
+    // Including what earlier tests bought
+    final int everyOrder = market.getOwnedCount();
+    final int before = purchases.size();
+    final AtomicReference<ResponseCode> response = new AtomicReference<ResponseCode>();
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing.restoreTransactions(new RestoreTransactionsCallback() {
+          @Override
+          public void restoreTransactionsResponse(ResponseCode responseCode) {
+            response.set(responseCode);
+          }
+        });
+      }
+    });
+    await("restored purchases", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        return purchases.size() - before >= everyOrder;
+      }
+    });
+    assertEquals(ResponseCode.RESULT_OK, response.get());
+    List<VerifiedPurchase> restored;
+    synchronized (purchases) {
+      restored = new ArrayList<VerifiedPurchase>(purchases.subList(before, purchases.size()));
+    }
+    Set<String> products = new HashSet<String>();
+    for (VerifiedPurchase purchase : restored) {
+      if (purchase.productId.startsWith("sku.restored."))
+        products.add(purchase.productId);
+    }
+    assertEquals(4, products.size());
+    awaitConfirmed(restored);
+  }
+
+  @Test
+  public void notificationBurstIsBatched() {
+    final int notifications = 1000;
+    int requestsBefore = market.getPurchaseInformationRequests().size();
+    market.notifyNewOrders(notifications, "sku.burst.", 8);
+    final List<VerifiedPurchase> burst = new ArrayList<VerifiedPurchase>();
+    await("purchases from the burst", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        burst.clear();
+        synchronized (purchases) {
+          for (VerifiedPurchase purchase : purchases) {
+            if (purchase.productId.startsWith("sku.burst."))
+              burst.add(purchase);
+          }
+        }
+        return burst.size() >= notifications;
+      }
+    });
+    assertEquals(notifications, burst.size());
+
+    // Each ID was asked for once, in batches, each batch with its own nonce
+    List<long[]> requests = market.getPurchaseInformationRequests();
+    requests = requests.subList(requestsBefore, requests.size());
+    Set<Long> nonces = new HashSet<Long>();
+    long ids = 0;
+    for (long[] request : requests) {
+      assertTrue(nonces.add(request[0]));
+      ids += request[1];
+    }
+    assertEquals(notifications, ids);
+    assertTrue(requests.size() + " requests", requests.size() <= 2 * (notifications / 64 + 1));
+    awaitConfirmed(burst);
+  }
+
+  @Test
+  public void purchaseCompletesAfterMarketCrashes() {
+    long crashes = BillingService.getServiceCrashCount();
+    market.crashNextCalls(1);
+    assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "after-crash"));
+    VerifiedPurchase purchase = awaitPurchase("after-crash");
+    assertTrue(BillingService.getServiceCrashCount() > crashes);
+    awaitConfirmed(Collections.singletonList(purchase));
+  }
+
+  @Test
+  public void purchaseCompletesThroughRepeatedCrashesAndBindFailures() {
+    long crashes = BillingService.getServiceCrashCount();
+    long bindFailures = BillingService.getBindFailureCount();
+    long circuitOpens = BillingService.getCircuitOpenCount();
+    // Market dies for good, so the service has to bind again after its
+    // backoff; the first binds fail, and the calls that follow crash, all
+    // short of the failures in a row that open the circuit
+    market.failNextBinds(2);
+    market.crashNextCalls(2);
+    context.killMarket();
+    assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "through-crashes"));
+    VerifiedPurchase purchase = awaitPurchase("through-crashes");
+    awaitConfirmed(Collections.singletonList(purchase));
+    assertTrue(BillingService.getServiceCrashCount() >= crashes + 3);
+    assertEquals(bindFailures + 2, BillingService.getBindFailureCount());
+    assertEquals(circuitOpens, BillingService.getCircuitOpenCount());
+    assertEquals("CONNECTED", BillingService.getConnectionState());
+  }
+
+  @Test
+  public void idleUnbindWaitsForQueuedConfirmations() {
+    final long unbinds = BillingService.getIdleUnbindCount();
+    // Confirmations wait in the batcher well past the idle period
+    setConfirmationWindow(400);
+    BillingService.setIdleUnbindMillis(50);
+    try {
+      assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "before-unbind"));
+      final List<VerifiedPurchase> queued = deliverNewOrders(20, "sku.idle.");
+      queued.add(awaitPurchase("before-unbind"));
+      final AtomicBoolean unboundEarly = new AtomicBoolean();
+      await("confirmations", new FakeContext.Condition() {
+        @Override
+        public boolean isMet() {
+          boolean unbound = BillingService.getIdleUnbindCount() > unbinds;
+          for (VerifiedPurchase purchase : queued) {
+            if (!market.isConfirmed(purchase.notificationId)) {
+              unboundEarly.compareAndSet(false, unbound);
+              return false;
+            }
+          }
+          // Until the response codes empty the outbox
+          return BillingService.getUnconfirmedCount() == 0;
+        }
+      });
+      assertFalse("unbound with confirmations queued", unboundEarly.get());
+
+      // Once nothing is left, the connection is unbound, and the next
+      // purchase binds again
+      await("idle unbind", new FakeContext.Condition() {
+        @Override
+        public boolean isMet() {
+          return BillingService.getIdleUnbindCount() > unbinds;
+        }
+      });
+      assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "after-unbind"));
+      awaitConfirmed(Collections.singletonList(awaitPurchase("after-unbind")));
+    } finally {
+      BillingService.setIdleUnbindMillis(60000);
+      setConfirmationWindow(50);
+    }
+  }
+
+  /**
+   * Sets how long confirmations wait in the batcher, on the main thread.
+   */
+  private static void setConfirmationWindow(final long windowMillis) {
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+        billing.setConfirmationBatching(windowMillis, 64);
+      }
+    });
+  }
+
+  /** Has Market notify new orders and waits until all are delivered. */
+  private static List<VerifiedPurchase> deliverNewOrders(int count, final String productPrefix) {
+    final List<VerifiedPurchase> delivered = new ArrayList<VerifiedPurchase>();
+    market.notifyNewOrders(count, productPrefix, 2);
+    final int expected = count;
+    await("purchases " + productPrefix, new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        delivered.clear();
+        synchronized (purchases) {
+          for (VerifiedPurchase purchase : purchases) {
+            if (purchase.productId.startsWith(productPrefix))
+              delivered.add(purchase);
+          }
+        }
+        return delivered.size() >= expected;
+      }
+    });
+    return delivered;
+  }
+
+  private static void awaitOutboxEmpty() {
+    await("empty outbox", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        return BillingService.getUnconfirmedCount() == 0;
+      }
+    });
+  }
+
+  @Test
+  public void queuedConfirmationsAreSentOnceMarketComesBack() {
+    long confirmed = market.getConfirmedCount();
+    long bindFailures = BillingService.getBindFailureCount();
+    setConfirmationWindow(300);
+    try {
+      List<VerifiedPurchase> delivered = deliverNewOrders(10, "sku.gone.");
+      // The confirmations wait in the outbox while Market is gone
+      assertTrue(BillingService.getUnconfirmedCount() >= 10);
+      market.failNextBinds(1);
+      context.killMarket();
+      awaitConfirmed(delivered);
+      awaitOutboxEmpty();
+      assertEquals(confirmed + 10, market.getConfirmedCount());
+      assertEquals(bindFailures + 1, BillingService.getBindFailureCount());
+    } finally {
+      setConfirmationWindow(50);
+    }
+  }
+
+  @Test
+  public void confirmationLostToACrashIsSentAgain() {
+    long confirmed = market.getConfirmedCount();
+    long crashes = BillingService.getServiceCrashCount();
+    setConfirmationWindow(300);
+    try {
+      List<VerifiedPurchase> delivered = deliverNewOrders(10, "sku.crash.");
+      // Market dies taking the CONFIRM_NOTIFICATIONS call with it
+      market.crashNextCalls(1);
+      awaitConfirmed(delivered);
+      awaitOutboxEmpty();
+      assertTrue(BillingService.getServiceCrashCount() > crashes);
+      // Each ID confirmed once
+      assertEquals(confirmed + 10, market.getConfirmedCount());
+    } finally {
+      setConfirmationWindow(50);
+    }
+  }
+
+  @Test
+  public void rejectedPurchaseInformationIsRetried() {
+    long requests = market.getRequestCount("GET_PURCHASE_INFORMATION");
+    market.rejectNextCalls("GET_PURCHASE_INFORMATION", 1);
+    assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "retried"));
+    VerifiedPurchase purchase = awaitPurchase("retried");
+    assertEquals(requests + 2, market.getRequestCount("GET_PURCHASE_INFORMATION"));
+    awaitConfirmed(Collections.singletonList(purchase));
+  }
+
+  @Test
+  public void payloadWithBadSignatureIsNotDelivered() {
+    final long verifications = Security.getSignatureVerificationCount();
+    market.setBadSignatureRate(1);
+    assertEquals(ResponseCode.RESULT_OK, purchase("sku.gold", "forged"));
+    await("verification", new FakeContext.Condition() {
+      @Override
+      public boolean isMet() {
+        return Security.getSignatureVerificationCount() > verifications
+            && BillingService.getVerificationQueueDepth() == 0;
+      }
+    });
+    context.runOnMain(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    synchronized (purchases) {
+      for (VerifiedPurchase purchase : purchases) {
+        assertFalse("forged".equals(purchase.developerPayload));
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link ConfirmationOutbox}: IDs already queued or in flight are
+ * not sent twice, pending IDs are replayed by the next process, a torn tail
+ * is dropped, and the log is compacted as IDs are confirmed.
+ */
+public class ConfirmationOutboxTest {
+  /** Bytes of one record of a six-character ID: length, checksum, type and ID. */
+  private static final int RECORD_BYTES = 4 + 4 + 1 + 6;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String[] ids(String... ids) {
+    return ids;
+  }
+
+  @Test
+  public void idsAlreadySendingAreNotSentTwice() throws IOException {
+    ConfirmationOutbox outbox = new ConfirmationOutbox(folder.newFile("outbox"));
+    assertArrayEquals(ids("n-0001", "n-0002"), outbox.add(ids("n-0001", "n-0002")));
+    assertArrayEquals(ids("n-0003"), outbox.add(ids("n-0002", "n-0003", null)));
+    assertEquals(3, outbox.size());
+    // Everything is already sending
+    assertEquals(0, outbox.takeUnsent().length);
+  }
+
+  @Test
+  public void releasedIdsAreTakenAgain() throws IOException {
+    ConfirmationOutbox outbox = new ConfirmationOutbox(folder.newFile("outbox"));
+    outbox.add(ids("n-0001", "n-0002", "n-0003"));
+    outbox.release(ids("n-0001", "n-0003"));
+    assertArrayEquals(ids("n-0001", "n-0003"), outbox.takeUnsent());
+    assertEquals(0, outbox.takeUnsent().length);
+    // A released ID the application confirms again is sent again
+    outbox.release(ids("n-0002"));
+    assertArrayEquals(ids("n-0002"), outbox.add(ids("n-0002")));
+    outbox.confirmed(ids("n-0001", "n-0002", "n-0003"));
+    assertEquals(0, outbox.size());
+  }
+
+  @Test
+  public void pendingIdsAreReplayedAfterReopening() throws IOException {
+    File file = folder.newFile("outbox");
+    ConfirmationOutbox outbox = new ConfirmationOutbox(file);
+    outbox.add(ids("n-0001", "n-0002", "n-0003"));
+    outbox.confirmed(ids("n-0002"));
+
+    // As if the process died with two IDs unconfirmed
+    ConfirmationOutbox reopened = new ConfirmationOutbox(file);
+    assertEquals(2, reopened.size());
+    assertArrayEquals(ids("n-0001", "n-0003"), reopened.takeUnsent());
+    reopened.confirmed(ids("n-0001", "n-0003"));
+    assertEquals(0, new ConfirmationOutbox(file).size());
+  }
+
+  @Test
+  public void tornTailIsDropped() throws IOException {
+    File file = folder.newFile("outbox");
+    ConfirmationOutbox outbox = new ConfirmationOutbox(file);
+    outbox.add(ids("n-0001", "n-0002"));
+    long valid = file.length();
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      // Half of a record
+      out.write(new byte[] { 0, 0, 0, 7, 1, 2 });
+    } finally {
+      out.close();
+    }
+
+    ConfirmationOutbox reopened = new ConfirmationOutbox(file);
+    assertEquals(valid, file.length());
+    assertArrayEquals(ids("n-0001", "n-0002"), reopened.takeUnsent());
+    // New records follow the last valid one, so they are read back too
+    reopened.add(ids("n-0003"));
+    assertEquals(3, new ConfirmationOutbox(file).size());
+  }
+
+  @Test
+  public void logIsCompactedAsIdsAreConfirmed() throws IOException {
+    File file = folder.newFile("outbox");
+    ConfirmationOutbox outbox = new ConfirmationOutbox(file);
+    int count = 1000;
+    String[] all = new String[count];
+    for (int i = 0; i < count; i++) {
+      all[i] = String.format("n-%04d", i);
+      outbox.add(ids(all[i]));
+    }
+    assertEquals(count * RECORD_BYTES, file.length());
+    for (int i = 0; i < count - 1; i++) {
+      outbox.confirmed(ids(all[i]));
+    }
+    assertEquals(1, outbox.size());
+    // Never more than the threshold of dead records past the live ones
+    assertTrue(file.length() + " bytes", file.length() <= 256 * RECORD_BYTES);
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    ConfirmationOutbox reopened = new ConfirmationOutbox(file);
+    assertArrayEquals(ids(all[count - 1]), reopened.takeUnsent());
+  }
+}
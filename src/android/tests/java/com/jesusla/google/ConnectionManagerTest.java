@@ -0,0 +1,167 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.jesusla.google.ConnectionManager.Decision;
+import com.jesusla.google.ConnectionManager.State;
+
+/**
+ * Tests of {@link ConnectionManager} on the real uptime clock: the backoff
+ * grows and is capped, repeated failures open the circuit, and once it has
+ * been open long enough a single probe decides whether it closes.
+ */
+public class ConnectionManagerTest {
+  private static final long BASE_MILLIS = 40;
+  private static final long MAX_MILLIS = 160;
+  private static final int THRESHOLD = 4;
+  private static final long OPEN_MILLIS = 200;
+
+  private static ConnectionManager newManager() {
+    return new ConnectionManager(BASE_MILLIS, MAX_MILLIS, THRESHOLD, OPEN_MILLIS);
+  }
+
+  /** Waits out the current backoff or open period. */
+  private static void waitOut(ConnectionManager manager) throws InterruptedException {
+    Thread.sleep(manager.getRetryDelay() + 5);
+  }
+
+  /** Checks a backoff is within [delay / 2, delay], allowing for the ms clock. */
+  private static void assertBackoff(long delay, long actual) {
+    assertTrue(actual + " < " + delay / 2, actual >= delay / 2 - 2);
+    assertTrue(actual + " > " + delay, actual <= delay);
+  }
+
+  @Test
+  public void bindsOnceUntilItConnects() {
+    ConnectionManager manager = newManager();
+    assertEquals(Decision.BIND, manager.requestBind());
+    assertEquals(State.BINDING, manager.getState());
+    assertEquals(Decision.WAIT, manager.requestBind());
+    manager.connected();
+    assertEquals(State.CONNECTED, manager.getState());
+    assertTrue(manager.getConnectedAt() > 0);
+    assertEquals(1, manager.getBindAttempts());
+  }
+
+  @Test
+  public void backoffGrowsUpToTheMaximum() throws InterruptedException {
+    ConnectionManager manager = newManager();
+    long delay = BASE_MILLIS;
+    // Below the threshold, so the circuit stays closed
+    for (int failure = 1; failure < THRESHOLD; failure++) {
+      assertEquals(Decision.BIND, manager.requestBind());
+      manager.bindFailed();
+      assertEquals(State.BACKING_OFF, manager.getState());
+      assertBackoff(Math.min(delay, MAX_MILLIS), manager.getRetryDelay());
+      // No bind until the backoff has passed
+      assertEquals(Decision.WAIT, manager.requestBind());
+      waitOut(manager);
+      delay *= 2;
+    }
+    assertEquals(THRESHOLD - 1, manager.getBindFailures());
+
+    // Connecting resets the backoff
+    assertEquals(Decision.BIND, manager.requestBind());
+    manager.connected();
+    manager.crashed();
+    assertEquals(State.BACKING_OFF, manager.getState());
+    assertBackoff(BASE_MILLIS, manager.getRetryDelay());
+    assertEquals(1, manager.getCrashes());
+  }
+
+  @Test
+  public void backoffIsCapped() throws InterruptedException {
+    ConnectionManager manager = new ConnectionManager(BASE_MILLIS, MAX_MILLIS, 100, OPEN_MILLIS);
+    for (int failure = 1; failure <= 6; failure++) {
+      assertEquals(Decision.BIND, manager.requestBind());
+      manager.bindFailed();
+      assertTrue(manager.getRetryDelay() <= MAX_MILLIS);
+      waitOut(manager);
+    }
+    assertEquals(Decision.BIND, manager.requestBind());
+    manager.bindFailed();
+    assertBackoff(MAX_MILLIS, manager.getRetryDelay());
+  }
+
+  @Test
+  public void crashesWhileWaitingAreNotCounted() {
+    ConnectionManager manager = newManager();
+    manager.requestBind();
+    manager.connected();
+    manager.crashed();
+    manager.crashed();
+    assertEquals(1, manager.getCrashes());
+  }
+
+  @Test
+  public void repeatedFailuresOpenTheCircuit() throws InterruptedException {
+    ConnectionManager manager = newManager();
+    for (int failure = 1; failure <= THRESHOLD; failure++) {
+      assertEquals(Decision.BIND, manager.requestBind());
+      manager.bindFailed();
+      if (failure < THRESHOLD)
+        waitOut(manager);
+    }
+    assertEquals(State.OPEN, manager.getState());
+    assertTrue(manager.isOpen());
+    assertEquals(1, manager.getCircuitOpens());
+    long retry = manager.getRetryDelay();
+    assertTrue(retry > OPEN_MILLIS - 10 && retry <= OPEN_MILLIS);
+    // Requests fail fast, without binding
+    long attempts = manager.getBindAttempts();
+    assertEquals(Decision.REJECT, manager.requestBind());
+    assertEquals(Decision.REJECT, manager.requestBind());
+    assertEquals(2, manager.getRejected());
+    assertEquals(attempts, manager.getBindAttempts());
+  }
+
+  @Test
+  public void halfOpenProbeClosesTheCircuitWhenItConnects() throws InterruptedException {
+    ConnectionManager manager = openCircuit();
+    waitOut(manager);
+    assertEquals(Decision.BIND, manager.requestBind());
+    assertEquals(State.HALF_OPEN, manager.getState());
+    // Only the one probe
+    assertEquals(Decision.WAIT, manager.requestBind());
+    manager.connected();
+    assertEquals(State.CONNECTED, manager.getState());
+
+    // The failure count starts over: the next failure only backs off
+    manager.crashed();
+    assertEquals(State.BACKING_OFF, manager.getState());
+    assertEquals(1, manager.getCircuitOpens());
+  }
+
+  @Test
+  public void failedProbeReopensTheCircuit() throws InterruptedException {
+    ConnectionManager manager = openCircuit();
+    waitOut(manager);
+    assertEquals(Decision.BIND, manager.requestBind());
+    manager.bindFailed();
+    assertEquals(State.OPEN, manager.getState());
+    assertEquals(2, manager.getCircuitOpens());
+    assertEquals(Decision.REJECT, manager.requestBind());
+
+    // So does a probe whose service crashes before it connects
+    waitOut(manager);
+    assertEquals(Decision.BIND, manager.requestBind());
+    manager.crashed();
+    assertEquals(State.OPEN, manager.getState());
+    assertEquals(3, manager.getCircuitOpens());
+  }
+
+  private static ConnectionManager openCircuit() throws InterruptedException {
+    ConnectionManager manager = newManager();
+    for (int failure = 1; failure <= THRESHOLD; failure++) {
+      manager.requestBind();
+      manager.bindFailed();
+      if (failure < THRESHOLD)
+        waitOut(manager);
+    }
+    assertTrue(manager.isOpen());
+    return manager;
+  }
+}
@@ -0,0 +1,278 @@
+package com.jesusla.google;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A stand-in for the application process on a device, for driving the
+ * Google billing code through its real entry points on a plain JVM. It
+ * starts and stops {@link BillingService} the way the system does, binds
+ * it to a {@link FakeMarketBillingService}, delivers Market's broadcasts
+ * to a new {@link BillingReceiver} each, and starts Market's purchase
+ * flow when a PURCHASE_INTENT is sent. Everything the system would do on
+ * the main thread runs on the stand-in main looper.
+ */
+public class FakeContext extends Context {
+  private static final ComponentName MARKET = new ComponentName("com.android.vending",
+      "com.android.vending.billing.MarketBillingService");
+
+  private final String packageName;
+  private final File filesDir;
+  private final Handler main = new Handler(Looper.getMainLooper());
+  private volatile FakeMarketBillingService market;
+
+  /** The service instance the system started, touched on the main thread only. */
+  private BillingService started;
+  private int lastStartId;
+  private final Set<ServiceConnection> bound =
+      Collections.newSetFromMap(new ConcurrentHashMap<ServiceConnection, Boolean>());
+  /** Bound connections whose Market died and was not restarted. */
+  private final Set<ServiceConnection> dead =
+      Collections.newSetFromMap(new ConcurrentHashMap<ServiceConnection, Boolean>());
+
+  private final AtomicLong serviceStarts = new AtomicLong();
+  private final AtomicLong serviceCreates = new AtomicLong();
+  private final AtomicLong binds = new AtomicLong();
+
+  /** A condition {@link #await} waits for. */
+  public interface Condition {
+    boolean isMet();
+  }
+
+  /** An activity of the application, for BillingService.setActivity. */
+  static final class FakeActivity extends Activity {
+    FakeActivity(Context base) {
+      attachBaseContext(base);
+    }
+  }
+
+  public FakeContext(String packageName, File filesDir) {
+    this.packageName = packageName;
+    this.filesDir = filesDir;
+  }
+
+  /** Sets the Market service that binds connect to. */
+  public void setMarket(FakeMarketBillingService market) {
+    this.market = market;
+  }
+
+  /** Returns a new activity of this application. */
+  public Activity newActivity() {
+    return new FakeActivity(this);
+  }
+
+  /** Runs the action on the main thread and waits for it to finish. */
+  public void runOnMain(final Runnable action) {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+    main.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          action.run();
+        } catch (RuntimeException e) {
+          failure.set(e);
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    if (failure.get() != null)
+      throw failure.get();
+  }
+
+  /**
+   * Waits for the condition to be met, checking it every few ms.
+   * @return false if it was not met within the timeout
+   */
+  public boolean await(Condition condition, long timeoutMillis) {
+    long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+    while (!condition.isMet()) {
+      if (System.nanoTime() - deadline > 0)
+        return false;
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Disconnects every bound connection, as when the Market process dies,
+   * and reconnects them once it has been restarted.
+   */
+  public void crashMarket() {
+    disconnectMarket(true);
+  }
+
+  /**
+   * Disconnects every bound connection, as when the Market process dies and
+   * is not restarted. Each connects again once it is bound again.
+   */
+  public void killMarket() {
+    disconnectMarket(false);
+  }
+
+  private void disconnectMarket(boolean restart) {
+    final FakeMarketBillingService market = this.market;
+    for (final ServiceConnection conn : bound) {
+      main.post(new Runnable() {
+        @Override
+        public void run() {
+          conn.onServiceDisconnected(MARKET);
+        }
+      });
+      if (restart)
+        connectLater(conn, market);
+      else
+        dead.add(conn);
+    }
+  }
+
+  /** Returns the number of times the system started BillingService. */
+  public long getServiceStartCount() {
+    return serviceStarts.get();
+  }
+
+  /** Returns the number of BillingService instances the system created. */
+  public long getServiceCreateCount() {
+    return serviceCreates.get();
+  }
+
+  /** Returns the number of successful binds to Market. */
+  public long getBindCount() {
+    return binds.get();
+  }
+
+  @Override
+  public String getPackageName() {
+    return packageName;
+  }
+
+  @Override
+  public File getFilesDir() {
+    return filesDir;
+  }
+
+  @Override
+  public Context getApplicationContext() {
+    return this;
+  }
+
+  @Override
+  public Looper getMainLooper() {
+    return main.getLooper();
+  }
+
+  @Override
+  public ComponentName startService(final Intent service) {
+    if (!isBillingService(service))
+      return null;
+    serviceStarts.incrementAndGet();
+    main.post(new Runnable() {
+      @Override
+      public void run() {
+        if (started == null) {
+          started = new BillingService();
+          started.attach(FakeContext.this);
+          serviceCreates.incrementAndGet();
+          started.onCreate();
+        }
+        started.onStartCommand(service, 0, ++lastStartId);
+      }
+    });
+    return service.getComponent();
+  }
+
+  @Override
+  public boolean stopService(Intent service) {
+    if (!isBillingService(service))
+      return false;
+    main.post(new Runnable() {
+      @Override
+      public void run() {
+        if (started != null) {
+          BillingService stopped = started;
+          started = null;
+          stopped.onDestroy();
+        }
+      }
+    });
+    return true;
+  }
+
+  @Override
+  public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+    FakeMarketBillingService market = this.market;
+    if (!Consts.MARKET_BILLING_SERVICE_ACTION.equals(service.getAction()) || market == null
+        || market.failBind()) {
+      return false;
+    }
+    binds.incrementAndGet();
+    if (bound.add(conn) | dead.remove(conn))
+      connectLater(conn, market);
+    return true;
+  }
+
+  @Override
+  public void unbindService(ServiceConnection conn) {
+    dead.remove(conn);
+    if (!bound.remove(conn))
+      throw new IllegalArgumentException("Service not registered: " + conn);
+  }
+
+  @Override
+  public void startActivity(Intent intent) {
+    FakeMarketBillingService market = this.market;
+    if (market == null || !FakeMarketBillingService.ACTION_PURCHASE.equals(intent.getAction()))
+      throw new IllegalArgumentException("No Activity found to handle " + intent);
+    market.purchaseFlow(intent);
+  }
+
+  @Override
+  public void sendBroadcast(final Intent intent) {
+    main.post(new Runnable() {
+      @Override
+      public void run() {
+        new BillingReceiver().onReceive(FakeContext.this, intent);
+      }
+    });
+  }
+
+  private void connectLater(final ServiceConnection conn, final FakeMarketBillingService market) {
+    main.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        if (bound.contains(conn))
+          conn.onServiceConnected(MARKET, market);
+      }
+    }, market.getBindLatencyMillis());
+  }
+
+  private boolean isBillingService(Intent intent) {
+    ComponentName component = intent.getComponent();
+    return component != null && BillingService.class.getName().equals(component.getClassName());
+  }
+}
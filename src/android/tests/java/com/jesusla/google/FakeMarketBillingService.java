@@ -0,0 +1,612 @@
+package com.jesusla.google;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IMarketBillingService;
+import com.jesusla.google.Consts.PurchaseState;
+import com.jesusla.google.Consts.ResponseCode;
+import com.jesusla.util.Base64;
+
+/**
+ * An in-process stand-in for Android Market's billing service, speaking
+ * version 2 of the in-app billing protocol: CHECK_BILLING_SUPPORTED,
+ * REQUEST_PURCHASE, GET_PURCHASE_INFORMATION, CONFIRM_NOTIFICATIONS and
+ * RESTORE_TRANSACTIONS. Requests are answered synchronously, as the binder
+ * call would be; the RESPONSE_CODE, IN_APP_NOTIFY and
+ * PURCHASE_STATE_CHANGED broadcasts that follow are sent to the context
+ * from a Market thread, in the order Market sends them. Purchase state
+ * changes are signed with an RSA key generated for the instance; pass
+ * {@link #getIdentity()} to {@link Security#setIdentity(String)}.
+ *
+ * Latency and failures are configurable. Failures are drawn from a seeded
+ * generator, so a run with the same seed and the same request order fails
+ * the same requests; specific calls can also be failed on demand. A binder
+ * call that throws RemoteException is treated as Market's process dying:
+ * the context disconnects every connection and reconnects it once Market
+ * has restarted, as the system does.
+ */
+public class FakeMarketBillingService extends IMarketBillingService.Stub {
+  /** The action of the purchase flow the PURCHASE_INTENT starts. */
+  static final String ACTION_PURCHASE = "com.jesusla.google.FAKE_PURCHASE_FLOW";
+
+  private static final String EXTRA_REQUEST_ID = "fake_request_id";
+  private static final String EXTRA_ITEM_ID = "fake_item_id";
+  private static final String EXTRA_ITEM_TYPE = "fake_item_type";
+  private static final String EXTRA_DEVELOPER_PAYLOAD = "fake_developer_payload";
+
+  /** An order Market knows about. */
+  static final class Order {
+    final String notifyId;
+    final String orderId;
+    final String productId;
+    final long purchaseTime;
+    final PurchaseState purchaseState;
+    final String developerPayload;
+
+    Order(String notifyId, String orderId, String productId, long purchaseTime,
+        PurchaseState purchaseState, String developerPayload) {
+      this.notifyId = notifyId;
+      this.orderId = orderId;
+      this.productId = productId;
+      this.purchaseTime = purchaseTime;
+      this.purchaseState = purchaseState;
+      this.developerPayload = developerPayload;
+    }
+  }
+
+  private final FakeContext context;
+  private final KeyPair keyPair;
+  private final Random random;
+  private final ScheduledExecutorService market;
+
+  private volatile long callLatencyMillis;
+  private volatile long broadcastLatencyMillis;
+  private volatile long bindLatencyMillis;
+  private volatile double bindFailureRate;
+  private volatile double remoteExceptionRate;
+  private volatile double unavailableRate;
+  private volatile double errorResponseRate;
+  private volatile double droppedResponseRate;
+  private volatile double userCancelRate;
+  private volatile double badSignatureRate;
+  private volatile boolean subscriptionsSupported = true;
+  private final AtomicLong crashNext = new AtomicLong();
+  private final AtomicLong failNextBinds = new AtomicLong();
+  private final ConcurrentHashMap<String, AtomicLong> rejectNext =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private final AtomicLong nextRequestId = new AtomicLong(1);
+  private final AtomicLong nextOrder = new AtomicLong(1);
+  private final Map<String, Order> orders = new ConcurrentHashMap<String, Order>();
+  private final List<Order> owned = Collections.synchronizedList(new ArrayList<Order>());
+  private final Set<String> unconfirmed =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<String> confirmedIds =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final ConcurrentHashMap<String, AtomicLong> requests =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong broadcasts = new AtomicLong();
+  /** The nonce and the number of notification IDs of each GET_PURCHASE_INFORMATION. */
+  private final List<long[]> purchaseInformationRequests =
+      Collections.synchronizedList(new ArrayList<long[]>());
+  private final AtomicLong confirmed = new AtomicLong();
+  private final AtomicLong injectedFailures = new AtomicLong();
+
+  /**
+   * @param context the application the broadcasts are sent to
+   * @param seed the seed failures are drawn from
+   */
+  public FakeMarketBillingService(FakeContext context, long seed) {
+    this.context = context;
+    this.random = new Random(seed);
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(1024);
+      keyPair = generator.generateKeyPair();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    market = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "market");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /** Returns the public key, Base64-encoded as in the SKIdentity meta-data. */
+  public String getIdentity() {
+    return Base64.encode(keyPair.getPublic().getEncoded());
+  }
+
+  /**
+   * Sets how long each binder call takes, how long after a call its
+   * broadcasts are sent, and how long binding takes.
+   */
+  public void setLatency(long callMillis, long broadcastMillis, long bindMillis) {
+    callLatencyMillis = callMillis;
+    broadcastLatencyMillis = broadcastMillis;
+    bindLatencyMillis = bindMillis;
+  }
+
+  /** Fails this fraction of binds outright. */
+  public void setBindFailureRate(double rate) {
+    bindFailureRate = rate;
+  }
+
+  /** Throws a RemoteException from this fraction of binder calls. */
+  public void setRemoteExceptionRate(double rate) {
+    remoteExceptionRate = rate;
+  }
+
+  /** Rejects this fraction of requests with RESULT_SERVICE_UNAVAILABLE. */
+  public void setUnavailableRate(double rate) {
+    unavailableRate = rate;
+  }
+
+  /** Answers this fraction of accepted requests with an asynchronous RESULT_ERROR. */
+  public void setErrorResponseRate(double rate) {
+    errorResponseRate = rate;
+  }
+
+  /** Never answers this fraction of accepted requests. */
+  public void setDroppedResponseRate(double rate) {
+    droppedResponseRate = rate;
+  }
+
+  /** Has the user back out of this fraction of purchase flows. */
+  public void setUserCancelRate(double rate) {
+    userCancelRate = rate;
+  }
+
+  /** Sends this fraction of purchase state changes with a signature that does not match. */
+  public void setBadSignatureRate(double rate) {
+    badSignatureRate = rate;
+  }
+
+  public void setSubscriptionsSupported(boolean supported) {
+    subscriptionsSupported = supported;
+  }
+
+  /** Throws a RemoteException from the next <var>calls</var> binder calls. */
+  public void crashNextCalls(int calls) {
+    crashNext.set(calls);
+  }
+
+  /** Fails the next <var>binds</var> binds. */
+  public void failNextBinds(int binds) {
+    failNextBinds.set(binds);
+  }
+
+  /** Rejects the next <var>calls</var> requests with the method with RESULT_SERVICE_UNAVAILABLE. */
+  public void rejectNextCalls(String method, int calls) {
+    rejectNext.put(method, new AtomicLong(calls));
+  }
+
+  /** Clears every failure rate and pending failure. */
+  public void clearFailures() {
+    bindFailureRate = 0;
+    remoteExceptionRate = 0;
+    unavailableRate = 0;
+    errorResponseRate = 0;
+    droppedResponseRate = 0;
+    userCancelRate = 0;
+    badSignatureRate = 0;
+    crashNext.set(0);
+    failNextBinds.set(0);
+    rejectNext.clear();
+  }
+
+  /**
+   * Adds orders the user already owns, as if bought on another device, for
+   * RESTORE_TRANSACTIONS to return.
+   */
+  public void addOwnedOrders(int count, String productPrefix, int products) {
+    for (int i = 0; i < count; i++) {
+      Order order = newOrder(productPrefix + (i % products), PurchaseState.PURCHASED, null);
+      owned.add(order);
+    }
+  }
+
+  /**
+   * Adds orders bought outside the application, as if on the web store, and
+   * sends an IN_APP_NOTIFY for each at once.
+   */
+  public void notifyNewOrders(int count, String productPrefix, int products) {
+    final List<String> notifyIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      Order order = newOrder(productPrefix + (i % products), PurchaseState.PURCHASED, null);
+      owned.add(order);
+      unconfirmed.add(order.notifyId);
+      notifyIds.add(order.notifyId);
+    }
+    market.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (String notifyId : notifyIds) {
+          sendNotify(notifyId);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends IN_APP_NOTIFY again for every notification that has not been
+   * confirmed, as Market does from time to time.
+   * @return the number of notifications sent
+   */
+  public int renotifyUnconfirmed() {
+    final List<String> notifyIds = new ArrayList<String>(unconfirmed);
+    market.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (String notifyId : notifyIds) {
+          sendNotify(notifyId);
+        }
+      }
+    });
+    return notifyIds.size();
+  }
+
+  /** Returns the number of requests made with the given method. */
+  public long getRequestCount(String method) {
+    AtomicLong count = requests.get(method);
+    return count != null ? count.get() : 0;
+  }
+
+  /**
+   * Returns the nonce and the number of notification IDs of every
+   * GET_PURCHASE_INFORMATION request so far, in order.
+   */
+  public List<long[]> getPurchaseInformationRequests() {
+    synchronized (purchaseInformationRequests) {
+      return new ArrayList<long[]>(purchaseInformationRequests);
+    }
+  }
+
+  /** Returns the number of orders the user owns. */
+  public int getOwnedCount() {
+    return owned.size();
+  }
+
+  /** Returns the number of broadcasts sent. */
+  public long getBroadcastCount() {
+    return broadcasts.get();
+  }
+
+  /** Returns whether the notification has been confirmed. */
+  public boolean isConfirmed(String notifyId) {
+    return confirmedIds.contains(notifyId);
+  }
+
+  /** Returns the number of notifications confirmed. */
+  public long getConfirmedCount() {
+    return confirmed.get();
+  }
+
+  /** Returns the number of purchases whose notification has not been confirmed. */
+  public int getUnconfirmedCount() {
+    return unconfirmed.size();
+  }
+
+  /** Returns the number of failures injected so far. */
+  public long getInjectedFailureCount() {
+    return injectedFailures.get();
+  }
+
+  long getBindLatencyMillis() {
+    return bindLatencyMillis;
+  }
+
+  /** Decides whether a bind fails. */
+  boolean failBind() {
+    return takeOne(failNextBinds) || chance(bindFailureRate);
+  }
+
+  /** Stops the Market thread; broadcasts not yet sent are dropped. */
+  public void shutdown() {
+    market.shutdownNow();
+  }
+
+  @Override
+  public Bundle sendBillingRequest(Bundle request) throws RemoteException {
+    sleep(callLatencyMillis);
+    if (takeOne(crashNext) || chance(remoteExceptionRate)) {
+      context.crashMarket();
+      throw new RemoteException("injected");
+    }
+    String method = request.getString(Consts.BILLING_REQUEST_METHOD);
+    count(method);
+    Bundle response = new Bundle();
+    int apiVersion = request.getInt(Consts.BILLING_REQUEST_API_VERSION);
+    if (method == null || apiVersion < 1 || apiVersion > 2
+        || !context.getPackageName().equals(
+            request.getString(Consts.BILLING_REQUEST_PACKAGE_NAME))) {
+      return responseCode(response, ResponseCode.RESULT_DEVELOPER_ERROR);
+    }
+    if ((method != null && takeOne(rejectNext.get(method))) || chance(unavailableRate))
+      return responseCode(response, ResponseCode.RESULT_SERVICE_UNAVAILABLE);
+
+    if ("CHECK_BILLING_SUPPORTED".equals(method)) {
+      boolean subscriptions =
+          Consts.ITEM_TYPE_SUBSCRIPTION.equals(request.getString(Consts.BILLING_REQUEST_ITEM_TYPE));
+      return responseCode(response, subscriptions && (!subscriptionsSupported || apiVersion < 2)
+          ? ResponseCode.RESULT_BILLING_UNAVAILABLE : ResponseCode.RESULT_OK);
+    } else if ("REQUEST_PURCHASE".equals(method)) {
+      return requestPurchase(request, response);
+    } else if ("GET_PURCHASE_INFORMATION".equals(method)) {
+      return getPurchaseInformation(request, response);
+    } else if ("CONFIRM_NOTIFICATIONS".equals(method)) {
+      return confirmNotifications(request, response);
+    } else if ("RESTORE_TRANSACTIONS".equals(method)) {
+      return restoreTransactions(request, response);
+    }
+    return responseCode(response, ResponseCode.RESULT_DEVELOPER_ERROR);
+  }
+
+  private Bundle requestPurchase(Bundle request, Bundle response) {
+    String itemId = request.getString(Consts.BILLING_REQUEST_ITEM_ID);
+    if (itemId == null)
+      return responseCode(response, ResponseCode.RESULT_DEVELOPER_ERROR);
+    long requestId = nextRequestId.getAndIncrement();
+    Intent flow = new Intent(ACTION_PURCHASE);
+    flow.putExtra(EXTRA_REQUEST_ID, requestId);
+    flow.putExtra(EXTRA_ITEM_ID, itemId);
+    flow.putExtra(EXTRA_ITEM_TYPE, request.getString(Consts.BILLING_REQUEST_ITEM_TYPE));
+    flow.putExtra(EXTRA_DEVELOPER_PAYLOAD,
+        request.getString(Consts.BILLING_REQUEST_DEVELOPER_PAYLOAD));
+    response.putParcelable(Consts.BILLING_RESPONSE_PURCHASE_INTENT,
+        PendingIntent.getActivity(context, 0, flow, PendingIntent.FLAG_ONE_SHOT));
+    response.putLong(Consts.BILLING_RESPONSE_REQUEST_ID, requestId);
+    return responseCode(response, ResponseCode.RESULT_OK);
+  }
+
+  /**
+   * Runs the purchase flow a PURCHASE_INTENT started: the user either
+   * backs out or buys the item, which Market then notifies.
+   */
+  void purchaseFlow(Intent flow) {
+    final long requestId = flow.getLongExtra(EXTRA_REQUEST_ID, -1);
+    final String itemId = flow.getStringExtra(EXTRA_ITEM_ID);
+    final String developerPayload = flow.getStringExtra(EXTRA_DEVELOPER_PAYLOAD);
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (chance(userCancelRate)) {
+          sendResponseCode(requestId, ResponseCode.RESULT_USER_CANCELED);
+          return;
+        }
+        if (!respond(requestId))
+          return;
+        Order order = newOrder(itemId, PurchaseState.PURCHASED, developerPayload);
+        owned.add(order);
+        unconfirmed.add(order.notifyId);
+        sendNotify(order.notifyId);
+      }
+    });
+  }
+
+  private Bundle getPurchaseInformation(Bundle request, Bundle response) {
+    final long nonce = request.getLong(Consts.BILLING_REQUEST_NONCE);
+    String[] notifyIds = request.getStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS);
+    if (notifyIds == null)
+      return responseCode(response, ResponseCode.RESULT_DEVELOPER_ERROR);
+    purchaseInformationRequests.add(new long[] { nonce, notifyIds.length });
+    final List<Order> found = new ArrayList<Order>(notifyIds.length);
+    for (String notifyId : notifyIds) {
+      Order order = orders.get(notifyId);
+      if (order != null)
+        found.add(order);
+    }
+    final long requestId = nextRequestId.getAndIncrement();
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (respond(requestId) && !found.isEmpty())
+          purchaseStateChanged(nonce, found);
+      }
+    });
+    response.putLong(Consts.BILLING_RESPONSE_REQUEST_ID, requestId);
+    return responseCode(response, ResponseCode.RESULT_OK);
+  }
+
+  private Bundle confirmNotifications(Bundle request, Bundle response) {
+    final String[] notifyIds = request.getStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS);
+    if (notifyIds == null)
+      return responseCode(response, ResponseCode.RESULT_DEVELOPER_ERROR);
+    final long requestId = nextRequestId.getAndIncrement();
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (!respond(requestId))
+          return;
+        for (String notifyId : notifyIds) {
+          unconfirmed.remove(notifyId);
+          if (orders.containsKey(notifyId) && confirmedIds.add(notifyId))
+            confirmed.incrementAndGet();
+        }
+      }
+    });
+    response.putLong(Consts.BILLING_RESPONSE_REQUEST_ID, requestId);
+    return responseCode(response, ResponseCode.RESULT_OK);
+  }
+
+  private Bundle restoreTransactions(Bundle request, Bundle response) {
+    final long nonce = request.getLong(Consts.BILLING_REQUEST_NONCE);
+    final long requestId = nextRequestId.getAndIncrement();
+    later(new Runnable() {
+      @Override
+      public void run() {
+        List<Order> restored;
+        synchronized (owned) {
+          restored = new ArrayList<Order>(owned);
+        }
+        if (respond(requestId))
+          purchaseStateChanged(nonce, restored);
+      }
+    });
+    response.putLong(Consts.BILLING_RESPONSE_REQUEST_ID, requestId);
+    return responseCode(response, ResponseCode.RESULT_OK);
+  }
+
+  /**
+   * Sends the response code of an accepted request, unless it is dropped.
+   * @return true if the request succeeded and what follows it should be sent
+   */
+  private boolean respond(long requestId) {
+    if (chance(droppedResponseRate))
+      return false;
+    if (chance(errorResponseRate)) {
+      sendResponseCode(requestId, ResponseCode.RESULT_ERROR);
+      return false;
+    }
+    sendResponseCode(requestId, ResponseCode.RESULT_OK);
+    return true;
+  }
+
+  private void sendResponseCode(long requestId, ResponseCode responseCode) {
+    Intent intent = new Intent(Consts.ACTION_RESPONSE_CODE);
+    intent.putExtra(Consts.INAPP_REQUEST_ID, requestId);
+    intent.putExtra(Consts.INAPP_RESPONSE_CODE, responseCode.ordinal());
+    broadcast(intent);
+  }
+
+  private void sendNotify(String notifyId) {
+    Intent intent = new Intent(Consts.ACTION_NOTIFY);
+    intent.putExtra(Consts.NOTIFICATION_ID, notifyId);
+    broadcast(intent);
+  }
+
+  private void purchaseStateChanged(long nonce, List<Order> changed) {
+    JSONArray array = new JSONArray();
+    for (Order order : changed) {
+      JSONObject json = new JSONObject();
+      json.put("notificationId", order.notifyId);
+      json.put("orderId", order.orderId);
+      json.put("packageName", context.getPackageName());
+      json.put("productId", order.productId);
+      json.put("purchaseTime", order.purchaseTime);
+      json.put("purchaseState", order.purchaseState.ordinal());
+      if (order.developerPayload != null)
+        json.put("developerPayload", order.developerPayload);
+      array.put(json);
+    }
+    JSONObject payload = new JSONObject();
+    payload.put("nonce", nonce);
+    payload.put("orders", array);
+    String signedData = payload.toString();
+    String signature = sign(chance(badSignatureRate) ? signedData + " " : signedData);
+
+    Intent intent = new Intent(Consts.ACTION_PURCHASE_STATE_CHANGED);
+    intent.putExtra(Consts.INAPP_SIGNED_DATA, signedData);
+    intent.putExtra(Consts.INAPP_SIGNATURE, signature);
+    broadcast(intent);
+  }
+
+  private void broadcast(Intent intent) {
+    broadcasts.incrementAndGet();
+    context.sendBroadcast(intent);
+  }
+
+  private Order newOrder(String productId, PurchaseState state, String developerPayload) {
+    long n = nextOrder.getAndIncrement();
+    Order order = new Order("notify-" + n, "12999763169054705758." + n, productId,
+        1300000000000L + n, state, developerPayload);
+    orders.put(order.notifyId, order);
+    return order;
+  }
+
+  private String sign(String signedData) {
+    try {
+      Signature signature = Signature.getInstance("SHA1withRSA");
+      signature.initSign(keyPair.getPrivate());
+      signature.update(signedData.getBytes(StandardCharsets.UTF_8));
+      return Base64.encode(signature.sign());
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Runs what Market does after answering a call, once the broadcast latency has passed. */
+  private void later(Runnable task) {
+    market.schedule(task, broadcastLatencyMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean chance(double rate) {
+    if (rate <= 0)
+      return false;
+    boolean hit;
+    synchronized (random) {
+      hit = random.nextDouble() < rate;
+    }
+    if (hit)
+      injectedFailures.incrementAndGet();
+    return hit;
+  }
+
+  private boolean takeOne(AtomicLong remaining) {
+    if (remaining == null)
+      return false;
+    while (true) {
+      long n = remaining.get();
+      if (n <= 0)
+        return false;
+      if (remaining.compareAndSet(n, n - 1)) {
+        injectedFailures.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  private void count(String method) {
+    String key = method != null ? method : "null";
+    AtomicLong count = requests.get(key);
+    if (count == null) {
+      requests.putIfAbsent(key, new AtomicLong());
+      count = requests.get(key);
+    }
+    count.incrementAndGet();
+  }
+
+  private static Bundle responseCode(Bundle response, ResponseCode responseCode) {
+    response.putInt(Consts.BILLING_RESPONSE_RESPONSE_CODE, responseCode.ordinal());
+    return response;
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0)
+      return;
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link LongConcurrentMap} against a HashMap, and under concurrent
+ * puts and removes from many threads.
+ */
+public class LongConcurrentMapTest {
+  private static final int THREADS = 8;
+
+  /** Runs the task on several threads at once and rethrows any failure. */
+  static void runConcurrently(int threads, final ThreadTask task) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> started = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      final int index = i;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            task.run(index);
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      thread.start();
+      started.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : started) {
+      thread.join();
+    }
+    if (failure.get() instanceof Exception) {
+      throw (Exception) failure.get();
+    } else if (failure.get() != null) {
+      throw (Error) failure.get();
+    }
+  }
+
+  interface ThreadTask {
+    void run(int thread) throws Exception;
+  }
+
+  @Test
+  public void behavesLikeHashMap() {
+    Random random = new Random(11);
+    LongConcurrentMap<String> map = new LongConcurrentMap<String>();
+    Map<Long, String> expected = new HashMap<Long, String>();
+    long[] special = {0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE};
+    for (int op = 0; op < 500000; op++) {
+      // A small key space, so that keys are often present and tables collide
+      long key = random.nextInt(10) == 0 ? special[random.nextInt(special.length)]
+          : random.nextInt(op < 250000 ? 5000 : 200) * 0x10000L;
+      switch (random.nextInt(3)) {
+        case 0:
+          String value = "v" + op;
+          assertEquals(expected.put(key, value), map.put(key, value));
+          break;
+        case 1:
+          assertEquals(expected.remove(key), map.remove(key));
+          break;
+        default:
+          assertEquals(expected.get(key), map.get(key));
+          break;
+      }
+      if (op % 1000 == 0) {
+        assertEquals(expected.size(), map.size());
+      }
+    }
+    for (Map.Entry<Long, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+    assertEquals(expected.size(), map.size());
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void rejectsNullValues() {
+    new LongConcurrentMap<String>().put(1, null);
+  }
+
+  @Test
+  public void concurrentPutsAndRemovesOfOwnKeys() throws Exception {
+    final LongConcurrentMap<Long> map = new LongConcurrentMap<Long>();
+    final int keys = 50000;
+    runConcurrently(THREADS, new ThreadTask() {
+      @Override
+      public void run(int thread) {
+        for (int round = 0; round < 3; round++) {
+          for (long i = 0; i < keys; i++) {
+            long key = i * THREADS + thread;
+            assertNull(map.put(key, key));
+          }
+          for (long i = 0; i < keys; i++) {
+            long key = i * THREADS + thread;
+            assertEquals(Long.valueOf(key), map.get(key));
+          }
+          // Leave the odd keys in the last round
+          for (long i = 0; i < keys; i++) {
+            long key = i * THREADS + thread;
+            if (round < 2 || i % 2 == 0) {
+              assertEquals(Long.valueOf(key), map.remove(key));
+            }
+          }
+        }
+      }
+    });
+    assertEquals(THREADS * keys / 2, map.size());
+    for (long key = 0; key < (long) keys * THREADS; key++) {
+      long i = key / THREADS;
+      assertEquals(i % 2 == 1 ? Long.valueOf(key) : null, map.get(key));
+    }
+  }
+
+  @Test
+  public void concurrentRemovesOfSameKeyHaveOneWinner() throws Exception {
+    final LongConcurrentMap<Object> map = new LongConcurrentMap<Object>();
+    final int keys = 100000;
+    final Object[] values = new Object[keys];
+    for (int i = 0; i < keys; i++) {
+      values[i] = new Object();
+      map.put(i, values[i]);
+    }
+    final AtomicInteger[] wins = new AtomicInteger[keys];
+    for (int i = 0; i < keys; i++) {
+      wins[i] = new AtomicInteger();
+    }
+    runConcurrently(THREADS, new ThreadTask() {
+      @Override
+      public void run(int thread) {
+        // Each thread walks the keys from a different start
+        for (int n = 0; n < keys; n++) {
+          int key = (n + thread * (keys / THREADS)) % keys;
+          Object value = map.remove(key);
+          if (value != null) {
+            assertSame(values[key], value);
+            wins[key].incrementAndGet();
+          }
+        }
+      }
+    });
+    for (int i = 0; i < keys; i++) {
+      assertEquals("key " + i, 1, wins[i].get());
+    }
+    assertEquals(0, map.size());
+  }
+}
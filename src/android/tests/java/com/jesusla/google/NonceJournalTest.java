@@ -0,0 +1,296 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Crash-consistency tests for {@link NonceJournal}: every test damages the
+ * file the way a process killed mid-write would, then checks what a fresh
+ * journal recovers from it.
+ */
+public class NonceJournalTest {
+  // Mirrors the file layout in NonceJournal
+  private static final int HEADER_SIZE = 16;
+  private static final int OFFSET_STATE = 8;
+  private static final int RECORD_SIZE = 24;
+  private static final int RECORDS = 8;
+
+  private static final long HOUR = 60L * 60L * 1000L;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file() throws IOException {
+    return new File(folder.getRoot(), "nonces");
+  }
+
+  private static long expiry() {
+    return System.currentTimeMillis() + HOUR;
+  }
+
+  private static Set<Long> recover(File file) throws IOException {
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    try {
+      return journal.recover().keySet();
+    } finally {
+      journal.close();
+    }
+  }
+
+  private static Set<Long> set(long... nonces) {
+    Set<Long> set = new HashSet<Long>();
+    for (long nonce : nonces) {
+      set.add(nonce);
+    }
+    return set;
+  }
+
+  private static int recordOffset(int region, int position) {
+    return HEADER_SIZE + (region * RECORDS + position) * RECORD_SIZE;
+  }
+
+  @Test
+  public void recoversAddedNoncesThatWereNotRemoved() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    long expiresAt = expiry();
+    journal.add(1, expiresAt);
+    journal.add(2, expiresAt);
+    journal.add(3, expiresAt);
+    journal.remove(2);
+    journal.close();
+
+    NonceJournal reopened = new NonceJournal(file, RECORDS);
+    Map<Long, Long> live = reopened.recover();
+    reopened.close();
+    assertEquals(set(1, 3), live.keySet());
+    assertEquals(Long.valueOf(expiresAt), live.get(1L));
+  }
+
+  @Test
+  public void leavesOutExpiredNonces() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    journal.add(1, System.currentTimeMillis() - 1);
+    journal.add(2, expiry());
+    journal.close();
+    assertEquals(set(2), recover(file));
+  }
+
+  @Test
+  public void appendsAfterRecoveredRecords() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    journal.add(1, expiry());
+    journal.close();
+
+    journal = new NonceJournal(file, RECORDS);
+    journal.add(2, expiry());
+    journal.remove(1);
+    journal.close();
+    assertEquals(set(2), recover(file));
+  }
+
+  @Test
+  public void stopsAtRecordWithBadChecksum() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    for (long nonce = 1; nonce <= 5; nonce++) {
+      journal.add(nonce, expiry());
+    }
+    journal.close();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(recordOffset(0, 2) + 20);
+    int checksum = raf.readInt();
+    raf.seek(recordOffset(0, 2) + 20);
+    raf.writeInt(checksum ^ 0x10000);
+    raf.close();
+    assertEquals(set(1, 2), recover(file));
+  }
+
+  @Test
+  public void stopsAtTornRecord() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    journal.add(1, expiry());
+    journal.add(2, expiry());
+    journal.close();
+
+    // A write interrupted after the fields but before the checksum
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(recordOffset(0, 2));
+    raf.writeInt(1);
+    raf.writeLong(3);
+    raf.writeLong(expiry());
+    raf.writeInt(0);
+    raf.close();
+    assertEquals(set(1, 2), recover(file));
+  }
+
+  @Test
+  public void stopsAtHalfWrittenRecordBytes() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    journal.add(1, expiry());
+    journal.add(2, expiry());
+    journal.close();
+
+    // Only the first half of the second record's bytes made it
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(recordOffset(0, 1) + RECORD_SIZE / 2);
+    raf.write(new byte[RECORD_SIZE / 2]);
+    raf.close();
+    assertEquals(set(1), recover(file));
+  }
+
+  @Test
+  public void truncatedFileIsReinitialized() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    journal.add(1, expiry());
+    journal.close();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(recordOffset(0, 1) + 5);
+    raf.close();
+    assertEquals(set(), recover(file));
+
+    // And is usable afterwards
+    journal = new NonceJournal(file, RECORDS);
+    journal.add(7, expiry());
+    journal.close();
+    assertEquals(set(7), recover(file));
+  }
+
+  @Test
+  public void garbageHeaderIsReinitialized() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    journal.add(1, expiry());
+    journal.close();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.writeInt(0xdeadbeef);
+    raf.close();
+    assertEquals(set(), recover(file));
+  }
+
+  @Test
+  public void compactsWhenRegionFills() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    Set<Long> expected = new HashSet<Long>();
+    for (long nonce = 1; nonce <= 50; nonce++) {
+      journal.add(nonce, expiry());
+      expected.add(nonce);
+      if (nonce % 3 != 0) {
+        journal.remove(nonce);
+        expected.remove(nonce);
+      }
+      // Keep the live set small enough to fit after compaction
+      if (expected.size() > 2) {
+        long oldest = expected.iterator().next();
+        journal.remove(oldest);
+        expected.remove(oldest);
+      }
+    }
+    journal.close();
+    assertEquals(expected, recover(file));
+  }
+
+  @Test
+  public void crashBeforeHeaderSwitchKeepsOldRegion() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    for (long nonce = 1; nonce <= 6; nonce++) {
+      journal.add(nonce, expiry());
+    }
+    journal.remove(1);
+    journal.remove(2);
+    journal.close();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(OFFSET_STATE);
+    long oldState = raf.readLong();
+    raf.close();
+
+    // The region is full, so this append compacts into the other region
+    journal = new NonceJournal(file, RECORDS);
+    journal.add(7, expiry());
+    journal.close();
+    assertEquals(set(3, 4, 5, 6, 7), recover(file));
+
+    // As if the process died before the header was switched over
+    raf = new RandomAccessFile(file, "rw");
+    raf.seek(OFFSET_STATE);
+    raf.writeLong(oldState);
+    raf.close();
+    assertEquals(set(3, 4, 5, 6), recover(file));
+  }
+
+  @Test
+  public void staleRecordsOfEarlierGenerationAreNotReplayed() throws IOException {
+    File file = file();
+    NonceJournal journal = new NonceJournal(file, RECORDS);
+    // Fill region 0 with live nonces, then push through two compactions so
+    // region 0 is reused by a later generation holding fewer records
+    for (long nonce = 1; nonce <= 4; nonce++) {
+      journal.add(nonce, expiry());
+    }
+    for (long nonce = 1; nonce <= 4; nonce++) {
+      journal.remove(nonce);
+    }
+    for (long nonce = 100; nonce < 120; nonce++) {
+      journal.add(nonce, expiry());
+      journal.remove(nonce);
+    }
+    journal.add(200, expiry());
+    journal.close();
+    assertEquals(set(200), recover(file));
+  }
+
+  @Test
+  public void randomCrashPointsRecoverAPrefixOfTheOperations() throws IOException {
+    Random random = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      File file = new File(folder.getRoot(), "nonces-" + round);
+      NonceJournal journal = new NonceJournal(file, RECORDS);
+      int operations = 1 + random.nextInt(RECORDS - 1);
+      for (long nonce = 1; nonce <= operations; nonce++) {
+        journal.add(nonce, expiry());
+      }
+      journal.close();
+
+      // Damage one byte at a random offset within the written records
+      int damaged = random.nextInt(operations * RECORD_SIZE);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.seek(recordOffset(0, 0) + damaged);
+      int b = raf.read();
+      raf.seek(recordOffset(0, 0) + damaged);
+      raf.write(b ^ (1 << random.nextInt(8)));
+      raf.close();
+
+      Set<Long> recovered = recover(file);
+      int intact = damaged / RECORD_SIZE;
+      Set<Long> expected = new HashSet<Long>();
+      for (long nonce = 1; nonce <= intact; nonce++) {
+        expected.add(nonce);
+      }
+      assertEquals("round " + round, expected, recovered);
+      assertTrue(recovered.size() < operations);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link NoncePool}: nonces drawn from many threads at once are
+ * storable and distinct, and however many are drawn the pool runs a single
+ * refiller thread.
+ */
+public class NoncePoolTest {
+  private static int refillerThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ("NoncePool".equals(thread.getName())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void concurrentDrawsAreStorableAndDistinct() throws Exception {
+    int before = refillerThreads();
+    final NoncePool pool = new NoncePool(new SecureRandom(), 16);
+    final int threads = 8;
+    final int perThread = 20000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+    try {
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<long[]>() {
+          @Override
+          public long[] call() {
+            long[] nonces = new long[perThread];
+            for (int j = 0; j < perThread; j++) {
+              nonces[j] = pool.next();
+            }
+            return nonces;
+          }
+        }));
+      }
+      Set<Long> seen = new HashSet<Long>();
+      for (Future<long[]> future : futures) {
+        for (long nonce : future.get(60, TimeUnit.SECONDS)) {
+          assertTrue(NonceTable.isStorable(nonce));
+          assertTrue("drawn twice: " + nonce, seen.add(nonce));
+        }
+      }
+      assertEquals(threads * perThread, seen.size());
+    } finally {
+      executor.shutdownNow();
+    }
+    // One refiller, not one per caller or per refill
+    assertEquals(before + 1, refillerThreads());
+  }
+}
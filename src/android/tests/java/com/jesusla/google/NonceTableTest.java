@@ -0,0 +1,183 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link NonceTable}: single-threaded semantics, concurrent
+ * add/contains/remove from many threads, a reader racing writers that reuse
+ * the slot of an expired nonce, and a table that never grows however many
+ * nonces pass through it.
+ */
+public class NonceTableTest {
+  private static final long HOUR = 60L * 60L * 1000L;
+
+  /** Runs the task on the given number of threads at once. */
+  private static void runConcurrently(int threads, final Callable<Void> task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            return task.call();
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void addContainsRemove() {
+    NonceTable table = new NonceTable(16, HOUR);
+    table.add(42);
+    assertTrue(table.contains(42));
+    assertFalse(table.contains(43));
+    table.remove(42);
+    assertFalse(table.contains(42));
+    assertEquals(0, table.size());
+    assertFalse(NonceTable.isStorable(0));
+    assertFalse(table.contains(0));
+  }
+
+  @Test
+  public void expiredNoncesAreUnknown() throws InterruptedException {
+    NonceTable table = new NonceTable(16, HOUR);
+    table.add(42, 20);
+    table.add(43);
+    Thread.sleep(40);
+    assertFalse(table.contains(42));
+    assertTrue(table.contains(43));
+    assertEquals(1, table.size());
+  }
+
+  @Test
+  public void addingAKnownNonceKeepsOneCopy() {
+    NonceTable table = new NonceTable(16, HOUR);
+    for (int i = 0; i < 4; i++) {
+      table.add(42);
+    }
+    assertEquals(1, table.size());
+    table.remove(42);
+    assertFalse(table.contains(42));
+  }
+
+  @Test
+  public void concurrentAddContainsRemove() throws Exception {
+    final int threads = 8;
+    final int perThread = 20000;
+    // Room for every thread's nonces, so none is evicted
+    final NonceTable table = new NonceTable(threads * 64, HOUR);
+    final AtomicBoolean failed = new AtomicBoolean();
+    runConcurrently(threads, new Callable<Void>() {
+      @Override
+      public Void call() {
+        Random random = new Random(Thread.currentThread().getId());
+        long[] mine = new long[32];
+        for (int i = 0; i < perThread; i++) {
+          int j = i % mine.length;
+          if (mine[j] != 0) {
+            if (!table.contains(mine[j])) {
+              failed.set(true);
+            }
+            table.remove(mine[j]);
+            if (table.contains(mine[j])) {
+              failed.set(true);
+            }
+          }
+          long nonce;
+          do {
+            nonce = random.nextLong();
+          } while (!NonceTable.isStorable(nonce));
+          table.add(nonce);
+          if (!table.contains(nonce)) {
+            failed.set(true);
+          }
+          mine[j] = nonce;
+        }
+        for (long nonce : mine) {
+          table.remove(nonce);
+        }
+        return null;
+      }
+    });
+    assertFalse(failed.get());
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void expiredNonceIsNeverSeenWithAReusedSlotsExpiry() throws Exception {
+    // Two slots: the expired nonce's slot is reused over and over
+    final NonceTable table = new NonceTable(2, HOUR);
+    final long expired = 42;
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicBoolean seen = new AtomicBoolean();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          if (table.contains(expired)) {
+            seen.set(true);
+          }
+        }
+      }
+    });
+    reader.start();
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+      for (long i = 100; System.nanoTime() < deadline && !seen.get(); i++) {
+        table.add(expired, -HOUR);
+        table.add(i);
+        table.add(i + 1);
+        table.remove(i);
+        table.remove(i + 1);
+      }
+    } finally {
+      done.set(true);
+      reader.join();
+    }
+    assertFalse(seen.get());
+  }
+
+  @Test
+  public void memoryStaysBoundedUnderChurn() {
+    NonceTable table = new NonceTable(64, HOUR);
+    int capacity = table.capacity();
+    Random random = new Random(1);
+    long last = 0;
+    for (int i = 0; i < 1000000; i++) {
+      do {
+        last = random.nextLong();
+      } while (!NonceTable.isStorable(last));
+      // Never removed, as if no response ever arrived
+      table.add(last);
+    }
+    assertEquals(capacity, table.capacity());
+    assertEquals(capacity, table.size());
+    // The oldest entries were evicted to make room for the newest
+    assertTrue(table.contains(last));
+  }
+}
@@ -0,0 +1,130 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link NotificationBatcher} on the stand-in main looper: IDs are
+ * coalesced and split by the batch size, a retried ID keeps its own attempt
+ * count and backoff without affecting fresh IDs, and startIds are released
+ * in order.
+ */
+public class NotificationBatcherTest {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /** Records what the batcher hands over, and accepts or refuses batches. */
+  private static final class RecordingSender implements NotificationBatcher.Sender {
+    final BlockingQueue<NotificationBatcher.Batch> sent =
+        new LinkedBlockingQueue<NotificationBatcher.Batch>();
+    final BlockingQueue<NotificationBatcher.Batch> dropped =
+        new LinkedBlockingQueue<NotificationBatcher.Batch>();
+    volatile boolean accept = true;
+
+    @Override
+    public boolean send(NotificationBatcher.Batch batch) {
+      // Read before publishing the batch, which lets the test change it
+      boolean accepted = accept;
+      sent.add(batch);
+      return accepted;
+    }
+
+    @Override
+    public void dropped(NotificationBatcher.Batch batch) {
+      dropped.add(batch);
+    }
+
+    NotificationBatcher.Batch nextSent() throws InterruptedException {
+      NotificationBatcher.Batch batch = sent.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      assertNotNull("timed out waiting for a batch", batch);
+      return batch;
+    }
+
+    NotificationBatcher.Batch nextDropped() throws InterruptedException {
+      NotificationBatcher.Batch batch = dropped.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      assertNotNull("timed out waiting for dropped IDs", batch);
+      return batch;
+    }
+  }
+
+  @Test
+  public void idsQueuedWithinTheWindowAreSentTogether() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    NotificationBatcher batcher = new NotificationBatcher("test", 200, 64, sender);
+    batcher.add(1, new String[] { "a", "b" });
+    batcher.add(2, new String[] { "b", "c" });
+    NotificationBatcher.Batch batch = sender.nextSent();
+    assertArrayEquals(new String[] { "a", "b", "c" }, batch.mNotifyIds);
+    assertEquals(2, batch.mStartId);
+    assertNull(sender.sent.poll(300, TimeUnit.MILLISECONDS));
+    assertEquals(0, batcher.getQueuedCount());
+  }
+
+  @Test
+  public void fullBatchesAreSplitAndSentWithoutWaiting() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    NotificationBatcher batcher = new NotificationBatcher("test", 60000, 2, sender);
+    batcher.add(-1, new String[] { "a", "b", "c", "d", "e" });
+    assertArrayEquals(new String[] { "a", "b" }, sender.nextSent().mNotifyIds);
+    assertArrayEquals(new String[] { "c", "d" }, sender.nextSent().mNotifyIds);
+    assertArrayEquals(new String[] { "e" }, sender.nextSent().mNotifyIds);
+    assertEquals(5, batcher.getBatchSizes().getSum());
+  }
+
+  @Test
+  public void retriedIdsBackOffWithoutHoldingBackFreshIds() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    NotificationBatcher batcher = new NotificationBatcher("test", 0, 64, sender);
+    batcher.add(-1, new String[] { "old" });
+    NotificationBatcher.Batch failed = sender.nextSent();
+    long failedAt = System.nanoTime();
+    batcher.retry(failed);
+    batcher.add(-1, new String[] { "fresh" });
+    // The fresh ID goes out at once; the failed one after its backoff
+    assertArrayEquals(new String[] { "fresh" }, sender.nextSent().mNotifyIds);
+    NotificationBatcher.Batch retried = sender.nextSent();
+    assertArrayEquals(new String[] { "old" }, retried.mNotifyIds);
+    assertEquals(1, retried.mEntries[0].mAttempt);
+    // The clock has ms resolution
+    assertTrue(System.nanoTime() - failedAt
+        >= TimeUnit.MILLISECONDS.toNanos(NotificationBatcher.RETRY_DELAY_MILLIS - 1));
+  }
+
+  @Test
+  public void idsAreDroppedAfterTheLastAttempt() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    NotificationBatcher batcher = new NotificationBatcher("test", 0, 64, sender);
+    batcher.add(-1, new String[] { "a" });
+    NotificationBatcher.Batch batch = sender.nextSent();
+    for (int attempt = 1; attempt < NotificationBatcher.MAX_ATTEMPTS; attempt++) {
+      batcher.retry(batch);
+      batch = sender.nextSent();
+      assertEquals(attempt, batch.mEntries[0].mAttempt);
+    }
+    batcher.retry(batch);
+    assertArrayEquals(new String[] { "a" }, sender.nextDropped().mNotifyIds);
+    assertEquals(0, batcher.getQueuedCount());
+  }
+
+  @Test
+  public void refusedBatchKeepsItsStartIds() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    NotificationBatcher batcher = new NotificationBatcher("test", 0, 64, sender);
+    sender.accept = false;
+    batcher.add(3, new String[] { "a" });
+    assertEquals(3, sender.nextSent().mStartId);
+    sender.accept = true;
+    // Requeued under startId 3, which is released again by the resend
+    NotificationBatcher.Batch resent = sender.nextSent();
+    assertArrayEquals(new String[] { "a" }, resent.mNotifyIds);
+    assertEquals(3, resent.mStartId);
+  }
+}
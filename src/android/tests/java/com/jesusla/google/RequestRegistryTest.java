@@ -0,0 +1,119 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import com.jesusla.google.LongConcurrentMapTest.ThreadTask;
+
+/**
+ * Stress tests of {@link RequestRegistry}: requests queued from many
+ * threads reach the draining thread once each and in order per thread, and
+ * each sent request is claimed exactly once however many response codes
+ * race for it.
+ */
+public class RequestRegistryTest {
+  private static final int THREADS = 8;
+
+  private static final class Request {
+    final int producer;
+    final int sequence;
+
+    Request(int producer, int sequence) {
+      this.producer = producer;
+      this.sequence = sequence;
+    }
+  }
+
+  @Test
+  public void pendingRequestsFromManyThreadsDrainInOrder() throws Exception {
+    final RequestRegistry<Request> registry = new RequestRegistry<Request>();
+    final int perProducer = 100000;
+    final int[] next = new int[THREADS - 1];
+    final AtomicInteger drained = new AtomicInteger();
+    LongConcurrentMapTest.runConcurrently(THREADS, new ThreadTask() {
+      @Override
+      public void run(int thread) {
+        if (thread == THREADS - 1) {
+          // The single consumer, as runPendingRequests is
+          int total = (THREADS - 1) * perProducer;
+          while (drained.get() < total) {
+            Request request = registry.pollPending();
+            if (request == null) {
+              Thread.yield();
+              continue;
+            }
+            assertEquals(next[request.producer]++, request.sequence);
+            drained.incrementAndGet();
+          }
+          return;
+        }
+        for (int i = 0; i < perProducer; i++) {
+          registry.addPending(new Request(thread, i));
+        }
+      }
+    });
+    for (int producer = 0; producer < THREADS - 1; producer++) {
+      assertEquals(perProducer, next[producer]);
+    }
+    assertNull(registry.pollPending());
+  }
+
+  @Test
+  public void racingResponseCodesClaimEachRequestOnce() throws Exception {
+    final RequestRegistry<Request> registry = new RequestRegistry<Request>();
+    final int requests = 200000;
+    final AtomicIntegerArray claims = new AtomicIntegerArray(requests);
+    final AtomicInteger sent = new AtomicInteger();
+    LongConcurrentMapTest.runConcurrently(THREADS, new ThreadTask() {
+      @Override
+      public void run(int thread) {
+        if (thread == 0) {
+          // Sends requests while the others already claim them
+          for (int id = 0; id < requests; id++) {
+            registry.addSent(id, new Request(0, id));
+            sent.set(id + 1);
+          }
+          return;
+        }
+        // Every response code arrives several times, on different threads
+        int id = 0;
+        while (id < requests) {
+          if (id >= sent.get()) {
+            Thread.yield();
+            continue;
+          }
+          Request request = registry.claimSent(id);
+          if (request != null) {
+            assertEquals(id, request.sequence);
+            claims.incrementAndGet(id);
+          }
+          id++;
+        }
+      }
+    });
+    for (int id = 0; id < requests; id++) {
+      assertEquals("request " + id, 1, claims.get(id));
+    }
+    assertEquals(0, registry.sentCount());
+  }
+
+  @Test
+  public void removedPendingRequestIsNotDrained() {
+    RequestRegistry<Request> registry = new RequestRegistry<Request>();
+    Request first = new Request(0, 0);
+    Request second = new Request(0, 1);
+    registry.addPending(first);
+    registry.addPending(second);
+    assertTrue(registry.removePending(first));
+    assertEquals(1, registry.pendingCount());
+    assertEquals(second, registry.peekPending());
+    assertEquals(second, registry.pollPending());
+    assertNull(registry.pollPending());
+  }
+}
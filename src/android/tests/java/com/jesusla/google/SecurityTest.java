@@ -0,0 +1,111 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jesusla.util.Base64;
+
+/**
+ * Tests purchase verification against payloads signed with a generated key,
+ * in particular what redelivered payloads cost.
+ */
+public class SecurityTest {
+  private static PrivateKey privateKey;
+
+  @BeforeClass
+  public static void generateKey() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    KeyPair pair = generator.generateKeyPair();
+    privateKey = pair.getPrivate();
+    Security.setIdentity(Base64.encode(pair.getPublic().getEncoded()));
+  }
+
+  private static String payload(long nonce, int orders) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"nonce\":").append(nonce).append(",\"orders\":[");
+    for (int i = 0; i < orders; i++) {
+      if (i > 0)
+        json.append(',');
+      json.append("{\"notificationId\":\"n").append(i)
+          .append("\",\"orderId\":\"o").append(i)
+          .append("\",\"productId\":\"sku").append(i)
+          .append("\",\"purchaseTime\":1300000000000,\"purchaseState\":0}");
+    }
+    return json.append("]}").toString();
+  }
+
+  private static String sign(String data) throws GeneralSecurityException {
+    Signature signature = Signature.getInstance("SHA1withRSA");
+    signature.initSign(privateKey);
+    signature.update(data.getBytes(StandardCharsets.UTF_8));
+    return Base64.encode(signature.sign());
+  }
+
+  @Test
+  public void verifiesSignedPayloadOnce() throws GeneralSecurityException {
+    String data = payload(Security.generateNonce(), 3);
+    List<VerifiedPurchase> purchases = Security.verifyPurchase(data, sign(data));
+    assertNotNull(purchases);
+    assertEquals(3, purchases.size());
+    assertEquals("sku2", purchases.get(2).productId);
+    assertEquals(2, purchases.get(2).orderIndex);
+
+    // The nonce is used up
+    assertNull(Security.verifyPurchase(data, sign(data)));
+  }
+
+  @Test
+  public void rejectsTamperedPayload() throws GeneralSecurityException {
+    long nonce = Security.generateNonce();
+    String data = payload(nonce, 1);
+    String signature = sign(data);
+    assertNull(Security.verifyPurchase(data.replace("sku0", "sku9"), signature));
+    // A failed verification leaves the nonce for the genuine payload
+    assertNotNull(Security.verifyPurchase(data, signature));
+  }
+
+  @Test
+  public void rejectsUnknownNonceWithoutVerifying() throws GeneralSecurityException {
+    String data = payload(12345L, 1);
+    long verifications = Security.getSignatureVerificationCount();
+    assertNull(Security.verifyPurchase(data, sign(data)));
+    assertEquals(verifications, Security.getSignatureVerificationCount());
+  }
+
+  @Test
+  public void redeliveriesCostOneSignatureVerification() throws GeneralSecurityException {
+    String data = payload(Security.generateNonce(), 2);
+    String signature = sign(data);
+    long verifications = Security.getSignatureVerificationCount();
+    long unknown = Security.getUnknownNonceCount();
+    int accepted = 0;
+    for (int i = 0; i < 100; i++) {
+      if (Security.verifyPurchase(data, signature) != null)
+        accepted++;
+    }
+    assertEquals(1, accepted);
+    assertEquals(verifications + 1, Security.getSignatureVerificationCount());
+    assertEquals(unknown + 99, Security.getUnknownNonceCount());
+  }
+
+  @Test
+  public void unsignedPayloadDropsPurchases() {
+    String data = payload(Security.generateNonce(), 2);
+    List<VerifiedPurchase> purchases = Security.verifyPurchase(data, "");
+    assertNotNull(purchases);
+    assertEquals(0, purchases.size());
+  }
+}
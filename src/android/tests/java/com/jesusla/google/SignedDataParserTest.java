@@ -0,0 +1,319 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Differential tests of {@link SignedDataParser} against org.json. Every
+ * payload, well formed, fuzzed or malformed, must read the same through
+ * {@link SignedDataParser#parse(String)} as through the JSONObject tree,
+ * and whenever the streaming parser accepts a payload on its own it must
+ * agree with org.json too.
+ */
+public class SignedDataParserTest {
+  private static final String[] MALFORMED = {
+    "",
+    " ",
+    "[]",
+    "null",
+    "{",
+    "}",
+    "{\"nonce\":1",
+    "{\"nonce\":1} trailing",
+    "{\"nonce\":1}}",
+    "{\"nonce\":1-2e+}",
+    "{\"nonce\":1-2e+,\"orders\":[]}",
+    "{\"nonce\":-}",
+    "{\"nonce\":01}",
+    "{\"nonce\":1.}",
+    "{\"nonce\":.5}",
+    "{\"nonce\":+1}",
+    "{\"nonce\":1e}",
+    "{\"nonce\":1.9}",
+    "{\"nonce\":1e3}",
+    "{\"nonce\":1e30}",
+    "{\"nonce\":9223372036854775807}",
+    "{\"nonce\":9223372036854775808}",
+    "{\"nonce\":-9223372036854775809}",
+    "{\"nonce\":\"12\"}",
+    "{\"nonce\":\" 12\"}",
+    "{\"nonce\":\"1.9\"}",
+    "{\"nonce\":\"0x10\"}",
+    "{\"nonce\":\"1d\"}",
+    "{\"nonce\":true}",
+    "{\"nonce\":null}",
+    "{\"nonce\":{}}",
+    "{\"nonce\":1,\"nonce\":2}",
+    "{nonce:1}",
+    "{'nonce':1}",
+    "{\"nonce\":1,}",
+    "{\"nonce\":1;\"orders\":[]}",
+    "{\"nonce\" = 1}",
+    "{\"orders\":{}}",
+    "{\"orders\":[1]}",
+    "{\"orders\":[{}]}",
+    "{\"orders\":[],\"orders\":[]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\",\"purchaseTime\":1},]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\"}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":1,\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":null,\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":\"0\",\"productId\":\"a\",\"purchaseTime\":\"1\"}]}",
+    "{\"orders\":[{\"purchaseState\":1.5,\"productId\":\"a\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":9,\"productId\":\"a\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":4294967296,\"productId\":\"a\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":true,\"productId\":\"a\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\",\"purchaseTime\":1,"
+        + "\"orderId\":7,\"developerPayload\":null,\"notificationId\":false}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\",\"purchaseTime\":1,"
+        + "\"developerPayload\":null}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\",\"purchaseTime\":1,"
+        + "\"notificationId\":null}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\",\"purchaseTime\":1,"
+        + "\"x\":1,\"x\":2}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\\x\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\\u00\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\\u00e9\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\\u+0e9\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\nb\",\"purchaseTime\":1}]}",
+    "{\"orders\":[{\"purchaseState\":0,\"productId\":\"a\tb\",\"purchaseTime\":1}]}",
+    "{\"x\":{\"a\":1,\"a\":2},\"nonce\":3}",
+    "{\"x\":[truex],\"nonce\":3}",
+    "{\"x\":nul,\"nonce\":3}",
+    "{\"x\":[1,2,],\"nonce\":3}",
+    "{\"x\":\"unterminated",
+  };
+
+  /** What a payload reads as, or the fact that it is refused. */
+  private static String describe(SignedDataParser.Result result) {
+    StringBuilder s = new StringBuilder();
+    s.append("nonce=").append(result.nonce);
+    for (VerifiedPurchase purchase : result.purchases) {
+      s.append(" [").append(purchase.orderIndex)
+          .append(' ').append(purchase.purchaseState)
+          .append(' ').append(purchase.notificationId)
+          .append(' ').append(purchase.productId)
+          .append(' ').append(purchase.orderId)
+          .append(' ').append(purchase.purchaseTime)
+          .append(' ').append(purchase.developerPayload).append(']');
+    }
+    return s.toString();
+  }
+
+  private static String withJsonObject(String json) {
+    try {
+      return describe(SignedDataParser.parseWithJsonObject(json));
+    } catch (Exception e) {
+      return "refused";
+    }
+  }
+
+  private static String parsed(String json) {
+    try {
+      return describe(SignedDataParser.parse(json));
+    } catch (Exception e) {
+      return "refused";
+    }
+  }
+
+  /** @return whether the streaming parser accepted the payload on its own */
+  private static boolean check(String json) {
+    String expected = withJsonObject(json);
+    assertEquals(json, expected, parsed(json));
+    SignedDataParser.Result streamed;
+    try {
+      streamed = SignedDataParser.parseStreaming(json);
+    } catch (Exception e) {
+      return false;
+    }
+    assertEquals(json, expected, describe(streamed));
+    return true;
+  }
+
+  private static String randomString(Random random) {
+    StringBuilder s = new StringBuilder();
+    int length = random.nextInt(12);
+    for (int i = 0; i < length; i++) {
+      switch (random.nextInt(12)) {
+      case 0:
+        s.append("\\\"");
+        break;
+      case 1:
+        s.append("\\\\");
+        break;
+      case 2:
+        s.append("\\u").append(String.format("%04x", random.nextInt(0x10000)));
+        break;
+      case 3:
+        s.append("\\n");
+        break;
+      case 4:
+        s.append('é');
+        break;
+      default:
+        s.append((char) ('a' + random.nextInt(26)));
+        break;
+      }
+    }
+    return "\"" + s + "\"";
+  }
+
+  private static String randomNumber(Random random) {
+    switch (random.nextInt(8)) {
+    case 0:
+      return "-" + random.nextInt(1000);
+    case 1:
+      return random.nextInt(100) + "." + random.nextInt(100);
+    case 2:
+      return random.nextInt(10) + "e" + random.nextInt(20);
+    case 3:
+      return "\"" + random.nextInt(1000) + "\"";
+    case 4:
+      return Long.toString(random.nextLong());
+    default:
+      return Integer.toString(random.nextInt(4));
+    }
+  }
+
+  private static String randomValue(Random random, int depth) {
+    int choice = random.nextInt(depth > 2 ? 5 : 7);
+    switch (choice) {
+    case 0:
+      return randomString(random);
+    case 1:
+      return randomNumber(random);
+    case 2:
+      return "true";
+    case 3:
+      return "null";
+    case 4:
+      return "false";
+    case 5: {
+      StringBuilder s = new StringBuilder("[");
+      int length = random.nextInt(3);
+      for (int i = 0; i < length; i++) {
+        s.append(i > 0 ? "," : "").append(randomValue(random, depth + 1));
+      }
+      return s.append(']').toString();
+    }
+    default: {
+      StringBuilder s = new StringBuilder("{");
+      int length = random.nextInt(3);
+      for (int i = 0; i < length; i++) {
+        s.append(i > 0 ? "," : "").append("\"k").append(i).append("\":")
+            .append(randomValue(random, depth + 1));
+      }
+      return s.append('}').toString();
+    }
+    }
+  }
+
+  private static String space(Random random) {
+    return random.nextInt(4) == 0 ? " \n\t\r".substring(random.nextInt(4)) : "";
+  }
+
+  /** A payload shaped like Android Market's, with some fields varied. */
+  private static String randomPayload(Random random) {
+    StringBuilder s = new StringBuilder("{");
+    s.append(space(random)).append("\"nonce\"").append(space(random)).append(':')
+        .append(space(random)).append(random.nextInt(6) == 0 ? randomValue(random, 0)
+            : Long.toString(random.nextLong()));
+    s.append(",\"orders\":[");
+    int orders = random.nextInt(4);
+    for (int i = 0; i < orders; i++) {
+      s.append(i > 0 ? "," : "").append('{');
+      s.append("\"notificationId\":").append(randomString(random));
+      s.append(",\"orderId\":").append(randomString(random));
+      s.append(",\"packageName\":\"com.example\"");
+      s.append(",\"productId\":").append(randomString(random));
+      s.append(",\"purchaseTime\":").append(random.nextInt(6) == 0 ? randomNumber(random)
+          : Long.toString(1300000000000L + random.nextInt(1000000)));
+      s.append(",\"purchaseState\":").append(random.nextInt(6) == 0 ? randomNumber(random)
+          : Integer.toString(random.nextInt(3)));
+      if (random.nextBoolean()) {
+        s.append(",\"developerPayload\":").append(random.nextInt(6) == 0
+            ? randomValue(random, 0) : randomString(random));
+      }
+      if (random.nextInt(4) == 0) {
+        s.append(",\"extra\":").append(randomValue(random, 0));
+      }
+      s.append(space(random)).append('}');
+    }
+    s.append("]");
+    if (random.nextInt(4) == 0) {
+      s.append(",\"extra\":").append(randomValue(random, 0));
+    }
+    return s.append(space(random)).append('}').toString();
+  }
+
+  /** Applies a random edit: a character deleted, inserted or replaced, or the tail cut. */
+  private static String mutate(Random random, String json) {
+    String alphabet = "{}[]\":,\\-+.eE0123456789 tfnu'/x\n";
+    int at = random.nextInt(json.length() + 1);
+    char c = alphabet.charAt(random.nextInt(alphabet.length()));
+    switch (random.nextInt(5)) {
+    case 0:
+      return at < json.length() ? json.substring(0, at) + json.substring(at + 1) : json;
+    case 1:
+      return json.substring(0, at) + c + json.substring(at);
+    case 2:
+      return at < json.length() ? json.substring(0, at) + c + json.substring(at + 1) : json;
+    case 3:
+      return json.substring(0, at);
+    default:
+      int end = at + random.nextInt(json.length() - at + 1);
+      return json.substring(0, at) + json.substring(at, end) + json.substring(at);
+    }
+  }
+
+  @Test
+  public void malformedPayloadsReadAsWithOrgJson() {
+    for (String json : MALFORMED) {
+      check(json);
+    }
+  }
+
+  @Test
+  public void marketPayloadsAreStreamed() {
+    String json = "{\"nonce\":-4735263548912736517,\"orders\":["
+        + "{\"notificationId\":\"n0\",\"orderId\":\"12999763169054705758.1\","
+        + "\"packageName\":\"com.example\",\"productId\":\"gas\","
+        + "\"purchaseTime\":1300000000000,\"purchaseState\":0,"
+        + "\"developerPayload\":\"{\\\"level\\\":3}\"},"
+        + "{\"orderId\":\"12999763169054705758.2\",\"productId\":\"sword\","
+        + "\"purchaseTime\":1300000000001,\"purchaseState\":2}]}";
+    assertTrue(check(json));
+    SignedDataParser.Result result = SignedDataParser.parseStreaming(json);
+    assertEquals(-4735263548912736517L, result.nonce);
+    assertEquals(2, result.purchases.size());
+    assertEquals("{\"level\":3}", result.purchases.get(0).developerPayload);
+    assertEquals(null, result.purchases.get(1).notificationId);
+    assertEquals(1, result.purchases.get(1).orderIndex);
+  }
+
+  @Test
+  public void fuzzedPayloadsReadAsWithOrgJson() {
+    Random random = new Random(3);
+    int streamed = 0;
+    int refused = 0;
+    int payloads = 20000;
+    for (int i = 0; i < payloads; i++) {
+      String json = randomPayload(random);
+      int edits = random.nextInt(3);
+      for (int e = 0; e < edits; e++) {
+        json = mutate(random, json);
+      }
+      if (check(json)) {
+        streamed++;
+      } else if ("refused".equals(withJsonObject(json))) {
+        refused++;
+      }
+    }
+    // Both paths get a real workout
+    assertTrue("streamed " + streamed, streamed > payloads / 4);
+    assertTrue("refused " + refused, refused > payloads / 10);
+  }
+}
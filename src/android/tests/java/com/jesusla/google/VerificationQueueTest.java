@@ -0,0 +1,82 @@
+package com.jesusla.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link VerificationQueue}: a full queue rejects payloads without
+ * blocking the caller, and accepted payloads are delivered in order once
+ * the worker catches up. The payloads are not JSON, so they fail to verify
+ * without needing a key.
+ */
+public class VerificationQueueTest {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /** Records the startIds delivered to the callback. */
+  private static final class RecordingCallback implements VerificationQueue.Callback {
+    final BlockingQueue<Integer> delivered = new LinkedBlockingQueue<Integer>();
+
+    @Override
+    public void onVerified(int startId, String signedData, String signature,
+        ArrayList<VerifiedPurchase> purchases) {
+      assertNull(purchases);
+      delivered.add(startId);
+    }
+
+    int next() throws InterruptedException {
+      Integer startId = delivered.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      assertNotNull("timed out waiting for a delivery", startId);
+      return startId;
+    }
+  }
+
+  @Test
+  public void fullQueueRejectsWithoutBlocking() throws Exception {
+    VerificationQueue queue = new VerificationQueue(2);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    assertTrue(queue.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }));
+    assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+    RecordingCallback callback = new RecordingCallback();
+    assertTrue(queue.submit(1, "not json", "", callback));
+    assertTrue(queue.submit(2, "not json", "", callback));
+    long before = System.nanoTime();
+    assertFalse(queue.submit(3, "not json", "", callback));
+    assertTrue(System.nanoTime() - before < TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1, queue.getRejectedCount());
+    assertEquals(2, queue.getQueueDepth());
+
+    release.countDown();
+    assertEquals(1, callback.next());
+    assertEquals(2, callback.next());
+    assertNull(callback.delivered.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(2, queue.getCompletedCount());
+    assertEquals(0, queue.getQueueDepth());
+
+    // Room again once drained
+    assertTrue(queue.submit(4, "not json", "", callback));
+    assertEquals(4, callback.next());
+  }
+}
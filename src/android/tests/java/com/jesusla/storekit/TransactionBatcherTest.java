@@ -0,0 +1,198 @@
+package com.jesusla.storekit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.jesusla.ane.Closure;
+
+/**
+ * Tests of {@link TransactionBatcher}: a full batch is sent at once, a
+ * partial one once the flush latency has passed, batches go out in the
+ * order their updates were added however many threads add and flush, and
+ * nothing is sent while the batcher's lock is held.
+ */
+public class TransactionBatcherTest {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /** Records each onTransactionUpdates call, as the update ids it carried. */
+  private static class RecordingStoreKit extends StoreKit {
+    final List<int[]> batches = Collections.synchronizedList(new ArrayList<int[]>());
+    volatile long lastCallAt;
+
+    @Override
+    public void asyncFlashCall(Closure closure, Object target, String method, Object... args) {
+      assertEquals("onTransactionUpdates", method);
+      Object[] transactions = (Object[]) args[0];
+      int[] ids = new int[transactions.length];
+      for (int i = 0; i < ids.length; i++) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) transactions[i];
+        ids[i] = (Integer) map.get("_updateId");
+      }
+      lastCallAt = System.nanoTime();
+      sent(ids);
+      batches.add(ids);
+    }
+
+    /** Called with each batch before it is recorded. */
+    void sent(int[] ids) {
+    }
+
+    int sentCount() {
+      int count = 0;
+      synchronized (batches) {
+        for (int[] batch : batches)
+          count += batch.length;
+      }
+      return count;
+    }
+
+    void awaitSent(int count) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+      while (sentCount() < count) {
+        assertTrue("timed out waiting for " + count + " updates", System.nanoTime() < deadline);
+        Thread.sleep(2);
+      }
+    }
+  }
+
+  private static Transaction update(int updateId) {
+    return Transaction.google(Transaction.STATE_VERIFY, "sku.gold", "order", 0, updateId, "n",
+        -1, -1);
+  }
+
+  @Test
+  public void fullBatchIsSentAtOnce() {
+    RecordingStoreKit storeKit = new RecordingStoreKit();
+    TransactionBatcher batcher = new TransactionBatcher(storeKit);
+    batcher.setBatching(3, TIMEOUT_MILLIS);
+    for (int i = 0; i < 7; i++)
+      batcher.add(update(i));
+    // Sent on the adding thread, without waiting for the latency
+    assertEquals(2, storeKit.batches.size());
+    assertEquals("[0, 1, 2]", Arrays.toString(storeKit.batches.get(0)));
+    assertEquals("[3, 4, 5]", Arrays.toString(storeKit.batches.get(1)));
+    batcher.flush();
+    assertEquals("[6]", Arrays.toString(storeKit.batches.get(2)));
+    assertEquals(3, batcher.getBatchSizes().getCount());
+  }
+
+  @Test
+  public void partialBatchIsSentAfterTheLatency() throws InterruptedException {
+    RecordingStoreKit storeKit = new RecordingStoreKit();
+    TransactionBatcher batcher = new TransactionBatcher(storeKit);
+    long latency = 100;
+    batcher.setBatching(100, latency);
+    long start = System.nanoTime();
+    batcher.add(update(1));
+    batcher.add(update(2));
+    assertEquals(0, storeKit.batches.size());
+    storeKit.awaitSent(2);
+    assertEquals(1, storeKit.batches.size());
+    long waited = TimeUnit.NANOSECONDS.toMillis(storeKit.lastCallAt - start);
+    assertTrue(waited + " ms", waited >= latency - 2);
+  }
+
+  @Test
+  public void batchesKeepTheirOrderAcrossConcurrentFlushes() throws Exception {
+    final int threads = 4;
+    final int perThread = 5000;
+    final int maxBatchSize = 7;
+    RecordingStoreKit storeKit = new RecordingStoreKit() {
+      @Override
+      void sent(int[] ids) {
+        // Slow enough that other threads' flushes find this one under way
+        Thread.yield();
+      }
+    };
+    final TransactionBatcher batcher = new TransactionBatcher(storeKit);
+    batcher.setBatching(maxBatchSize, 1);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> adders = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      Thread adder = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < perThread; i++) {
+            // Each thread's updates in increasing order
+            batcher.add(update(thread * perThread + i));
+            if (i % 100 == 0)
+              batcher.flush();
+          }
+        }
+      });
+      adder.start();
+      adders.add(adder);
+    }
+    start.countDown();
+    for (Thread adder : adders)
+      adder.join(TIMEOUT_MILLIS);
+    storeKit.awaitSent(threads * perThread);
+
+    int[] last = new int[threads];
+    Arrays.fill(last, -1);
+    synchronized (storeKit.batches) {
+      for (int[] batch : storeKit.batches) {
+        assertTrue(batch.length + " updates", batch.length <= maxBatchSize);
+        for (int id : batch) {
+          int thread = id / perThread;
+          assertTrue(id + " after " + last[thread], id > last[thread]);
+          last[thread] = id;
+        }
+      }
+    }
+    assertEquals(threads * perThread, storeKit.sentCount());
+  }
+
+  @Test
+  public void batchesAreSentOutsideTheLock() throws Exception {
+    final boolean[] blocked = new boolean[1];
+    final TransactionBatcher[] batcher = new TransactionBatcher[1];
+    RecordingStoreKit storeKit = new RecordingStoreKit() {
+      @Override
+      void sent(int[] ids) {
+        if (ids[0] != 1)
+          return;
+        // Another thread adds while this batch is being sent
+        Thread adder = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            batcher[0].add(update(2));
+          }
+        });
+        adder.start();
+        try {
+          adder.join(TIMEOUT_MILLIS / 10);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        blocked[0] = adder.isAlive();
+      }
+    };
+    batcher[0] = new TransactionBatcher(storeKit);
+    batcher[0].setBatching(1, 0);
+    batcher[0].add(update(1));
+    storeKit.awaitSent(2);
+    assertFalse("add blocked behind a send", blocked[0]);
+    // The second update was sent by the flush already under way, after the first
+    assertEquals(1, storeKit.batches.get(0)[0]);
+    assertEquals(2, storeKit.batches.get(1)[0]);
+  }
+}
@@ -0,0 +1,93 @@
+package com.jesusla.storekit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link Transaction}: the map sent to ActionScript reads back as
+ * the same transaction for either vendor, numbers come back as whatever
+ * type ActionScript chose, and mistyped fields read as unset.
+ */
+public class TransactionTest {
+  private static Transaction google(int payloadId, int orderIndex) {
+    return Transaction.google(Transaction.STATE_VERIFY, "sku.gold", "12999763169054705758.1",
+        1300000000000L, 7, "-1a2b.0", payloadId, orderIndex);
+  }
+
+  @Test
+  public void googleTransactionRoundTrips() {
+    Transaction transaction = google(3, 12);
+    Map<String, Object> map = transaction.toMap();
+    assertEquals(GoogleProvider.VENDOR, map.get("vendor"));
+    assertEquals(new Date(1300000000000L), map.get("_transactionDate"));
+    assertEquals(3, map.get("_payloadId"));
+    assertEquals(12, map.get("_orderIndex"));
+
+    Transaction read = Transaction.from(map);
+    assertEquals(map, read.toMap());
+    assertEquals("sku.gold", read.getProductIdentifier());
+    assertEquals("12999763169054705758.1", read.getTransactionIdentifier());
+    assertEquals(7, read.getUpdateId());
+    assertEquals("-1a2b.0", read.getNotificationId());
+  }
+
+  @Test
+  public void googleTransactionKeepsFinishFieldsWhenUnset() {
+    Transaction transaction = Transaction.google(Transaction.STATE_FAILED, null, null, -1, -1,
+        null, -1, -1);
+    Map<String, Object> map = transaction.toMap();
+    // finishTransaction needs these back, so they are sent even when unset
+    assertTrue(map.containsKey("_updateId"));
+    assertTrue(map.containsKey("_notificationId"));
+    assertFalse(map.containsKey("_payloadId"));
+    assertFalse(map.containsKey("_transactionDate"));
+    assertEquals(map, Transaction.from(map).toMap());
+  }
+
+  @Test
+  public void amazonTransactionRoundTrips() {
+    Date start = new Date(1300000000000L);
+    Date end = new Date(1310000000000L);
+    Transaction transaction = Transaction.amazon(Transaction.STATE_PURCHASED, "sku.monthly",
+        "user-1", "SUBSCRIPTION", "token-1", start, end);
+    Map<String, Object> map = transaction.toMap();
+    assertEquals(AmazonProvider.TYPE, map.get("vendor"));
+    assertFalse(map.containsKey("_updateId"));
+    assertFalse(map.containsKey("_payloadId"));
+
+    Transaction read = Transaction.from(map);
+    assertEquals(map, read.toMap());
+    assertEquals("token-1", read.getPurchaseToken());
+  }
+
+  @Test
+  public void numbersMayComeBackAsDoubles() {
+    Map<String, Object> map = google(3, 12).toMap();
+    map.put("_updateId", 7.0);
+    map.put("_payloadId", 3.0);
+    map.put("_orderIndex", 12.0);
+    assertEquals(google(3, 12).toMap(), Transaction.from(map).toMap());
+  }
+
+  @Test
+  public void mistypedFieldsReadAsUnset() {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("vendor", GoogleProvider.VENDOR);
+    map.put("transactionState", Transaction.STATE_VERIFY);
+    map.put("productIdentifier", 42);
+    map.put("_updateId", "7");
+    map.put("_transactionDate", 1300000000000L);
+    Transaction read = Transaction.from(map);
+    assertNull(read.getProductIdentifier());
+    assertEquals(-1, read.getUpdateId());
+    assertFalse(read.toMap().containsKey("_transactionDate"));
+  }
+}
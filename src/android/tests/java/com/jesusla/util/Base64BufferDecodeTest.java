@@ -0,0 +1,153 @@
+package com.jesusla.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Differential tests of the decoders that write into caller-supplied
+ * buffers against the original array decoder, on both alphabets: every
+ * input must decode to the same bytes, or fail with the same message.
+ */
+public class Base64BufferDecodeTest {
+  private static final int ROUNDS = 20000;
+
+  /** The reference result: the decoded bytes, or the exception message. */
+  private static Object expected(String input, boolean webSafe) {
+    try {
+      byte[] bytes = input.getBytes(StandardCharsets.US_ASCII);
+      return webSafe ? ReferenceBase64.decodeWebSafe(bytes) : ReferenceBase64.decode(bytes);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static void assertSame(String input, Object expected, Object actual) {
+    if (expected instanceof byte[] && actual instanceof byte[]) {
+      assertArrayEquals(input, (byte[]) expected, (byte[]) actual);
+    } else {
+      assertEquals(input, expected, actual);
+    }
+  }
+
+  private static Object decodeString(String input, boolean webSafe) {
+    try {
+      return webSafe ? Base64.decodeWebSafe(input) : Base64.decode(input);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Object decodeCharSequence(String input, boolean webSafe, int destOff) {
+    byte[] dest = new byte[destOff + input.length() + 2];
+    Arrays.fill(dest, (byte) 0x55);
+    try {
+      int written = webSafe ? Base64.decodeWebSafe(input, dest, destOff)
+          : Base64.decode(input, dest, destOff);
+      for (int i = 0; i < destOff; i++)
+        assertEquals(input, (byte) 0x55, dest[i]);
+      return Arrays.copyOfRange(dest, destOff, destOff + written);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Object decodeSlice(String input, boolean webSafe, String before, String after) {
+    CharSequence source = new StringBuilder(before).append(input).append(after);
+    byte[] dest = new byte[input.length() + 2];
+    byte[] decodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+    try {
+      int written = Base64.decode(source, before.length(), input.length(), dest, 0, decodabet);
+      return Arrays.copyOf(dest, written);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Object decodeByteBuffer(String input, boolean webSafe, boolean direct) {
+    byte[] bytes = input.getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer source = direct ? ByteBuffer.allocateDirect(bytes.length + 3)
+        : ByteBuffer.allocate(bytes.length + 3);
+    source.put(new byte[] {'#', '#', '#'}).put(bytes).flip();
+    source.position(3);
+    ByteBuffer dest = direct ? ByteBuffer.allocateDirect(bytes.length + 7)
+        : ByteBuffer.allocate(bytes.length + 7);
+    dest.position(5);
+    try {
+      int written = webSafe ? Base64.decodeWebSafe(source, dest) : Base64.decode(source, dest);
+      assertEquals(input, source.limit(), source.position());
+      assertEquals(input, 5 + written, dest.position());
+      byte[] out = new byte[written];
+      dest.position(5);
+      dest.get(out);
+      return out;
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Object decodeByteBufferToArray(String input, boolean webSafe) {
+    ByteBuffer source = ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII));
+    byte[] dest = new byte[input.length() + 2];
+    byte[] decodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+    try {
+      int written = Base64.decode(source, dest, 0, decodabet);
+      return Arrays.copyOf(dest, written);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static void check(Base64Fuzz fuzz, boolean webSafe) {
+    for (int round = 0; round < ROUNDS; round++) {
+      String input = fuzz.input(round % 2 == 0 ? 40 : 400, webSafe);
+      Object expected = expected(input, webSafe);
+      assertSame(input, expected, decodeString(input, webSafe));
+      assertSame(input, expected, decodeCharSequence(input, webSafe, fuzz.nextInt(4)));
+      assertSame(input, expected, decodeSlice(input, webSafe, "==", "@@"));
+      assertSame(input, expected, decodeByteBuffer(input, webSafe, fuzz.nextBoolean()));
+      assertSame(input, expected, decodeByteBufferToArray(input, webSafe));
+      if (expected instanceof byte[]) {
+        assertEquals(input, ((byte[]) expected).length, Base64.decodedLength(input));
+      }
+    }
+  }
+
+  @Test
+  public void matchesReferenceDecoder() {
+    check(new Base64Fuzz(8), false);
+  }
+
+  @Test
+  public void matchesReferenceDecoderWebSafe() {
+    check(new Base64Fuzz(9), true);
+  }
+
+  @Test
+  public void decodesIntoExactlySizedBuffer() throws Base64DecoderException {
+    Base64Fuzz fuzz = new Base64Fuzz(10);
+    for (int round = 0; round < 1000; round++) {
+      byte[] data = fuzz.data(300);
+      String encoded = Base64.encode(data);
+      byte[] dest = new byte[Base64.decodedLength(encoded)];
+      assertEquals(data.length, Base64.decode(encoded, dest, 0));
+      assertArrayEquals(data, dest);
+    }
+  }
+
+  @Test
+  public void rejectsNonAsciiCharacters() {
+    try {
+      Base64.decode("QUJDÄ", new byte[8], 0);
+      fail();
+    } catch (Base64DecoderException e) {
+      // Expected
+    }
+  }
+}
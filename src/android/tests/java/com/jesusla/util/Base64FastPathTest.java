@@ -0,0 +1,140 @@
+package com.jesusla.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Differential tests of the block fast path of the array decoder against
+ * the original decoder. The inputs put whitespace, padding, invalid and
+ * non-ASCII bytes at every position of a block, so that each way out of
+ * the fast path is taken, and results and error messages must match.
+ */
+public class Base64FastPathTest {
+  private static final byte[] SPECIAL = {' ', '\n', '=', '*', '.', (byte) 0x80, (byte) 0xc1,
+      (byte) 0xff, 0, 0x7f};
+
+  private static Object expected(byte[] input, int off, int len, boolean webSafe) {
+    try {
+      return webSafe ? ReferenceBase64.decodeWebSafe(input, off, len)
+          : ReferenceBase64.decode(input, off, len);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Object actual(byte[] input, int off, int len, boolean webSafe) {
+    try {
+      return webSafe ? Base64.decodeWebSafe(input, off, len) : Base64.decode(input, off, len);
+    } catch (Base64DecoderException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static void assertMatches(byte[] input, int off, int len, boolean webSafe) {
+    Object expected = expected(input, off, len, webSafe);
+    Object actual = actual(input, off, len, webSafe);
+    String message = new String(input, off, len, StandardCharsets.ISO_8859_1);
+    if (expected instanceof byte[] && actual instanceof byte[]) {
+      assertArrayEquals(message, (byte[]) expected, (byte[]) actual);
+    } else {
+      assertEquals(message, expected, actual);
+    }
+  }
+
+  private static byte[] encode(byte[] data, boolean webSafe) {
+    byte[] alphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+    return Base64.encode(data, 0, data.length, alphabet, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void specialByteAtEveryPosition() {
+    Random random = new Random(9);
+    for (boolean webSafe : new boolean[] {false, true}) {
+      for (int length = 0; length <= 40; length++) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        byte[] encoded = encode(data, webSafe);
+        assertMatches(encoded, 0, encoded.length, webSafe);
+        for (int at = 0; at <= encoded.length; at++) {
+          for (byte special : SPECIAL) {
+            // Inserted
+            byte[] input = new byte[encoded.length + 1];
+            System.arraycopy(encoded, 0, input, 0, at);
+            input[at] = special;
+            System.arraycopy(encoded, at, input, at + 1, encoded.length - at);
+            assertMatches(input, 0, input.length, webSafe);
+            // Replacing
+            if (at < encoded.length) {
+              input = encoded.clone();
+              input[at] = special;
+              assertMatches(input, 0, input.length, webSafe);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void otherAlphabetFallsOutOfFastPath() {
+    Random random = new Random(10);
+    for (int round = 0; round < 2000; round++) {
+      byte[] data = new byte[random.nextInt(200)];
+      random.nextBytes(data);
+      boolean webSafe = random.nextBoolean();
+      byte[] encoded = encode(data, !webSafe);
+      assertMatches(encoded, 0, encoded.length, webSafe);
+    }
+  }
+
+  @Test
+  public void randomBytes() {
+    Random random = new Random(11);
+    for (int round = 0; round < 20000; round++) {
+      byte[] input = new byte[random.nextInt(64)];
+      random.nextBytes(input);
+      // Mostly alphabet bytes, so that some blocks take the fast path
+      for (int i = 0; i < input.length; i++) {
+        if (random.nextInt(10) != 0)
+          input[i] = Base64.ALPHABET[input[i] & 0x3f];
+      }
+      assertMatches(input, 0, input.length, random.nextBoolean());
+    }
+  }
+
+  @Test
+  public void decodesAtOffset() {
+    Base64Fuzz fuzz = new Base64Fuzz(12);
+    for (int round = 0; round < 5000; round++) {
+      boolean webSafe = fuzz.nextBoolean();
+      byte[] encoded = fuzz.input(300, webSafe).getBytes(StandardCharsets.US_ASCII);
+      int before = fuzz.nextInt(9);
+      int after = fuzz.nextInt(9);
+      byte[] input = new byte[before + encoded.length + after];
+      Arrays.fill(input, (byte) '*');
+      System.arraycopy(encoded, 0, input, before, encoded.length);
+      assertMatches(input, before, encoded.length, webSafe);
+    }
+  }
+
+  @Test
+  public void largePayloads() throws Base64DecoderException {
+    Random random = new Random(13);
+    byte[] data = new byte[64 * 1024 + 7];
+    random.nextBytes(data);
+    for (boolean webSafe : new boolean[] {false, true}) {
+      byte[] encoded = encode(data, webSafe);
+      assertArrayEquals(data, webSafe ? Base64.decodeWebSafe(encoded) : Base64.decode(encoded));
+      // Wrapped into lines, as encode(..., maxLineLength) does
+      byte[] alphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+      byte[] wrapped = Base64.encode(data, 0, data.length, alphabet, 76);
+      assertMatches(wrapped, 0, wrapped.length, webSafe);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.jesusla.util;
+
+import java.util.Random;
+
+/**
+ * Generates Base64 test inputs: valid encodings of random data in either
+ * alphabet, with and without padding, and the same with whitespace, bad
+ * characters, stray padding or a missing tail mixed in.
+ */
+final class Base64Fuzz {
+  private static final char[] WHITE_SPACE = {' ', '\n', '\t', '\r', '\f'};
+
+  private final Random random;
+
+  Base64Fuzz(long seed) {
+    random = new Random(seed);
+  }
+
+  /** Returns random data of up to the given length. */
+  byte[] data(int maxLength) {
+    byte[] data = new byte[random.nextInt(maxLength + 1)];
+    random.nextBytes(data);
+    return data;
+  }
+
+  /** Returns a valid encoding of random data. */
+  String valid(int maxLength, boolean webSafe) {
+    byte[] data = data(maxLength);
+    return webSafe ? Base64.encodeWebSafe(data, random.nextBoolean()) : Base64.encode(data);
+  }
+
+  /**
+   * Returns an encoding of random data that, about half of the time, has
+   * been damaged in one or more ways. Only ASCII characters are used.
+   */
+  String input(int maxLength, boolean webSafe) {
+    StringBuilder s = new StringBuilder(valid(maxLength, webSafe));
+    int damage = random.nextInt(8);
+    for (int i = 0; i < damage && random.nextBoolean(); i++) {
+      int at = random.nextInt(s.length() + 1);
+      switch (random.nextInt(5)) {
+        case 0:
+          s.insert(at, WHITE_SPACE[random.nextInt(WHITE_SPACE.length)]);
+          break;
+        case 1:
+          if (at < s.length())
+            s.setCharAt(at, (char) random.nextInt(0x80));
+          break;
+        case 2:
+          s.insert(at, '=');
+          break;
+        case 3:
+          s.setLength(at);
+          break;
+        default:
+          s.append(random.nextBoolean() ? '\n' : '=');
+          break;
+      }
+    }
+    return s.toString();
+  }
+
+  int nextInt(int bound) {
+    return random.nextInt(bound);
+  }
+
+  boolean nextBoolean() {
+    return random.nextBoolean();
+  }
+}
@@ -0,0 +1,271 @@
+package com.jesusla.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the Base64 streams and channels against the array codec, on
+ * random inputs written and read in random chunks. The large round trip
+ * streams {@code -Dbase64.streamMegabytes} of data (32 by default) through
+ * both streams without holding it in memory.
+ */
+public class Base64StreamTest {
+  // The array codec only supports line lengths that are a multiple of four
+  private static final int[] LINE_LENGTHS = {4, 20, 76, 1000, Integer.MAX_VALUE};
+
+  /** Returns at most a random number of bytes per read, sometimes none. */
+  private static final class ChoppyInputStream extends FilterInputStream {
+    private final Random random;
+
+    ChoppyInputStream(InputStream in, Random random) {
+      super(in);
+      this.random = random;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, random.nextInt(8)));
+    }
+  }
+
+  private static void write(OutputStream out, byte[] data, Random random) throws IOException {
+    int i = 0;
+    while (i < data.length) {
+      if (random.nextInt(4) == 0) {
+        out.write(data[i++]);
+      } else {
+        int n = Math.min(data.length - i, random.nextInt(3000));
+        out.write(data, i, n);
+        i += n;
+      }
+    }
+  }
+
+  private static byte[] read(InputStream in, Random random) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[3000];
+    while (true) {
+      if (random.nextInt(4) == 0) {
+        int b = in.read();
+        if (b < 0)
+          break;
+        out.write(b);
+      } else {
+        int n = in.read(buffer, 0, 1 + random.nextInt(buffer.length));
+        if (n < 0)
+          break;
+        out.write(buffer, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void encodesLikeArrayCodec() throws IOException {
+    Random random = new Random(10);
+    for (int round = 0; round < 2000; round++) {
+      byte[] data = new byte[random.nextInt(round % 10 == 0 ? 20000 : 300)];
+      random.nextBytes(data);
+      boolean webSafe = random.nextBoolean();
+      byte[] alphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+      int maxLineLength = LINE_LENGTHS[random.nextInt(LINE_LENGTHS.length)];
+
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      OutputStream out = new Base64OutputStream(encoded, webSafe, maxLineLength, true);
+      write(out, data, random);
+      if (random.nextBoolean())
+        out.flush();
+      out.close();
+      assertArrayEquals(Base64.encode(data, 0, data.length, alphabet, maxLineLength),
+          encoded.toByteArray());
+
+      encoded.reset();
+      out = new Base64OutputStream(encoded, webSafe, Integer.MAX_VALUE, false);
+      write(out, data, random);
+      out.close();
+      assertEquals(Base64.encode(data, 0, data.length, alphabet, false),
+          new String(encoded.toByteArray(), StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void decodesLikeArrayCodec() throws IOException {
+    Base64Fuzz fuzz = new Base64Fuzz(11);
+    Random random = new Random(11);
+    for (int round = 0; round < 20000; round++) {
+      boolean webSafe = fuzz.nextBoolean();
+      byte[] input = fuzz.input(round % 10 == 0 ? 3000 : 100, webSafe)
+          .getBytes(StandardCharsets.US_ASCII);
+      String message = new String(input, StandardCharsets.US_ASCII);
+      InputStream in = new Base64InputStream(
+          new ChoppyInputStream(new ByteArrayInputStream(input), random), webSafe);
+      byte[] expected;
+      try {
+        expected = webSafe ? ReferenceBase64.decodeWebSafe(input) : ReferenceBase64.decode(input);
+      } catch (Base64DecoderException e) {
+        try {
+          read(in, random);
+          fail(message);
+        } catch (IOException ioe) {
+          assertTrue(message, ioe.getCause() instanceof Base64DecoderException);
+          assertEquals(message, e.getMessage(), ioe.getCause().getMessage());
+        }
+        continue;
+      }
+      assertArrayEquals(message, expected, read(in, random));
+    }
+  }
+
+  @Test
+  public void channelsRoundTrip() throws IOException {
+    Random random = new Random(12);
+    for (int round = 0; round < 200; round++) {
+      byte[] data = new byte[random.nextInt(10000)];
+      random.nextBytes(data);
+      boolean webSafe = random.nextBoolean();
+
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      WritableByteChannel out = Base64OutputStream.newChannel(
+          Channels.newChannel(encoded), webSafe, 76, true);
+      ByteBuffer source = ByteBuffer.wrap(data);
+      while (source.hasRemaining()) {
+        ByteBuffer chunk = source.slice();
+        chunk.limit(Math.min(chunk.remaining(), 1 + random.nextInt(500)));
+        source.position(source.position() + out.write(chunk));
+      }
+      out.close();
+
+      ReadableByteChannel in = Base64InputStream.newChannel(
+          Channels.newChannel(new ByteArrayInputStream(encoded.toByteArray())), webSafe);
+      ByteBuffer decoded = ByteBuffer.allocate(data.length + 1);
+      while (in.read(decoded) >= 0) {
+      }
+      in.close();
+      decoded.flip();
+      byte[] actual = new byte[decoded.remaining()];
+      decoded.get(actual);
+      assertArrayEquals(data, actual);
+    }
+  }
+
+  /** Streams the same pseudo-random data for a seed, in chunks of 3 KB. */
+  private static final class DataSource {
+    static final int CHUNK = 3 * 1024;
+
+    private final Random random;
+    private long remaining;
+
+    DataSource(long seed, long length) {
+      random = new Random(seed);
+      remaining = length;
+    }
+
+    /** Returns the next chunk, or null at the end. */
+    byte[] next() {
+      if (remaining == 0)
+        return null;
+      byte[] chunk = new byte[(int) Math.min(CHUNK, remaining)];
+      random.nextBytes(chunk);
+      remaining -= chunk.length;
+      return chunk;
+    }
+  }
+
+  /** The array codec's encoding of a DataSource, produced as it is read. */
+  private static final class EncodedSource extends InputStream {
+    private final DataSource data;
+    private byte[] encoded = new byte[0];
+    private int posn;
+
+    EncodedSource(DataSource data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (posn == encoded.length) {
+        // Chunks are a multiple of three bytes, so their encodings join up
+        byte[] chunk = data.next();
+        if (chunk == null)
+          return -1;
+        encoded = Base64.encode(chunk, 0, chunk.length, Base64.ALPHABET, Integer.MAX_VALUE);
+        posn = 0;
+      }
+      int n = Math.min(len, encoded.length - posn);
+      System.arraycopy(encoded, posn, b, off, n);
+      posn += n;
+      return n;
+    }
+  }
+
+  @Test
+  public void largeStreamsRoundTrip() throws IOException {
+    long length = Long.getLong("base64.streamMegabytes", 32) * 1024 * 1024 + 1;
+    final long seed = 13;
+
+    // Encoding matches the array codec byte for byte
+    final EncodedSource expected = new EncodedSource(new DataSource(seed, length));
+    OutputStream checker = new OutputStream() {
+      private long offset;
+
+      @Override
+      public void write(int b) {
+        assertEquals("offset " + offset, expected.read(), b);
+        offset++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        for (int i = 0; i < len; i++)
+          write(b[off + i] & 0xff);
+      }
+    };
+    OutputStream out = new Base64OutputStream(checker);
+    DataSource data = new DataSource(seed, length);
+    for (byte[] chunk = data.next(); chunk != null; chunk = data.next())
+      out.write(chunk, 0, chunk.length);
+    out.close();
+    assertEquals(-1, expected.read());
+
+    // Decoding gives the data back
+    InputStream in = new Base64InputStream(new EncodedSource(new DataSource(seed, length)));
+    data = new DataSource(seed, length);
+    byte[] buffer = new byte[DataSource.CHUNK];
+    for (byte[] chunk = data.next(); chunk != null; chunk = data.next()) {
+      int n = 0;
+      while (n < chunk.length) {
+        int read = in.read(buffer, n, chunk.length - n);
+        assertTrue(read > 0);
+        n += read;
+      }
+      for (int i = 0; i < n; i++) {
+        if (buffer[i] != chunk[i])
+          assertEquals("decoded byte", chunk[i], buffer[i]);
+      }
+    }
+    assertEquals(-1, in.read());
+  }
+}
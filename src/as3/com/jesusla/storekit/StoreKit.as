@@ -42,9 +42,22 @@ package com.jesusla.storekit {
     private static var _canMakePayments:Boolean;
     private static var _fakeTransactions:Array = [];
     private static var _restoreCallback:Function;
+    private static var _signedPayloads:Object = {};
     private var transactionQueue:Array = [];
     private var queueTransactions:Boolean = true;
 
+    //---------------------------------------------------------------------
+    //
+    // Public Properties.
+    //
+    //---------------------------------------------------------------------
+    /**
+     * Compatibility mode: copies the signed data and signature of a Google
+     * Play transaction into its _signedData and _signature properties, as
+     * earlier versions did, instead of only through getSignedPayload().
+     */
+    public static var inlineSignedData:Boolean = false;
+
     //---------------------------------------------------------------------
     //
     // Public Methods.
@@ -88,6 +101,55 @@ package com.jesusla.storekit {
       throw new Error("Unimplemented");
     }
 
+    /**
+     * Hints that the store UI is about to open, so the native extension can
+     * connect to the billing service ahead of the first request.
+     */
+    public static function prepareStore():void {
+      if (context)
+        context.call("prepareStore");
+    }
+
+    /**
+     * Returns a snapshot of request latencies and counters collected by
+     * the native extension, or an empty object if there is none.
+     */
+    public static function getMetrics():Object {
+      if (context)
+        return context.call("getMetrics");
+      return {};
+    }
+
+    /**
+     * Returns the signed data that a Google Play transaction in the VERIFY
+     * state was delivered in, for server-side verification, as an object
+     * with signedData, signature and orderIndex (the position of the
+     * transaction in the payload's orders). Returns null for any other
+     * transaction. The signed data is shared by every transaction in the
+     * payload and released once they have all been acknowledged.
+     */
+    public static function getSignedPayload(transaction:Object):Object {
+      var payload:Object = _signedPayloads[transaction._payloadId];
+      if (!payload)
+        return null;
+      return {
+        signedData: payload.signedData,
+        signature: payload.signature,
+        orderIndex: transaction._orderIndex
+      };
+    }
+
+    /**
+     * Sets how transaction updates are batched across the native bridge:
+     * at most maxBatchSize updates are sent at once, and an update waits at
+     * most flushMillis for others. Events are still dispatched one per
+     * transaction, in order.
+     */
+    public static function setTransactionBatching(maxBatchSize:int, flushMillis:int):void {
+      if (context)
+        context.call("setTransactionBatching", maxBatchSize, flushMillis);
+    }
+
     public static function requestPayment(productIdentifier:String, callback:Function = null):void {
       ensureAvailable();
 
@@ -103,11 +165,14 @@ package com.jesusla.storekit {
         transaction.transactionState = STATE_PURCHASED;
         _instance.onTransactionUpdate(transaction);
       }
-      else if (context)
+      else if (context) {
         context.call("finishTransaction", transaction);
+        releaseSignedPayload(transaction);
+      }
     }
 
     public static function rejectTransaction(transaction:Object):void {
+      releaseSignedPayload(transaction);
     }
 
     public static function restoreCompletedTransactions(callback:Function = null):void {
@@ -141,9 +206,25 @@ package com.jesusla.storekit {
       else
         throw new Error("Unknown transaction update status " + status);
 
+      if (inlineSignedData && transaction._signedData == null) {
+        var payload:Object = getSignedPayload(transaction);
+        if (payload) {
+          transaction._signedData = payload.signedData;
+          transaction._signature = payload.signature;
+        }
+      }
       dispatchEvent(new TransactionEvent(type, transaction));
     }
 
+    public function onTransactionUpdates(transactions:Array):void {
+      for (var i:int = 0; i < transactions.length; i++)
+        onTransactionUpdate(transactions[i]);
+    }
+
+    public function onSignedPayload(id:int, signedData:String, signature:String, references:int):void {
+      _signedPayloads[id] = { signedData: signedData, signature: signature, references: references };
+    }
+
     public function getQualifiedClassName(obj:Object):String {
       return flash.utils.getQualifiedClassName(obj);
     }
@@ -179,6 +260,13 @@ package com.jesusla.storekit {
       transactionQueue = null;
     }
 
+    private static function releaseSignedPayload(transaction:Object):void {
+      var id:Object = transaction._payloadId;
+      var payload:Object = _signedPayloads[id];
+      if (payload && --payload.references <= 0)
+        delete _signedPayloads[id];
+    }
+
     private static function ensureInitialized():void {
       if (!_initialized)
         throw new Error("Not initialized, must call init() first");